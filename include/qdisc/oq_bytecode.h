@@ -0,0 +1,142 @@
+/*
+ * oq_bytecode.h    Policy bytecode the OpenQueue core runs without a policy module.
+ *
+ *                  OQGen -target bytecode compiles a policy into a blob that tc passes along
+ *                  with the qdisc options (tc qdisc add ... openqueue prog <file>.oqb). The
+ *                  core verifies the blob before it takes the place of a policy module, so a
+ *                  broken or hostile blob is rejected at load rather than run. Shared by the
+ *                  core and OQGen (OQBytecode), all fields are little-endian.
+ *
+ *                  Layout: struct oq_bc_hdr, num_q struct oq_bc_queue, num_nodes
+ *                  struct oq_bc_node, num_insns struct oq_bc_insn.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#pragma once
+
+#include <linux/types.h>
+
+#define OQ_BC_MAGIC		0x5042514f	/* "OQBP" */
+#define OQ_BC_VERSION		3
+#define OQ_BC_NAME_LEN		32	/* NUL-padded, TCQ_OQ_NAME_LEN */
+#define OQ_BC_MAX_INSNS		2048	/* The blob has to fit into a netlink attribute */
+#define OQ_BC_NONE		0xffff	/* No program for a hook (the core assumes 0) */
+
+/* Program entries of a queue */
+#define OQ_BC_HOOK_CONG		0	/* Congestion condition */
+#define OQ_BC_HOOK_CONG_ACT	1	/* Congestion action */
+#define OQ_BC_HOOK_ADMN		2	/* Admission priority */
+#define OQ_BC_HOOK_PROC		3	/* Processing priority */
+#define OQ_BC_QUEUE_HOOKS	4
+
+/* Port flags */
+#define OQ_BC_PORT_PACING	0x1	/* Per-flow pacing at sk_pacing_rate */
+
+/* Per-queue state of built-in processing keys */
+#define OQ_BC_QUEUE_PLAIN	0
+#define OQ_BC_QUEUE_SFQ		1	/* arg: flow table size */
+#define OQ_BC_QUEUE_DEADLINE	2	/* arg: budget (usec) */
+
+/*
+ * Instructions work on a 64-bit accumulator A and a scratch register X. Jumps only go
+ * forward, so every program ends in a RET within num_insns instructions.
+ */
+#define OQ_BC_RET		0	/* Return A */
+#define OQ_BC_LD_IMM		1	/* A = imm */
+#define OQ_BC_LD_FIELD		2	/* A = packet field arg (PacketField order, oq_packet.h) */
+#define OQ_BC_LD_ATTR		3	/* A = queue attribute arg (signed) */
+#define OQ_BC_TAX		4	/* X = A */
+#define OQ_BC_RSH		5	/* A >>= arg */
+#define OQ_BC_AND		6	/* A &= imm */
+#define OQ_BC_XOR		7	/* A ^= imm */
+#define OQ_BC_PACK		8	/* A = X << arg | A */
+#define OQ_BC_CMP		9	/* A = (s64)X <op arg> (s64)A */
+#define OQ_BC_JNE		10	/* Skip off instructions if A != imm */
+#define OQ_BC_CALL		11	/* A = built-in arg */
+#define OQ_BC_MAX_CODE		11
+
+/* Packet fields of LD_FIELD */
+#define OQ_BC_FIELD_TOS		0
+#define OQ_BC_FIELD_TOT_LEN	1
+#define OQ_BC_FIELD_ID		2
+#define OQ_BC_FIELD_TTL		3
+#define OQ_BC_FIELD_PROTOCOL	4
+#define OQ_BC_FIELD_SADDR	5
+#define OQ_BC_FIELD_DADDR	6
+#define OQ_BC_FIELD_IP6_FLOWLABEL	7
+#define OQ_BC_FIELD_IP6_TCLASS	8
+#define OQ_BC_FIELD_SPORT	9
+#define OQ_BC_FIELD_DPORT	10
+#define OQ_BC_FIELD_MARK	11
+#define OQ_BC_FIELD_PRIORITY	12
+#define OQ_BC_FIELD_HASH	13
+#define OQ_BC_NUM_FIELDS	14
+
+/* Queue attributes of LD_ATTR */
+#define OQ_BC_ATTR_LEN		0
+#define OQ_BC_ATTR_MAX_LEN	1
+#define OQ_BC_ATTR_DROPPED	2
+#define OQ_BC_ATTR_TOTAL	3
+#define OQ_BC_NUM_ATTRS		4
+
+/* Comparisons of CMP */
+#define OQ_BC_CMP_EQ		0
+#define OQ_BC_CMP_NE		1
+#define OQ_BC_CMP_LT		2
+#define OQ_BC_CMP_LE		3
+#define OQ_BC_CMP_GT		4
+#define OQ_BC_CMP_GE		5
+#define OQ_BC_NUM_CMPS		6
+
+/* Built-ins of CALL */
+#define OQ_BC_CALL_FLOW_HASH	0	/* Queue selector, imm: queues | perturb << 32 */
+#define OQ_BC_CALL_SFQ_VTIME	1	/* Processing priority, imm: weight */
+#define OQ_BC_CALL_DEADLINE	2	/* Processing priority of an OQ_BC_QUEUE_DEADLINE queue */
+#define OQ_BC_CALL_EDF		3	/* Scheduling priority of a leaf port */
+#define OQ_BC_NUM_CALLS		4
+
+struct oq_bc_hdr {
+    __u32 magic;
+    __u16 version;
+    __u16 num_q;
+    __u16 num_nodes;
+    __u16 qselc; /* Entry of the queue selector */
+    __u32 num_insns;
+    char port_name[OQ_BC_NAME_LEN];
+    __u32 buffer; /* Shared buffer in packets (0 when there is none) */
+    __s32 buffer_alpha; /* log2 of its alpha */
+    __u32 flags; /* OQ_BC_PORT_* */
+    __u32 reserved; /* 0 */
+};
+
+struct oq_bc_queue {
+    char name[OQ_BC_NAME_LEN];
+    __u32 max_len;
+    __u32 burst; /* Bytes */
+    __u64 rate; /* Bytes per second (0 when not shaped) */
+    __u16 hooks[OQ_BC_QUEUE_HOOKS]; /* Entries */
+    __u32 builtin; /* OQ_BC_QUEUE_* */
+    __u32 builtin_arg;
+};
+
+/* Scheduling node, as struct oq_sched_node */
+struct oq_bc_node {
+    __u16 first;
+    __u16 num;
+    __u16 leaf;
+    __u16 sched; /* Entry of the scheduling priority */
+};
+
+struct oq_bc_insn {
+    __u8 code;
+    __u8 arg;
+    __u16 off;
+    __u32 pad;
+    __u64 imm;
+};
@@ -0,0 +1,50 @@
+/*
+ * oq_capture.h     Arrival traces of an OpenQueue qdisc, for offline what-if replays.
+ *
+ *                  Enabled per qdisc with tc (E.g. tc qdisc change dev eth0 root openqueue
+ *                  set capture 1). The core writes a record for every packet offered to the
+ *                  qdisc, before queue selection, to a per-CPU relay channel at
+ *                  <debugfs>/openqueue/<dev>-<major>/capture<cpu>. oq_capture merges the
+ *                  channels into a trace file (struct oq_capture_hdr followed by the records
+ *                  in time order), which oq_replay maps and feeds through candidate policies.
+ *                  Shared by the core and the userspace tools, fields are in host byte order.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#pragma once
+
+#include <linux/types.h>
+
+#define OQ_CAPTURE_FILE			"capture"
+#define OQ_CAPTURE_SUBBUF_SIZE		65536
+#define OQ_CAPTURE_N_SUBBUFS		64
+#define OQ_CAPTURE_MAGIC		0x5254514f	/* "OQTR" */
+#define OQ_CAPTURE_VERSION		1
+
+/* Packet offered to the qdisc */
+struct oq_capture_rec {
+        __u64 time; /* Monotonic clock (ns) */
+        __u32 saddr; /* IPv4 addresses (0 for other packets) */
+        __u32 daddr;
+        __u32 len; /* Bytes (qdisc_pkt_len) */
+        __u32 mark;
+        __u16 sport; /* Transport ports (0 when there are none) */
+        __u16 dport;
+        __u8 protocol;
+        __u8 tos;
+        __u16 pad;
+};
+
+/* Trace file */
+struct oq_capture_hdr {
+        __u32 magic;
+        __u16 version;
+        __u16 rec_size; /* sizeof(struct oq_capture_rec) */
+        __u64 num_recs;
+};
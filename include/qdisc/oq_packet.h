@@ -0,0 +1,149 @@
+/*
+ * oq_packet.h      Packet field accessors used by generated OpenQueue policies.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#pragma once
+
+#include <linux/skbuff.h>
+#include <linux/ip.h>
+#include <linux/ipv6.h>
+#include <linux/if_ether.h>
+#include <net/ipv6.h>
+#include <net/dsfield.h>
+#include <net/flow_dissector.h>
+#include <net/pkt_sched.h>
+#include <net/sch_generic.h>
+
+/*
+ * All accessors return values in host byte order. A field that is not present in
+ * the packet (E.g. an IPv4 field of an IPv6 packet) reads as 0.
+ */
+
+/* IPv4 header at the network header */
+static inline const struct iphdr *oq_pkt_ip4(const struct sk_buff *skb, struct iphdr *buf)
+{
+	if (tc_skb_protocol(skb) != htons(ETH_P_IP))
+		return NULL;
+
+	return skb_header_pointer(skb, skb_network_offset(skb), sizeof(*buf), buf);
+}
+
+/* IPv6 header at the network header */
+static inline const struct ipv6hdr *oq_pkt_ip6(const struct sk_buff *skb, struct ipv6hdr *buf)
+{
+	if (tc_skb_protocol(skb) != htons(ETH_P_IPV6))
+		return NULL;
+
+	return skb_header_pointer(skb, skb_network_offset(skb), sizeof(*buf), buf);
+}
+
+#define OQ_PKT_IP4_FIELD(field, conv)						\
+static inline u32 oq_pkt_##field(const struct sk_buff *skb)			\
+{										\
+	struct iphdr _iph;							\
+	const struct iphdr *iph = oq_pkt_ip4(skb, &_iph);			\
+										\
+	return iph ? conv(iph->field) : 0;					\
+}
+
+#define OQ_PKT_RAW(x)	(x)
+
+OQ_PKT_IP4_FIELD(tos, OQ_PKT_RAW)
+OQ_PKT_IP4_FIELD(tot_len, ntohs)
+OQ_PKT_IP4_FIELD(id, ntohs)
+OQ_PKT_IP4_FIELD(ttl, OQ_PKT_RAW)
+OQ_PKT_IP4_FIELD(protocol, OQ_PKT_RAW)
+OQ_PKT_IP4_FIELD(saddr, ntohl)
+OQ_PKT_IP4_FIELD(daddr, ntohl)
+
+/* IPv6 flow label (20 bits) */
+static inline u32 oq_pkt_ip6_flowlabel(const struct sk_buff *skb)
+{
+	struct ipv6hdr _ip6h;
+	const struct ipv6hdr *ip6h = oq_pkt_ip6(skb, &_ip6h);
+
+	return ip6h ? ntohl(ip6_flowlabel(ip6h)) : 0;
+}
+
+/* IPv6 traffic class */
+static inline u32 oq_pkt_ip6_tclass(const struct sk_buff *skb)
+{
+	struct ipv6hdr _ip6h;
+	const struct ipv6hdr *ip6h = oq_pkt_ip6(skb, &_ip6h);
+
+	return ip6h ? ipv6_get_dsfield(ip6h) : 0;
+}
+
+/*
+ * Transport ports of IPv4/IPv6 packets, resolved by the flow dissector. It runs once per
+ * packet; both ports are kept in the qdisc control block until oq_pkt_reset() (at enqueue).
+ */
+struct oq_pkt_cb {
+	u16 sport;
+	u16 dport;
+	bool ports_valid;
+};
+
+static inline struct oq_pkt_cb *oq_pkt_cb(const struct sk_buff *skb)
+{
+	qdisc_cb_private_validate(skb, sizeof(struct oq_pkt_cb));
+	return (struct oq_pkt_cb *)qdisc_skb_cb(skb)->data;
+}
+
+static inline void oq_pkt_reset(const struct sk_buff *skb)
+{
+	oq_pkt_cb(skb)->ports_valid = false;
+}
+
+static inline const struct oq_pkt_cb *oq_pkt_ports(const struct sk_buff *skb)
+{
+	struct oq_pkt_cb *cb = oq_pkt_cb(skb);
+	struct flow_keys keys;
+
+	if (likely(cb->ports_valid))
+		return cb;
+
+	if (skb_flow_dissect_flow_keys(skb, &keys, 0)) {
+		cb->sport = ntohs(keys.ports.src);
+		cb->dport = ntohs(keys.ports.dst);
+	} else {
+		cb->sport = 0;
+		cb->dport = 0;
+	}
+	cb->ports_valid = true;
+
+	return cb;
+}
+
+static inline u32 oq_pkt_sport(const struct sk_buff *skb)
+{
+	return oq_pkt_ports(skb)->sport;
+}
+
+static inline u32 oq_pkt_dport(const struct sk_buff *skb)
+{
+	return oq_pkt_ports(skb)->dport;
+}
+
+/* skb metadata */
+static inline u32 oq_pkt_mark(const struct sk_buff *skb)
+{
+	return skb->mark;
+}
+
+static inline u32 oq_pkt_priority(const struct sk_buff *skb)
+{
+	return skb->priority;
+}
+
+static inline u32 oq_pkt_hash(struct sk_buff *skb)
+{
+	return skb_get_hash(skb);
+}
@@ -0,0 +1,35 @@
+/*
+ * oq_telemetry.h   Queue state samples the OpenQueue core streams to userspace.
+ *
+ *                  Enabled per qdisc with tc (E.g. tc qdisc change dev eth0 root openqueue
+ *                  set telemetry 100000 samples every 100 us). Samples are written to a per-CPU
+ *                  relay channel at <debugfs>/openqueue/<dev>-<major>/telemetry<cpu>, one
+ *                  sample per queue per period. Shared by the core and the userspace reader.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#pragma once
+
+#include <linux/types.h>
+
+#define OQ_TELEMETRY_DIR		"openqueue"
+#define OQ_TELEMETRY_FILE		"telemetry"
+#define OQ_TELEMETRY_MIN_PERIOD		10000	/* ns */
+#define OQ_TELEMETRY_SUBBUF_SIZE	16384
+#define OQ_TELEMETRY_N_SUBBUFS		64
+
+/* Sample of a queue */
+struct oq_telemetry_sample {
+        __u64 time; /* Monotonic clock (ns) */
+        __u32 queue; /* Queue index */
+        __u32 len; /* Packets queued */
+        __u32 bytes; /* Bytes queued */
+        __u32 dropped; /* Packets dropped since init */
+        __u64 sojourn; /* Sojourn time of the last packet dequeued (ns) */
+};
@@ -11,15 +11,38 @@
 
 #pragma once
 
+#include <linux/bitops.h>
 #include <linux/btree.h>
+#include <linux/cache.h>
+#include <linux/hrtimer.h>
+#include <net/sch_generic.h>
+
+#include "oq_bytecode.h"
+#include "oq_capture.h"
+#include "oq_telemetry.h"
 
 #define TCQ_OQ_NAME_LEN		32
 #define TCQ_OQ_MAX_QUEUE	16
+#define TCQ_OQ_MAX_NODE		16	/* Ports in the scheduling hierarchy */
+#define TCQ_OQ_MAX_DEPTH	8	/* Levels in the scheduling hierarchy */
+#define TCQ_OQ_MAX_PARAM	8	/* Routine argument slots per queue, node or port */
+#define TCQ_OQ_PARAM_SHIFT	32	/* Fraction bits of a routine argument */
+#define TCQ_OQ_PARAM_NAME_LEN	64
+#define TCQ_OQ_MAX_SET		8	/* Parameters set by one tc command */
+#define TCQ_OQ_SFQ_FLOWS	1024	/* Default flow table size of sfq_vtime */
+#define TCQ_OQ_SFQ_MAX_FLOWS	65536
+#define TCQ_OQ_WHEEL_SLOTS	256	/* Slots of the timing wheel of deadline */
+#define TCQ_OQ_MAX_DEADLINE	10000000	/* Longest budget of deadline (usec) */
+#define TCQ_OQ_MAX_ALPHA	6	/* Shared buffer alpha from 2^-6 to 2^6 */
+#define TCQ_OQ_PACING_FLOWS	1024	/* Flow table size of pacing */
+#define TCQ_OQ_PACING_FLOW_PLIMIT	100	/* Packets pacing holds per flow (flow_plimit of fq) */
+#define TCQ_OQ_PACING_LIMIT	10000	/* Packets pacing holds in all (limit of fq) */
 
 /* Congestion actions */
 #define OQ_CON_ACT_DROP_HEAD    1
 #define OQ_CON_ACT_DROP_TAIL    2
 #define OQ_CON_ACT_DROP_PKT     3
+#define OQ_CON_ACT_PUSHOUT      4       /* Drop the worse of the new packet and the worst of the port */
 
 /* TC options*/
 struct tc_oq_q {
@@ -30,10 +53,23 @@ struct tc_oq_q {
         int total;
 };
 
+/* Parameter set through tc (E.g. set q1.limit 2048) */
+struct tc_oq_param {
+        char name[TCQ_OQ_PARAM_NAME_LEN + 1]; /* <queue>.limit|rate|burst or a routine argument */
+        __s64 value; /* Integer value (limit, rate in bytes/s, burst in bytes) */
+        __s64 fixed; /* Value in fixed point, TCQ_OQ_PARAM_SHIFT fraction bits (routine arguments) */
+        __u32 integral; /* value is exact */
+};
+
 struct tc_oq_qopt {
         char            port_name[TCQ_OQ_NAME_LEN + 1];
         struct tc_oq_q  queues[TCQ_OQ_MAX_QUEUE];
         int             num_q;
+        struct tc_oq_param params[TCQ_OQ_MAX_SET];
+        int             num_params;
+        __u32           prog_len; /* Bytes of policy bytecode following the options (oq_bytecode.h) */
+        int             buffer; /* Shared buffer of the port in packets (0 when there is none) */
+        int             buffer_used; /* Packets queued (dump only) */
 };
 
 /* Policy function types */
@@ -41,43 +77,195 @@ struct Qdisc;
 struct sk_buff;
 struct oq_queue;
 struct oq_priv;
+struct rchan;
+struct dentry;
+struct oq_prog;
+struct oq_prog_op;
 
-typedef bool (*oq_cong_func)(struct oq_queue *queue);
+typedef bool (*oq_cong_func)(struct oq_queue *queue, struct sk_buff *skb);
 typedef int (*oq_cong_act_func)(struct oq_queue *queue, struct sk_buff *skb);
 typedef unsigned long (*oq_admn_func)(struct oq_queue *queue, struct sk_buff *skb);
 typedef unsigned long (*oq_proc_func)(struct oq_queue *queue, struct sk_buff *skb);
 typedef int (*oq_qselc_func)(struct Qdisc *sch, struct sk_buff *skb);
-typedef int (*oq_schd_func)(struct Qdisc *sch);
+typedef int (*oq_schd_func)(struct Qdisc *sch, int node);
 
 typedef int (*oq_init_port_func)(struct oq_priv *priv);
 
-/* Queue structure */
+/*
+ * Routine arguments live in slots rather than in the generated code, so that tc can change
+ * them on a live qdisc. A slot holds a fixed-point number with TCQ_OQ_PARAM_SHIFT fraction
+ * bits, which OQGen and tc convert from the number given, so that routines do no floating
+ * point on the datapath; a u64 store updates it at once. Routines take arguments as s64.
+ */
+enum oq_param_scope {
+    OQ_PARAM_QUEUE, /* struct oq_queue params */
+    OQ_PARAM_NODE, /* struct oq_sched_node params (scheduler weights) */
+    OQ_PARAM_PORT /* struct oq_priv params (queue selector) */
+};
+
+/* Routine argument slot of a policy (E.g. q1.congAction[0]) */
+struct oq_param_desc {
+    const char *name;
+    enum oq_param_scope scope;
+    int index; /* Queue or node index */
+    int slot;
+};
+
+#define OQ_QUEUE_ARG(queue, i)		((s64)(queue)->params[i])
+#define OQ_NODE_ARG(sch, node, i)	((s64)((struct oq_priv *)qdisc_priv(sch))->nodes[node].params[i])
+#define OQ_PORT_ARG(sch, i)		((s64)((struct oq_priv *)qdisc_priv(sch))->params[i])
+
+/* Integer part of a routine argument */
+static inline s64 oq_arg_int(s64 arg)
+{
+    return arg >> TCQ_OQ_PARAM_SHIFT;
+}
+
+/* Routine argument as a probability scaled to 2^32, as RED and PIE keep theirs (1 saturates) */
+static inline u32 oq_arg_prob(s64 arg)
+{
+    if (arg <= 0)
+        return 0;
+
+    return arg >= (1LL << TCQ_OQ_PARAM_SHIFT) ? U32_MAX : (u32)arg;
+}
+
+/*
+ * Per-flow virtual finish times of a queue whose processing keys come from sfq_vtime
+ * (self-clocked fair queuing). Flows are buckets of the skb hash, as in sch_sfq.
+ */
+struct oq_sfq {
+    u64 vtime; /* Finish time of the last packet dequeued */
+    u32 mask; /* Flow table size - 1 */
+    u64 finish[]; /* Finish time of the last packet of a flow */
+};
+
+/*
+ * Timing wheel of a queue whose processing keys come from deadline (earliest deadline
+ * first). It takes the place of the processing btree: a packet goes to the slot of its
+ * deadline, so the earliest one is found from a bitmap and expired ones are dropped by
+ * walking only the slots the clock went past. The wheel spans twice the budget, so the
+ * packets of a slot are those of one lap, in deadline order.
+ */
+struct oq_wheel {
+    u64 budget; /* Deadline after arrival (ns) */
+    u32 shift; /* A slot spans 2^shift ns */
+    u64 cursor; /* Time of the last expiry; no deadline before it is queued */
+    unsigned long used[BITS_TO_LONGS(TCQ_OQ_WHEEL_SLOTS)]; /* Slots holding packets */
+    struct skb_container *slots[TCQ_OQ_WHEEL_SLOTS]; /* FIFO lists (enq_time is the arrival) */
+};
+
+/* Pacing state of a flow (bucket of the skb hash) */
+struct oq_pacing_flow {
+    u32 hash; /* Flow the bucket belongs to; another flow takes it over afresh */
+    u64 time_next_packet; /* Earliest send time of its next packet (ns) */
+    u32 held; /* Packets held */
+};
+
+/*
+ * Per-flow pacing at the rate sockets ask for (sk_pacing_rate, E.g. BBR), as in sch_fq. A
+ * packet of a flow ahead of its rate is held back, keyed by its send time, and joins its
+ * queue once the time comes, so queue priorities order only the packets that may leave.
+ * Congestion is checked when a packet joins its queue, so held packets are bounded per flow
+ * and in all instead. They count in sch->q.qlen; the watchdog wakes the qdisc up for the
+ * earliest one.
+ */
+struct oq_pacing {
+    struct btree_head held_q; /* Held packets by inverted send time (other_key is the queue) */
+    u32 held; /* Packets held */
+    u32 mask; /* Flow table size - 1 */
+    struct oq_pacing_flow flows[];
+};
+
+/*
+ * Queue structure. The fields the enqueue/dequeue path touches come first and every queue
+ * starts a cache line, so a packet touches the first lines of its own queue only (the
+ * shaping and argument lines only when the queue is shaped or its routines take
+ * arguments). Names, configuration and telemetry follow on lines of their own.
+ */
 struct oq_queue {
+    /* Hot: enqueue/dequeue */
     struct btree_head admn_q;
     struct btree_head proc_q;
-    int max_len;
     int len;
+    int max_len;
+    u32 bytes; /* Bytes queued */
+    int id; /* Index in oq_priv.queues (generated hooks switch on it) */
+    bool pushout; /* Congestion action is always OQ_CON_ACT_PUSHOUT, so a full shared buffer pushes out too */
+    const struct oq_prog_op *prog[OQ_BC_QUEUE_HOOKS]; /* Bytecode of the queue hooks (NULL for none) */
+    struct oq_sfq *sfq; /* Flow state of sfq_vtime (NULL unless the queue uses it) */
+    struct oq_wheel *wheel; /* Processing order of deadline (NULL unless the queue uses it) */
     int dropped;
     int total;
-    char name[TCQ_OQ_NAME_LEN + 1];
+    u64 rate; /* Token bucket shaping, bytes per second (0 when not shaped) */
+    struct psched_ratecfg rate_cfg;
+    s64 buffer; /* Bucket depth in ns */
+    s64 tokens; /* Available tokens in ns */
+    s64 t_c; /* Time check-point */
+    u64 params[TCQ_OQ_MAX_PARAM]; /* Routine argument slots */
+    /* Cold: configuration and telemetry */
+    char name[TCQ_OQ_NAME_LEN + 1] ____cacheline_aligned;
+    u32 burst; /* Bucket depth in bytes */
+    u64 sojourn; /* Sojourn time of the last packet dequeued (ns, while telemetry is on) */
+} ____cacheline_aligned;
+
+/* Scheduling node (port) of the flattened port hierarchy */
+struct oq_sched_node {
+    int first; /* Index of the first child node/queue */
+    int num; /* Number of children */
+    bool leaf; /* Children are queues rather than nodes */
+    u64 params[TCQ_OQ_MAX_PARAM]; /* Routine argument slots of the scheduling priority */
 };
 
-/* Private data */
+/*
+ * Private data. Hooks and counts the datapath reads for every packet share the first cache
+ * line, followed by the scheduling nodes and the queues; what only control operations
+ * (init, change, dump, telemetry) use is kept at the end.
+ */
 struct oq_priv {
-    struct oq_queue queues[TCQ_OQ_MAX_QUEUE];
-    int num_q;
-    char port_name[TCQ_OQ_NAME_LEN + 1];
+    /* Policy hooks (NULL when the policy does not need them, 0 is assumed then) */
     oq_cong_func cong_fn;
     oq_cong_act_func cong_act_fn;
     oq_admn_func admn_fn;
     oq_proc_func proc_fn;
     oq_qselc_func q_select;
     oq_schd_func sched_fn;
+    int num_q;
+    int num_nodes;
+    u32 hash_seed; /* Flow hash perturbation */
+    u32 handle; /* Qdisc handle (tracepoints) */
+    struct oq_prog *prog; /* Policy bytecode (NULL when a policy module set the hooks) */
+    /*
+     * Shared buffer with dynamic thresholds: a queue takes packets while its length is below
+     * alpha times the free shared space, so a busy queue can absorb a burst while the others
+     * are idle and still leaves room for them when they wake up.
+     */
+    int buffer; /* Packets (0 when queues are only bounded by their congestion conditions), used is sch->q.qlen */
+    int buffer_alpha; /* log2 of alpha */
+    struct oq_pacing *pacing; /* Per-flow pacing (NULL when off) */
+    /* Packets that expired while dequeuing, not yet taken off the backlog of the parents */
+    u32 drop_count;
+    u32 drop_len;
+    bool capture; /* Arrivals are written to capture_chan (oq_capture.h) */
+    struct qdisc_watchdog watchdog;
+    u64 params[TCQ_OQ_MAX_PARAM]; /* Routine argument slots of the queue selector */
+    struct oq_sched_node nodes[TCQ_OQ_MAX_NODE]; /* Node 0 is the root port */
+    struct oq_queue queues[TCQ_OQ_MAX_QUEUE];
+    /* Cold: configuration and telemetry (oq_telemetry.h) */
+    char port_name[TCQ_OQ_NAME_LEN + 1];
+    const struct oq_param_desc *param_descs; /* Slots tc can set by name */
+    int num_params;
+    struct hrtimer telemetry_timer;
+    u64 telemetry_period; /* ns (0 when off) */
+    struct rchan *telemetry_chan;
+    struct rchan *capture_chan;
+    struct dentry *telemetry_dir; /* Directory of both channels */
 };
 
 /* Skb container */
 struct skb_container {
     unsigned long other_key; /* Key on the other tree (admission/processing) */
+    u64 enq_time; /* Enqueue time (ns, 0 unless telemetry, the dequeue tracepoint or deadline is on) */
     struct sk_buff *skb;
     struct skb_container *next;
     struct skb_container *prev;
@@ -91,3 +279,12 @@ struct skb_cont_list {
 /* Interfaces for register/unregister policies */
 int oq_register_policy(const char *name, oq_init_port_func init_port_fn);
 void oq_unregister_policy(oq_init_port_func init_port_fn);
+
+/* Built-in routines */
+int oq_flow_hash(struct Qdisc *sch, struct sk_buff *skb, u32 num_q, bool perturb);
+int oq_sfq_init(struct oq_queue *queue, u32 flows);
+unsigned long oq_sfq_vtime(struct oq_queue *queue, struct sk_buff *skb, u32 weight);
+int oq_wheel_init(struct oq_queue *queue, u32 budget_us);
+unsigned long oq_deadline(struct oq_queue *queue, struct sk_buff *skb);
+int oq_edf(struct Qdisc *sch, int node);
+int oq_pacing_init(struct oq_priv *priv);
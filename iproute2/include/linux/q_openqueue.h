@@ -1,8 +1,14 @@
 #ifndef __LINUX_SCH_OPEN_QUEUE_H
 #define __LINUX_SCH_OPEN_QUEUE_H
 
+#include <linux/types.h>
+
 #define TCQ_OQ_NAME_LEN         32
 #define TCQ_OQ_MAX_QUEUE        16
+#define TCQ_OQ_PARAM_NAME_LEN   64
+#define TCQ_OQ_MAX_SET          8
+#define TCQ_OQ_PARAM_SHIFT      32     /* Fraction bits of a routine argument */
+#define TCQ_OQ_PROG_MAX_LEN     49152  /* Policy bytecode that fits into TCA_OPTIONS with the options */
 
 struct tc_oq_q {
         char name[TCQ_OQ_NAME_LEN + 1];
@@ -12,10 +18,22 @@ struct tc_oq_q {
         int total;
 };
 
+struct tc_oq_param {
+        char name[TCQ_OQ_PARAM_NAME_LEN + 1];  /* E.g. q1.limit, q1.congAction[0] */
+        __s64 value;                            /* Integer value */
+        __s64 fixed;                            /* Value in fixed point (routine arguments) */
+        __u32 integral;                         /* value is exact */
+};
+
 struct tc_oq_qopt {
         char            port_name[TCQ_OQ_NAME_LEN + 1];  /* OPEN_QUEUE port name */
         struct tc_oq_q  queues[TCQ_OQ_MAX_QUEUE];
         int             num_q;
+        struct tc_oq_param params[TCQ_OQ_MAX_SET];       /* Parameters to set */
+        int             num_params;
+        __u32           prog_len;                        /* Bytes of policy bytecode following the options */
+        int             buffer;                          /* Shared buffer in packets (0 for none) */
+        int             buffer_used;                     /* Packets queued (dump only) */
 };
 
 
@@ -20,15 +20,94 @@
 
 #include "utils.h"
 #include "tc_util.h"
+#include "tc_common.h"
 
 static void explain(void)
 {
-	fprintf(stderr, "Usage: ... openqueue policy <policy name>\n");
+	fprintf(stderr, "Usage: ... openqueue { policy <policy name> | prog <bytecode file> } [ set <param> <value> ]...\n");
+	fprintf(stderr, "       <bytecode file> := policy compiled with OQGen -target bytecode (no policy module needed)\n");
+	fprintf(stderr, "       <param> := <queue>.limit | <queue>.rate | <queue>.burst | <routine argument> |\n");
+	fprintf(stderr, "                  telemetry (sampling period in ns, 0 for off) |\n");
+	fprintf(stderr, "                  buffer (packets shared by the queues, 0 for none) |\n");
+	fprintf(stderr, "                  capture (1 to record arrivals for oq_replay, 0 to stop) |\n");
+	fprintf(stderr, "                  pacing (1 to pace flows at their socket pacing rate, 0 for off)\n");
+	fprintf(stderr, "       E.g. set q1.limit 2048 set q1.rate 100mbit set q1.congAction[0] 0.9\n");
+}
+
+/* Parse the value of a parameter (rates and sizes take units, routine arguments are numbers) */
+static int openqueue_parse_param(struct tc_oq_param *param, const char *name, const char *arg)
+{
+	const double limit = 1LL << (63 - TCQ_OQ_PARAM_SHIFT);
+	const char *attr;
+	double val;
+	char *end;
+	int fixed;
+
+	if (strlen(name) > TCQ_OQ_PARAM_NAME_LEN)
+		return -1;
+	strncpy(param->name, name, TCQ_OQ_PARAM_NAME_LEN);
+
+	attr = strrchr(name, '.');
+	if (attr && strcmp(attr, ".rate") == 0) {
+		__u64 rate;
+
+		if (get_rate64(&rate, arg))
+			return -1;
+		val = rate;
+	} else if (attr && strcmp(attr, ".burst") == 0) {
+		unsigned int size;
+
+		if (get_size(&size, arg))
+			return -1;
+		val = size;
+	} else {
+		val = strtod(arg, &end);
+		if (end == arg || *end != '\0')
+			return -1;
+	}
+
+	/* Routine arguments (E.g. q1.congAction[0]) go to the qdisc in fixed point */
+	fixed = val < limit && val > -limit;
+	if (strchr(name, '[') && !fixed)
+		return -1;
+
+	param->value = (__s64)val;
+	param->integral = (double)param->value == val;
+	if (fixed)
+		param->fixed = (__s64)(val * (1LL << TCQ_OQ_PARAM_SHIFT) + (val < 0 ? -0.5 : 0.5));
+
+	return 0;
+}
+
+/* Read a policy bytecode file into the buffer following the options */
+static int openqueue_read_prog(const char *file, char *prog, __u32 *len)
+{
+	FILE *f;
+	size_t n;
+
+	f = fopen(file, "rb");
+	if (f == NULL) {
+		perror(file);
+		return -1;
+	}
+
+	n = fread(prog, 1, TCQ_OQ_PROG_MAX_LEN, f);
+	if (ferror(f) || !feof(f) || n == 0) {
+		fprintf(stderr, "%s: not a policy bytecode file of at most %d bytes\n", file, TCQ_OQ_PROG_MAX_LEN);
+		fclose(f);
+		return -1;
+	}
+
+	fclose(f);
+	*len = n;
+
+	return 0;
 }
 
 static int openqueue_parse_opt(struct qdisc_util *qu, int argc, char **argv, struct nlmsghdr *n)
 {
 	int ok=0;
+	static char buf[sizeof(struct tc_oq_qopt) + TCQ_OQ_PROG_MAX_LEN];
 	struct tc_oq_qopt opt;
 	memset(&opt, 0, sizeof(opt));
 
@@ -37,6 +116,29 @@ static int openqueue_parse_opt(struct qdisc_util *qu, int argc, char **argv, str
 			NEXT_ARG();
 			strncpy(opt.port_name, *argv, TCQ_OQ_NAME_LEN);
 			ok++;
+		} else if (strcmp(*argv, "prog") == 0) {
+			NEXT_ARG();
+			if (openqueue_read_prog(*argv, buf + sizeof(opt), &opt.prog_len))
+				return -1;
+			ok++;
+		} else if (strcmp(*argv, "set") == 0) {
+			const char *name;
+
+			NEXT_ARG();
+			name = *argv;
+			NEXT_ARG();
+
+			if (opt.num_params >= TCQ_OQ_MAX_SET) {
+				fprintf(stderr, "%s: too many parameters (max %d)\n", qu->id, TCQ_OQ_MAX_SET);
+				return -1;
+			}
+
+			if (openqueue_parse_param(&opt.params[opt.num_params], name, *argv)) {
+				fprintf(stderr, "%s: invalid value \"%s\" for \"%s\"\n", qu->id, *argv, name);
+				return -1;
+			}
+			opt.num_params++;
+			ok++;
 		} else if (strcmp(*argv, "help") == 0) {
 			explain();
 			return -1;
@@ -48,8 +150,11 @@ static int openqueue_parse_opt(struct qdisc_util *qu, int argc, char **argv, str
 		argc--; argv++;
 	}
 
-	if (ok)
-		addattr_l(n, 1024, TCA_OPTIONS, &opt, sizeof(opt));
+	/* The bytecode follows the options in the same attribute */
+	if (ok) {
+		memcpy(buf, &opt, sizeof(opt));
+		addattr_l(n, TCA_BUF_MAX, TCA_OPTIONS, buf, sizeof(opt) + opt.prog_len);
+	}
 	return 0;
 }
 
@@ -66,7 +171,10 @@ static int openqueue_print_opt(struct qdisc_util *qu, FILE *f, struct rtattr *op
 	if (strcmp(qu->id, "openqueue") == 0) {
 		int i;
 
-		fprintf(f, "\nPort: %s\n", qopt->port_name);
+		fprintf(f, "\nPort: %s", qopt->port_name);
+		if (qopt->buffer)
+			fprintf(f, ", Buffer: %d, Used: %d", qopt->buffer, qopt->buffer_used);
+		fprintf(f, "\n");
 		for (i = 0; i < qopt->num_q; i++)
 			fprintf(f, "Queue: %s, Max: %d, Curr: %d, Dropped: %d, Total: %d\n", 
 			qopt->queues[i].name, qopt->queues[i].max_len, qopt->queues[i].len, 
@@ -12,63 +12,51 @@
 #include <linux/module.h>
 #include <linux/kernel.h>
 #include <linux/init.h>
+#include <linux/ip.h>
 #include <net/pkt_sched.h>
 
 #include "../../include/qdisc/sch_openqueue.h"
+#include "../../include/qdisc/oq_packet.h"
 #include "../../include/routine/routines.h"
 
 #define TCQ_OQ_NO_QUEUES	2
 
 /* Congestion condition*/
-bool oqp_my_port_cong_func(struct oq_queue *queue)
+bool oqp_my_port_cong_func(struct oq_queue *queue, struct sk_buff *skb)
 {
-    bool cond = false;
-
-    if (strncmp(queue->name, "q1", TCQ_OQ_NAME_LEN) == 0)
-        cond = (queue->len == 1024);
-    if (strncmp(queue->name, "q2", TCQ_OQ_NAME_LEN) == 0)
-        cond = my_congestion_condition(queue, 0);
-
-    return cond;
+    switch (queue->id) {
+    case 0: /* q1 */
+        return (queue->len == 1024);
+    case 1: /* q2 */
+        return my_congestion_condition(queue, 0);
+    }
+
+    return false;
 }
 
 /* Congestion action */
 int oqp_my_port_cong_act_func(struct oq_queue *queue, struct sk_buff *skb)
 {
-    int status = 0;
-
-    if (strncmp(queue->name, "q1", TCQ_OQ_NAME_LEN) == 0)
-        status = cong_act(queue, skb, 1, 0.85);
-    if (strncmp(queue->name, "q2", TCQ_OQ_NAME_LEN) == 0)
-        status = cong_act(queue, skb, 0);
-
-    return status;
+    switch (queue->id) {
+    case 0: /* q1 */
+        return cong_act(queue, skb, 1, OQ_QUEUE_ARG(queue, 0));
+    case 1: /* q2 */
+        return cong_act(queue, skb, 0);
+    }
+
+    return 0;
 }
 
 /* Admission priority */
 unsigned long oqp_my_port_admn_func(struct oq_queue *queue, struct sk_buff *skb)
 {
-    unsigned long key = 0;
-
-    if (strncmp(queue->name, "q1", TCQ_OQ_NAME_LEN) == 0)
-        key = my_adm_prio(skb, 0);
-    if (strncmp(queue->name, "q2", TCQ_OQ_NAME_LEN) == 0)
-        key = my_adm_prio(skb, 0);
-
-    return key;
+    return my_adm_prio(skb, 0);
 }
 
 /* Processing priority */
 unsigned long oqp_my_port_proc_func(struct oq_queue *queue, struct sk_buff *skb)
 {
-    unsigned long key = 0;
-
-    if (strncmp(queue->name, "q1", TCQ_OQ_NAME_LEN) == 0)
-        key = my_pro_prio(skb, 0);
-    if (strncmp(queue->name, "q2", TCQ_OQ_NAME_LEN) == 0)
-        key = my_pro_prio(skb, 0);
-
-    return key;
+    return my_pro_prio(skb, 0);
 }
 
 /* Queue selection priority */
@@ -78,53 +66,73 @@ int oqp_my_port_qselc_func(struct Qdisc *sch, struct sk_buff *skb)
 }
 
 /* Scheduling priority */
-int oqp_my_port_schd_func(struct Qdisc *sch)
+int oqp_my_port_schd_func(struct Qdisc *sch, int node)
 {
     return my_schd_prio(sch, 0);
 }
 
 /* Initialize queue */
-int init_queue(struct oq_queue *queue, const char* name, int max_len)
+int init_queue(struct oq_queue *queue, const char* name, int max_len, u64 rate, u32 burst)
 {
-	if ((btree_init(&queue->admn_q) != 0) || (btree_init(&queue->proc_q) != 0))
-		return -1;
+    if ((btree_init(&queue->admn_q) != 0) || (btree_init(&queue->proc_q) != 0))
+        return -1;
+
+    queue->max_len = max_len;
+    queue->len = 0;
+    queue->dropped = 0;
+    queue->total = 0;
+    strncpy(queue->name, name, TCQ_OQ_NAME_LEN);
+    queue->rate = rate;
+    queue->burst = burst;
+
+    return 0;
+}
 
-	queue->max_len = max_len;
-	queue->len = 0;
-	queue->dropped = 0;
-	queue->total = 0;
-	strncpy(queue->name, name, TCQ_OQ_NAME_LEN);
+/* Port hierarchy */
+static const struct oq_sched_node oqp_my_port_nodes[] = {
+    { .first = 0, .num = 2, .leaf = true }, /* myPort */
+};
 
-	return 0;
-}
+/* Routine arguments tc can change */
+static const struct oq_param_desc oqp_my_port_params[] = {
+    { "q1.congAction[0]", OQ_PARAM_QUEUE, 0, 0 },
+};
 
 /* Initialize policy */
 int oqp_my_port_init_port(struct oq_priv *priv)
 {
-	if (init_queue(&priv->queues[0], "q1", 128) != 0)
-		return -ENOMEM;
-	if (init_queue(&priv->queues[1], "q2", 1024) != 0)
-		return -ENOMEM;
-
+    /* Set first, so oq_destroy() frees the queues of a failed init */
     priv->num_q = TCQ_OQ_NO_QUEUES;
+
+    if (init_queue(&priv->queues[0], "q1", 128, 25000000ULL, 65536) != 0)
+        return -ENOMEM;
+    if (init_queue(&priv->queues[1], "q2", 1024, 0ULL, 0) != 0)
+        return -ENOMEM;
+
+    memcpy(priv->nodes, oqp_my_port_nodes, sizeof(oqp_my_port_nodes));
+    priv->num_nodes = ARRAY_SIZE(oqp_my_port_nodes);
     strncpy(priv->port_name, "myPort", TCQ_OQ_NAME_LEN);
 
+    priv->queues[0].params[0] = 0x00000000d999999aULL; /* 0.85 */
+    priv->param_descs = oqp_my_port_params;
+    priv->num_params = ARRAY_SIZE(oqp_my_port_params);
+
     priv->cong_fn = oqp_my_port_cong_func;
     priv->cong_act_fn = oqp_my_port_cong_act_func;
     priv->admn_fn = oqp_my_port_admn_func;
     priv->proc_fn = oqp_my_port_proc_func;
     priv->q_select = oqp_my_port_qselc_func;
-	priv->sched_fn = oqp_my_port_schd_func;
+    priv->sched_fn = oqp_my_port_schd_func;
 
-	return 0;
+    return 0;
 }
 
 /* Initialize policy */
 static int __init oqp_my_port_init(void)
 {
-	printk(KERN_INFO "Registered OpenQueue policy oqp_my_port\n");
+    printk(KERN_INFO "Registered OpenQueue policy oqp_my_port\n");
 
-	return oq_register_policy("myPort", oqp_my_port_init_port);
+    return oq_register_policy("myPort", oqp_my_port_init_port);
 }
 
 /* Exit policy */
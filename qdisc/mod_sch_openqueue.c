@@ -18,9 +18,22 @@
 #include <net/pkt_sched.h>
 #include <linux/fs.h>
 #include <linux/ip.h>
+#include <linux/jhash.h>
+#include <linux/random.h>
+#include <linux/log2.h>
+#include <linux/bitmap.h>
+#include <linux/math64.h>
+#include <linux/hrtimer.h>
+#include <linux/relay.h>
+#include <linux/debugfs.h>
 
 #include "../include/qdisc/sch_openqueue.h"
+#include "../include/qdisc/oq_packet.h"
 #include "../include/routine/routines.h"
+#include "oq_prog.h"
+
+#define CREATE_TRACE_POINTS
+#include "oq_trace.h"
 
 /* Skb container */
 struct kmem_cache *skb_container_cache;
@@ -62,15 +75,290 @@ struct oq_policy_container {
 static DEFINE_RWLOCK(oq_policy_lock);
 static struct oq_policy_container *oq_policy_base = NULL;
 
-/* Enqueue a packet when the queue is not congested */
-int do_enqueue(struct oq_priv *priv, struct oq_queue *queue, struct sk_buff *skb)
+/* Telemetry root directory in debugfs */
+static struct dentry *oq_debugfs_root;
+
+#define OQ_PURGE_BATCH	32
+
+/* Objects of a queue being purged (or of packets expiring together), freed in batches */
+struct oq_purge {
+	struct sk_buff *skbs; /* Chained through skb->next */
+	void *containers[OQ_PURGE_BATCH];
+	void *lists[OQ_PURGE_BATCH];
+	int num_containers;
+	int num_lists;
+	bool own_skbs; /* Tree being walked frees the skbs (each skb is in both trees) */
+};
+
+/*
+ * Return objects to a slab cache in one call. The mempools have no reserve (min_nr 0), so
+ * mempool_free() would hand every object straight to the cache anyway.
+ */
+static void oq_purge_flush(struct kmem_cache *cache, void **objs, int *num)
+{
+	if (*num == 0)
+		return;
+
+	kmem_cache_free_bulk(cache, *num, objs);
+	*num = 0;
+}
+
+static void oq_purge_container(struct oq_purge *purge, struct skb_container *container)
+{
+	purge->containers[purge->num_containers++] = container;
+	if (purge->num_containers == OQ_PURGE_BATCH)
+		oq_purge_flush(skb_container_cache, purge->containers, &purge->num_containers);
+}
+
+/* Unlink the container of a packet from the list of a key (NULL if it is not there) */
+static struct skb_container *oq_unlink(struct btree_head *tree, unsigned long key, struct sk_buff *skb)
+{
+	struct skb_cont_list *cont_list;
+	struct skb_container *container;
+
+	cont_list = (struct skb_cont_list *)btree_lookup(tree, &btree_geo64, &key);
+	if (NULL == cont_list) /* Not likely though */
+		return NULL;
+
+	container = cont_list->head;
+	while (container->skb != skb) {
+		container = container->next;
+		if (container == cont_list->head)
+			return NULL;
+	}
+
+	if (container->next == container) { /* Last skb */
+		btree_remove(tree, &btree_geo64, &key);
+		mempool_free(cont_list, skb_cont_list_mempool);
+	} else {
+		container->next->prev = container->prev;
+		container->prev->next = container->next;
+
+		if (container == cont_list->head) /* Remove head */
+			cont_list->head = container->next;
+	}
+
+	return container;
+}
+
+/* Append a packet to the list of a key */
+static void oq_link(struct btree_head *tree, unsigned long key, struct sk_buff *skb, unsigned long other_key)
+{
+	struct skb_cont_list *cont_list;
+	struct skb_container *container, *head;
+
+	container = (struct skb_container *)mempool_alloc(skb_container_mempool, GFP_KERNEL);
+	container->skb = skb;
+	container->other_key = other_key;
+	container->enq_time = 0;
+
+	cont_list = (struct skb_cont_list *)btree_lookup(tree, &btree_geo64, &key);
+	if (NULL == cont_list) {
+		container->next = container;
+		container->prev = container;
+
+		cont_list = (struct skb_cont_list *)mempool_alloc(skb_cont_list_mempool, GFP_KERNEL);
+		cont_list->head = container;
+
+		btree_insert(tree, &btree_geo64, &key, (void *)cont_list, GFP_KERNEL);
+	} else {
+		head = cont_list->head;
+
+		container->prev = head->prev;
+		head->prev->next = container;
+		head->prev = container;
+		container->next = head;
+	}
+}
+
+/* Timing wheel slot of a deadline */
+static inline u32 oq_wheel_slot(const struct oq_wheel *wheel, u64 deadline)
+{
+	return (deadline >> wheel->shift) & (TCQ_OQ_WHEEL_SLOTS - 1);
+}
+
+static inline u64 oq_wheel_deadline(const struct oq_wheel *wheel, const struct skb_container *container)
+{
+	return container->enq_time + wheel->budget;
+}
+
+/* Append a packet to the slot of its deadline */
+static void oq_wheel_add(struct oq_wheel *wheel, struct skb_container *container, u64 deadline)
+{
+	struct skb_container *head;
+	u32 slot;
+
+	slot = oq_wheel_slot(wheel, deadline);
+	head = wheel->slots[slot];
+
+	if (NULL == head) {
+		container->next = container;
+		container->prev = container;
+
+		wheel->slots[slot] = container;
+		__set_bit(slot, wheel->used);
+	} else {
+		container->prev = head->prev;
+		head->prev->next = container;
+		head->prev = container;
+		container->next = head;
+	}
+}
+
+static void oq_wheel_del(struct oq_wheel *wheel, u32 slot, struct skb_container *container)
+{
+	if (container->next == container) { /* Last skb */
+		wheel->slots[slot] = NULL;
+		__clear_bit(slot, wheel->used);
+		return;
+	}
+
+	container->next->prev = container->prev;
+	container->prev->next = container->next;
+
+	if (container == wheel->slots[slot]) /* Remove head */
+		wheel->slots[slot] = container->next;
+}
+
+/* Unlink the container of a packet from the slot of its deadline (NULL if it is not there) */
+static struct skb_container *oq_wheel_unlink(struct oq_wheel *wheel, u64 deadline, struct sk_buff *skb)
+{
+	struct skb_container *container;
+	u32 slot;
+
+	slot = oq_wheel_slot(wheel, deadline);
+	container = wheel->slots[slot];
+	if (NULL == container)
+		return NULL;
+
+	while (container->skb != skb) {
+		container = container->next;
+		if (container == wheel->slots[slot])
+			return NULL;
+	}
+
+	oq_wheel_del(wheel, slot, container);
+
+	return container;
+}
+
+/* First slot holding packets from the slot of a time on, going round (-1 if there is none) */
+static int oq_wheel_first(const struct oq_wheel *wheel, u64 from)
+{
+	unsigned long slot;
+
+	slot = find_next_bit(wheel->used, TCQ_OQ_WHEEL_SLOTS, oq_wheel_slot(wheel, from));
+	if (slot == TCQ_OQ_WHEEL_SLOTS)
+		slot = find_first_bit(wheel->used, TCQ_OQ_WHEEL_SLOTS);
+
+	return slot == TCQ_OQ_WHEEL_SLOTS ? -1 : (int)slot;
+}
+
+/*
+ * Drop the packets of a deadline queue whose deadline is before now. They can only be in
+ * the slots the clock went past since the last call, each in deadline order, so the walk
+ * stops at the first live packet of a slot. Packets are freed in one batch at the end.
+ * This runs while dequeuing, so the parents learn about the drops in oq_dequeue.
+ */
+static void oq_wheel_expire(struct Qdisc *sch, struct oq_queue *queue, u64 now)
+{
+	struct oq_priv *priv = qdisc_priv(sch);
+	struct oq_wheel *wheel;
+	struct oq_purge purge;
+	struct skb_container *container, *admn_container;
+	struct sk_buff *skb;
+	u64 from, i, n;
+	u32 slot;
+
+	wheel = queue->wheel;
+	if (now <= wheel->cursor)
+		return;
+
+	from = wheel->cursor >> wheel->shift;
+	n = min_t(u64, (now >> wheel->shift) - from + 1, TCQ_OQ_WHEEL_SLOTS);
+	wheel->cursor = now;
+
+	purge.skbs = NULL;
+	purge.num_containers = 0;
+
+	for (i = 0; i < n; i++) {
+		slot = (from + i) & (TCQ_OQ_WHEEL_SLOTS - 1);
+
+		while ((container = wheel->slots[slot]) != NULL && oq_wheel_deadline(wheel, container) < now) {
+			oq_wheel_del(wheel, slot, container);
+
+			skb = container->skb;
+			admn_container = oq_unlink(&queue->admn_q, container->other_key, skb);
+
+			trace_oq_drop(priv->handle, queue->id, container->other_key,
+				oq_wheel_deadline(wheel, container), qdisc_pkt_len(skb), OQ_DROP_EXPIRED);
+
+			queue->len--;
+			queue->bytes -= qdisc_pkt_len(skb);
+			queue->dropped++;
+			sch->q.qlen--;
+			qdisc_qstats_backlog_dec(sch, skb);
+			qdisc_qstats_drop(sch);
+			priv->drop_count++;
+			priv->drop_len += qdisc_pkt_len(skb);
+
+			skb->next = purge.skbs;
+			purge.skbs = skb;
+			oq_purge_container(&purge, container);
+			if (admn_container != NULL)
+				oq_purge_container(&purge, admn_container);
+		}
+	}
+
+	oq_purge_flush(skb_container_cache, purge.containers, &purge.num_containers);
+	kfree_skb_list(purge.skbs);
+}
+
+/*
+ * Earliest time the watchdog has to wake the qdisc up for (0 if there is none): a deadline
+ * queued on the timing wheels, after expiry, or the send time of a packet held by pacing
+ */
+static u64 oq_next_wakeup(struct Qdisc *sch, u64 now)
+{
+	struct oq_priv *priv = qdisc_priv(sch);
+	struct oq_queue *queue;
+	u64 deadline, next;
+	unsigned long key;
+	int i, slot;
+
+	next = 0;
+	for (i = 0; i < priv->num_q; i++) {
+		queue = &priv->queues[i];
+		if (NULL == queue->wheel || queue->len == 0)
+			continue;
+
+		oq_wheel_expire(sch, queue, now);
+
+		slot = oq_wheel_first(queue->wheel, now);
+		if (slot < 0)
+			continue;
+
+		deadline = oq_wheel_deadline(queue->wheel, queue->wheel->slots[slot]);
+		if (next == 0 || deadline < next)
+			next = deadline;
+	}
+
+	if (priv->pacing && btree_last(&priv->pacing->held_q, &btree_geo64, &key) != NULL &&
+		(next == 0 || ~key < next))
+		next = ~key;
+
+	return next;
+}
+
+/* Enqueue a packet whose admission key is known */
+static int oq_enqueue_key(struct Qdisc *sch, struct oq_queue *queue, struct sk_buff *skb, unsigned long admn_key)
 {
-	unsigned long admn_key, proc_key;
+	struct oq_priv *priv = qdisc_priv(sch);
+	unsigned long proc_key;
 	struct skb_cont_list *admn_cont_list, *proc_cont_list;
 	struct skb_container *admn_container, *proc_container;
 
-	admn_key = priv->admn_fn(queue, skb);
-	proc_key = priv->proc_fn(queue, skb);
+	proc_key = priv->proc_fn ? priv->proc_fn(queue, skb) : 0;
 
 	/* Add to admission queue */
 	admn_cont_list = (struct skb_cont_list *)btree_lookup(&queue->admn_q, &btree_geo64, &admn_key);
@@ -99,47 +387,72 @@ int do_enqueue(struct oq_priv *priv, struct oq_queue *queue, struct sk_buff *skb
 	admn_container->other_key = proc_key;
 	admn_container->skb = skb;
 
-	/* Add to processing queue */
-	proc_cont_list = (struct skb_cont_list *)btree_lookup(&queue->proc_q, &btree_geo64, &proc_key);
-	if (NULL == proc_cont_list) {
+	/* Add to processing queue (deadline keys go to the timing wheel) */
+	if (queue->wheel) {
 		proc_container = (struct skb_container *)mempool_alloc(skb_container_mempool, GFP_KERNEL);
-		proc_container->next = proc_container;
-		proc_container->prev = proc_container;
-
-		proc_cont_list = (struct skb_cont_list *)mempool_alloc(skb_cont_list_mempool, GFP_KERNEL);
-		proc_cont_list->head = proc_container;
+		proc_container->enq_time = proc_key - queue->wheel->budget; /* Arrival */
 
-		btree_insert(&queue->proc_q, &btree_geo64, &proc_key, (void *)proc_cont_list, GFP_KERNEL);
+		oq_wheel_add(queue->wheel, proc_container, proc_key);
 	} else {
-		struct skb_container *head_container, *tail_container;
-
-		head_container = proc_cont_list->head;
-		tail_container = head_container->prev;
-
-		proc_container = (struct skb_container *)mempool_alloc(skb_container_mempool, GFP_KERNEL);
-		proc_container->prev = tail_container;
-		tail_container->next = proc_container;
-		head_container->prev = proc_container;
-		proc_container->next = head_container;
+		proc_cont_list = (struct skb_cont_list *)btree_lookup(&queue->proc_q, &btree_geo64, &proc_key);
+		if (NULL == proc_cont_list) {
+			proc_container = (struct skb_container *)mempool_alloc(skb_container_mempool, GFP_KERNEL);
+			proc_container->next = proc_container;
+			proc_container->prev = proc_container;
+
+			proc_cont_list = (struct skb_cont_list *)mempool_alloc(skb_cont_list_mempool, GFP_KERNEL);
+			proc_cont_list->head = proc_container;
+
+			btree_insert(&queue->proc_q, &btree_geo64, &proc_key, (void *)proc_cont_list, GFP_KERNEL);
+		} else {
+			struct skb_container *head_container, *tail_container;
+
+			head_container = proc_cont_list->head;
+			tail_container = head_container->prev;
+
+			proc_container = (struct skb_container *)mempool_alloc(skb_container_mempool, GFP_KERNEL);
+			proc_container->prev = tail_container;
+			tail_container->next = proc_container;
+			head_container->prev = proc_container;
+			proc_container->next = head_container;
+		}
 	}
 
 	proc_container->other_key = admn_key;
 	proc_container->skb = skb;
+	if (NULL == queue->wheel)
+		proc_container->enq_time = priv->telemetry_period || trace_oq_dequeue_enabled() ? ktime_get_ns() : 0;
 
 	queue->len++;
 	queue->total++;
+	queue->bytes += qdisc_pkt_len(skb);
+	sch->q.qlen++;
+	qdisc_qstats_backlog_inc(sch, skb);
+
+	trace_oq_enqueue(priv->handle, queue->id, admn_key, proc_key, qdisc_pkt_len(skb), queue->len);
 	
 	return NET_XMIT_SUCCESS;
 }
 
-/* Drop packet at the tail of a given queue */
-int do_drop_tail(struct oq_queue *queue)
+/* Enqueue a packet when the queue is not congested */
+int do_enqueue(struct Qdisc *sch, struct oq_queue *queue, struct sk_buff *skb)
+{
+	struct oq_priv *priv = qdisc_priv(sch);
+
+	/* Hooks the generator found dead are NULL and yield 0 */
+	return oq_enqueue_key(sch, queue, skb, priv->admn_fn ? priv->admn_fn(queue, skb) : 0);
+}
+
+/* Drop packet at the tail of a given queue; returns its length or a negative error */
+int do_drop_tail(struct Qdisc *sch, struct oq_queue *queue, struct sk_buff **to_free, int reason)
 {
+	struct oq_priv *priv = qdisc_priv(sch);
+	unsigned int len;
 	unsigned long admn_key;
 	unsigned long proc_key;
 	struct sk_buff *drop_skb;
-	struct skb_cont_list *admn_cont_list, *proc_cont_list;
-	struct skb_container *admn_container, *proc_container, *container;
+	struct skb_cont_list *admn_cont_list;
+	struct skb_container *admn_container, *proc_container;
 
 	/* Drop oldest packet in the tail */
 	/* Admission */
@@ -168,214 +481,1179 @@ int do_drop_tail(struct oq_queue *queue)
 	}
 
 	/* Processing */
-	proc_cont_list = (struct skb_cont_list *)btree_lookup(&queue->proc_q, &btree_geo64, &proc_key);
-	if (NULL == proc_cont_list) /* Not likely though */
+	if (queue->wheel)
+		proc_container = oq_wheel_unlink(queue->wheel, proc_key, drop_skb);
+	else
+		proc_container = oq_unlink(&queue->proc_q, proc_key, drop_skb);
+
+	if (NULL == proc_container)
 		return -EINVAL;
 
-	proc_container = NULL;
-	container = proc_cont_list->head;
-	do {
-		if (container->skb == drop_skb) {
-			proc_container = container;
-			break;
+	trace_oq_drop(priv->handle, queue->id, admn_key, proc_key, qdisc_pkt_len(drop_skb), reason);
+
+	len = qdisc_pkt_len(drop_skb);
+	mempool_free(admn_container, skb_container_mempool);
+	mempool_free(proc_container, skb_container_mempool);
+
+	queue->len--;
+	queue->bytes -= len;
+	queue->dropped++;
+	sch->q.qlen--;
+	qdisc_qstats_backlog_dec(sch, drop_skb);
+	qdisc_drop(drop_skb, sch, to_free);
+
+	return len;
+}
+
+/* Record a packet offered to the qdisc in the capture channel */
+static void oq_capture(struct oq_priv *priv, struct sk_buff *skb)
+{
+	struct oq_capture_rec rec;
+
+	memset(&rec, 0, sizeof(rec));
+	rec.time = ktime_get_ns();
+	rec.saddr = oq_pkt_saddr(skb);
+	rec.daddr = oq_pkt_daddr(skb);
+	rec.len = qdisc_pkt_len(skb);
+	rec.mark = skb->mark;
+	rec.protocol = oq_pkt_protocol(skb);
+	rec.tos = oq_pkt_tos(skb);
+	rec.sport = oq_pkt_sport(skb); /* Dissected once, the hooks reuse the ports */
+	rec.dport = oq_pkt_dport(skb);
+
+	relay_write(priv->capture_chan, &rec, sizeof(rec)); /* Lock-free, per CPU */
+}
+
+/*
+ * Dynamic threshold of the shared buffer: a queue takes a packet while it holds less than
+ * alpha times the free space, which is two counters compared per packet
+ */
+static inline bool oq_buffer_admit(const struct Qdisc *sch, const struct oq_priv *priv,
+	const struct oq_queue *queue)
+{
+	int free = priv->buffer - (int)sch->q.qlen;
+
+	if (free <= 0)
+		return false;
+
+	return queue->len < (priv->buffer_alpha >= 0 ? free << priv->buffer_alpha : free >> -priv->buffer_alpha);
+}
+
+/*
+ * Hold a packet back if its flow is ahead of the pacing rate of its socket; the send time of
+ * the next packet of the flow follows from the length of this one. Returns 1 if the packet is
+ * held, 0 if it may join its queue now and -ENOBUFS if its flow or the port holds too many
+ * packets already, as the flow_plimit and limit of fq bound them.
+ */
+static int oq_pacing_hold(struct Qdisc *sch, struct oq_pacing *pacing, struct oq_queue *queue,
+	struct sk_buff *skb)
+{
+	struct oq_pacing_flow *flow;
+	u64 now, send;
+	u32 rate, hash;
+
+	if (NULL == skb->sk || !sk_fullsock(skb->sk))
+		return 0;
+
+	rate = READ_ONCE(skb->sk->sk_pacing_rate); /* Bytes per second */
+	if (rate == 0 || rate == ~0U) /* Not paced */
+		return 0;
+
+	hash = skb_get_hash(skb);
+	flow = &pacing->flows[hash & pacing->mask];
+	if (flow->hash != hash) {
+		flow->hash = hash;
+		flow->time_next_packet = 0;
+		flow->held = 0;
+	}
+
+	now = ktime_get_ns();
+	send = max(now, flow->time_next_packet);
+	if (send > now && (flow->held >= TCQ_OQ_PACING_FLOW_PLIMIT || pacing->held >= TCQ_OQ_PACING_LIMIT))
+		return -ENOBUFS;
+
+	flow->time_next_packet = send + div_u64((u64)qdisc_pkt_len(skb) * NSEC_PER_SEC, rate);
+	if (send <= now)
+		return 0;
+
+	oq_link(&pacing->held_q, ~(unsigned long)send, skb, queue->id);
+	flow->held++;
+	pacing->held++;
+	sch->q.qlen++;
+	qdisc_qstats_backlog_inc(sch, skb);
+
+	return 1;
+}
+
+static int oq_pushout(struct Qdisc *sch, struct oq_priv *priv, struct oq_queue *queue,
+	struct sk_buff *skb, struct sk_buff **to_free);
+
+/*
+ * Admit a packet to its queue: the shared buffer, the congestion condition, and the congestion
+ * action when it holds. Arrivals that pacing does not hold come here at once, held packets when
+ * released. A queue that pushes out treats a full buffer as congestion, so its better packets
+ * take the place of the worst queued ones rather than being refused.
+ */
+static int oq_admit(struct Qdisc *sch, struct oq_priv *priv, struct oq_queue *queue,
+	struct sk_buff *skb, struct sk_buff **to_free)
+{
+	bool congested;
+	int action, len;
+
+	if (priv->buffer && !oq_buffer_admit(sch, priv, queue)) {
+		/* The congestion action is not run here; the queue may not be congested at all */
+		if (queue->pushout)
+			return oq_pushout(sch, priv, queue, skb, to_free);
+
+		trace_oq_drop(priv->handle, queue->id, 0, 0, qdisc_pkt_len(skb), OQ_DROP_BUFFER);
+		queue->dropped++;
+		return qdisc_drop(skb, sch, to_free);
+	}
+
+	congested = priv->cong_fn && priv->cong_fn(queue, skb);
+	if (likely(!congested))
+		return do_enqueue(sch, queue, skb); /* Enqueue if not congested */
+
+	action = priv->cong_act_fn ? priv->cong_act_fn(queue, skb) : 0; /* Resolve congestion action (when congested) */
+	trace_oq_congested(priv->handle, queue->id, queue->len, action);
+
+	switch (action) {
+		case OQ_CON_ACT_DROP_TAIL:
+			len = do_drop_tail(sch, queue, to_free, OQ_DROP_TAIL); /* Drop tail */
+			do_enqueue(sch, queue, skb); /* Enqueue new packet */
+
+			/* The parents count the new packet, not the one it replaced */
+			if (len >= 0)
+				qdisc_tree_reduce_backlog(sch, 1, len);
+			return NET_XMIT_SUCCESS;
+		case OQ_CON_ACT_PUSHOUT:
+			return oq_pushout(sch, priv, queue, skb, to_free); /* Drop the worse of the new and the worst queued */
+		default:
+			/* Drop the new packet (also for actions the core does not implement); no keys are computed */
+			trace_oq_drop(priv->handle, queue->id, 0, 0, qdisc_pkt_len(skb), OQ_DROP_PKT);
+			queue->dropped++;
+			return qdisc_drop(skb, sch, to_free);
+	}
+}
+
+/*
+ * Move the held packets whose send time is not after now to their queues, through the
+ * congestion condition and action as if they arrived now. Released packets the action drops
+ * leave the backlog of the parents with the next dequeue, as expired ones do.
+ */
+static void oq_pacing_release(struct Qdisc *sch, struct oq_pacing *pacing, u64 now)
+{
+	struct oq_priv *priv = qdisc_priv(sch);
+	struct oq_pacing_flow *flow;
+	struct skb_cont_list *cont_list;
+	struct skb_container *container;
+	struct sk_buff *skb, *to_free = NULL;
+	unsigned long key;
+	unsigned int len;
+	int q_id;
+
+	while ((cont_list = btree_last(&pacing->held_q, &btree_geo64, &key)) != NULL && ~key <= now) {
+		container = oq_unlink(&pacing->held_q, key, cont_list->head->skb); /* FIFO */
+		skb = container->skb;
+		q_id = container->other_key;
+		mempool_free(container, skb_container_mempool);
+
+		/* The flow may have lost its bucket to another one, which counts afresh */
+		flow = &pacing->flows[skb_get_hash(skb) & pacing->mask];
+		if (flow->hash == skb_get_hash(skb) && flow->held > 0)
+			flow->held--;
+
+		len = qdisc_pkt_len(skb);
+		pacing->held--;
+		sch->q.qlen--;
+		qdisc_qstats_backlog_dec(sch, skb);
+		if (oq_admit(sch, priv, &priv->queues[q_id], skb, &to_free) != NET_XMIT_SUCCESS) {
+			priv->drop_count++;
+			priv->drop_len += len;
 		}
+	}
 
-		container = container->next;
-	} while (container != proc_cont_list->head);
+	kfree_skb_list(to_free);
+}
 
-	if (NULL == proc_container)
-		return -EINVAL;
+/*
+ * Push out: make room for a congested packet by dropping the packet with the largest admission
+ * key of the port, unless no queued packet is worse than the incoming one, which is dropped
+ * instead (also on a tie, so the queued packet keeps its place). The worst packet of a queue is
+ * the edge of its admission tree, so this costs a btree_last per queue, and admission keys are
+ * compared across queues as they are within one.
+ */
+static int oq_pushout(struct Qdisc *sch, struct oq_priv *priv, struct oq_queue *queue,
+	struct sk_buff *skb, struct sk_buff **to_free)
+{
+	struct oq_queue *victim = NULL;
+	unsigned long admn_key, key, worst = 0;
+	int i, len;
 
-	if (proc_container->next == proc_container) { /* Last skb */
-		btree_remove(&queue->proc_q, &btree_geo64, &proc_key);
-		mempool_free(proc_cont_list, skb_cont_list_mempool);
-	} else {
-		proc_container->next->prev = proc_container->prev;
-		proc_container->prev->next = proc_container->next;
+	admn_key = priv->admn_fn ? priv->admn_fn(queue, skb) : 0;
 
-		if (proc_container == proc_cont_list->head) /* Remove head */
-			proc_cont_list->head = proc_container->next;
+	for (i = 0; i < priv->num_q; i++) {
+		if (btree_last(&priv->queues[i].admn_q, &btree_geo64, &key) != NULL && (NULL == victim || key > worst)) {
+			victim = &priv->queues[i];
+			worst = key;
+		}
 	}
 
-	kfree_skb(drop_skb);
-	mempool_free(admn_container, skb_container_mempool);
-	mempool_free(proc_container, skb_container_mempool);
+	if (NULL == victim || worst <= admn_key) {
+		trace_oq_drop(priv->handle, queue->id, admn_key, 0, qdisc_pkt_len(skb), OQ_DROP_PKT);
+		queue->dropped++;
+		return qdisc_drop(skb, sch, to_free);
+	}
 
-	queue->dropped++;
+	len = do_drop_tail(sch, victim, to_free, OQ_DROP_PUSHOUT);
+	oq_enqueue_key(sch, queue, skb, admn_key);
 
-	return 0;
+	if (len >= 0)
+		qdisc_tree_reduce_backlog(sch, 1, len);
+	return NET_XMIT_SUCCESS;
 }
 
-/* Enqueue an incoming packet */
-static int oq_enqueue(struct sk_buff *skb, struct Qdisc *sch)
+/*
+ * Enqueue an incoming packet. sch->q.qlen and the backlog follow the queue lengths and dropped
+ * packets go to to_free, so parents, bulk dequeue and BQL see the real occupancy of the port.
+ * Pacing comes before admission: a held packet is admitted when it is released, so congestion
+ * actions (push out included) only ever make room for packets that join their queue, and held
+ * packets are bounded by the pacing limits rather than the buffer, in which they do count.
+ */
+static int oq_enqueue(struct sk_buff *skb, struct Qdisc *sch, struct sk_buff **to_free)
 {
 	struct oq_priv *priv;
 	int q_id;
 	struct oq_queue *queue;
-	bool congested = false;
-	int status = 0;
+	int held;
 
 	priv = qdisc_priv(sch);
 
+	/* Packet fields the hooks share are resolved anew for every packet */
+	oq_pkt_reset(skb);
+
+	if (unlikely(priv->capture))
+		oq_capture(priv, skb);
+
 	/* Select queue */
-	q_id = priv->q_select(sch, skb);
+	q_id = priv->q_select ? priv->q_select(sch, skb) : 0;
 	queue = &priv->queues[q_id];
 
-	congested = priv->cong_fn(queue);
-	if (likely(!congested)) {
-		status = do_enqueue(priv, queue, skb); /* Enqueue if not congested */
-	} else {
-		int action;
-		action = priv->cong_act_fn(queue, skb); /* Resolve congestion action (when congested) */
-
-		switch (action) {
-			case OQ_CON_ACT_DROP_TAIL:
-				do_drop_tail(queue); /* Drop tail */
-				do_enqueue(priv, queue, skb); /* Enqueue new packet */
-				break;
-			case OQ_CON_ACT_DROP_PKT:
-				kfree_skb(skb);
-				queue->dropped++;
+	if (unlikely(priv->pacing)) {
+		held = oq_pacing_hold(sch, priv->pacing, queue, skb);
+		if (held > 0)
+			return NET_XMIT_SUCCESS;
+		if (held < 0) {
+			trace_oq_drop(priv->handle, q_id, 0, 0, qdisc_pkt_len(skb), OQ_DROP_PACING);
+			queue->dropped++;
+			return qdisc_drop(skb, sch, to_free);
 		}
 	}
 
-	return status;
+	return oq_admit(sch, priv, queue, skb, to_free);
 }
 
-/* Dequeue next eligible outgoing packet */
-static struct sk_buff *oq_dequeue(struct Qdisc *sch)
+/* Dequeue the head packet of a given queue */
+struct sk_buff *do_dequeue(struct Qdisc *sch, struct oq_queue *queue)
 {
-	struct oq_priv *priv;
-	struct oq_queue *queue;
+	struct oq_priv *priv = qdisc_priv(sch);
 	unsigned long proc_key;
 	unsigned long admn_key;
 	struct sk_buff *skb;
-	struct skb_cont_list *proc_cont_list, *admn_cont_list;
-	struct skb_container *proc_container, *admn_container, *container;
-	int q_id;
-
-	/* Pick queue */
-	priv = qdisc_priv(sch);
-	q_id = priv->sched_fn(sch);
-	queue = &priv->queues[q_id];
+	struct skb_cont_list *proc_cont_list;
+	struct skb_container *proc_container, *admn_container;
 
 	/* Dequeue the largest packet (Processing is based on pkt len for the time being) */
 	/* Processing */
-	proc_cont_list = (struct skb_cont_list *)btree_last(&queue->proc_q, &btree_geo64, &proc_key);
-	if (NULL == proc_cont_list)
-		return NULL;
+	if (queue->wheel) { /* Earliest deadline, dropping the expired packets first */
+		u64 now = ktime_get_ns();
+		int slot;
 
-	proc_container = proc_cont_list->head; /* FIFO */
+		oq_wheel_expire(sch, queue, now);
 
-	admn_key = proc_container->other_key;
-	skb = proc_container->skb;
+		slot = oq_wheel_first(queue->wheel, now);
+		if (slot < 0)
+			return NULL;
+
+		proc_container = queue->wheel->slots[slot]; /* FIFO */
+		proc_key = oq_wheel_deadline(queue->wheel, proc_container);
 
-	if (proc_container->next == proc_container) { /* Last skb */
-		btree_remove(&queue->proc_q, &btree_geo64, &proc_key);
-		mempool_free(proc_cont_list, skb_cont_list_mempool);
+		oq_wheel_del(queue->wheel, slot, proc_container);
 	} else {
-		struct skb_container *next_head, *tail;
+		proc_cont_list = (struct skb_cont_list *)btree_last(&queue->proc_q, &btree_geo64, &proc_key);
+		if (NULL == proc_cont_list)
+			return NULL;
 
-		next_head = proc_container->next;
-		tail = proc_container->prev;
-		
-		next_head->prev = tail;
-		tail->next = next_head;
+		proc_container = proc_cont_list->head; /* FIFO */
 
-		proc_cont_list->head = next_head;
-	}
+		if (proc_container->next == proc_container) { /* Last skb */
+			btree_remove(&queue->proc_q, &btree_geo64, &proc_key);
+			mempool_free(proc_cont_list, skb_cont_list_mempool);
+		} else {
+			struct skb_container *next_head, *tail;
 
-	/* Admission */
-	admn_cont_list = (struct skb_cont_list *)btree_lookup(&queue->admn_q, &btree_geo64, &admn_key);
-	if (NULL == admn_cont_list) /* Not likely though */
-		return NULL;
+			next_head = proc_container->next;
+			tail = proc_container->prev;
 
-	admn_container = NULL;
-	container = admn_cont_list->head;
-	do {
-		if (container->skb == skb) {
-			admn_container = container;
-			break;
+			next_head->prev = tail;
+			tail->next = next_head;
+
+			proc_cont_list->head = next_head;
 		}
-	
-		container = container->next;
-	} while (container != admn_cont_list->head);
+	}
+
+	admn_key = proc_container->other_key;
+	skb = proc_container->skb;
 
+	/* Admission */
+	admn_container = oq_unlink(&queue->admn_q, admn_key, skb);
 	if (NULL == admn_container)
 		return NULL;
-	
-	if (admn_container->next == admn_container) { /* Last skb */
-		btree_remove(&queue->admn_q, &btree_geo64, &admn_key);
-		mempool_free(admn_cont_list, skb_cont_list_mempool);
-	} else {
-		admn_container->next->prev = admn_container->prev;
-		admn_container->prev->next = admn_container->next;
 
-		if (admn_container == admn_cont_list->head) /* Remove head */
-			admn_cont_list->head = admn_container->next;
-	}
+	if (proc_container->enq_time != 0)
+		queue->sojourn = ktime_get_ns() - proc_container->enq_time;
+
+	/* sfq_vtime keys are inverted finish times; advance the virtual clock */
+	if (queue->sfq && ~proc_key > queue->sfq->vtime)
+		queue->sfq->vtime = ~proc_key;
+
+	trace_oq_dequeue(priv->handle, queue->id, admn_key, proc_key, qdisc_pkt_len(skb),
+		proc_container->enq_time != 0 ? queue->sojourn : 0);
 
 	mempool_free(proc_container, skb_container_mempool);
 	mempool_free(admn_container, skb_container_mempool);
 
 	queue->len--;
+	queue->bytes -= qdisc_pkt_len(skb);
+	sch->q.qlen--;
+	qdisc_qstats_backlog_dec(sch, skb);
 	
 	return skb;
 }
 
-/* Initialize qdisc for the given policy */
-int oq_init(struct Qdisc *sch, struct nlattr *opt)
+/* Peek the head packet of a given queue without dequeuing it */
+struct sk_buff *do_peek(struct Qdisc *sch, struct oq_queue *queue)
 {
-	struct oq_priv *priv;
-	oq_init_port_func init_port_fn;
+	unsigned long proc_key;
+	struct skb_cont_list *proc_cont_list;
 
-	priv = qdisc_priv(sch);
+	if (queue->wheel) {
+		u64 now = ktime_get_ns();
+		int slot;
 
-	/* Initialize port */
-	init_port_fn = NULL;
+		oq_wheel_expire(sch, queue, now);
 
-	if (opt != NULL) {
-		struct tc_oq_qopt *ctl;
-		struct oq_policy_container *container;
+		slot = oq_wheel_first(queue->wheel, now);
+		return slot < 0 ? NULL : queue->wheel->slots[slot]->skb;
+	}
 
-		ctl = nla_data(opt);
-		if (nla_len(opt) < sizeof(*ctl))
-			return -EINVAL;
+	proc_cont_list = (struct skb_cont_list *)btree_last(&queue->proc_q, &btree_geo64, &proc_key);
+	if (NULL == proc_cont_list)
+		return NULL;
 
-		read_lock(&oq_policy_lock);
+	return proc_cont_list->head->skb;
+}
 
-		container = oq_policy_base;
-		do {
-			if (strcmp(container->name, ctl->port_name) == 0) {
-				init_port_fn = container->init_port_fn;
-				break;
-			}
+/* Tokens (ns) left in the bucket of a shaped queue after sending len bytes */
+static s64 oq_shape_tokens(struct oq_queue *queue, s64 now, unsigned int len)
+{
+	s64 toks;
 
-			container = container->next;
-		} while (container != oq_policy_base);
+	toks = min_t(s64, now - queue->t_c, queue->buffer);
+	toks += queue->tokens;
+	if (toks > queue->buffer)
+		toks = queue->buffer;
 
-		read_unlock(&oq_policy_lock);
-	}
+	return toks - (s64)psched_l2t_ns(&queue->rate_cfg, len);
+}
 
-	if ((init_port_fn == NULL) || (init_port_fn(priv) != 0))
-		return -EINVAL;
+/* Walk the port hierarchy from the root down to a queue */
+static int oq_schedule(struct Qdisc *sch, struct oq_priv *priv)
+{
+	const struct oq_sched_node *node;
+	int n, child, depth;
 
-	/* Initialize memory pools */
-	skb_container_cache = kmem_cache_create("skb_container_cache", sizeof(struct skb_container), 0,
-		SLAB_HWCACHE_ALIGN, NULL);
-	skb_container_mempool = mempool_create(0, skb_container_alloc, skb_container_free, NULL);
-	if (!skb_container_cache || !skb_container_mempool)
-		return -ENOMEM;
+	n = 0;
+	for (depth = 0; depth < TCQ_OQ_MAX_DEPTH; depth++) {
+		node = &priv->nodes[n];
 
-	skb_cont_list_cache = kmem_cache_create("skb_cont_list_cache", sizeof(struct skb_cont_list), 0,
-		SLAB_HWCACHE_ALIGN, NULL);
-	skb_cont_list_mempool = mempool_create(0, skb_cont_list_alloc, skb_cont_list_free, NULL);
-	if (!skb_cont_list_cache || !skb_cont_list_mempool)
-		return -ENOMEM;
+		child = priv->sched_fn ? priv->sched_fn(sch, n) : 0;
+		if (unlikely(child < 0 || child >= node->num))
+			child = 0;
+
+		if (node->leaf)
+			return node->first + child;
+
+		n = node->first + child;
+	}
 
 	return 0;
 }
 
+/* Next eligible outgoing packet */
+static struct sk_buff *oq_dequeue_next(struct Qdisc *sch)
+{
+	struct oq_priv *priv;
+	struct oq_queue *queue;
+	struct sk_buff *skb;
+	s64 now, toks, wait;
+	u64 deadline;
+	int q_id, i;
+
+	/* Pick queue */
+	priv = qdisc_priv(sch);
+	q_id = oq_schedule(sch, priv);
+	queue = &priv->queues[q_id];
+
+	if (likely(queue->rate == 0)) {
+		skb = do_dequeue(sch, queue);
+
+		/* Packets left behind by the scheduler still expire on time */
+		if (unlikely(NULL == skb)) {
+			now = ktime_get_ns();
+			deadline = oq_next_wakeup(sch, now);
+			if (deadline != 0)
+				qdisc_watchdog_schedule_ns(&priv->watchdog, deadline + 1, true);
+		}
+
+		return skb;
+	}
+
+	/*
+	 * Shaped queue; fall through to the next eligible queue when out of tokens. The fall-through
+	 * goes round robin in queue order from the scheduled queue, not by processing priority.
+	 */
+	now = ktime_get_ns();
+	wait = 0;
+
+	for (i = 0; i < priv->num_q; i++) {
+		queue = &priv->queues[(q_id + i) % priv->num_q];
+
+		skb = do_peek(sch, queue);
+		if (NULL == skb)
+			continue;
+
+		if (queue->rate == 0)
+			return do_dequeue(sch, queue);
+
+		toks = oq_shape_tokens(queue, now, qdisc_pkt_len(skb));
+		if (toks >= 0) {
+			queue->t_c = now;
+			queue->tokens = toks;
+
+			return do_dequeue(sch, queue);
+		}
+
+		if (wait == 0 || -toks < wait)
+			wait = -toks;
+	}
+
+	/* Nothing eligible; wake up when the earliest queue has enough tokens or a packet expires */
+	deadline = oq_next_wakeup(sch, now);
+	if (deadline != 0 && (wait == 0 || deadline + 1 < now + wait))
+		wait = deadline + 1 - now;
+
+	if (wait != 0)
+		qdisc_watchdog_schedule_ns(&priv->watchdog, now + wait, true);
+
+	return NULL;
+}
+
+/* Dequeue next eligible outgoing packet */
+static struct sk_buff *oq_dequeue(struct Qdisc *sch)
+{
+	struct oq_priv *priv;
+	struct sk_buff *skb;
+
+	priv = qdisc_priv(sch);
+
+	if (unlikely(priv->pacing))
+		oq_pacing_release(sch, priv->pacing, ktime_get_ns());
+
+	skb = oq_dequeue_next(sch);
+	if (skb != NULL)
+		qdisc_bstats_update(sch, skb);
+
+	/* Packets that expired on the way leave the backlog of the parents, as in codel (HTB needs qlen != 0) */
+	if (priv->drop_count && sch->q.qlen) {
+		qdisc_tree_reduce_backlog(sch, priv->drop_count, priv->drop_len);
+		priv->drop_count = 0;
+		priv->drop_len = 0;
+	}
+
+	return skb;
+}
+
+/* Initialize the token bucket of a shaped queue */
+static void oq_init_shaping(struct oq_queue *queue)
+{
+	struct tc_ratespec rspec;
+
+	if (queue->rate == 0)
+		return;
+
+	memset(&rspec, 0, sizeof(rspec));
+	psched_ratecfg_precompute(&queue->rate_cfg, &rspec, queue->rate);
+
+	queue->buffer = psched_l2t_ns(&queue->rate_cfg, queue->burst);
+	queue->tokens = queue->buffer;
+	queue->t_c = ktime_get_ns();
+}
+
+/*
+ * Sample every queue into the relay channel. Queue state is read without the qdisc lock,
+ * so a sample may mix values from around one enqueue/dequeue, but the datapath never waits.
+ */
+static enum hrtimer_restart oq_telemetry_sample(struct hrtimer *timer)
+{
+	struct oq_priv *priv;
+	struct oq_telemetry_sample sample;
+	u64 period;
+	int i;
+
+	priv = container_of(timer, struct oq_priv, telemetry_timer);
+
+	period = READ_ONCE(priv->telemetry_period);
+	if (period == 0)
+		return HRTIMER_NORESTART;
+
+	sample.time = ktime_get_ns();
+	for (i = 0; i < priv->num_q; i++) {
+		struct oq_queue *queue = &priv->queues[i];
+
+		sample.queue = i;
+		sample.len = READ_ONCE(queue->len);
+		sample.bytes = READ_ONCE(queue->bytes);
+		sample.dropped = READ_ONCE(queue->dropped);
+		sample.sojourn = READ_ONCE(queue->sojourn);
+
+		relay_write(priv->telemetry_chan, &sample, sizeof(sample)); /* Lock-free, per CPU */
+	}
+
+	hrtimer_forward_now(timer, ns_to_ktime(period));
+
+	return HRTIMER_RESTART;
+}
+
+static struct dentry *oq_telemetry_create_buf_file(const char *filename, struct dentry *parent, umode_t mode,
+	struct rchan_buf *buf, int *is_global)
+{
+	return debugfs_create_file(filename, mode, parent, buf, &relay_file_operations);
+}
+
+static int oq_telemetry_remove_buf_file(struct dentry *dentry)
+{
+	debugfs_remove(dentry);
+
+	return 0;
+}
+
+static struct rchan_callbacks oq_telemetry_callbacks = {
+	.create_buf_file	=	oq_telemetry_create_buf_file,
+	.remove_buf_file	=	oq_telemetry_remove_buf_file,
+};
+
+/* Create the debugfs directory of a qdisc and a relay channel in it, when first used */
+static int oq_telemetry_open_chan(struct Qdisc *sch, struct oq_priv *priv, struct rchan **chan,
+	const char *file, size_t subbuf_size, size_t n_subbufs)
+{
+	char name[IFNAMSIZ + 16];
+
+	if (*chan != NULL)
+		return 0;
+
+	if (IS_ERR_OR_NULL(oq_debugfs_root))
+		return -ENODEV;
+
+	if (NULL == priv->telemetry_dir) {
+		snprintf(name, sizeof(name), "%s-%x", qdisc_dev(sch)->name, TC_H_MAJ(sch->handle) >> 16);
+		priv->telemetry_dir = debugfs_create_dir(name, oq_debugfs_root);
+		if (IS_ERR_OR_NULL(priv->telemetry_dir)) {
+			priv->telemetry_dir = NULL;
+			return -ENOMEM;
+		}
+	}
+
+	*chan = relay_open(file, priv->telemetry_dir, subbuf_size, n_subbufs, &oq_telemetry_callbacks, NULL);
+
+	return *chan != NULL ? 0 : -ENOMEM;
+}
+
+/* Create the telemetry channel of a qdisc when telemetry is first turned on */
+static int oq_telemetry_open(struct Qdisc *sch, struct oq_priv *priv)
+{
+	return oq_telemetry_open_chan(sch, priv, &priv->telemetry_chan, OQ_TELEMETRY_FILE,
+		OQ_TELEMETRY_SUBBUF_SIZE, OQ_TELEMETRY_N_SUBBUFS);
+}
+
+/* Create the capture channel of a qdisc when capture is first turned on */
+static int oq_capture_open(struct Qdisc *sch, struct oq_priv *priv)
+{
+	return oq_telemetry_open_chan(sch, priv, &priv->capture_chan, OQ_CAPTURE_FILE,
+		OQ_CAPTURE_SUBBUF_SIZE, OQ_CAPTURE_N_SUBBUFS);
+}
+
+/* Stop sampling and capturing and remove the relay channels */
+static void oq_telemetry_close(struct oq_priv *priv)
+{
+	hrtimer_cancel(&priv->telemetry_timer);
+
+	if (priv->telemetry_chan != NULL)
+		relay_close(priv->telemetry_chan);
+	if (priv->capture_chan != NULL)
+		relay_close(priv->capture_chan);
+	debugfs_remove(priv->telemetry_dir);
+
+	priv->capture = false;
+	priv->telemetry_chan = NULL;
+	priv->capture_chan = NULL;
+	priv->telemetry_dir = NULL;
+}
+
+/* Allocate pacing state with an empty flow table */
+static struct oq_pacing *oq_pacing_alloc(void)
+{
+	struct oq_pacing *pacing;
+
+	pacing = kzalloc(sizeof(struct oq_pacing) + TCQ_OQ_PACING_FLOWS * sizeof(struct oq_pacing_flow),
+		GFP_KERNEL);
+	if (NULL == pacing)
+		return NULL;
+
+	if (btree_init(&pacing->held_q) != 0) {
+		kfree(pacing);
+		return NULL;
+	}
+	pacing->mask = TCQ_OQ_PACING_FLOWS - 1;
+
+	return pacing;
+}
+
+/* Free the pacing state once no packets are held */
+static void oq_pacing_free(struct oq_pacing *pacing)
+{
+	if (NULL == pacing)
+		return;
+
+	btree_destroy(&pacing->held_q);
+	kfree(pacing);
+}
+
+/*
+ * Free the flow tables of sfq_vtime, the timing wheels of deadline and the pacing state
+ * (also of a policy that failed half way through init)
+ */
+static void oq_free_builtins(struct oq_priv *priv)
+{
+	int i;
+
+	oq_pacing_free(priv->pacing);
+	priv->pacing = NULL;
+
+	for (i = 0; i < TCQ_OQ_MAX_QUEUE; i++) {
+		kfree(priv->queues[i].sfq);
+		priv->queues[i].sfq = NULL;
+		kfree(priv->queues[i].wheel);
+		priv->queues[i].wheel = NULL;
+	}
+}
+
+/* Resolved parameter of a tc command */
+struct oq_param_ref {
+	const struct tc_oq_param *param;
+	struct oq_queue *queue; /* Queue of limit/rate/burst */
+	u64 *slot; /* Routine argument slot */
+	struct oq_pacing *pacing; /* Pacing state to install, or the one taken off */
+	int attr;
+};
+
+#define OQ_PARAM_ATTR_LIMIT	1
+#define OQ_PARAM_ATTR_RATE	2
+#define OQ_PARAM_ATTR_BURST	3
+#define OQ_PARAM_ATTR_ARG	4
+#define OQ_PARAM_ATTR_TELEMETRY	5
+#define OQ_PARAM_ATTR_BUFFER	6
+#define OQ_PARAM_ATTR_CAPTURE	7
+#define OQ_PARAM_ATTR_PACING	8
+
+/* Resolve a parameter by name and check its value */
+static int oq_resolve_param(struct Qdisc *sch, const struct tc_oq_param *param, struct oq_param_ref *ref)
+{
+	struct oq_priv *priv;
+	const struct oq_param_desc *desc;
+	const char *attr;
+	size_t n;
+	int i;
+
+	priv = qdisc_priv(sch);
+
+	if (strnlen(param->name, TCQ_OQ_PARAM_NAME_LEN + 1) > TCQ_OQ_PARAM_NAME_LEN)
+		return -EINVAL;
+
+	memset(ref, 0, sizeof(*ref));
+	ref->param = param;
+
+	/* Telemetry period (ns, 0 turns it off) */
+	if (strcmp(param->name, "telemetry") == 0) {
+		if (!param->integral || param->value < 0 ||
+			(param->value > 0 && param->value < OQ_TELEMETRY_MIN_PERIOD))
+			return -EINVAL;
+
+		ref->attr = OQ_PARAM_ATTR_TELEMETRY;
+		return param->value > 0 ? oq_telemetry_open(sch, priv) : 0;
+	}
+
+	/* Arrival capture (1 on, 0 off) */
+	if (strcmp(param->name, "capture") == 0) {
+		if (!param->integral || (param->value != 0 && param->value != 1))
+			return -EINVAL;
+
+		ref->attr = OQ_PARAM_ATTR_CAPTURE;
+		return param->value ? oq_capture_open(sch, priv) : 0;
+	}
+
+	/* Per-flow pacing (1 on, 0 off); the flow table is allocated outside the tree lock */
+	if (strcmp(param->name, "pacing") == 0) {
+		if (!param->integral || (param->value != 0 && param->value != 1))
+			return -EINVAL;
+
+		ref->attr = OQ_PARAM_ATTR_PACING;
+		if (param->value && NULL == priv->pacing) {
+			ref->pacing = oq_pacing_alloc();
+			if (NULL == ref->pacing)
+				return -ENOMEM;
+		}
+		return 0;
+	}
+
+	/* Shared buffer (packets, 0 turns it off) */
+	if (strcmp(param->name, "buffer") == 0) {
+		if (!param->integral || param->value < 0 || param->value > INT_MAX)
+			return -EINVAL;
+
+		ref->attr = OQ_PARAM_ATTR_BUFFER;
+		return 0;
+	}
+
+	/* Queue attributes the core owns */
+	for (i = 0; i < priv->num_q; i++) {
+		n = strnlen(priv->queues[i].name, TCQ_OQ_NAME_LEN);
+		if (strncmp(param->name, priv->queues[i].name, n) != 0 || param->name[n] != '.')
+			continue;
+
+		attr = param->name + n + 1;
+		ref->queue = &priv->queues[i];
+
+		if (strcmp(attr, "limit") == 0 && param->integral && param->value > 0 && param->value <= INT_MAX)
+			ref->attr = OQ_PARAM_ATTR_LIMIT;
+		else if (strcmp(attr, "rate") == 0 && param->integral && param->value >= 0)
+			ref->attr = OQ_PARAM_ATTR_RATE;
+		else if (strcmp(attr, "burst") == 0 && param->integral && param->value > 0 &&
+			param->value <= U32_MAX)
+			ref->attr = OQ_PARAM_ATTR_BURST;
+
+		if (ref->attr != 0)
+			return 0;
+	}
+
+	/* Routine arguments of the policy */
+	for (i = 0; i < priv->num_params; i++) {
+		desc = &priv->param_descs[i];
+		if (strcmp(param->name, desc->name) != 0)
+			continue;
+
+		if (desc->scope == OQ_PARAM_QUEUE)
+			ref->slot = &priv->queues[desc->index].params[desc->slot];
+		else if (desc->scope == OQ_PARAM_NODE)
+			ref->slot = &priv->nodes[desc->index].params[desc->slot];
+		else
+			ref->slot = &priv->params[desc->slot];
+
+		ref->attr = OQ_PARAM_ATTR_ARG;
+		return 0;
+	}
+
+	return -EINVAL;
+}
+
+/* Free the pacing state resolved parameters hold */
+static void oq_free_refs(struct oq_param_ref *refs, int num)
+{
+	int i;
+
+	for (i = 0; i < num; i++)
+		oq_pacing_free(refs[i].pacing);
+}
+
+/*
+ * Check the token bucket a command leaves a queue with: a shaped queue needs a burst of at
+ * least a packet of the device, or its head packet never fits (tbf refuses such a bucket too)
+ */
+static int oq_check_shaping(struct Qdisc *sch, const struct oq_param_ref *refs, int num,
+	const struct oq_queue *queue)
+{
+	u64 rate = queue->rate;
+	u32 burst = queue->burst;
+	int i;
+
+	for (i = 0; i < num; i++) {
+		if (refs[i].queue != queue)
+			continue;
+
+		if (refs[i].attr == OQ_PARAM_ATTR_RATE)
+			rate = refs[i].param->value;
+		else if (refs[i].attr == OQ_PARAM_ATTR_BURST)
+			burst = refs[i].param->value;
+	}
+
+	return rate != 0 && burst < psched_mtu(qdisc_dev(sch)) ? -EINVAL : 0;
+}
+
+/*
+ * Set the parameters of a tc command. All of them are resolved first and then applied
+ * under the tree lock, so a command either changes everything at once or nothing.
+ * Packets already queued beyond a lowered limit stay queued.
+ */
+static int oq_set_params(struct Qdisc *sch, const struct tc_oq_qopt *ctl)
+{
+	struct oq_priv *priv;
+	struct oq_param_ref refs[TCQ_OQ_MAX_SET];
+	u64 telemetry_period;
+	int i, err;
+
+	priv = qdisc_priv(sch);
+
+	if (ctl->num_params < 0 || ctl->num_params > TCQ_OQ_MAX_SET)
+		return -EINVAL;
+
+	for (i = 0; i < ctl->num_params; i++) {
+		err = oq_resolve_param(sch, &ctl->params[i], &refs[i]);
+		if (err != 0) {
+			oq_free_refs(refs, i);
+			return err;
+		}
+	}
+
+	for (i = 0; i < ctl->num_params; i++) {
+		if ((refs[i].attr == OQ_PARAM_ATTR_RATE || refs[i].attr == OQ_PARAM_ATTR_BURST) &&
+			oq_check_shaping(sch, refs, ctl->num_params, refs[i].queue) != 0) {
+			oq_free_refs(refs, ctl->num_params);
+			return -EINVAL;
+		}
+	}
+
+	telemetry_period = priv->telemetry_period;
+
+	sch_tree_lock(sch);
+
+	for (i = 0; i < ctl->num_params; i++) {
+		const struct tc_oq_param *param = refs[i].param;
+
+		switch (refs[i].attr) {
+			case OQ_PARAM_ATTR_LIMIT:
+				refs[i].queue->max_len = param->value;
+				break;
+			case OQ_PARAM_ATTR_RATE:
+				refs[i].queue->rate = param->value;
+				oq_init_shaping(refs[i].queue);
+				break;
+			case OQ_PARAM_ATTR_BURST:
+				refs[i].queue->burst = param->value;
+				oq_init_shaping(refs[i].queue);
+				break;
+			case OQ_PARAM_ATTR_ARG:
+				*refs[i].slot = param->fixed;
+				break;
+			case OQ_PARAM_ATTR_TELEMETRY:
+				WRITE_ONCE(priv->telemetry_period, param->value);
+				break;
+			case OQ_PARAM_ATTR_BUFFER:
+				priv->buffer = param->value;
+				break;
+			case OQ_PARAM_ATTR_CAPTURE:
+				priv->capture = param->value != 0;
+				break;
+			case OQ_PARAM_ATTR_PACING:
+				if (refs[i].pacing != NULL && NULL == priv->pacing) {
+					swap(refs[i].pacing, priv->pacing);
+				} else if (!param->value && priv->pacing != NULL) {
+					/* Held packets may leave right away */
+					oq_pacing_release(sch, priv->pacing, U64_MAX);
+					swap(refs[i].pacing, priv->pacing);
+				}
+		}
+	}
+
+	sch_tree_unlock(sch);
+
+	/* Pacing state that was taken off, or not needed after all */
+	oq_free_refs(refs, ctl->num_params);
+
+	/* The sampler does not take the tree lock, so the timer is (re)started outside it */
+	if (priv->telemetry_period != telemetry_period) {
+		if (priv->telemetry_period != 0)
+			hrtimer_start(&priv->telemetry_timer, ns_to_ktime(priv->telemetry_period), HRTIMER_MODE_REL);
+		else
+			hrtimer_cancel(&priv->telemetry_timer);
+	}
+
+	return 0;
+}
+
+/* Initialize qdisc for the given policy */
+int oq_init(struct Qdisc *sch, struct nlattr *opt)
+{
+	struct oq_priv *priv;
+	struct tc_oq_qopt *ctl;
+	oq_init_port_func init_port_fn;
+	int i, err;
+
+	priv = qdisc_priv(sch);
+
+	/* The stack calls oq_destroy() when init fails, which cancels both timers */
+	qdisc_watchdog_init(&priv->watchdog, sch);
+	hrtimer_init(&priv->telemetry_timer, CLOCK_MONOTONIC, HRTIMER_MODE_REL);
+	priv->telemetry_timer.function = oq_telemetry_sample;
+
+	/* Initialize port */
+	init_port_fn = NULL;
+	ctl = NULL;
+
+	if (opt != NULL) {
+		ctl = nla_data(opt);
+		if (nla_len(opt) < sizeof(*ctl))
+			return -EINVAL;
+	}
+
+	if (ctl != NULL && ctl->prog_len != 0) {
+		/* Policy bytecode follows the options (tc qdisc add ... openqueue prog <file>) */
+		if (nla_len(opt) - sizeof(*ctl) < ctl->prog_len)
+			return -EINVAL;
+
+		err = oq_prog_load(priv, ctl + 1, ctl->prog_len);
+		if (err != 0) {
+			oq_free_builtins(priv);
+			oq_prog_free(priv);
+			return err;
+		}
+	} else {
+		if (ctl != NULL) {
+			struct oq_policy_container *container;
+
+			read_lock(&oq_policy_lock);
+
+			/* The list is empty while no policy module is loaded (E.g. when qdiscs only run bytecode) */
+			container = oq_policy_base;
+			while (container != NULL) {
+				if (strcmp(container->name, ctl->port_name) == 0) {
+					init_port_fn = container->init_port_fn;
+					break;
+				}
+
+				container = container->next;
+				if (container == oq_policy_base)
+					break;
+			}
+
+			read_unlock(&oq_policy_lock);
+		}
+
+		if ((init_port_fn == NULL) || (init_port_fn(priv) != 0)) {
+			oq_free_builtins(priv);
+			return -EINVAL;
+		}
+	}
+
+	/* Index queues for the hooks and initialize token buckets of shaped queues */
+	for (i = 0; i < priv->num_q; i++) {
+		priv->queues[i].id = i;
+
+		/* A bucket smaller than a packet never has the tokens to send one */
+		if (priv->queues[i].rate != 0 && priv->queues[i].burst < psched_mtu(qdisc_dev(sch)))
+			return -EINVAL;
+
+		oq_init_shaping(&priv->queues[i]);
+	}
+
+	priv->hash_seed = prandom_u32();
+	priv->handle = sch->handle;
+
+	/* Parameters given with the policy (tc qdisc add ... set q1.limit 2048) */
+	return oq_set_params(sch, ctl);
+}
+
+/*
+ * Change parameters of a live qdisc (tc qdisc change ... set q1.limit 2048). The policy
+ * cannot be changed; replace the qdisc for that.
+ */
+static int oq_change(struct Qdisc *sch, struct nlattr *opt)
+{
+	struct oq_priv *priv;
+	struct tc_oq_qopt *ctl;
+
+	priv = qdisc_priv(sch);
+
+	if (opt == NULL)
+		return -EINVAL;
+
+	ctl = nla_data(opt);
+	if (nla_len(opt) < sizeof(*ctl))
+		return -EINVAL;
+
+	if (ctl->port_name[0] != '\0' && strncmp(ctl->port_name, priv->port_name, TCQ_OQ_NAME_LEN) != 0)
+		return -EINVAL;
+	if (ctl->prog_len != 0)
+		return -EINVAL;
+
+	return oq_set_params(sch, ctl);
+}
+
+/* Release qdisc resources */
+/* Btree visitor releasing a container list (and its skbs when the tree owns them) */
+static void oq_purge_list(void *elem, unsigned long opaque, unsigned long *key, size_t index, void *func2)
+{
+	struct oq_purge *purge = (struct oq_purge *)opaque;
+	struct skb_cont_list *list = (struct skb_cont_list *)elem;
+	struct skb_container *container, *head, *next;
+
+	head = list->head;
+	container = head;
+	do {
+		next = container->next;
+
+		if (purge->own_skbs) {
+			container->skb->next = purge->skbs;
+			purge->skbs = container->skb;
+		}
+
+		oq_purge_container(purge, container);
+
+		container = next;
+	} while (container != head);
+
+	purge->lists[purge->num_lists++] = list;
+	if (purge->num_lists == OQ_PURGE_BATCH)
+		oq_purge_flush(skb_cont_list_cache, purge->lists, &purge->num_lists);
+}
+
+/* Release the packets on a timing wheel */
+static void oq_purge_wheel(struct oq_wheel *wheel, struct oq_purge *purge)
+{
+	struct skb_container *container, *head, *next;
+	unsigned long slot;
+
+	for_each_set_bit(slot, wheel->used, TCQ_OQ_WHEEL_SLOTS) {
+		head = wheel->slots[slot];
+		container = head;
+		do {
+			next = container->next;
+
+			container->skb->next = purge->skbs;
+			purge->skbs = container->skb;
+			oq_purge_container(purge, container);
+
+			container = next;
+		} while (container != head);
+
+		wheel->slots[slot] = NULL;
+	}
+
+	bitmap_zero(wheel->used, TCQ_OQ_WHEEL_SLOTS);
+}
+
+/* Free every packet of a queue, walking each tree (or wheel) once (linear in the backlog) */
+static void oq_purge_queue(struct oq_queue *queue)
+{
+	struct oq_purge purge;
+
+	purge.skbs = NULL;
+	purge.num_containers = 0;
+	purge.num_lists = 0;
+
+	/* Without func2 the btree visitors visit nothing, so it is set though unused */
+	purge.own_skbs = true;
+	btree_grim_visitor(&queue->proc_q, &btree_geo64, (unsigned long)&purge, oq_purge_list, &purge);
+	if (queue->wheel)
+		oq_purge_wheel(queue->wheel, &purge);
+	purge.own_skbs = false;
+	btree_grim_visitor(&queue->admn_q, &btree_geo64, (unsigned long)&purge, oq_purge_list, &purge);
+
+	oq_purge_flush(skb_container_cache, purge.containers, &purge.num_containers);
+	oq_purge_flush(skb_cont_list_cache, purge.lists, &purge.num_lists);
+	kfree_skb_list(purge.skbs);
+
+	queue->len = 0;
+	queue->bytes = 0;
+	queue->sojourn = 0;
+
+	if (queue->sfq) {
+		queue->sfq->vtime = 0;
+		memset(queue->sfq->finish, 0, (queue->sfq->mask + 1) * sizeof(u64));
+	}
+}
+
+/* Free the packets held back by pacing and forget the flows */
+static void oq_purge_pacing(struct oq_pacing *pacing)
+{
+	struct oq_purge purge;
+
+	purge.skbs = NULL;
+	purge.num_containers = 0;
+	purge.num_lists = 0;
+	purge.own_skbs = true;
+	btree_grim_visitor(&pacing->held_q, &btree_geo64, (unsigned long)&purge, oq_purge_list, &purge);
+
+	oq_purge_flush(skb_container_cache, purge.containers, &purge.num_containers);
+	oq_purge_flush(skb_cont_list_cache, purge.lists, &purge.num_lists);
+	kfree_skb_list(purge.skbs);
+
+	pacing->held = 0;
+	memset(pacing->flows, 0, (pacing->mask + 1) * sizeof(struct oq_pacing_flow));
+}
+
+/* Drop every queued packet (tc qdisc replace, device down) */
+static void oq_reset(struct Qdisc *sch)
+{
+	struct oq_priv *priv;
+	int i;
+
+	priv = qdisc_priv(sch);
+
+	for (i = 0; i < priv->num_q; i++)
+		oq_purge_queue(&priv->queues[i]);
+	if (priv->pacing)
+		oq_purge_pacing(priv->pacing);
+
+	priv->drop_count = 0;
+	priv->drop_len = 0;
+	sch->q.qlen = 0;
+	sch->qstats.backlog = 0;
+	qdisc_watchdog_cancel(&priv->watchdog);
+}
+
+static void oq_destroy(struct Qdisc *sch)
+{
+	struct oq_priv *priv;
+	int i;
+
+	priv = qdisc_priv(sch);
+
+	qdisc_watchdog_cancel(&priv->watchdog);
+	oq_telemetry_close(priv);
+
+	/* The stack resets a qdisc before destroying it, so the queues are usually empty */
+	for (i = 0; i < priv->num_q; i++) {
+		oq_purge_queue(&priv->queues[i]);
+		btree_destroy(&priv->queues[i].admn_q);
+		btree_destroy(&priv->queues[i].proc_q);
+	}
+	if (priv->pacing)
+		oq_purge_pacing(priv->pacing);
+
+	oq_free_builtins(priv);
+	oq_prog_free(priv);
+}
+
 static int oq_dump(struct Qdisc *sch, struct sk_buff *skb)
 {
 	struct oq_priv *priv;
@@ -384,6 +1662,8 @@ static int oq_dump(struct Qdisc *sch, struct sk_buff *skb)
 
 	priv = qdisc_priv(sch);
 
+	/* Slots, names and padding the dump leaves unset must not carry kernel stack to userspace */
+	memset(&opt, 0, sizeof(opt));
 	strncpy(opt.port_name, priv->port_name, TCQ_OQ_NAME_LEN);
 	for (i = 0; i < priv->num_q; i++) {
 		opt.queues[i].max_len = priv->queues[i].max_len;
@@ -393,6 +1673,9 @@ static int oq_dump(struct Qdisc *sch, struct sk_buff *skb)
 		strncpy(opt.queues[i].name, priv->queues[i].name, TCQ_OQ_NAME_LEN);
 	}
 	opt.num_q = priv->num_q;
+	opt.prog_len = 0;
+	opt.buffer = priv->buffer;
+	opt.buffer_used = sch->q.qlen;
 
 	if (nla_put(skb, TCA_OPTIONS, sizeof(opt), &opt))
 		goto nla_put_failure;
@@ -465,32 +1748,222 @@ void oq_unregister_policy(oq_init_port_func init_port_fn)
 }
 EXPORT_SYMBOL(oq_unregister_policy);
 
+/* Built-in queue selector spreading flows over the first num_q queues */
+int oq_flow_hash(struct Qdisc *sch, struct sk_buff *skb, u32 num_q, bool perturb)
+{
+	struct oq_priv *priv;
+	u32 hash;
+
+	hash = skb_get_hash(skb);
+	if (perturb) {
+		priv = qdisc_priv(sch);
+		hash = jhash_1word(hash, priv->hash_seed);
+	}
+
+	return reciprocal_scale(hash, num_q);
+}
+EXPORT_SYMBOL(oq_flow_hash);
+
+/* Allocate the flow table of a queue with sfq_vtime processing keys (at init) */
+int oq_sfq_init(struct oq_queue *queue, u32 flows)
+{
+	flows = roundup_pow_of_two(clamp_t(u32, flows, 1, TCQ_OQ_SFQ_MAX_FLOWS));
+
+	queue->sfq = kzalloc(sizeof(struct oq_sfq) + flows * sizeof(u64), GFP_KERNEL);
+	if (NULL == queue->sfq)
+		return -ENOMEM;
+
+	queue->sfq->mask = flows - 1;
+
+	return 0;
+}
+EXPORT_SYMBOL(oq_sfq_init);
+
+/*
+ * Built-in processing priority for per-flow fairness within a queue. A packet finishes at
+ * max(finish time of its flow, virtual time) + len / weight, and the virtual time follows
+ * the finish time of the packets dequeued. The core dequeues the largest key first, so the
+ * key is the inverted finish time.
+ */
+unsigned long oq_sfq_vtime(struct oq_queue *queue, struct sk_buff *skb, u32 weight)
+{
+	struct oq_sfq *sfq;
+	u64 *finish;
+
+	sfq = queue->sfq;
+	if (unlikely(NULL == sfq))
+		return 0;
+
+	finish = &sfq->finish[skb_get_hash(skb) & sfq->mask];
+	*finish = max(*finish, sfq->vtime) + div_u64((u64)qdisc_pkt_len(skb) << 8, weight);
+
+	return ~(unsigned long)*finish;
+}
+EXPORT_SYMBOL(oq_sfq_vtime);
+
+/* Allocate the timing wheel of a queue with deadline processing keys (at init) */
+int oq_wheel_init(struct oq_queue *queue, u32 budget_us)
+{
+	u64 budget;
+
+	budget = (u64)clamp_t(u32, budget_us, 1, TCQ_OQ_MAX_DEADLINE) * NSEC_PER_USEC;
+
+	queue->wheel = kzalloc(sizeof(struct oq_wheel), GFP_KERNEL);
+	if (NULL == queue->wheel)
+		return -ENOMEM;
+
+	/* Slots as fine as the wheel can be while spanning twice the budget */
+	queue->wheel->budget = budget;
+	queue->wheel->shift = order_base_2(div_u64(2 * budget + TCQ_OQ_WHEEL_SLOTS - 1, TCQ_OQ_WHEEL_SLOTS));
+	queue->wheel->cursor = ktime_get_ns();
+
+	return 0;
+}
+EXPORT_SYMBOL(oq_wheel_init);
+
+/*
+ * Built-in processing priority for earliest deadline first. A packet is due a fixed budget
+ * after it arrives; the core keeps deadline queues on a timing wheel rather than the
+ * processing btree and drops packets still queued at their deadline.
+ */
+unsigned long oq_deadline(struct oq_queue *queue, struct sk_buff *skb)
+{
+	if (unlikely(NULL == queue->wheel))
+		return 0;
+
+	return ktime_get_ns() + queue->wheel->budget;
+}
+EXPORT_SYMBOL(oq_deadline);
+
+/*
+ * Built-in scheduling priority serving the queue of a leaf port whose head packet is due
+ * first, so that deadline queues with different budgets make one EDF schedule. Queues
+ * without deadlines are served when no deadline queue has packets.
+ */
+int oq_edf(struct Qdisc *sch, int node)
+{
+	struct oq_priv *priv;
+	const struct oq_sched_node *n;
+	struct oq_queue *queue;
+	u64 now, deadline, best_deadline;
+	int i, slot, best, other;
+
+	priv = qdisc_priv(sch);
+	n = &priv->nodes[node];
+	if (!n->leaf)
+		return 0;
+
+	now = ktime_get_ns();
+	best = other = -1;
+	best_deadline = 0;
+
+	for (i = 0; i < n->num; i++) {
+		queue = &priv->queues[n->first + i];
+		if (queue->len == 0)
+			continue;
+
+		if (NULL == queue->wheel) {
+			if (other < 0)
+				other = i;
+			continue;
+		}
+
+		oq_wheel_expire(sch, queue, now);
+
+		slot = oq_wheel_first(queue->wheel, now);
+		if (slot < 0)
+			continue;
+
+		deadline = oq_wheel_deadline(queue->wheel, queue->wheel->slots[slot]);
+		if (best < 0 || deadline < best_deadline) {
+			best = i;
+			best_deadline = deadline;
+		}
+	}
+
+	if (best >= 0)
+		return best;
+
+	return other >= 0 ? other : 0;
+}
+EXPORT_SYMBOL(oq_edf);
+
+/* Pace flows at the rate of their sockets (policies with pacing = true, at init) */
+int oq_pacing_init(struct oq_priv *priv)
+{
+	if (priv->pacing != NULL)
+		return 0;
+
+	priv->pacing = oq_pacing_alloc();
+
+	return priv->pacing != NULL ? 0 : -ENOMEM;
+}
+EXPORT_SYMBOL(oq_pacing_init);
+
 /* OpenQueue ops */
 struct Qdisc_ops oq_qdisc_ops __read_mostly = {
 	.id			=	"openqueue",
 	.priv_size	=	sizeof(struct oq_priv),
 	.enqueue	=	oq_enqueue,
 	.dequeue	=	oq_dequeue,
-	.peek		=	qdisc_peek_head,
-	.drop		=	qdisc_queue_drop,
+	.peek		=	qdisc_peek_dequeued,
 	.init		=	oq_init,
-	.reset		=	qdisc_reset_queue,
-	.change		=	oq_init,
+	.reset		=	oq_reset,
+	.change		=	oq_change,
+	.destroy	=	oq_destroy,
 	.dump		=	oq_dump,
 	.owner		=	THIS_MODULE,
 };
 EXPORT_SYMBOL(oq_qdisc_ops);
 
-/* Register qdisc */
+/* Release memory pools */
+static void oq_destroy_pools(void)
+{
+	if (skb_container_mempool)
+		mempool_destroy(skb_container_mempool);
+	if (skb_cont_list_mempool)
+		mempool_destroy(skb_cont_list_mempool);
+	if (skb_container_cache)
+		kmem_cache_destroy(skb_container_cache);
+	if (skb_cont_list_cache)
+		kmem_cache_destroy(skb_cont_list_cache);
+}
+
+/* Create memory pools (shared by all qdiscs) and register qdisc */
 static int __init oq_module_init(void)
 {
-	return register_qdisc(&oq_qdisc_ops);
+	int err;
+
+	skb_container_cache = kmem_cache_create("skb_container_cache", sizeof(struct skb_container), 0,
+		SLAB_HWCACHE_ALIGN, NULL);
+	skb_container_mempool = mempool_create(0, skb_container_alloc, skb_container_free, NULL);
+	skb_cont_list_cache = kmem_cache_create("skb_cont_list_cache", sizeof(struct skb_cont_list), 0,
+		SLAB_HWCACHE_ALIGN, NULL);
+	skb_cont_list_mempool = mempool_create(0, skb_cont_list_alloc, skb_cont_list_free, NULL);
+
+	if (!skb_container_cache || !skb_container_mempool || !skb_cont_list_cache || !skb_cont_list_mempool) {
+		oq_destroy_pools();
+		return -ENOMEM;
+	}
+
+	/* Telemetry is unavailable without debugfs, which is not fatal */
+	oq_debugfs_root = debugfs_create_dir(OQ_TELEMETRY_DIR, NULL);
+
+	err = register_qdisc(&oq_qdisc_ops);
+	if (err != 0) {
+		debugfs_remove_recursive(oq_debugfs_root);
+		oq_destroy_pools();
+	}
+
+	return err;
 }
 
-/* Unregister qdisc */
+/* Unregister qdisc and release memory pools */
 static void __exit oq_module_exit(void)
 {
 	unregister_qdisc(&oq_qdisc_ops);
+	debugfs_remove_recursive(oq_debugfs_root);
+	oq_destroy_pools();
 }
 
 module_init(oq_module_init)
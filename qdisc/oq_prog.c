@@ -0,0 +1,663 @@
+/*
+ * oq_prog.c	Policy bytecode of the OpenQueue core (oq_bytecode.h).
+ *
+ *              A qdisc loaded with bytecode needs no policy module: the blob comes with the
+ *              tc options, is verified once and its hooks run in a small interpreter. At load
+ *              every instruction is resolved into an operation specialized for its operand
+ *              (E.g. one per packet field and comparison), so running a hook is a chain of
+ *              indirect jumps with no decoding left on the packet path.
+ *
+ *              This program is free software; you can redistribute it and/or
+ *              modify it under the terms of the GNU General Public License
+ *              as published by the Free Software Foundation; either version
+ *              2 of the License, or (at your option) any later version.
+ *
+ * Authors:     Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#include <linux/kernel.h>
+#include <linux/slab.h>
+#include <linux/errno.h>
+#include <linux/skbuff.h>
+#include <linux/bitmap.h>
+#include <net/pkt_sched.h>
+
+#include "../include/qdisc/sch_openqueue.h"
+#include "../include/qdisc/oq_packet.h"
+#include "oq_prog.h"
+
+/* Operations of the interpreter (instructions specialized for their operand) */
+enum {
+	OQ_OP_RET,
+	OQ_OP_LD_IMM,
+	OQ_OP_LD_TOS, /* One per packet field, in OQ_BC_FIELD_* order */
+	OQ_OP_LD_TOT_LEN,
+	OQ_OP_LD_ID,
+	OQ_OP_LD_TTL,
+	OQ_OP_LD_PROTOCOL,
+	OQ_OP_LD_SADDR,
+	OQ_OP_LD_DADDR,
+	OQ_OP_LD_IP6_FLOWLABEL,
+	OQ_OP_LD_IP6_TCLASS,
+	OQ_OP_LD_SPORT,
+	OQ_OP_LD_DPORT,
+	OQ_OP_LD_MARK,
+	OQ_OP_LD_PRIORITY,
+	OQ_OP_LD_HASH,
+	OQ_OP_LD_LEN, /* One per queue attribute, in OQ_BC_ATTR_* order */
+	OQ_OP_LD_MAX_LEN,
+	OQ_OP_LD_DROPPED,
+	OQ_OP_LD_TOTAL,
+	OQ_OP_TAX,
+	OQ_OP_RSH,
+	OQ_OP_AND,
+	OQ_OP_XOR,
+	OQ_OP_PACK,
+	OQ_OP_EQ, /* One per comparison, in OQ_BC_CMP_* order */
+	OQ_OP_NE,
+	OQ_OP_LT,
+	OQ_OP_LE,
+	OQ_OP_GT,
+	OQ_OP_GE,
+	OQ_OP_JNE,
+	OQ_OP_FLOW_HASH, /* One per built-in, in OQ_BC_CALL_* order */
+	OQ_OP_SFQ_VTIME,
+	OQ_OP_DEADLINE,
+	OQ_OP_EDF,
+	OQ_NUM_OPS
+};
+
+/* First operation of every instruction code; the operand of LD_FIELD, LD_ATTR, CMP and CALL is added */
+static const u8 oq_op_base[OQ_BC_MAX_CODE + 1] = {
+	[OQ_BC_RET] = OQ_OP_RET,
+	[OQ_BC_LD_IMM] = OQ_OP_LD_IMM,
+	[OQ_BC_LD_FIELD] = OQ_OP_LD_TOS,
+	[OQ_BC_LD_ATTR] = OQ_OP_LD_LEN,
+	[OQ_BC_TAX] = OQ_OP_TAX,
+	[OQ_BC_RSH] = OQ_OP_RSH,
+	[OQ_BC_AND] = OQ_OP_AND,
+	[OQ_BC_XOR] = OQ_OP_XOR,
+	[OQ_BC_PACK] = OQ_OP_PACK,
+	[OQ_BC_CMP] = OQ_OP_EQ,
+	[OQ_BC_JNE] = OQ_OP_JNE,
+	[OQ_BC_CALL] = OQ_OP_FLOW_HASH,
+};
+
+/* Loaded instruction */
+struct oq_prog_op {
+	u8 op;
+	u8 arg;
+	u16 off;
+	u64 imm;
+};
+
+/* Loaded program */
+struct oq_prog {
+	const struct oq_prog_op *qselc; /* NULL for none */
+	const struct oq_prog_op *sched[TCQ_OQ_MAX_NODE];
+	struct oq_prog_op ops[];
+};
+
+/* Hook a program entry runs as, which decides what it may read and call */
+struct oq_prog_ctx {
+	int hook; /* OQ_BC_HOOK_* or one of the port hooks below */
+	const struct oq_bc_queue *queue; /* Queue of a queue hook */
+	const struct oq_bc_node *node; /* Node of the scheduling priority */
+};
+
+#define OQ_PROG_HOOK_QSELC	OQ_BC_QUEUE_HOOKS
+#define OQ_PROG_HOOK_SCHED	(OQ_BC_QUEUE_HOOKS + 1)
+
+/*
+ * Run a program from an entry. The verifier made sure that every operation is valid where
+ * the entry is used and that a RET comes before the end, so nothing is checked here.
+ */
+static u64 oq_prog_run(const struct oq_prog_op *op, struct Qdisc *sch, struct oq_queue *queue,
+	struct sk_buff *skb, int node)
+{
+	static const void * const jumptable[OQ_NUM_OPS] = {
+		[OQ_OP_RET] = &&op_ret,
+		[OQ_OP_LD_IMM] = &&op_ld_imm,
+		[OQ_OP_LD_TOS] = &&op_ld_tos,
+		[OQ_OP_LD_TOT_LEN] = &&op_ld_tot_len,
+		[OQ_OP_LD_ID] = &&op_ld_id,
+		[OQ_OP_LD_TTL] = &&op_ld_ttl,
+		[OQ_OP_LD_PROTOCOL] = &&op_ld_protocol,
+		[OQ_OP_LD_SADDR] = &&op_ld_saddr,
+		[OQ_OP_LD_DADDR] = &&op_ld_daddr,
+		[OQ_OP_LD_IP6_FLOWLABEL] = &&op_ld_ip6_flowlabel,
+		[OQ_OP_LD_IP6_TCLASS] = &&op_ld_ip6_tclass,
+		[OQ_OP_LD_SPORT] = &&op_ld_sport,
+		[OQ_OP_LD_DPORT] = &&op_ld_dport,
+		[OQ_OP_LD_MARK] = &&op_ld_mark,
+		[OQ_OP_LD_PRIORITY] = &&op_ld_priority,
+		[OQ_OP_LD_HASH] = &&op_ld_hash,
+		[OQ_OP_LD_LEN] = &&op_ld_len,
+		[OQ_OP_LD_MAX_LEN] = &&op_ld_max_len,
+		[OQ_OP_LD_DROPPED] = &&op_ld_dropped,
+		[OQ_OP_LD_TOTAL] = &&op_ld_total,
+		[OQ_OP_TAX] = &&op_tax,
+		[OQ_OP_RSH] = &&op_rsh,
+		[OQ_OP_AND] = &&op_and,
+		[OQ_OP_XOR] = &&op_xor,
+		[OQ_OP_PACK] = &&op_pack,
+		[OQ_OP_EQ] = &&op_eq,
+		[OQ_OP_NE] = &&op_ne,
+		[OQ_OP_LT] = &&op_lt,
+		[OQ_OP_LE] = &&op_le,
+		[OQ_OP_GT] = &&op_gt,
+		[OQ_OP_GE] = &&op_ge,
+		[OQ_OP_JNE] = &&op_jne,
+		[OQ_OP_FLOW_HASH] = &&op_flow_hash,
+		[OQ_OP_SFQ_VTIME] = &&op_sfq_vtime,
+		[OQ_OP_DEADLINE] = &&op_deadline,
+		[OQ_OP_EDF] = &&op_edf,
+	};
+	u64 a = 0, x = 0;
+
+#define OQ_NEXT		goto *jumptable[(++op)->op]
+
+	goto *jumptable[op->op];
+
+op_ret:
+	return a;
+op_ld_imm:
+	a = op->imm;
+	OQ_NEXT;
+op_ld_tos:
+	a = oq_pkt_tos(skb);
+	OQ_NEXT;
+op_ld_tot_len:
+	a = oq_pkt_tot_len(skb);
+	OQ_NEXT;
+op_ld_id:
+	a = oq_pkt_id(skb);
+	OQ_NEXT;
+op_ld_ttl:
+	a = oq_pkt_ttl(skb);
+	OQ_NEXT;
+op_ld_protocol:
+	a = oq_pkt_protocol(skb);
+	OQ_NEXT;
+op_ld_saddr:
+	a = oq_pkt_saddr(skb);
+	OQ_NEXT;
+op_ld_daddr:
+	a = oq_pkt_daddr(skb);
+	OQ_NEXT;
+op_ld_ip6_flowlabel:
+	a = oq_pkt_ip6_flowlabel(skb);
+	OQ_NEXT;
+op_ld_ip6_tclass:
+	a = oq_pkt_ip6_tclass(skb);
+	OQ_NEXT;
+op_ld_sport:
+	a = oq_pkt_sport(skb);
+	OQ_NEXT;
+op_ld_dport:
+	a = oq_pkt_dport(skb);
+	OQ_NEXT;
+op_ld_mark:
+	a = oq_pkt_mark(skb);
+	OQ_NEXT;
+op_ld_priority:
+	a = oq_pkt_priority(skb);
+	OQ_NEXT;
+op_ld_hash:
+	a = oq_pkt_hash(skb);
+	OQ_NEXT;
+	/* Queue attributes are ints, compared signed as in a policy module */
+op_ld_len:
+	a = (s64)queue->len;
+	OQ_NEXT;
+op_ld_max_len:
+	a = (s64)queue->max_len;
+	OQ_NEXT;
+op_ld_dropped:
+	a = (s64)queue->dropped;
+	OQ_NEXT;
+op_ld_total:
+	a = (s64)queue->total;
+	OQ_NEXT;
+op_tax:
+	x = a;
+	OQ_NEXT;
+op_rsh:
+	a >>= op->arg;
+	OQ_NEXT;
+op_and:
+	a &= op->imm;
+	OQ_NEXT;
+op_xor:
+	a ^= op->imm;
+	OQ_NEXT;
+op_pack:
+	a = x << op->arg | a;
+	OQ_NEXT;
+op_eq:
+	a = (s64)x == (s64)a;
+	OQ_NEXT;
+op_ne:
+	a = (s64)x != (s64)a;
+	OQ_NEXT;
+op_lt:
+	a = (s64)x < (s64)a;
+	OQ_NEXT;
+op_le:
+	a = (s64)x <= (s64)a;
+	OQ_NEXT;
+op_gt:
+	a = (s64)x > (s64)a;
+	OQ_NEXT;
+op_ge:
+	a = (s64)x >= (s64)a;
+	OQ_NEXT;
+op_jne:
+	if (a != op->imm)
+		op += op->off;
+	OQ_NEXT;
+op_flow_hash:
+	a = oq_flow_hash(sch, skb, (u32)op->imm, op->imm >> 32);
+	OQ_NEXT;
+op_sfq_vtime:
+	a = oq_sfq_vtime(queue, skb, (u32)op->imm);
+	OQ_NEXT;
+op_deadline:
+	a = oq_deadline(queue, skb);
+	OQ_NEXT;
+op_edf:
+	a = oq_edf(sch, node);
+	OQ_NEXT;
+
+#undef OQ_NEXT
+}
+
+/* Hooks of struct oq_priv running the program */
+static bool oq_prog_cong(struct oq_queue *queue, struct sk_buff *skb)
+{
+	const struct oq_prog_op *op = queue->prog[OQ_BC_HOOK_CONG];
+
+	return op != NULL && oq_prog_run(op, NULL, queue, skb, 0) != 0;
+}
+
+static int oq_prog_cong_act(struct oq_queue *queue, struct sk_buff *skb)
+{
+	const struct oq_prog_op *op = queue->prog[OQ_BC_HOOK_CONG_ACT];
+
+	return op != NULL ? oq_prog_run(op, NULL, queue, skb, 0) : 0;
+}
+
+static unsigned long oq_prog_admn(struct oq_queue *queue, struct sk_buff *skb)
+{
+	const struct oq_prog_op *op = queue->prog[OQ_BC_HOOK_ADMN];
+
+	return op != NULL ? oq_prog_run(op, NULL, queue, skb, 0) : 0;
+}
+
+static unsigned long oq_prog_proc(struct oq_queue *queue, struct sk_buff *skb)
+{
+	const struct oq_prog_op *op = queue->prog[OQ_BC_HOOK_PROC];
+
+	return op != NULL ? oq_prog_run(op, NULL, queue, skb, 0) : 0;
+}
+
+/* The core does not check the queue a selector returns, so a program is clamped to its queues */
+static int oq_prog_qselc(struct Qdisc *sch, struct sk_buff *skb)
+{
+	struct oq_priv *priv = qdisc_priv(sch);
+	u64 q;
+
+	q = oq_prog_run(priv->prog->qselc, sch, NULL, skb, 0);
+
+	return likely(q < priv->num_q) ? q : 0;
+}
+
+static int oq_prog_sched(struct Qdisc *sch, int node)
+{
+	struct oq_priv *priv = qdisc_priv(sch);
+	const struct oq_prog_op *op = priv->prog->sched[node];
+
+	return op != NULL ? oq_prog_run(op, sch, NULL, NULL, node) : 0;
+}
+
+/* Check an instruction against the hook an entry reaching it runs as */
+static bool oq_prog_allowed(const struct oq_bc_insn *insn, const struct oq_prog_ctx *ctx, u32 num_q)
+{
+	u64 imm = le64_to_cpu(insn->imm);
+
+	switch (insn->code) {
+		case OQ_BC_LD_FIELD: /* No packet at hand when scheduling */
+			return ctx->hook != OQ_PROG_HOOK_SCHED;
+		case OQ_BC_LD_ATTR:
+			return ctx->hook < OQ_BC_QUEUE_HOOKS;
+		case OQ_BC_CALL:
+			break;
+		default:
+			return true;
+	}
+
+	switch (insn->arg) {
+		case OQ_BC_CALL_FLOW_HASH:
+			return ctx->hook == OQ_PROG_HOOK_QSELC && (u32)imm >= 1 && (u32)imm <= num_q && (imm >> 32) <= 1;
+		case OQ_BC_CALL_SFQ_VTIME:
+			return ctx->hook == OQ_BC_HOOK_PROC && le32_to_cpu(ctx->queue->builtin) == OQ_BC_QUEUE_SFQ &&
+				imm >= 1 && imm <= U32_MAX;
+		case OQ_BC_CALL_DEADLINE:
+			return ctx->hook == OQ_BC_HOOK_PROC && le32_to_cpu(ctx->queue->builtin) == OQ_BC_QUEUE_DEADLINE;
+		case OQ_BC_CALL_EDF:
+			return ctx->hook == OQ_PROG_HOOK_SCHED && le16_to_cpu(ctx->node->leaf) != 0;
+	}
+
+	return false;
+}
+
+/*
+ * Verify the instructions an entry reaches. Jumps only go forward, so one pass in order
+ * visits every instruction after all the ones that lead to it.
+ */
+static int oq_prog_verify_entry(const struct oq_bc_insn *insns, u32 num_insns, u16 entry,
+	const struct oq_prog_ctx *ctx, u32 num_q, unsigned long *reached)
+{
+	u32 i;
+
+	if (entry == OQ_BC_NONE)
+		return 0;
+	if (entry >= num_insns)
+		return -EINVAL;
+
+	bitmap_zero(reached, num_insns);
+	__set_bit(entry, reached);
+
+	for (i = entry; i < num_insns; i++) {
+		const struct oq_bc_insn *insn = &insns[i];
+
+		if (!test_bit(i, reached))
+			continue;
+		if (!oq_prog_allowed(insn, ctx, num_q))
+			return -EINVAL;
+
+		if (insn->code == OQ_BC_RET)
+			continue;
+		if (insn->code == OQ_BC_JNE)
+			__set_bit(i + 1 + le16_to_cpu(insn->off), reached);
+		__set_bit(i + 1, reached);
+	}
+
+	return 0;
+}
+
+/* Check the encoding of every instruction, whichever hook runs it */
+static int oq_prog_verify_insns(const struct oq_bc_insn *insns, u32 num_insns)
+{
+	u32 i;
+
+	if (num_insns == 0 || insns[num_insns - 1].code != OQ_BC_RET)
+		return -EINVAL;
+
+	for (i = 0; i < num_insns; i++) {
+		const struct oq_bc_insn *insn = &insns[i];
+		u32 off = le16_to_cpu(insn->off);
+		bool valid;
+
+		if (insn->code > OQ_BC_MAX_CODE || insn->pad != 0)
+			return -EINVAL;
+
+		switch (insn->code) {
+			case OQ_BC_LD_FIELD:
+				valid = insn->arg < OQ_BC_NUM_FIELDS;
+				break;
+			case OQ_BC_LD_ATTR:
+				valid = insn->arg < OQ_BC_NUM_ATTRS;
+				break;
+			case OQ_BC_RSH:
+				valid = insn->arg < 64;
+				break;
+			case OQ_BC_PACK:
+				valid = insn->arg >= 1 && insn->arg < 64;
+				break;
+			case OQ_BC_CMP:
+				valid = insn->arg < OQ_BC_NUM_CMPS;
+				break;
+			case OQ_BC_CALL:
+				valid = insn->arg < OQ_BC_NUM_CALLS;
+				break;
+			case OQ_BC_JNE: /* The target holds the RET at the end at the latest */
+				valid = insn->arg == 0 && i + 1 + off < num_insns;
+				break;
+			default:
+				valid = insn->arg == 0;
+		}
+
+		if (!valid || (insn->code != OQ_BC_JNE && off != 0))
+			return -EINVAL;
+	}
+
+	return 0;
+}
+
+/* Check the queues and ports, and every program entry against the hook it runs as */
+static int oq_prog_verify(const struct oq_bc_hdr *hdr, const struct oq_bc_queue *queues,
+	const struct oq_bc_node *nodes, const struct oq_bc_insn *insns)
+{
+	u32 num_q = le16_to_cpu(hdr->num_q);
+	u32 num_nodes = le16_to_cpu(hdr->num_nodes);
+	u32 num_insns = le32_to_cpu(hdr->num_insns);
+	struct oq_prog_ctx ctx;
+	unsigned long *reached;
+	int i, h, err;
+
+	for (i = 0; i < num_q; i++) {
+		const struct oq_bc_queue *q = &queues[i];
+		u32 arg = le32_to_cpu(q->builtin_arg);
+		u16 proc = le16_to_cpu(q->hooks[OQ_BC_HOOK_PROC]);
+
+		if (q->name[0] == '\0' || le32_to_cpu(q->max_len) > INT_MAX)
+			return -EINVAL;
+
+		switch (le32_to_cpu(q->builtin)) {
+			case OQ_BC_QUEUE_PLAIN:
+				break;
+			case OQ_BC_QUEUE_SFQ:
+				if (arg < 1 || arg > TCQ_OQ_SFQ_MAX_FLOWS)
+					return -EINVAL;
+				break;
+			case OQ_BC_QUEUE_DEADLINE:
+				/* Keys of a timing wheel are deadlines, so nothing else computes them */
+				if (arg < 1 || arg > TCQ_OQ_MAX_DEADLINE || proc >= num_insns - 1 ||
+					insns[proc].code != OQ_BC_CALL || insns[proc].arg != OQ_BC_CALL_DEADLINE ||
+					insns[proc + 1].code != OQ_BC_RET)
+					return -EINVAL;
+				break;
+			default:
+				return -EINVAL;
+		}
+	}
+
+	/* Children come after their parent, so the hierarchy has no cycles */
+	for (i = 0; i < num_nodes; i++) {
+		u32 first = le16_to_cpu(nodes[i].first);
+		u32 num = le16_to_cpu(nodes[i].num);
+
+		if (num == 0 || (nodes[i].leaf != 0 && first + num > num_q) ||
+			(nodes[i].leaf == 0 && (first <= i || first + num > num_nodes)))
+			return -EINVAL;
+	}
+
+	reached = kcalloc(BITS_TO_LONGS(num_insns), sizeof(unsigned long), GFP_KERNEL);
+	if (NULL == reached)
+		return -ENOMEM;
+
+	memset(&ctx, 0, sizeof(ctx));
+
+	ctx.hook = OQ_PROG_HOOK_QSELC;
+	err = oq_prog_verify_entry(insns, num_insns, le16_to_cpu(hdr->qselc), &ctx, num_q, reached);
+
+	for (i = 0; i < num_q && err == 0; i++) {
+		ctx.queue = &queues[i];
+		for (h = 0; h < OQ_BC_QUEUE_HOOKS && err == 0; h++) {
+			ctx.hook = h;
+			err = oq_prog_verify_entry(insns, num_insns, le16_to_cpu(queues[i].hooks[h]), &ctx, num_q, reached);
+		}
+	}
+
+	ctx.queue = NULL;
+	ctx.hook = OQ_PROG_HOOK_SCHED;
+	for (i = 0; i < num_nodes && err == 0; i++) {
+		ctx.node = &nodes[i];
+		err = oq_prog_verify_entry(insns, num_insns, le16_to_cpu(nodes[i].sched), &ctx, num_q, reached);
+	}
+
+	kfree(reached);
+
+	return err;
+}
+
+/* Program entry of a hook */
+static const struct oq_prog_op *oq_prog_entry(const struct oq_prog *prog, u16 entry)
+{
+	return entry == OQ_BC_NONE ? NULL : &prog->ops[entry];
+}
+
+/* Check if a program only returns a given immediate (LD_IMM imm; RET) */
+static bool oq_prog_is_imm(const struct oq_prog_op *op, u64 imm)
+{
+	return op != NULL && op[0].op == OQ_OP_LD_IMM && op[0].imm == imm && op[1].op == OQ_OP_RET;
+}
+
+/* Set up a queue as the init_queue() of a policy module does */
+static int oq_prog_init_queue(struct oq_queue *queue, const struct oq_bc_queue *q)
+{
+	if ((btree_init(&queue->admn_q) != 0) || (btree_init(&queue->proc_q) != 0))
+		return -ENOMEM;
+
+	queue->max_len = le32_to_cpu(q->max_len);
+	queue->len = 0;
+	queue->dropped = 0;
+	queue->total = 0;
+	memcpy(queue->name, q->name, OQ_BC_NAME_LEN);
+	queue->name[OQ_BC_NAME_LEN] = '\0';
+	queue->rate = le64_to_cpu(q->rate);
+	queue->burst = le32_to_cpu(q->burst);
+
+	switch (le32_to_cpu(q->builtin)) {
+		case OQ_BC_QUEUE_SFQ:
+			return oq_sfq_init(queue, le32_to_cpu(q->builtin_arg));
+		case OQ_BC_QUEUE_DEADLINE:
+			return oq_wheel_init(queue, le32_to_cpu(q->builtin_arg));
+	}
+
+	return 0;
+}
+
+/*
+ * Verify a bytecode blob and set up a qdisc from it, in place of the init_port() of a
+ * policy module. Routine arguments are not part of bytecode, so tc can set the limits,
+ * rates and bursts of its queues only.
+ */
+int oq_prog_load(struct oq_priv *priv, const void *blob, u32 len)
+{
+	const struct oq_bc_hdr *hdr = blob;
+	const struct oq_bc_queue *queues;
+	const struct oq_bc_node *nodes;
+	const struct oq_bc_insn *insns;
+	struct oq_prog *prog;
+	u32 num_q, num_nodes, num_insns, i;
+	bool hooks[OQ_BC_QUEUE_HOOKS] = { false };
+	int h, err;
+
+	if (len < sizeof(*hdr) || le32_to_cpu(hdr->magic) != OQ_BC_MAGIC ||
+		le16_to_cpu(hdr->version) != OQ_BC_VERSION)
+		return -EINVAL;
+
+	num_q = le16_to_cpu(hdr->num_q);
+	num_nodes = le16_to_cpu(hdr->num_nodes);
+	num_insns = le32_to_cpu(hdr->num_insns);
+
+	if (num_q < 1 || num_q > TCQ_OQ_MAX_QUEUE || num_nodes < 1 || num_nodes > TCQ_OQ_MAX_NODE ||
+		num_insns > OQ_BC_MAX_INSNS || hdr->port_name[0] == '\0' || le32_to_cpu(hdr->buffer) > INT_MAX ||
+		abs((s32)le32_to_cpu(hdr->buffer_alpha)) > TCQ_OQ_MAX_ALPHA ||
+		(le32_to_cpu(hdr->flags) & ~OQ_BC_PORT_PACING) != 0 || hdr->reserved != 0 ||
+		len != sizeof(*hdr) + num_q * sizeof(*queues) + num_nodes * sizeof(*nodes) + num_insns * sizeof(*insns))
+		return -EINVAL;
+
+	queues = (const struct oq_bc_queue *)(hdr + 1);
+	nodes = (const struct oq_bc_node *)(queues + num_q);
+	insns = (const struct oq_bc_insn *)(nodes + num_nodes);
+
+	err = oq_prog_verify_insns(insns, num_insns);
+	if (err == 0)
+		err = oq_prog_verify(hdr, queues, nodes, insns);
+	if (err != 0)
+		return err;
+
+	prog = kzalloc(sizeof(*prog) + num_insns * sizeof(struct oq_prog_op), GFP_KERNEL);
+	if (NULL == prog)
+		return -ENOMEM;
+
+	for (i = 0; i < num_insns; i++) {
+		u8 code = insns[i].code;
+		bool operand = code == OQ_BC_LD_FIELD || code == OQ_BC_LD_ATTR || code == OQ_BC_CMP ||
+			code == OQ_BC_CALL;
+
+		prog->ops[i].op = oq_op_base[code] + (operand ? insns[i].arg : 0);
+		prog->ops[i].arg = insns[i].arg;
+		prog->ops[i].off = le16_to_cpu(insns[i].off);
+		prog->ops[i].imm = le64_to_cpu(insns[i].imm);
+	}
+	prog->qselc = oq_prog_entry(prog, le16_to_cpu(hdr->qselc));
+	priv->prog = prog;
+
+	for (i = 0; i < num_q; i++) {
+		/* Counted as they are set up, so oq_destroy() frees the btrees of a failed load */
+		priv->num_q = i + 1;
+		err = oq_prog_init_queue(&priv->queues[i], &queues[i]);
+		if (err != 0)
+			return err;
+
+		for (h = 0; h < OQ_BC_QUEUE_HOOKS; h++) {
+			priv->queues[i].prog[h] = oq_prog_entry(prog, le16_to_cpu(queues[i].hooks[h]));
+			hooks[h] |= priv->queues[i].prog[h] != NULL;
+		}
+		priv->queues[i].pushout = oq_prog_is_imm(priv->queues[i].prog[OQ_BC_HOOK_CONG_ACT],
+			OQ_CON_ACT_PUSHOUT);
+	}
+
+	for (i = 0; i < num_nodes; i++) {
+		priv->nodes[i].first = le16_to_cpu(nodes[i].first);
+		priv->nodes[i].num = le16_to_cpu(nodes[i].num);
+		priv->nodes[i].leaf = nodes[i].leaf != 0;
+		prog->sched[i] = oq_prog_entry(prog, le16_to_cpu(nodes[i].sched));
+	}
+
+	priv->num_nodes = num_nodes;
+	memcpy(priv->port_name, hdr->port_name, OQ_BC_NAME_LEN);
+	priv->port_name[OQ_BC_NAME_LEN] = '\0';
+	priv->buffer = le32_to_cpu(hdr->buffer);
+	priv->buffer_alpha = (s32)le32_to_cpu(hdr->buffer_alpha);
+
+	if (le32_to_cpu(hdr->flags) & OQ_BC_PORT_PACING) {
+		err = oq_pacing_init(priv);
+		if (err != 0)
+			return err;
+	}
+
+	/* Hooks no queue or port has a program for are not called at all, as in a policy module */
+	priv->cong_fn = hooks[OQ_BC_HOOK_CONG] ? oq_prog_cong : NULL;
+	priv->cong_act_fn = hooks[OQ_BC_HOOK_CONG_ACT] ? oq_prog_cong_act : NULL;
+	priv->admn_fn = hooks[OQ_BC_HOOK_ADMN] ? oq_prog_admn : NULL;
+	priv->proc_fn = hooks[OQ_BC_HOOK_PROC] ? oq_prog_proc : NULL;
+	priv->q_select = prog->qselc ? oq_prog_qselc : NULL;
+	priv->sched_fn = NULL;
+	for (i = 0; i < num_nodes; i++) {
+		if (prog->sched[i] != NULL)
+			priv->sched_fn = oq_prog_sched;
+	}
+
+	return 0;
+}
+
+void oq_prog_free(struct oq_priv *priv)
+{
+	kfree(priv->prog);
+	priv->prog = NULL;
+}
@@ -0,0 +1,20 @@
+/*
+ * oq_prog.h    Policy bytecode loader and interpreter of the OpenQueue core (oq_bytecode.h).
+ *
+ *              This program is free software; you can redistribute it and/or
+ *              modify it under the terms of the GNU General Public License
+ *              as published by the Free Software Foundation; either version
+ *              2 of the License, or (at your option) any later version.
+ *
+ * Authors:     Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#pragma once
+
+#include "../include/qdisc/sch_openqueue.h"
+
+/* Verify a bytecode blob and set up the queues, ports and hooks of a qdisc from it */
+int oq_prog_load(struct oq_priv *priv, const void *blob, u32 len);
+
+/* Release the program of a qdisc (also of a load that failed half way through) */
+void oq_prog_free(struct oq_priv *priv);
@@ -0,0 +1,144 @@
+/*
+ * oq_trace.h   Tracepoints of the OpenQueue core (events/openqueue in tracefs).
+ *
+ *              Tracepoints cost a patched-out branch while they are disabled. Enable them with
+ *              echo 1 > /sys/kernel/debug/tracing/events/openqueue/enable
+ *              (or perf record -e 'openqueue:*') and analyze the output with OQTrace.
+ *
+ *              This program is free software; you can redistribute it and/or
+ *              modify it under the terms of the GNU General Public License
+ *              as published by the Free Software Foundation; either version
+ *              2 of the License, or (at your option) any later version.
+ *
+ * Authors:     Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#undef TRACE_SYSTEM
+#define TRACE_SYSTEM openqueue
+
+#if !defined(_OQ_TRACE_H) || defined(TRACE_HEADER_MULTI_READ)
+#define _OQ_TRACE_H
+
+#include <linux/tracepoint.h>
+
+/* Drop reasons */
+#define OQ_DROP_TAIL		0	/* Evicted from the tail by a drop-tail congestion action */
+#define OQ_DROP_PKT		1	/* Incoming packet dropped by the congestion action */
+#define OQ_DROP_EXPIRED		2	/* Deadline passed before the packet was dequeued */
+#define OQ_DROP_BUFFER		3	/* Queue over its share of the shared buffer */
+#define OQ_DROP_PUSHOUT		4	/* Pushed out by a packet with a smaller admission key */
+#define OQ_DROP_PACING		5	/* Flow or port over the packets pacing may hold */
+
+TRACE_EVENT(oq_enqueue,
+	TP_PROTO(u32 handle, int queue, unsigned long admn_key, unsigned long proc_key, unsigned int len, int qlen),
+	TP_ARGS(handle, queue, admn_key, proc_key, len, qlen),
+
+	TP_STRUCT__entry(
+		__field(u32, handle)
+		__field(int, queue)
+		__field(unsigned long, admn_key)
+		__field(unsigned long, proc_key)
+		__field(unsigned int, len)
+		__field(int, qlen)
+	),
+
+	TP_fast_assign(
+		__entry->handle = handle;
+		__entry->queue = queue;
+		__entry->admn_key = admn_key;
+		__entry->proc_key = proc_key;
+		__entry->len = len;
+		__entry->qlen = qlen;
+	),
+
+	TP_printk("handle=%x queue=%d admn_key=%lu proc_key=%lu len=%u qlen=%d", __entry->handle, __entry->queue,
+		__entry->admn_key, __entry->proc_key, __entry->len, __entry->qlen)
+);
+
+TRACE_EVENT(oq_dequeue,
+	TP_PROTO(u32 handle, int queue, unsigned long admn_key, unsigned long proc_key, unsigned int len, u64 sojourn),
+	TP_ARGS(handle, queue, admn_key, proc_key, len, sojourn),
+
+	TP_STRUCT__entry(
+		__field(u32, handle)
+		__field(int, queue)
+		__field(unsigned long, admn_key)
+		__field(unsigned long, proc_key)
+		__field(unsigned int, len)
+		__field(u64, sojourn)
+	),
+
+	TP_fast_assign(
+		__entry->handle = handle;
+		__entry->queue = queue;
+		__entry->admn_key = admn_key;
+		__entry->proc_key = proc_key;
+		__entry->len = len;
+		__entry->sojourn = sojourn;
+	),
+
+	TP_printk("handle=%x queue=%d admn_key=%lu proc_key=%lu len=%u sojourn=%llu", __entry->handle,
+		__entry->queue, __entry->admn_key, __entry->proc_key, __entry->len,
+		(unsigned long long)__entry->sojourn)
+);
+
+TRACE_EVENT(oq_congested,
+	TP_PROTO(u32 handle, int queue, int qlen, int action),
+	TP_ARGS(handle, queue, qlen, action),
+
+	TP_STRUCT__entry(
+		__field(u32, handle)
+		__field(int, queue)
+		__field(int, qlen)
+		__field(int, action)
+	),
+
+	TP_fast_assign(
+		__entry->handle = handle;
+		__entry->queue = queue;
+		__entry->qlen = qlen;
+		__entry->action = action;
+	),
+
+	TP_printk("handle=%x queue=%d qlen=%d action=%d", __entry->handle, __entry->queue, __entry->qlen,
+		__entry->action)
+);
+
+TRACE_EVENT(oq_drop,
+	TP_PROTO(u32 handle, int queue, unsigned long admn_key, unsigned long proc_key, unsigned int len, int reason),
+	TP_ARGS(handle, queue, admn_key, proc_key, len, reason),
+
+	TP_STRUCT__entry(
+		__field(u32, handle)
+		__field(int, queue)
+		__field(unsigned long, admn_key)
+		__field(unsigned long, proc_key)
+		__field(unsigned int, len)
+		__field(int, reason)
+	),
+
+	TP_fast_assign(
+		__entry->handle = handle;
+		__entry->queue = queue;
+		__entry->admn_key = admn_key;
+		__entry->proc_key = proc_key;
+		__entry->len = len;
+		__entry->reason = reason;
+	),
+
+	TP_printk("handle=%x queue=%d admn_key=%lu proc_key=%lu len=%u reason=%s", __entry->handle,
+		__entry->queue, __entry->admn_key, __entry->proc_key, __entry->len,
+		__print_symbolic(__entry->reason, { OQ_DROP_TAIL, "tail" }, { OQ_DROP_PKT, "pkt" },
+			{ OQ_DROP_EXPIRED, "expired" }, { OQ_DROP_BUFFER, "buffer" },
+			{ OQ_DROP_PUSHOUT, "pushout" }, { OQ_DROP_PACING, "pacing" }))
+);
+
+#endif /* _OQ_TRACE_H */
+
+/* Out of tree: the header is in the directory of the module */
+#undef TRACE_INCLUDE_PATH
+#define TRACE_INCLUDE_PATH .
+#undef TRACE_INCLUDE_FILE
+#define TRACE_INCLUDE_FILE oq_trace
+
+#include <trace/define_trace.h>
@@ -1,5 +1,6 @@
 #include <net/pkt_sched.h>
 #include <linux/ip.h>
+#include <linux/random.h>
 #include "../include/qdisc/sch_openqueue.h"
 
 bool my_congestion_condition(struct oq_queue *queue, int argc, ...)
@@ -9,7 +10,18 @@ bool my_congestion_condition(struct oq_queue *queue, int argc, ...)
 
 int cong_act(struct oq_queue *queue, struct sk_buff *skb, int argc, ...)
 {
-	return 2; /* Drop tail */
+	va_list args;
+	u32 drop_prob;
+
+	if (argc < 1)
+		return 2; /* Drop tail */
+
+	/* Drop the arriving packet with the given probability, drop tail otherwise */
+	va_start(args, argc);
+	drop_prob = oq_arg_prob(va_arg(args, s64));
+	va_end(args);
+
+	return prandom_u32() < drop_prob ? 3 : 2;
 }
 
 unsigned long my_adm_prio(struct sk_buff *skb, int argc, ...)
@@ -0,0 +1,147 @@
+/*
+ * BuiltinStatement Representation of a routine built into the OpenQueue core.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+import java.util.List;
+
+public class BuiltinStatement extends Statement {
+    public static final String FLOW_HASH = "flow_hash";
+    public static final String SFQ_VTIME = "sfq_vtime";
+    public static final String DEADLINE = "deadline";
+    public static final String EDF = "edf";
+
+    // Flow table of sfq_vtime (TCQ_OQ_SFQ_FLOWS/TCQ_OQ_SFQ_MAX_FLOWS in sch_openqueue.h)
+    public static final long SFQ_FLOWS = 1024;
+    public static final long SFQ_MAX_FLOWS = 65536;
+
+    // Longest budget of deadline in usec (TCQ_OQ_MAX_DEADLINE in sch_openqueue.h)
+    public static final long MAX_DEADLINE = 10000000;
+
+    private String name;
+    private long[] params;
+
+    public BuiltinStatement(String name, RoutineType type, long[] params) {
+        super(type);
+        this.name = name;
+        this.params = params;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long[] getParams() {
+        return params;
+    }
+
+    /**
+     * @return Flow table size of sfq_vtime
+     */
+    public long getFlows() {
+        return params.length > 1 ? params[1] : SFQ_FLOWS;
+    }
+
+    /**
+     * @return Budget of deadline in usec
+     */
+    public long getBudget() {
+        return params[0];
+    }
+
+    @Override
+    public String getStatement() {
+        switch (name) {
+            case FLOW_HASH:
+                return "oq_flow_hash(sch, skb, " + params[0] + ", " + (params.length > 1 && params[1] != 0) + ")";
+            case SFQ_VTIME:
+                return "oq_sfq_vtime(queue, skb, " + params[0] + ")";
+            case DEADLINE: // The budget is kept on the timing wheel of the queue
+                return "oq_deadline(queue, skb)";
+            case EDF:
+                return "oq_edf(sch, node)";
+        }
+
+        return "";
+    }
+
+    /**
+     * Validate a call to a built-in routine
+     *  E.g. flow_hash(8), flow_hash(8, 1), sfq_vtime(1), sfq_vtime(1, 4096), deadline(2000), edf
+     *
+     * @param name Routine name
+     * @param args Arguments (null without parentheses)
+     * @param type Routine type the call is assigned to
+     * @return Statement if it is a valid built-in call, null otherwise
+     */
+    public static BuiltinStatement validate(String name, List<String> args, RoutineType type) {
+        long[] params = parseParams(args);
+        if (params == null)
+            return null;
+
+        switch (name) {
+            case FLOW_HASH: // flow_hash(<queues>[, <perturb>])
+                if (type != RoutineType.QUEUE_SELECTOR || params.length < 1 || params.length > 2 || params[0] < 1)
+                    return null;
+                break;
+            case SFQ_VTIME: // sfq_vtime(<weight>[, <flows>])
+                if (type != RoutineType.PROCESSING_PRIORITY || params.length < 1 || params.length > 2 ||
+                        params[0] < 1 || params[0] > 0xffffffffL ||
+                        (params.length > 1 && (params[1] < 1 || params[1] > SFQ_MAX_FLOWS)))
+                    return null;
+                break;
+            case DEADLINE: // deadline(<usec>)
+                if (type != RoutineType.PROCESSING_PRIORITY || params.length != 1 || params[0] < 1 ||
+                        params[0] > MAX_DEADLINE)
+                    return null;
+                break;
+            case EDF: // edf
+                if (type != RoutineType.SCHEDULING_PRIORITY || params.length != 0)
+                    return null;
+                break;
+            default:
+                return null;
+        }
+
+        return new BuiltinStatement(name, type, params);
+    }
+
+    /**
+     * Check if a name is reserved for a built-in routine
+     *
+     * @param name Routine name
+     * @return True if the name refers to a built-in routine
+     */
+    public static boolean isBuiltin(String name) {
+        return name.equals(FLOW_HASH) || name.equals(SFQ_VTIME) || name.equals(DEADLINE) || name.equals(EDF);
+    }
+
+    /**
+     * Parse integer arguments of a call
+     *
+     * @param args Arguments (null without parentheses)
+     * @return Parameters (empty if there are none) or null if invalid
+     */
+    private static long[] parseParams(List<String> args) {
+        if (args == null)
+            return new long[0];
+
+        long[] values = new long[args.size()];
+
+        for (int i = 0; i < args.size(); i++) {
+            try {
+                values[i] = Long.decode(args.get(i));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        return values;
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * ClassifyStatement    Declarative queue selection compiled into lookup structures.
+ *
+ *                      This program is free software; you can redistribute it and/or
+ *                      modify it under the terms of the GNU General Public License
+ *                      as published by the Free Software Foundation; either version
+ *                      2 of the License, or (at your option) any later version.
+ *
+ * Authors:             Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+public class ClassifyStatement extends Statement {
+    public static final String FUNC_NAME = "classify_skb";
+
+    // Largest field that gets a direct-indexed table
+    private static final int MAX_TABLE_WIDTH = 8;
+
+    private static class Rule {
+        PacketField field;
+        long value;
+        int prefixLen; // -1 for exact match
+        String queue;
+    }
+
+    private List<Rule> rules = new ArrayList<>();
+    private String defaultQueue = null;
+
+    public ClassifyStatement() {
+        super(RoutineType.QUEUE_SELECTOR);
+    }
+
+    @Override
+    public String getStatement() {
+        return FUNC_NAME + "(skb)";
+    }
+
+    /**
+     * Get names of all queues the classifier may select
+     *
+     * @return Queue names
+     */
+    public List<String> getQueues() {
+        List<String> names = new ArrayList<>();
+
+        for (Rule rule : rules)
+            names.add(rule.queue);
+        if (defaultQueue != null)
+            names.add(defaultQueue);
+
+        return names;
+    }
+
+    /**
+     * Select a queue the way the generated classifier does
+     *
+     * @param field Value of a field of the packet (0 if not present)
+     * @return Name of the selected queue or null if no rule matches and there is no default
+     */
+    public String getQueue(ToLongFunction<PacketField> field) {
+        for (Rule rule : rules) {
+            long value = field.applyAsLong(rule.field);
+
+            if (rule.prefixLen != -1)
+                value &= prefixMask(rule.prefixLen, rule.field.getWidth());
+            if (value == rule.value)
+                return rule.queue;
+        }
+
+        return defaultQueue;
+    }
+
+    /**
+     * Add a rule. Rules are matched in order; the first match wins.
+     *  E.g. Packet.tos == 0x10 -> q1, Packet.daddr in 10.0.0.0/8 -> q2
+     *
+     * @param fieldName Packet field (E.g. Packet.tos)
+     * @param op Match operator (== or in)
+     * @param value Value, or prefix for "in" (E.g. 10.0.0.0/8)
+     * @param queue Queue selected on a match
+     * @return True if the rule is valid or false otherwise
+     */
+    public boolean addRule(String fieldName, String op, String value, String queue) {
+        if (defaultQueue != null) // Nothing after default
+            return false;
+
+        Rule rule = new Rule();
+        rule.field = PacketField.fromName(fieldName);
+        if (rule.field == null)
+            return false;
+
+        if (op.equals("==")) {
+            rule.prefixLen = -1;
+            rule.value = parseValue(rule.field, value);
+        } else if (op.equals("in") && rule.field.isAddress()) {
+            String[] prefix = value.split("/");
+            if (prefix.length != 2)
+                return false;
+
+            rule.value = parseValue(rule.field, prefix[0]);
+            if (rule.value < 0)
+                return false;
+
+            try {
+                rule.prefixLen = Integer.parseInt(prefix[1]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+
+            if (rule.prefixLen < 0 || rule.prefixLen > rule.field.getWidth())
+                return false;
+
+            rule.value &= prefixMask(rule.prefixLen, rule.field.getWidth());
+        } else {
+            return false;
+        }
+
+        if (rule.value < 0)
+            return false;
+
+        rule.queue = queue;
+        rules.add(rule);
+
+        return true;
+    }
+
+    /**
+     * Set the queue selected when no rule matches (the last entry of a classify block)
+     *
+     * @param queue Queue name
+     * @return True if there was no default queue yet or false otherwise
+     */
+    public boolean setDefaultQueue(String queue) {
+        if (defaultQueue != null)
+            return false;
+
+        defaultQueue = queue;
+
+        return true;
+    }
+
+    /**
+     * Parse a numeric or dotted-quad value that fits into a field
+     *
+     * @param field Field
+     * @param str Value
+     * @return Value or -1 if invalid
+     */
+    private static long parseValue(PacketField field, String str) {
+        long value = 0;
+
+        try {
+            if (field.isAddress() && str.contains(".")) {
+                String[] octets = str.split("\\.");
+                if (octets.length != 4)
+                    return -1;
+
+                for (String octet : octets) {
+                    int o = Integer.parseInt(octet);
+                    if (o < 0 || o > 255)
+                        return -1;
+                    value = (value << 8) | o;
+                }
+            } else {
+                value = Long.decode(str);
+            }
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        if (value < 0 || value > (1L << field.getWidth()) - 1)
+            return -1;
+
+        return value;
+    }
+
+    private static long prefixMask(int prefixLen, int width) {
+        long all = (1L << width) - 1;
+
+        return prefixLen == 0 ? 0 : (all << (width - prefixLen)) & all;
+    }
+
+    /**
+     * Generate the classifier function. Fields missing from a packet read as 0 (oq_packet.h).
+     * Depending on the rules it is compiled into
+     *  - a direct-indexed table when all rules match exact values of one small field,
+     *  - a binary prefix trie when all rules match one address field,
+     *  - otherwise, one lookup per field (a table, a trie or a switch) returning the first rule
+     *    of that field that matches; the first matching rule is the smallest of them.
+     *
+     * @param queueIndex Index of every queue in the port layout
+     * @return Generated code
+     */
+    public String generate(Map<String, Integer> queueIndex) {
+        int defaultIndex = defaultQueue != null ? queueIndex.get(defaultQueue) : 0;
+        PacketField single = singleField();
+        String[] parts; // {file scope data, local declarations, body}
+
+        if (rules.isEmpty()) // Only a default
+            parts = new String[]{"", "", "    return " + defaultIndex + ";\n"};
+        else if (single != null && isTableField(single))
+            parts = generateTable(single, queueIndex, defaultIndex);
+        else if (single != null && single.isAddress())
+            parts = generateTrie(single, queueIndex, defaultIndex);
+        else
+            parts = generateFieldLookups(queueIndex, defaultIndex);
+
+        return "/* Compiled classifier */\n" +
+                parts[0] +
+                "static inline int " + FUNC_NAME + "(struct sk_buff *skb)\n" +
+                "{\n" +
+                parts[1] +
+                (parts[1].isEmpty() ? "" : "\n") +
+                parts[2] +
+                "}\n\n";
+    }
+
+    /**
+     * Generate the classifier as policy bytecode (OQBytecode): a decision list in rule order.
+     * The accumulator keeps a field across rules on the same field, so it is loaded once per run.
+     *
+     * @param bc Bytecode being assembled
+     * @param queueIndex Index of every queue in the port layout
+     */
+    public void generateBytecode(OQBytecode bc, Map<String, Integer> queueIndex) {
+        PacketField loaded = null;
+        long loadedMask = 0;
+
+        for (Rule rule : rules) {
+            long all = (1L << rule.field.getWidth()) - 1;
+            long mask = rule.prefixLen == -1 ? all : prefixMask(rule.prefixLen, rule.field.getWidth());
+
+            // A masked field only serves rules with the same prefix length
+            if (rule.field != loaded || (loadedMask != all && loadedMask != mask)) {
+                bc.emit(OQBytecode.LD_FIELD, rule.field.ordinal());
+                loaded = rule.field;
+                loadedMask = all;
+            }
+            if (mask != loadedMask) {
+                bc.emit(OQBytecode.AND, 0, mask);
+                loadedMask = mask;
+            }
+
+            bc.emitJne(rule.value, 2);
+            bc.emit(OQBytecode.LD_IMM, 0, queueIndex.get(rule.queue));
+            bc.emit(OQBytecode.RET, 0);
+        }
+
+        bc.emit(OQBytecode.LD_IMM, 0, defaultQueue != null ? queueIndex.get(defaultQueue) : 0);
+        bc.emit(OQBytecode.RET, 0);
+    }
+
+    private PacketField singleField() {
+        if (rules.isEmpty())
+            return null;
+
+        for (Rule rule : rules) {
+            if (rule.field != rules.get(0).field)
+                return null;
+        }
+
+        return rules.get(0).field;
+    }
+
+    private boolean isTableField(PacketField field) {
+        if (field.isAddress() || field.getWidth() > MAX_TABLE_WIDTH)
+            return false;
+
+        for (Rule rule : rules) {
+            if (rule.field == field && rule.prefixLen != -1)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Indexes of the rules on a field, in rule order
+     *
+     * @param field Field
+     * @return Rule indexes
+     */
+    private List<Integer> rulesOf(PacketField field) {
+        List<Integer> indexes = new ArrayList<>();
+
+        for (int r = 0; r < rules.size(); r++) {
+            if (rules.get(r).field == field)
+                indexes.add(r);
+        }
+
+        return indexes;
+    }
+
+    /**
+     * Build a direct-indexed table of the first rule matching every value of a field
+     *
+     * @param field Field of at most MAX_TABLE_WIDTH bits with exact matches only
+     * @param indexes Rules on the field
+     * @return Rule index per value, rules.size() where no rule matches
+     */
+    private int[] buildTable(PacketField field, List<Integer> indexes) {
+        int[] table = new int[1 << field.getWidth()];
+
+        Arrays.fill(table, rules.size());
+        for (int i = indexes.size() - 1; i >= 0; i--) // First match wins
+            table[(int) rules.get(indexes.get(i)).value] = indexes.get(i);
+
+        return table;
+    }
+
+    /**
+     * Build a binary prefix trie over an address field. Every node holds the first rule matching
+     * along the path to it, so a walk only needs the result of the deepest node it reaches.
+     *
+     * @param field Address field
+     * @param indexes Rules on the field
+     * @param children Filled with the {zero, one} children of every node (-1 for none)
+     * @return Rule index per node, rules.size() where no rule matches
+     */
+    private int[] buildTrie(PacketField field, List<Integer> indexes, List<int[]> children) {
+        int width = field.getWidth();
+        List<Integer> ruleAt = new ArrayList<>(); // First rule ending at a node
+
+        children.add(new int[]{-1, -1});
+        ruleAt.add(rules.size());
+
+        for (int r : indexes) {
+            Rule rule = rules.get(r);
+            int len = rule.prefixLen == -1 ? width : rule.prefixLen;
+            int node = 0;
+
+            for (int bit = 0; bit < len; bit++) {
+                int b = (int) ((rule.value >>> (width - 1 - bit)) & 1);
+                if (children.get(node)[b] == -1) {
+                    children.get(node)[b] = children.size();
+                    children.add(new int[]{-1, -1});
+                    ruleAt.add(rules.size());
+                }
+                node = children.get(node)[b];
+            }
+
+            ruleAt.set(node, Math.min(ruleAt.get(node), r));
+        }
+
+        int[] best = new int[children.size()];
+        best[0] = ruleAt.get(0);
+        for (int n = 0; n < children.size(); n++) { // Children always come after their parent
+            for (int c : children.get(n)) {
+                if (c != -1)
+                    best[c] = Math.min(best[n], ruleAt.get(c));
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Smallest C type that holds every value of an array
+     *
+     * @param max Largest value
+     * @param signed True if -1 must fit as well
+     * @return Type name
+     */
+    private static String arrayType(long max, boolean signed) {
+        if (signed)
+            return max <= Byte.MAX_VALUE ? "s8" : max <= Short.MAX_VALUE ? "s16" : "s32";
+
+        return max <= 0xff ? "u8" : max <= 0xffff ? "u16" : "u32";
+    }
+
+    private static String generateArray(String name, int[] values) {
+        int max = 0;
+
+        for (int value : values)
+            max = Math.max(max, value);
+
+        String data = "static const " + arrayType(max, false) + " " + name + "[" + values.length + "] = {\n";
+        for (int i = 0; i < values.length; i += 16) {
+            data += "   ";
+            for (int j = i; j < Math.min(i + 16, values.length); j++)
+                data += " " + values[j] + ",";
+            data += "\n";
+        }
+        data += "};\n\n";
+
+        return data;
+    }
+
+    private static String generateTrieArray(String name, List<int[]> children) {
+        // Node indexes are signed (-1 for no child); the node count picks the width
+        String data = "static const " + arrayType(children.size(), true) + " " + name +
+                "[" + children.size() + "][2] = {\n";
+        for (int[] c : children)
+            data += "    { " + c[0] + ", " + c[1] + " },\n";
+        data += "};\n\n";
+
+        return data;
+    }
+
+    private static String generateTrieWalk(String prefix, int width, String result) {
+        return "    for (bit = " + (width - 1) + "; bit >= 0; bit--) {\n" +
+                "        next = " + prefix + "_trie[node][(key >> bit) & 1];\n" +
+                "        if (next == -1)\n" +
+                "            break;\n" +
+                "        node = next;\n" +
+                "    }\n" +
+                "\n" +
+                "    return " + result + "[node];\n";
+    }
+
+    private int queueOf(int rule, Map<String, Integer> queueIndex, int defaultIndex) {
+        return rule == rules.size() ? defaultIndex : queueIndex.get(rules.get(rule).queue);
+    }
+
+    private String[] generateTable(PacketField field, Map<String, Integer> queueIndex, int defaultIndex) {
+        int[] table = buildTable(field, rulesOf(field));
+
+        for (int i = 0; i < table.length; i++)
+            table[i] = queueOf(table[i], queueIndex, defaultIndex);
+
+        return new String[]{generateArray(FUNC_NAME + "_table", table), "",
+                "    return " + FUNC_NAME + "_table[" + field.getLoad() + "];\n"};
+    }
+
+    private String[] generateTrie(PacketField field, Map<String, Integer> queueIndex, int defaultIndex) {
+        List<int[]> children = new ArrayList<>();
+        int[] best = buildTrie(field, rulesOf(field), children);
+
+        for (int n = 0; n < best.length; n++)
+            best[n] = queueOf(best[n], queueIndex, defaultIndex);
+
+        String data = generateTrieArray(FUNC_NAME + "_trie", children) +
+                generateArray(FUNC_NAME + "_queue", best);
+
+        String decls = "    u32 key;\n" +
+                "    int node = 0, bit, next;\n";
+
+        String body = "    key = " + field.getLoad() + ";\n" +
+                generateTrieWalk(FUNC_NAME, field.getWidth(), FUNC_NAME + "_queue");
+
+        return new String[]{data, decls, body};
+    }
+
+    /**
+     * Generate the lookup of the first rule matching one field, as a function of the field value
+     *
+     * @param field Field
+     * @param indexes Rules on the field
+     * @return Generated code
+     */
+    private String generateFieldLookup(PacketField field, List<Integer> indexes) {
+        String prefix = FUNC_NAME + "_" + field.getIdentifier();
+        String data = "";
+        String body;
+
+        if (isTableField(field)) {
+            data = generateArray(prefix + "_rule", buildTable(field, indexes));
+            body = "    return " + prefix + "_rule[key];\n";
+        } else if (field.isAddress()) {
+            List<int[]> children = new ArrayList<>();
+            int[] best = buildTrie(field, indexes, children);
+
+            data = generateTrieArray(prefix + "_trie", children) + generateArray(prefix + "_rule", best);
+            body = "    int node = 0, bit, next;\n" +
+                    "\n" +
+                    generateTrieWalk(prefix, field.getWidth(), prefix + "_rule");
+        } else {
+            List<Long> seen = new ArrayList<>();
+
+            body = "    switch (key) {\n";
+            for (int r : indexes) {
+                if (seen.contains(rules.get(r).value)) // Shadowed by an earlier rule
+                    continue;
+                seen.add(rules.get(r).value);
+
+                body += "    case " + rules.get(r).value + ":\n" +
+                        "        return " + r + ";\n";
+            }
+            body += "    }\n" +
+                    "\n" +
+                    "    return " + rules.size() + ";\n";
+        }
+
+        return data +
+                "/* First rule on " + field.getName() + " matching a packet */\n" +
+                "static inline int " + prefix + "(u32 key)\n" +
+                "{\n" +
+                body +
+                "}\n\n";
+    }
+
+    private String[] generateFieldLookups(Map<String, Integer> queueIndex, int defaultIndex) {
+        String data = "";
+        String code = "";
+
+        // Queue of every rule; the last entry is the default
+        int[] queues = new int[rules.size() + 1];
+        for (int r = 0; r <= rules.size(); r++)
+            queues[r] = queueOf(r, queueIndex, defaultIndex);
+
+        // Fields in the order of their first rule; a field whose first rule comes after the
+        // best match so far cannot improve it and is not looked up
+        List<PacketField> fields = new ArrayList<>();
+        for (Rule rule : rules) {
+            if (!fields.contains(rule.field))
+                fields.add(rule.field);
+        }
+
+        for (PacketField field : fields) {
+            List<Integer> indexes = rulesOf(field);
+            String lookup = FUNC_NAME + "_" + field.getIdentifier() + "(" + field.getLoad() + ")";
+
+            data += generateFieldLookup(field, indexes);
+            if (field == fields.get(0)) {
+                code += "    rule = " + lookup + ";\n";
+                continue;
+            }
+
+            code += "    if (rule > " + indexes.get(0) + ") {\n" +
+                    "        r = " + lookup + ";\n" +
+                    "        if (r < rule)\n" +
+                    "            rule = r;\n" +
+                    "    }\n";
+        }
+
+        data += generateArray(FUNC_NAME + "_queue", queues);
+
+        String decls = "    int rule" + (fields.size() > 1 ? ", r" : "") + ";\n";
+
+        code += "\n" +
+                "    return " + FUNC_NAME + "_queue[rule];\n";
+
+        return new String[]{data, decls, code};
+    }
+}
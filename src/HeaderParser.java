@@ -0,0 +1,229 @@
+/*
+ * HeaderParser Parser for annotated C headers that declare policy routines.
+ *              A comment with an annotation (E.g. // @oq_cong_func) marks the next prototype
+ *              as a routine of that type. Other code is skipped token by token, so the header
+ *              may contain any C. Prototypes are matched on tokens, so spacing does not matter
+ *              (struct Qdisc* sch, struct Qdisc *sch and struct Qdisc * are all fine).
+ *
+ *              This program is free software; you can redistribute it and/or
+ *              modify it under the terms of the GNU General Public License
+ *              as published by the Free Software Foundation; either version
+ *              2 of the License, or (at your option) any later version.
+ *
+ * Authors:     Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class HeaderParser {
+    private static final String OQ_CONG_FUNC = "@oq_cong_func";
+    private static final String OQ_CONG_ACT_FUNC = "@oq_cong_act_func";
+    private static final String OQ_ADMN_FUNC = "@oq_admn_func";
+    private static final String OQ_PROC_FUNC = "@oq_proc_func";
+    private static final String OQ_QSEL_FUNC = "@oq_qsel_func";
+    private static final String OQ_SCHD_FUNC = "@oq_schd_func";
+
+    // Words that end a parameter type rather than name a parameter
+    private static final Set<String> TYPE_WORDS = new HashSet<>(Arrays.asList(
+            "bool", "char", "short", "int", "long", "unsigned", "signed", "void", "const"));
+
+    private Lexer lexer;
+    private String fileName;
+    private Token token;
+    private boolean failed = false;
+
+    /**
+     * @param src Header text
+     * @param fileName Header filename (for error messages)
+     */
+    public HeaderParser(String src, String fileName) {
+        this.lexer = new Lexer(src, true);
+        this.fileName = fileName;
+    }
+
+    /**
+     * Parse the header and add its routines
+     *
+     * @param routines Routines by name, which the routines of this header are added to
+     * @return True if all annotated prototypes are valid or false otherwise
+     */
+    public boolean parse(Map<String, Routine> routines) {
+        RoutineType nextRoutineType = RoutineType.UNDEFINED;
+
+        token = lexer.next();
+        while (token.getKind() != Token.Kind.EOF) {
+            if (token.getKind() == Token.Kind.COMMENT) { // A comment in between cancels an annotation
+                nextRoutineType = getRoutineType(token.getText());
+                token = lexer.next();
+                continue;
+            }
+
+            if (token.getKind() == Token.Kind.ERROR) {
+                showError("Invalid header: " + token.getText(), token);
+                return false;
+            }
+
+            if (nextRoutineType == RoutineType.UNDEFINED) {
+                token = lexer.next();
+                continue;
+            }
+
+            Token start = token;
+            Routine routine = parsePrototype(nextRoutineType);
+            nextRoutineType = RoutineType.UNDEFINED;
+
+            if (routine == null) {
+                showError("Invalid function", start);
+                skipDeclaration();
+                continue;
+            }
+
+            if (routines.get(routine.getName()) != null) {
+                showError("Function with the same name already exists: " + routine.getName(), start);
+                continue;
+            }
+
+            routines.put(routine.getName(), routine);
+        }
+
+        return !failed;
+    }
+
+    /**
+     * Parse a prototype and check its signature against the routine type.
+     *  <return type> <name>(<param>, ...);
+     *
+     * @param type Routine type the prototype is annotated with
+     * @return Routine if valid or null otherwise
+     */
+    private Routine parsePrototype(RoutineType type) {
+        // Return type and name
+        List<String> head = new ArrayList<>();
+        while (token.getKind() == Token.Kind.IDENT || token.is("*")) {
+            head.add(token.getText());
+            token = lexer.next();
+        }
+
+        if (head.size() < 2 || !token.is("("))
+            return null;
+
+        String name = head.remove(head.size() - 1);
+        token = lexer.next();
+
+        // Parameters (names are optional)
+        List<String> params = new ArrayList<>();
+        while (!token.is(")")) {
+            List<String> param = new ArrayList<>();
+
+            while (!token.is(",") && !token.is(")")) {
+                if (token.getKind() == Token.Kind.EOF || token.is(";"))
+                    return null;
+
+                param.add(token.getText());
+                token = lexer.next();
+            }
+
+            params.add(normalizeParam(param));
+            if (token.is(","))
+                token = lexer.next();
+        }
+
+        token = lexer.next();
+        if (!token.is(";"))
+            return null;
+        token = lexer.next();
+
+        if (!String.join(" ", head).equals(getReturnType(type)) || !params.equals(getParams(type)))
+            return null;
+
+        return new Routine(type, name);
+    }
+
+    /**
+     * Drop the parameter name and join the type (E.g. struct Qdisc * sch -> struct Qdisc *)
+     */
+    private static String normalizeParam(List<String> param) {
+        String last = param.isEmpty() ? "" : param.get(param.size() - 1);
+        boolean named = param.size() >= 2 && Character.isJavaIdentifierStart(last.charAt(0)) &&
+                !TYPE_WORDS.contains(last) && !param.get(param.size() - 2).equals("struct");
+
+        if (named)
+            param = param.subList(0, param.size() - 1);
+
+        return String.join(" ", param);
+    }
+
+    private static String getReturnType(RoutineType type) {
+        switch (type) {
+            case CONGESTION_CONDITION:
+                return "bool";
+            case ADMISSION_PRIORITY:
+            case PROCESSING_PRIORITY:
+                return "unsigned long";
+        }
+
+        return "int";
+    }
+
+    private static List<String> getParams(RoutineType type) {
+        switch (type) {
+            case QUEUE_SELECTOR: // int select_admission_queue(struct Qdisc* sch, struct sk_buff* skb, int argc, ...);
+                return Arrays.asList("struct Qdisc *", "struct sk_buff *", "int", "...");
+            case CONGESTION_CONDITION: // bool my_congestion_condition(struct oq_queue* queue, int argc, ...);
+                return Arrays.asList("struct oq_queue *", "int", "...");
+            case CONGESTION_ACTION: // int drop_tail(struct oq_queue* queue, struct sk_buff* skb, int argc, ...);
+                return Arrays.asList("struct oq_queue *", "struct sk_buff *", "int", "...");
+            case ADMISSION_PRIORITY: // unsigned long my_adm_prio(struct sk_buff* skb, int argc, ...);
+            case PROCESSING_PRIORITY:
+                return Arrays.asList("struct sk_buff *", "int", "...");
+        }
+
+        // int my_schd_prio(struct Qdisc *sch, int argc, ...);
+        return Arrays.asList("struct Qdisc *", "int", "...");
+    }
+
+    /**
+     * Get annotation type
+     *
+     * @param comment Comment that may hold an annotation
+     * @return Annotation type
+     */
+    private static RoutineType getRoutineType(String comment) {
+        if (comment.contains(OQ_QSEL_FUNC))
+            return RoutineType.QUEUE_SELECTOR;
+        if (comment.contains(OQ_CONG_FUNC))
+            return RoutineType.CONGESTION_CONDITION;
+        if (comment.contains(OQ_CONG_ACT_FUNC))
+            return RoutineType.CONGESTION_ACTION;
+        if (comment.contains(OQ_ADMN_FUNC))
+            return RoutineType.ADMISSION_PRIORITY;
+        if (comment.contains(OQ_PROC_FUNC))
+            return RoutineType.PROCESSING_PRIORITY;
+        if (comment.contains(OQ_SCHD_FUNC))
+            return RoutineType.SCHEDULING_PRIORITY;
+
+        return RoutineType.UNDEFINED;
+    }
+
+    /**
+     * Error recovery: skip the rest of an invalid declaration
+     */
+    private void skipDeclaration() {
+        while (token.getKind() != Token.Kind.EOF && token.getKind() != Token.Kind.COMMENT && !token.is(";"))
+            token = lexer.next();
+
+        if (token.is(";"))
+            token = lexer.next();
+    }
+
+    private void showError(String msg, Token at) {
+        failed = true;
+        System.out.println("ERROR| " + msg + " (" + fileName + ": Line: " + at.getLine() + ", Column: " +
+                at.getColumn() + ")");
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * IRExpr       Typed expression of the policy intermediate representation (PolicyIR).
+ *              Inline statements lower to constants, queue attributes, packet fields,
+ *              comparisons and packed keys (tuple). Routine and built-in calls are opaque and
+ *              never folded.
+ *
+ *              This program is free software; you can redistribute it and/or
+ *              modify it under the terms of the GNU General Public License
+ *              as published by the Free Software Foundation; either version
+ *              2 of the License, or (at your option) any later version.
+ *
+ * Authors:     Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+public class IRExpr {
+    public enum Kind {
+        CONST,
+        QUEUE_ATTR,
+        PACKET_FIELD,
+        COMPARE,
+        PACK, // Lexicographic key of bit fields, the first one most significant
+        CALL
+    }
+
+    // Width of queue attributes (int) in packed keys
+    public static final int QUEUE_ATTR_WIDTH = 32;
+    public static final int KEY_WIDTH = 64;
+
+    public enum Type {
+        BOOL,
+        INT
+    }
+
+    private Kind kind;
+    private Type type;
+    private long value; // CONST
+    private String text; // Attribute name, operator or call
+    private PacketField field; // PACKET_FIELD
+    private IRExpr lhs; // COMPARE
+    private IRExpr rhs;
+    private List<IRExpr> parts; // PACK
+    private int[] widths;
+    private boolean[] inverted; // Smaller values rank higher
+
+    private IRExpr(Kind kind, Type type) {
+        this.kind = kind;
+        this.type = type;
+    }
+
+    public static IRExpr constant(long value, Type type) {
+        IRExpr expr = new IRExpr(Kind.CONST, type);
+        expr.value = value;
+        return expr;
+    }
+
+    public static IRExpr queueAttr(String attr) {
+        IRExpr expr = new IRExpr(Kind.QUEUE_ATTR, Type.INT);
+        expr.text = attr;
+        return expr;
+    }
+
+    public static IRExpr packetField(PacketField field) {
+        IRExpr expr = new IRExpr(Kind.PACKET_FIELD, Type.INT);
+        expr.field = field;
+        return expr;
+    }
+
+    public static IRExpr compare(String op, IRExpr lhs, IRExpr rhs) {
+        IRExpr expr = new IRExpr(Kind.COMPARE, Type.BOOL);
+        expr.text = op;
+        expr.lhs = lhs;
+        expr.rhs = rhs;
+        return expr;
+    }
+
+    /**
+     * Pack fields into one key. A field narrower than its natural width keeps its most
+     * significant bits, so that the key orders like the field.
+     *
+     * @param parts Packet fields or queue attributes
+     * @param widths Bits of every field in the key
+     * @param inverted Fields whose smaller values rank higher
+     * @return Key or null if a width is invalid or the key is wider than 64 bits
+     */
+    public static IRExpr pack(List<IRExpr> parts, int[] widths, boolean[] inverted) {
+        int total = 0;
+
+        for (int i = 0; i < parts.size(); i++) {
+            if (widths[i] < 1 || widths[i] > parts.get(i).getWidth())
+                return null;
+            total += widths[i];
+        }
+
+        if (parts.isEmpty() || total > KEY_WIDTH)
+            return null;
+
+        IRExpr expr = new IRExpr(Kind.PACK, Type.INT);
+        expr.parts = parts;
+        expr.widths = widths;
+        expr.inverted = inverted;
+        return expr;
+    }
+
+    public static IRExpr call(String statement, RoutineType routineType) {
+        IRExpr expr = new IRExpr(Kind.CALL, routineType == RoutineType.CONGESTION_CONDITION ? Type.BOOL : Type.INT);
+        expr.text = statement;
+        return expr;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public boolean isConstant() {
+        return kind == Kind.CONST;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    /**
+     * @return Natural width in bits of a packet field or queue attribute
+     */
+    public int getWidth() {
+        return kind == Kind.PACKET_FIELD ? field.getWidth() : QUEUE_ATTR_WIDTH;
+    }
+
+    /**
+     * Check if the expression reads a packet field
+     *
+     * @return True if any operand is a packet field
+     */
+    public boolean readsPacket() {
+        if (kind == Kind.COMPARE)
+            return lhs.readsPacket() || rhs.readsPacket();
+        if (kind == Kind.PACK)
+            return parts.stream().anyMatch(IRExpr::readsPacket);
+
+        return kind == Kind.PACKET_FIELD;
+    }
+
+    /**
+     * Check if every queue attribute the expression reads is one of the given attributes
+     *
+     * @param attrs Allowed attributes
+     * @return True if all queue attributes are allowed
+     */
+    public boolean readsOnly(Set<String> attrs) {
+        if (kind == Kind.COMPARE)
+            return lhs.readsOnly(attrs) && rhs.readsOnly(attrs);
+        if (kind == Kind.PACK)
+            return parts.stream().allMatch(p -> p.readsOnly(attrs));
+
+        return kind != Kind.QUEUE_ATTR || attrs.contains(text);
+    }
+
+    /**
+     * Evaluate the expression (calls are opaque and cannot be evaluated)
+     *
+     * @param queueAttr Value of a queue attribute
+     * @param packetField Value of a packet field
+     * @return Value (booleans are 0/1)
+     */
+    public long evaluate(ToLongFunction<String> queueAttr, ToLongFunction<PacketField> packetField) {
+        switch (kind) {
+            case CONST:
+                return value;
+            case QUEUE_ATTR:
+                return queueAttr.applyAsLong(text);
+            case PACKET_FIELD:
+                return packetField.applyAsLong(field);
+            case COMPARE:
+                return fold(text, lhs.evaluate(queueAttr, packetField), rhs.evaluate(queueAttr, packetField)) ? 1 : 0;
+            case PACK:
+                long key = 0;
+                for (int i = 0; i < parts.size(); i++) {
+                    long mask = (1L << widths[i]) - 1;
+                    long v = ((parts.get(i).evaluate(queueAttr, packetField) & 0xffffffffL) >>>
+                            (parts.get(i).getWidth() - widths[i])) & mask;
+
+                    key = key << widths[i] | (inverted[i] ? v ^ mask : v);
+                }
+                return key;
+        }
+
+        throw new IllegalStateException("Cannot evaluate a call: " + text);
+    }
+
+    /**
+     * Fold comparisons of constants. Queue attributes are never constant, since tc can
+     * change even max_len on a live qdisc.
+     *
+     * @return Folded expression
+     */
+    public IRExpr fold() {
+        if (kind == Kind.COMPARE && lhs.isConstant() && rhs.isConstant())
+            return constant(fold(text, lhs.value, rhs.value) ? 1 : 0, Type.BOOL);
+
+        return this;
+    }
+
+    private static boolean fold(String op, long l, long r) {
+        switch (op) {
+            case "==":
+                return l == r;
+            case "!=":
+                return l != r;
+            case "<":
+                return l < r;
+            case "<=":
+                return l <= r;
+            case ">":
+                return l > r;
+        }
+
+        return l >= r;
+    }
+
+    /**
+     * @return Equivalent C expression
+     */
+    public String toC() {
+        switch (kind) {
+            case CONST:
+                if (type == Type.BOOL)
+                    return value != 0 ? "true" : "false";
+                return Long.toString(value);
+            case QUEUE_ATTR:
+                return "queue->" + text;
+            case PACKET_FIELD:
+                return field.getLoad();
+            case COMPARE:
+                return "(" + lhs.toC() + " " + text + " " + rhs.toC() + ")";
+            case PACK:
+                return packToC();
+        }
+
+        return text; // CALL
+    }
+
+    /* One shift/or expression, so that ordering by all fields costs one key compare */
+    private String packToC() {
+        String c = "";
+        int shift = 0;
+
+        for (int i = parts.size() - 1; i >= 0; i--) {
+            IRExpr part = parts.get(i);
+            String mask = String.format("0x%x", (1L << widths[i]) - 1);
+            String v = "(u64)(u32)" + part.toC();
+
+            if (part.getWidth() > widths[i])
+                v = "(" + v + " >> " + (part.getWidth() - widths[i]) + ")";
+            v = "(" + v + " & " + mask + ")";
+            if (inverted[i])
+                v = "(" + v + " ^ " + mask + ")";
+            if (shift != 0)
+                v = v + " << " + shift;
+
+            c = (i == 0 ? "" : " | ") + v + c;
+            shift += widths[i];
+        }
+
+        return "(" + c + ")";
+    }
+
+    /**
+     * Emit bytecode leaving the value of the expression in the accumulator (OQBytecode).
+     * Comparison operands are never comparisons or keys themselves, so X is free for the
+     * left operand and for the packed part of a key.
+     *
+     * @param bc Bytecode being assembled
+     * @return False if the expression is a call, whose statement only the caller knows
+     */
+    public boolean toBytecode(OQBytecode bc) {
+        switch (kind) {
+            case CONST:
+                bc.emit(OQBytecode.LD_IMM, 0, value);
+                return true;
+            case QUEUE_ATTR:
+                bc.emit(OQBytecode.LD_ATTR, OQBytecode.getAttr(text));
+                return true;
+            case PACKET_FIELD:
+                bc.emit(OQBytecode.LD_FIELD, field.ordinal());
+                return true;
+            case COMPARE:
+                lhs.toBytecode(bc);
+                bc.emit(OQBytecode.TAX, 0);
+                rhs.toBytecode(bc);
+                bc.emit(OQBytecode.CMP, OQBytecode.getCmp(text));
+                return true;
+            case PACK:
+                for (int i = 0; i < parts.size(); i++) {
+                    IRExpr part = parts.get(i);
+                    long mask = (1L << widths[i]) - 1;
+
+                    if (i > 0)
+                        bc.emit(OQBytecode.TAX, 0);
+
+                    // As packToC(): the most significant bits of the field as a u32
+                    part.toBytecode(bc);
+                    if (part.getWidth() > widths[i])
+                        bc.emit(OQBytecode.RSH, part.getWidth() - widths[i]);
+                    bc.emit(OQBytecode.AND, 0, mask);
+                    if (inverted[i])
+                        bc.emit(OQBytecode.XOR, 0, mask);
+
+                    if (i > 0)
+                        bc.emit(OQBytecode.PACK, widths[i]);
+                }
+                return true;
+        }
+
+        return false; // CALL
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof IRExpr && ((IRExpr) o).type == type && ((IRExpr) o).toC().equals(toC());
+    }
+
+    @Override
+    public int hashCode() {
+        return toC().hashCode();
+    }
+}
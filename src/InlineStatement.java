@@ -9,129 +9,50 @@
  * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
  */
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 public class InlineStatement extends Statement {
-    private String statement;
+    // Queue attributes an expression may read
+    private static final Set<String> QUEUE_ATTRS = new HashSet<>(Arrays.asList("max_len", "len", "dropped", "total"));
+
+    private IRExpr expr;
 
-    public InlineStatement(String statement, RoutineType type) {
+    public InlineStatement(IRExpr expr, RoutineType type) {
         super(type);
-        this.statement = statement;
+        this.expr = expr;
     }
 
     @Override
     public String getStatement() {
-        return statement;
+        return expr.toC();
     }
 
-    /**
-     * Validate an expression and return corresponding statement in C
-     *  E.g. inline{Queue.length == 1024}
-     *
-     * @param exp Inline expression
-     * @return C statement if the expression is valid or null otherwise
-     */
-    public static String validate(String exp) {
-        if (!exp.startsWith("inline"))
-            return null;
-
-        int beginIndex = exp.indexOf('{');
-        int endIndex = exp.indexOf('}');
-        if (beginIndex == -1 || endIndex == -1)
-            return null;
-
-        exp = exp.substring(beginIndex + 1, endIndex);
-
-        String[] tokens= exp.split(" ");
-        String cExpression = null;
-
-        if (tokens.length == 1) {
-            cExpression = validateSubExpr(tokens[0].trim());
-        } else if (tokens.length == 3) {
-            String lhs = validateSubExpr(tokens[0].trim());
-            if (lhs == null)
-                return null;
-
-            String rhs = validateSubExpr(tokens[2].trim());
-            if (rhs == null)
-                return null;
-
-            String op = "";
-            switch (tokens[1].trim()) {
-                case "==":
-                case "!=":
-                case "<":
-                case "<=":
-                case ">":
-                case ">=":
-                    op = tokens[1].trim();
-            }
-
-            if (op.isEmpty())
-                return null;
-
-            cExpression = "(" + lhs + " " + op + " " + rhs + ")";
-        }
-
-        return cExpression;
+    @Override
+    public IRExpr getIR() {
+        return expr;
     }
 
     /**
-     * Vaidate a sub-expression to get the equivalent expression in C.
-     * Currently we support a limited set of Queue and Packet attributes.
+     * Validate an inline expression for a routine type
+     *  E.g. inline{Queue.len == 1024}, tuple(Packet.tos:3, Packet.tot_len:16, seq:32)
+     * Currently we support a limited set of Queue attributes and the Packet fields in PacketField.
+     * Packet fields are available to every routine type that sees a packet.
      *
-     * @param subExpr Sub-expression to be validated
-     * @return Corresponding C expression if the sub-expression is valid or null otherwise
+     * @param expr Expression (E.g. Queue.len == 1024)
+     * @param type Routine type the expression is assigned to
+     * @return True if the expression is valid or false otherwise
      */
-    private static String validateSubExpr(String subExpr) {
-        String cExpression = null;
-
-        if (subExpr.startsWith("Queue")) {
-            String[] tokens = subExpr.split("\\.");
-            if (tokens.length != 2)
-                return null;
-
-            String attr = "";
-            switch (tokens[1].trim()) {
-                case "max_len":
-                case "len":
-                case "dropped":
-                case "total":
-                    attr = tokens[1].trim();
-            }
-
-            if (attr.isEmpty())
-                return null;
-
-            cExpression = "queue->" + attr;
-        } else if (subExpr.startsWith("Packet")) {
-            String[] tokens = subExpr.split("\\.");
-            if (tokens.length != 2)
-                return null;
-
-            String attr = "";
-            switch (tokens[1].trim()) {
-                case "tos":
-                case "tot_len":
-                case "id":
-                case "ttl":
-                case "protocol":
-                case "saddr":
-                case "daddr":
-                    attr = tokens[1].trim();
-            }
-
-            if (attr.isEmpty())
-                return null;
+    public static boolean validate(IRExpr expr, RoutineType type) {
+        if (type == RoutineType.SCHEDULING_PRIORITY && expr.readsPacket()) // No packet at hand
+            return false;
 
-            cExpression = "((struct iphdr *)skb_header_pointer(skb, 0, 0, NULL))->" + attr;
-        } else {
-            try {
-                cExpression = "";
-                cExpression += (int)Double.parseDouble(subExpr.trim());
-            } catch (NumberFormatException e) {
-                return null;
-            }
-        }
+        // Packed keys (tuple) order admission and processing only
+        if (expr.getKind() == IRExpr.Kind.PACK && type != RoutineType.ADMISSION_PRIORITY &&
+                type != RoutineType.PROCESSING_PRIORITY)
+            return false;
 
-        return cExpression;
+        return expr.readsOnly(QUEUE_ATTRS);
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * Lexer        Tokenizer for policies and annotated C headers. It makes a single pass over the
+ *              source and produces tokens on demand. Comments are skipped in policies but
+ *              returned for C headers (annotations live in comments), where preprocessor
+ *              lines are skipped instead.
+ *
+ *              This program is free software; you can redistribute it and/or
+ *              modify it under the terms of the GNU General Public License
+ *              as published by the Free Software Foundation; either version
+ *              2 of the License, or (at your option) any later version.
+ *
+ * Authors:     Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+public class Lexer {
+    private char[] src;
+    private boolean header;
+    private int pos = 0;
+    private int line = 1;
+    private int lineStart = 0; // Offset of the current line
+    private boolean lineHasToken = false; // Any token on the current line so far (for preprocessor lines)
+
+    /**
+     * @param src Source text
+     * @param header True for C headers, false for policies
+     */
+    public Lexer(String src, boolean header) {
+        this.src = src.toCharArray();
+        this.header = header;
+    }
+
+    /**
+     * @return Next token (EOF at the end, repeatedly)
+     */
+    public Token next() {
+        while (pos < src.length) {
+            char c = src[pos];
+
+            if (c == '\n') {
+                pos++;
+                line++;
+                lineStart = pos;
+                lineHasToken = false;
+            } else if (c == ' ' || c == '\t' || c == '\r' || Character.isWhitespace(c)) {
+                pos++;
+            } else if (c == '#' && header && !lineHasToken) { // Preprocessor line
+                while (pos < src.length && src[pos] != '\n')
+                    pos++;
+            } else if (c == '/' && pos + 1 < src.length && (src[pos + 1] == '/' || src[pos + 1] == '*')) {
+                Token comment = comment();
+                if (header || comment.getKind() == Token.Kind.ERROR)
+                    return comment;
+            } else {
+                break;
+            }
+        }
+
+        int column = pos - lineStart + 1;
+        if (pos == src.length)
+            return new Token(Token.Kind.EOF, "", line, column);
+
+        lineHasToken = true;
+        char c = src[pos];
+        int start = pos;
+
+        if (Character.isLetter(c) || c == '_') {
+            while (pos < src.length && (Character.isLetterOrDigit(src[pos]) || src[pos] == '_'))
+                pos++;
+            return new Token(Token.Kind.IDENT, text(start, pos), line, column);
+        }
+
+        if (c >= '0' && c <= '9') {
+            while (pos < src.length && (Character.isLetterOrDigit(src[pos]) || src[pos] == '.'))
+                pos++;
+            return new Token(Token.Kind.NUMBER, text(start, pos), line, column);
+        }
+
+        if (c == '"') {
+            while (++pos < src.length && src[pos] != '"' && src[pos] != '\n')
+                ;
+
+            if (pos == src.length || src[pos] == '\n')
+                return new Token(Token.Kind.ERROR, "unterminated string", line, column);
+
+            pos++;
+            return new Token(Token.Kind.STRING, text(start + 1, pos - 1), line, column);
+        }
+
+        return new Token(Token.Kind.PUNCT, punctuator(c), line, column);
+    }
+
+    /**
+     * Consume a punctuator. Multi-character ones are ..., ->, ==, !=, <= and >=
+     *
+     * @param c First character
+     * @return Punctuator text (interned constants, so no allocation per token)
+     */
+    private String punctuator(char c) {
+        char n = pos + 1 < src.length ? src[pos + 1] : 0;
+
+        switch (c) {
+            case '.':
+                if (n == '.' && pos + 2 < src.length && src[pos + 2] == '.') {
+                    pos += 3;
+                    return "...";
+                }
+                break;
+            case '-':
+                if (n == '>') {
+                    pos += 2;
+                    return "->";
+                }
+                break;
+            case '=':
+            case '!':
+            case '<':
+            case '>':
+                if (n == '=') {
+                    pos += 2;
+                    return c == '=' ? "==" : c == '!' ? "!=" : c == '<' ? "<=" : ">=";
+                }
+                break;
+        }
+
+        pos++;
+        switch (c) {
+            case '.':
+                return ".";
+            case ';':
+                return ";";
+            case '=':
+                return "=";
+            case '(':
+                return "(";
+            case ')':
+                return ")";
+            case ',':
+                return ",";
+            case '{':
+                return "{";
+            case '}':
+                return "}";
+            case '[':
+                return "[";
+            case ']':
+                return "]";
+        }
+
+        return String.valueOf(c);
+    }
+
+    private String text(int start, int end) {
+        return new String(src, start, end - start);
+    }
+
+    private Token comment() {
+        int start = pos;
+        int startLine = line;
+        int column = pos - lineStart + 1;
+
+        if (src[pos + 1] == '/') {
+            while (pos < src.length && src[pos] != '\n')
+                pos++;
+            return new Token(Token.Kind.COMMENT, text(start, pos), startLine, column);
+        }
+
+        for (pos += 2; pos + 1 < src.length; pos++) {
+            if (src[pos] == '*' && src[pos + 1] == '/') {
+                pos += 2;
+                return new Token(Token.Kind.COMMENT, text(start, pos), startLine, column);
+            }
+
+            if (src[pos] == '\n') {
+                line++;
+                lineStart = pos + 1;
+                lineHasToken = false;
+            }
+        }
+
+        pos = src.length;
+        return new Token(Token.Kind.ERROR, "unterminated comment", startLine, column);
+    }
+}
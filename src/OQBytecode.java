@@ -0,0 +1,311 @@
+/*
+ * OQBytecode   Backend that compiles a policy into bytecode the qdisc core loads without a
+ *              policy module (include/qdisc/oq_bytecode.h). Inline expressions, classify
+ *              blocks and built-ins compile; routine calls are C and need a policy module.
+ *
+ *              This program is free software; you can redistribute it and/or
+ *              modify it under the terms of the GNU General Public License
+ *              as published by the Free Software Foundation; either version
+ *              2 of the License, or (at your option) any later version.
+ *
+ * Authors:     Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class OQBytecode {
+    // Instruction codes (OQ_BC_* in oq_bytecode.h)
+    public static final int RET = 0;
+    public static final int LD_IMM = 1;
+    public static final int LD_FIELD = 2; // Operand is the PacketField ordinal
+    public static final int LD_ATTR = 3;
+    public static final int TAX = 4;
+    public static final int RSH = 5;
+    public static final int AND = 6;
+    public static final int XOR = 7;
+    public static final int PACK = 8;
+    public static final int CMP = 9;
+    public static final int JNE = 10;
+    public static final int CALL = 11;
+
+    // Operands of LD_ATTR, CMP and CALL, in the order of their OQ_BC_* values
+    private static final List<String> ATTRS = Arrays.asList("len", "max_len", "dropped", "total");
+    private static final List<String> CMPS = Arrays.asList("==", "!=", "<", "<=", ">", ">=");
+    private static final List<String> CALLS = Arrays.asList(BuiltinStatement.FLOW_HASH, BuiltinStatement.SFQ_VTIME,
+            BuiltinStatement.DEADLINE, BuiltinStatement.EDF);
+
+    private static final int MAGIC = 0x5042514f; // "OQBP"
+    private static final int VERSION = 3;
+    private static final int NAME_LEN = 32;
+    private static final int MAX_INSNS = 2048;
+    private static final int NONE = 0xffff;
+
+    // Built-in state of a queue (OQ_BC_QUEUE_*)
+    private static final int QUEUE_PLAIN = 0;
+    private static final int QUEUE_SFQ = 1;
+    private static final int QUEUE_DEADLINE = 2;
+
+    // Port flags (OQ_BC_PORT_*)
+    private static final int PORT_PACING = 0x1;
+
+    private static final int HDR_SIZE = 64;
+    private static final int QUEUE_SIZE = 64;
+    private static final int NODE_SIZE = 8;
+    private static final int INSN_SIZE = 16;
+
+    private static class Insn {
+        int code;
+        int arg;
+        int off;
+        long imm;
+    }
+
+    private PolicyIR ir;
+    private Port root;
+    private Map<String, Integer> queueIndex = new HashMap<>();
+    private List<Insn> insns = new ArrayList<>();
+
+    /**
+     * @param ir Optimized intermediate representation of the policy
+     * @param root Root port
+     */
+    public OQBytecode(PolicyIR ir, Port root) {
+        this.ir = ir;
+        this.root = root;
+
+        for (int i = 0; i < ir.getQueues().size(); i++)
+            queueIndex.put(ir.getQueues().get(i).getName(), i);
+    }
+
+    /**
+     * Append an instruction
+     *
+     * @param code Instruction code
+     * @param arg Operand (packet field, queue attribute, shift, comparison or built-in)
+     * @param imm Immediate value
+     */
+    public void emit(int code, int arg, long imm) {
+        Insn insn = new Insn();
+        insn.code = code;
+        insn.arg = arg;
+        insn.imm = imm;
+        insns.add(insn);
+    }
+
+    public void emit(int code, int arg) {
+        emit(code, arg, 0);
+    }
+
+    /**
+     * Append a conditional jump
+     *
+     * @param imm Value the accumulator is compared with
+     * @param off Instructions skipped if it differs
+     */
+    public void emitJne(long imm, int off) {
+        emit(JNE, 0, imm);
+        insns.get(insns.size() - 1).off = off;
+    }
+
+    /**
+     * @param attr Queue attribute (E.g. len)
+     * @return Operand of LD_ATTR
+     */
+    public static int getAttr(String attr) {
+        return ATTRS.indexOf(attr);
+    }
+
+    /**
+     * @param op Comparison operator (E.g. ==)
+     * @return Operand of CMP
+     */
+    public static int getCmp(String op) {
+        return CMPS.indexOf(op);
+    }
+
+    /**
+     * Compile the policy
+     *
+     * @return Blob or null if the policy cannot be expressed in bytecode
+     */
+    public byte[] compile() {
+        List<Queue> queues = ir.getQueues();
+        List<Port> nodes = ir.getNodes();
+        RoutineType[] queueHooks = {RoutineType.CONGESTION_CONDITION, RoutineType.CONGESTION_ACTION,
+                RoutineType.ADMISSION_PRIORITY, RoutineType.PROCESSING_PRIORITY};
+        int[][] queueEntries = new int[queues.size()][queueHooks.length];
+        int[] nodeEntries = new int[nodes.size()];
+        int qselcEntry;
+
+        for (int[] entries : queueEntries)
+            Arrays.fill(entries, NONE);
+        Arrays.fill(nodeEntries, NONE);
+
+        // One program per case, shared by all queues/nodes the case applies to
+        for (int h = 0; h < queueHooks.length; h++) {
+            for (PolicyIR.Case c : ir.getHook(queueHooks[h]).getCases()) {
+                int entry = assembleCase(c, getStatement(queues.get(c.getTargets().get(0)), queueHooks[h]));
+                if (entry == -1)
+                    return null;
+
+                for (int target : c.getTargets())
+                    queueEntries[target][h] = entry;
+            }
+        }
+
+        qselcEntry = NONE;
+        for (PolicyIR.Case c : ir.getHook(RoutineType.QUEUE_SELECTOR).getCases()) {
+            qselcEntry = assembleCase(c, root.getQueueSelect());
+            if (qselcEntry == -1)
+                return null;
+        }
+
+        for (PolicyIR.Case c : ir.getHook(RoutineType.SCHEDULING_PRIORITY).getCases()) {
+            int entry = assembleCase(c, nodes.get(c.getTargets().get(0)).getSchedPrio());
+            if (entry == -1)
+                return null;
+
+            for (int target : c.getTargets())
+                nodeEntries[target] = entry;
+        }
+
+        if (insns.size() > MAX_INSNS) {
+            OQGen.showError("Policy bytecode longer than " + MAX_INSNS + " instructions: " + insns.size(), 0);
+            return null;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(HDR_SIZE + queues.size() * QUEUE_SIZE + nodes.size() * NODE_SIZE +
+                insns.size() * INSN_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        buf.putInt(MAGIC);
+        buf.putShort((short) VERSION);
+        buf.putShort((short) queues.size());
+        buf.putShort((short) nodes.size());
+        buf.putShort((short) qselcEntry);
+        buf.putInt(insns.size());
+        putName(buf, root.getName());
+        buf.putInt(root.getBuffer());
+        buf.putInt(root.getAlphaShift());
+        buf.putInt(root.isPacing() ? PORT_PACING : 0);
+        buf.putInt(0);
+
+        for (int i = 0; i < queues.size(); i++) {
+            Queue queue = queues.get(i);
+            int builtin = QUEUE_PLAIN;
+            long arg = 0;
+
+            if (queue.getProcPrio() instanceof BuiltinStatement) {
+                BuiltinStatement proc = (BuiltinStatement) queue.getProcPrio();
+
+                if (proc.getName().equals(BuiltinStatement.SFQ_VTIME)) {
+                    builtin = QUEUE_SFQ;
+                    arg = proc.getFlows();
+                } else if (proc.getName().equals(BuiltinStatement.DEADLINE)) {
+                    builtin = QUEUE_DEADLINE;
+                    arg = proc.getBudget();
+                }
+            }
+
+            putName(buf, queue.getName());
+            buf.putInt(queue.getSize());
+            buf.putInt((int) queue.getBurst());
+            buf.putLong(queue.getRate());
+            for (int entry : queueEntries[i])
+                buf.putShort((short) entry);
+            buf.putInt(builtin);
+            buf.putInt((int) arg);
+        }
+
+        // Children of a node are contiguous (BFS order), as in the generated port hierarchy
+        int next = 1, offset = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            Port p = nodes.get(i);
+            int first, num;
+
+            if (p.isLeaf()) {
+                first = offset;
+                num = p.getQueues().size();
+                offset += num;
+            } else {
+                first = next;
+                num = p.getPorts().size();
+                next += num;
+            }
+
+            buf.putShort((short) first);
+            buf.putShort((short) num);
+            buf.putShort((short) (p.isLeaf() ? 1 : 0));
+            buf.putShort((short) nodeEntries[i]);
+        }
+
+        for (Insn insn : insns) {
+            buf.put((byte) insn.code);
+            buf.put((byte) insn.arg);
+            buf.putShort((short) insn.off);
+            buf.putInt(0);
+            buf.putLong(insn.imm);
+        }
+
+        return buf.array();
+    }
+
+    /**
+     * Assemble the program of a case
+     *
+     * @param c Case
+     * @param statement Statement of the first queue/node the case applies to
+     * @return Entry or -1 if the statement cannot be expressed in bytecode
+     */
+    private int assembleCase(PolicyIR.Case c, Statement statement) {
+        int entry = insns.size();
+
+        if (c.getExpr().toBytecode(this)) {
+            emit(RET, 0);
+        } else if (statement instanceof ClassifyStatement) {
+            ((ClassifyStatement) statement).generateBytecode(this, queueIndex);
+        } else if (statement instanceof BuiltinStatement) {
+            BuiltinStatement builtin = (BuiltinStatement) statement;
+            long[] params = builtin.getParams();
+            long imm = 0;
+
+            if (builtin.getName().equals(BuiltinStatement.FLOW_HASH))
+                imm = params[0] | (params.length > 1 && params[1] != 0 ? 1L << 32 : 0);
+            else if (builtin.getName().equals(BuiltinStatement.SFQ_VTIME))
+                imm = params[0];
+
+            emit(CALL, CALLS.indexOf(builtin.getName()), imm);
+            emit(RET, 0);
+        } else {
+            OQGen.showError("Routine calls need a policy module, not bytecode: " + statement.getStatement(), 0);
+            return -1;
+        }
+
+        return entry;
+    }
+
+    private static Statement getStatement(Queue queue, RoutineType type) {
+        switch (type) {
+            case CONGESTION_CONDITION:
+                return queue.getCongestion();
+            case CONGESTION_ACTION:
+                return queue.getCongAction();
+            case ADMISSION_PRIORITY:
+                return queue.getAdmPrio();
+        }
+
+        return queue.getProcPrio();
+    }
+
+    private static void putName(ByteBuffer buf, String name) {
+        byte[] bytes = Arrays.copyOf(name.getBytes(StandardCharsets.US_ASCII), NAME_LEN);
+
+        buf.put(bytes);
+    }
+}
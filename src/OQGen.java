@@ -10,20 +10,51 @@
  */
 
 import java.io.*;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class OQGen {
-    private static final String OQ_CONG_FUNC = "@oq_cong_func";
-    private static final String OQ_CONG_ACT_FUNC = "@oq_cong_act_func";
-    private static final String OQ_ADMN_FUNC = "@oq_admn_func";
-    private static final String OQ_PROC_FUNC = "@oq_proc_func";
-    private static final String OQ_QSEL_FUNC = "@oq_qsel_func";
-    private static final String OQ_SCHD_FUNC = "@oq_schd_func";
+    // Limits of the qdisc core (sch_openqueue.h)
+    private static final int TCQ_OQ_MAX_QUEUE = 16;
+    private static final int TCQ_OQ_MAX_NODE = 16;
+    private static final int TCQ_OQ_MAX_DEPTH = 8;
+    private static final int TCQ_OQ_MAX_PARAM = 8;
+    private static final int TCQ_OQ_MAX_ALPHA = 6;
+
+    // Code generation targets
+    private static final String TARGET_MODULE = "module";
+    private static final String TARGET_BYTECODE = "bytecode";
+    private static final String TARGET_XDP = "xdp";
+
+    // Routine argument slot that tc can set by name (struct oq_param_desc)
+    private static class ParamSlot {
+        String name; // E.g. q1.congAction[0]
+        String scope; // OQ_PARAM_QUEUE, OQ_PARAM_NODE or OQ_PARAM_PORT
+        int index; // Queue or node index
+        int slot;
+        double value; // Initial value (the slot holds it in fixed point)
+    }
 
     private Map<String, Routine> routines = new HashMap<>();
-    private Map<String, Queue> queues = new HashMap<>();
-    private Port port;
+    private Map<String, Queue> queues = new LinkedHashMap<>();
+    private Map<String, List<Queue>> queueGroups = new HashMap<>(); // Queue arrays (E.g. fq[8])
+    private Map<String, Port> ports = new LinkedHashMap<>();
+    private Set<String> attached = new HashSet<>(); // Queues/ports already part of a port
+    private Port port; // Root of the port hierarchy
+    private ClassifyStatement classifier; // Queue selector of the root port (classify {} block)
+
+    // Flattened port hierarchy (scheduling nodes in BFS order and queues in the order of their nodes)
+    private List<Port> schedNodes = new ArrayList<>();
+    private List<Queue> queueLayout = new ArrayList<>();
+    private List<ParamSlot> paramSlots = new ArrayList<>();
+
+    private PolicyIR ir; // Optimized intermediate representation (once code generation starts)
 
     /**
      * Main method
@@ -31,31 +62,52 @@ public class OQGen {
      * @param args Commandline arguments to the program
      */
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: OQGen <OpenQueue Policy File>");
+        String fileName = null, target = TARGET_MODULE;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-target") && i + 1 < args.length) {
+                target = args[++i];
+            } else if (!args[i].startsWith("-") && fileName == null) {
+                fileName = args[i];
+            } else {
+                showUsage();
+                return;
+            }
+        }
+
+        if (fileName == null || !(target.equals(TARGET_MODULE) || target.equals(TARGET_BYTECODE) ||
+                target.equals(TARGET_XDP))) {
+            showUsage();
             return;
         }
 
         OQGen oqGen = new OQGen();
 
         // Parse policy file
-        if (!oqGen.parsePolicyFile(args[0])) {
-            showError("Error while parsing file: " + args[0], 0);
+        if (!oqGen.parsePolicyFile(fileName)) {
+            showError("Error while parsing file: " + fileName, 0);
             return;
         }
 
         // Validate policy
         if (!oqGen.isWellDefined()) {
-            showError("Policy is not well-defined: " + args[0], 0);
+            showError("Policy is not well-defined: " + fileName, 0);
             return;
         }
 
         // Generate code
-        if (!oqGen.generateCode()) {
-            showError("Error while generating code for file: " + args[0], 0);
+        if (!oqGen.generateCode(target)) {
+            showError("Error while generating code for file: " + fileName, 0);
         }
     }
 
+    private static void showUsage() {
+        System.out.println("Usage: OQGen [-target module|bytecode|xdp] <OpenQueue Policy File>");
+        System.out.println("       module   policy/<module>/ (kernel module, the default)");
+        System.out.println("       bytecode bytecode/<module>.oqb (tc qdisc add ... openqueue prog <file>)");
+        System.out.println("       xdp      policy/<module>/ and xdp/<module>/Makefile (AF_XDP forwarder, userspace/oq_xdp)");
+    }
+
     /**
      * Parser OpenQueue policy file
      *
@@ -63,723 +115,715 @@ public class OQGen {
      * @return true if parsed successfully or false otherwise
      */
     private boolean parsePolicyFile(String fileName) {
-        String line;
-        int lineNumber = 0;
+        try {
+            return parsePolicy(new BufferedReader(new FileReader(new File(fileName))));
+        } catch (FileNotFoundException e) {
+            showError("File not found: " + fileName, 0);
+        }
+
+        return false;
+    }
+
+    /**
+     * Parse an OpenQueue policy (also used by OQTune on policies it instantiates)
+     *
+     * @param br Reader of the policy text
+     * @return true if parsed successfully or false otherwise
+     */
+    boolean parsePolicy(BufferedReader br) {
+        String src;
 
         try {
-            BufferedReader br = new BufferedReader(new FileReader(new File(fileName)));
+            src = readAll(br);
+        } catch (IOException e) {
+            showError("Error while reading policy file: " + e.getMessage(), 0);
+            return false;
+        }
 
-            while ((line = br.readLine()) != null) {
-                line = line.trim();
-                lineNumber++;
+        return new PolicyParser(src, this).parse();
+    }
 
-                // Ignore comments
-                if (line.startsWith("//") || line.isEmpty())
-                    continue;
+    /**
+     * Read the whole text of a reader
+     *
+     * @param br Reader
+     * @return Text
+     * @throws IOException On read errors
+     */
+    private static String readAll(BufferedReader br) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[65536];
+        int n;
 
-                // Process module imports
-                if (line.startsWith("import")) {
-                    String[] importLineTokens = line.split("\"");
-                    if (importLineTokens.length != 2 || !importLineTokens[0].trim().equals("import")) {
-                        showError("Invalid import statement: " + line, lineNumber);
-                        return false;
-                    }
+        try {
+            while ((n = br.read(buf)) != -1)
+                sb.append(buf, 0, n);
+        } finally {
+            br.close();
+        }
 
-                    if (!processImport(importLineTokens[1].trim())) {
-                        showError("Error while processing import: " + line, lineNumber);
-                        return false;
-                    }
-                } else { // Process rules
-                    // Semicolon at the end
-                    if (line.charAt(line.length() - 1) != ';') {
-                        showError("';' expected at the end of line: " + line, lineNumber);
-                        return false;
-                    }
+        return sb.toString();
+    }
 
-                    if (line.startsWith("Queue")) {
-                        Queue queue;
-                        if ((queue = validateQueueDeclaration(line)) == null) {
-                            showError("Invalid Queue declaration: " + line, lineNumber);
-                            return false;
-                        }
-                        queues.put(queue.getName(), queue);
-                    } else if (line.startsWith("Port")) {
-                        if ((port = validatePortDeclaration(line)) == null) {
-                            showError("Invalid Port declaration: " + line, lineNumber);
-                            return false;
-                        }
-                    } else {
-                        String[] tokens = line.split(" = ");
-                        if (tokens.length != 2) {
-                            showError("Invalid assignment statement: " + line, lineNumber);
-                            return false;
-                        }
-
-                        String lhs = tokens[0].trim();
-                        String rhs = tokens[1].trim();
-                        rhs = rhs.replace(';', ' ').trim();
-
-                        tokens = lhs.split("\\.");
-                        if (tokens.length != 2) {
-                            showError("Invalid assignment statement: " + line, lineNumber);
-                            return false;
-                        }
-
-                        String objName = tokens[0];
-                        String attr = tokens[1];
-                        Queue queue;
-
-                        if ((queue = queues.get(objName)) != null) { // Queue
-                            if (attr.equals("congestion")) {
-                                if (!validateFunctionAssignment(queue, rhs, RoutineType.CONGESTION_CONDITION)) {
-                                    showError("Invalid function assignment: " + line, lineNumber);
-                                    return false;
-                                }
-                            } else if (attr.equals("congAction")) {
-                                if (!validateFunctionAssignment(queue, rhs, RoutineType.CONGESTION_ACTION)) {
-                                    showError("Invalid function assignment: " + line, lineNumber);
-                                    return false;
-                                }
-                            } else if (attr.equals("admPrio")) {
-                                if (!validateFunctionAssignment(queue, rhs, RoutineType.ADMISSION_PRIORITY)) {
-                                    showError("Invalid function assignment: " + line, lineNumber);
-                                    return false;
-                                }
-                            } else if (attr.equals("procPrio")) {
-                                if (!validateFunctionAssignment(queue, rhs, RoutineType.PROCESSING_PRIORITY)) {
-                                    showError("Invalid function assignment: " + line, lineNumber);
-                                    return false;
-                                }
-                            } else {
-                                showError("Invalid assignment statement: " + line, lineNumber);
-                                return false;
-                            }
-                        } else if (port != null && port.getName().equals(objName)) { // Port
-                            if (attr.equals("queueSelect")) {
-                                if (!validateFunctionAssignment(port, rhs, RoutineType.QUEUE_SELECTOR)) {
-                                    showError("Invalid function assignment: " + line, lineNumber);
-                                    return false;
-                                }
-                            } else if (attr.equals("schedPrio")) {
-                                if (!validateFunctionAssignment(port, rhs, RoutineType.SCHEDULING_PRIORITY)) {
-                                    showError("Invalid function assignment: " + line, lineNumber);
-                                    return false;
-                                }
-                            } else {
-                                showError("Invalid assignment statement: " + line, lineNumber);
-                                return false;
-                            }
-                        } else {
-                            showError("Invalid assignment statement: " + line, lineNumber);
-                            return false;
-                        }
-                    }
+    /**
+     * Assign an attribute of a queue, queue array or port
+     *  E.g. q1.congestion = inline{Queue.len == 1024};
+     *
+     * @param objName Queue, queue array or port name
+     * @param attr Attribute name
+     * @param value Value of the attribute
+     * @param lineNumber Line number of the assignment
+     * @return True if the assignment is valid or false otherwise
+     */
+    boolean assign(String objName, String attr, PolicyParser.Value value, int lineNumber) {
+        String line = objName + "." + attr;
+        Queue queue;
+        List<Queue> group;
+        Port portDecl;
+
+        if ((queue = queues.get(objName)) != null) { // Queue
+            return assignQueueAttribute(Collections.singletonList(queue), attr, value, line, lineNumber);
+        } else if ((group = queueGroups.get(objName)) != null) { // Queue array
+            return assignQueueAttribute(group, attr, value, line, lineNumber);
+        } else if ((portDecl = ports.get(objName)) != null) { // Port
+            if (attr.equals("queueSelect")) {
+                if (!validateFunctionAssignment(Collections.singletonList(portDecl), value,
+                        RoutineType.QUEUE_SELECTOR)) {
+                    showError("Invalid function assignment: " + line, lineNumber);
+                    return false;
+                }
+            } else if (attr.equals("schedPrio")) {
+                if (!validateFunctionAssignment(Collections.singletonList(portDecl), value,
+                        RoutineType.SCHEDULING_PRIORITY)) {
+                    showError("Invalid function assignment: " + line, lineNumber);
+                    return false;
+                }
+            } else if (attr.equals("buffer")) {
+                int buffer = parseBuffer(value);
+                if (buffer == -1) {
+                    showError("Invalid buffer size: " + line, lineNumber);
+                    return false;
+                }
+                portDecl.setBuffer(buffer);
+            } else if (attr.equals("alpha")) {
+                int shift = parseAlpha(value);
+                if (shift == Integer.MIN_VALUE) {
+                    showError("Invalid alpha (a power of two from 1/" + (1 << TCQ_OQ_MAX_ALPHA) + " to " +
+                            (1 << TCQ_OQ_MAX_ALPHA) + "): " + line, lineNumber);
+                    return false;
                 }
+                portDecl.setAlphaShift(shift);
+            } else if (attr.equals("pacing")) {
+                Boolean pacing = parseFlag(value);
+                if (pacing == null) {
+                    showError("Invalid pacing (true or false): " + line, lineNumber);
+                    return false;
+                }
+                portDecl.setPacing(pacing);
+            } else {
+                showError("Invalid assignment statement: " + line, lineNumber);
+                return false;
             }
 
             return true;
-        } catch (FileNotFoundException e) {
-            showError("File not found: " + fileName, lineNumber);
-        } catch (IOException e) {
-            showError("Error while reading policy file: " + e.getMessage(), lineNumber);
         }
 
+        showError("Invalid assignment statement: " + line, lineNumber);
         return false;
     }
 
     /**
-     * Check if the policy is well-defined
-     *
-     * @return True if well-defined false otherwise
+     * @param value Value of a port buffer assignment
+     * @return Shared buffer in packets or -1 if the value is not a positive packet count
      */
-    private boolean isWellDefined() {
-        if (port == null || !port.isWellDefined()) {
-            showError("Port not well-defined", 0);
+    private static int parseBuffer(PolicyParser.Value value) {
+        try {
+            int buffer = value.number != null ? Integer.parseInt(value.number) : -1;
+
+            return buffer > 0 ? buffer : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param value Value of a port flag assignment (E.g. pacing = true)
+     * @return Flag or null if the value is neither true/false nor 1/0
+     */
+    private static Boolean parseFlag(PolicyParser.Value value) {
+        String flag = value.number != null ? value.number : value.args == null ? value.name : null;
+
+        if ("true".equals(flag) || "1".equals(flag))
+            return true;
+        if ("false".equals(flag) || "0".equals(flag))
             return false;
+
+        return null;
+    }
+
+    /**
+     * Dynamic thresholds are shifts of the free space, so alpha has to be a power of two
+     *
+     * @param value Value of a port alpha assignment
+     * @return log2 of alpha or Integer.MIN_VALUE if the value is not a valid alpha
+     */
+    private static int parseAlpha(PolicyParser.Value value) {
+        double alpha;
+
+        try {
+            alpha = value.number != null ? Double.parseDouble(value.number) : 0;
+        } catch (NumberFormatException e) {
+            return Integer.MIN_VALUE;
         }
 
-        for (Queue queue : queues.values()) {
-            if (!queue.isWellDefined()) {
-                showError("Queue not well-defined: " + queue.getName(), 0);
+        if (alpha <= 0 || Double.isInfinite(alpha))
+            return Integer.MIN_VALUE;
+
+        int shift = Math.getExponent(alpha);
+        if (alpha != Math.scalb(1.0, shift) || Math.abs(shift) > TCQ_OQ_MAX_ALPHA)
+            return Integer.MIN_VALUE;
+
+        return shift;
+    }
+
+    /**
+     * Set the classify block of the root port
+     *
+     * @param classifier Classifier
+     * @return True if this is the only classify block or false otherwise
+     */
+    boolean setClassifier(ClassifyStatement classifier) {
+        if (this.classifier != null)
+            return false;
+
+        this.classifier = classifier;
+
+        return true;
+    }
+
+    /**
+     * Assign an attribute of queues. The value is validated once for all of them.
+     *
+     * @param targets Queue or queues of an array
+     * @param attr Attribute name
+     * @param value Value of the attribute
+     * @param line Assignment target (for error reporting)
+     * @param lineNumber Line number
+     * @return True if the assignment is valid or false otherwise
+     */
+    private boolean assignQueueAttribute(List<Queue> targets, String attr, PolicyParser.Value value, String line,
+                                         int lineNumber) {
+        if (attr.equals("congestion")) {
+            if (!validateFunctionAssignment(targets, value, RoutineType.CONGESTION_CONDITION)) {
+                showError("Invalid function assignment: " + line, lineNumber);
+                return false;
+            }
+        } else if (attr.equals("congAction")) {
+            if (!validateFunctionAssignment(targets, value, RoutineType.CONGESTION_ACTION)) {
+                showError("Invalid function assignment: " + line, lineNumber);
+                return false;
+            }
+        } else if (attr.equals("admPrio")) {
+            if (!validateFunctionAssignment(targets, value, RoutineType.ADMISSION_PRIORITY)) {
+                showError("Invalid function assignment: " + line, lineNumber);
+                return false;
+            }
+        } else if (attr.equals("procPrio")) {
+            if (!validateFunctionAssignment(targets, value, RoutineType.PROCESSING_PRIORITY)) {
+                showError("Invalid function assignment: " + line, lineNumber);
+                return false;
+            }
+        } else if (attr.equals("rate")) {
+            long rate = value.number != null ? TcUnits.parseRate(value.number) : -1;
+            if (rate == -1) {
+                showError("Invalid rate: " + line, lineNumber);
+                return false;
+            }
+            for (Queue queue : targets)
+                queue.setRate(rate);
+        } else if (attr.equals("burst")) {
+            long burst = value.number != null ? TcUnits.parseSize(value.number) : -1;
+            if (burst == -1) {
+                showError("Invalid burst size: " + line, lineNumber);
                 return false;
             }
+            if (burst < TcUnits.ETH_MTU) {
+                showError("Burst smaller than a packet (" + TcUnits.ETH_MTU + " bytes): " + line, lineNumber);
+                return false;
+            }
+            for (Queue queue : targets)
+                queue.setBurst(burst);
+        } else {
+            showError("Invalid assignment statement: " + line, lineNumber);
+            return false;
         }
 
         return true;
     }
 
     /**
-     * Validate if a given funciton name is correct in terms of both name and type
+     * Check if the policy is well-defined
      *
-     * @param entity Entity the function attached to (Queue/Port)
-     * @param rhs Name
-     * @param functionType Type
-     * @return True if it is a correct assignment or false otherwise
+     * @return True if well-defined false otherwise
      */
-    private boolean validateFunctionAssignment(Entity entity, String rhs, RoutineType functionType) {
-        Statement routineCall;
-
-        if (rhs.startsWith("inline")) {
-            String statement = InlineStatement.validate(rhs);
-            if (statement == null)
+    boolean isWellDefined() {
+        // The root is the only port that is not part of another port
+        port = null;
+        for (Port p : ports.values()) {
+            if (attached.contains(p.getName()))
+                continue;
+
+            if (port != null) {
+                showError("Multiple root ports: " + port.getName() + ", " + p.getName(), 0);
                 return false;
+            }
+            port = p;
+        }
 
-            routineCall = new InlineStatement(statement, functionType);
-        } else {
-            // Resolve function name
-            String funcName = rhs;
-            if (funcName.contains("("))
-                funcName = funcName.substring(0, funcName.indexOf('('));
+        if (port == null) {
+            showError("Port not well-defined", 0);
+            return false;
+        }
 
-            Routine routine = routines.get(funcName);
-            if ((routine == null) || (routine.getType() != functionType))
+        if (classifier != null) {
+            if (port.getQueueSelect() != null) {
+                showError("Port has both a queue selector and a classify block: " + port.getName(), 0);
                 return false;
+            }
 
-            routineCall = new RoutineCallStatement(funcName, functionType);
+            port.setQueueSelect(classifier);
+        }
 
-            // Set parameters (if any)
-            if (rhs.contains("(") && rhs.contains(")")) {
-                String params = rhs.substring(rhs.indexOf('(') + 1, rhs.indexOf(')'));
-                String[] paramTokens = params.trim().split(",");
-
-                if (paramTokens.length != 0) {
-                    double[] paramVals = new double[paramTokens.length];
-
-                    for (int i = 0; i < paramTokens.length; i++) {
-                        try {
-                            paramVals[i] = Double.parseDouble(paramTokens[i].trim());
-                        } catch (NumberFormatException e) {
-                            return false;
-                        }
-                    }
+        for (Port p : ports.values()) {
+            if (!p.isWellDefined(p == port)) {
+                showError("Port not well-defined: " + p.getName(), 0);
+                return false;
+            }
 
-                    ((RoutineCallStatement)routineCall).setParams(paramVals);
-                }
+            // The shared buffer spans all queues of the qdisc
+            if (p != port && p.getBuffer() != 0) {
+                showError("Only the root port has a shared buffer: " + p.getName(), 0);
+                return false;
+            }
+
+            // Packets are held back before they reach a queue, so pacing spans the qdisc too
+            if (p != port && p.isPacing()) {
+                showError("Only the root port paces flows: " + p.getName(), 0);
+                return false;
             }
         }
 
-        if (functionType == RoutineType.CONGESTION_CONDITION)
-            ((Queue) entity).setCongestion(routineCall);
-        else if (functionType == RoutineType.CONGESTION_ACTION)
-            ((Queue) entity).setCongAction(routineCall);
-        else if (functionType == RoutineType.ADMISSION_PRIORITY)
-            ((Queue) entity).setAdmPrio(routineCall);
-        else if (functionType == RoutineType.PROCESSING_PRIORITY)
-            ((Queue) entity).setProcPrio(routineCall);
-        else if (functionType == RoutineType.QUEUE_SELECTOR)
-            ((Port) entity).setQueueSelect(routineCall);
-        else if (functionType == RoutineType.SCHEDULING_PRIORITY)
-            ((Port) entity).setSchedPrio(routineCall);
+        for (Queue queue : queues.values()) {
+            if (!queue.isWellDefined()) {
+                showError("Queue not well-defined: " + queue.getName(), 0);
+                return false;
+            }
 
-        return true;
+            if (!attached.contains(queue.getName())) {
+                showError("Queue not part of any port: " + queue.getName(), 0);
+                return false;
+            }
+        }
+
+        return flattenPorts() && layoutParams();
     }
 
     /**
-     * Validate a queue declaration
-     * E.g. Queue q1 = Queue(128);
+     * Assign routine arguments to slots, so that tc can change them on a live qdisc
+     * (E.g. tc qdisc change ... set q1.congAction[0] 0.9). Each queue hook gets the same
+     * slots in every queue, which keeps identical statements of different queues identical
+     * in the generated code. Built-in arguments stay constant.
      *
-     * @param line Declaration
-     * @return Valid Queue instance if valid or null otherwise
+     * @return True if the arguments fit into the slots of the qdisc core or false otherwise
      */
-    private Queue validateQueueDeclaration(String line) {
-        String[] tokens = line.split("=");
-        if (tokens.length != 2)
-            return null;
-
-        String lhs = tokens[0].trim();
-        String rhs = tokens[1].trim();
+    private boolean layoutParams() {
+        RoutineType[] queueHooks = {RoutineType.CONGESTION_CONDITION, RoutineType.CONGESTION_ACTION,
+                RoutineType.ADMISSION_PRIORITY, RoutineType.PROCESSING_PRIORITY};
+        String[] attrs = {"congestion", "congAction", "admPrio", "procPrio"};
+        int base = 0;
+
+        paramSlots.clear();
+
+        for (int t = 0; t < queueHooks.length; t++) {
+            int max = 0;
+
+            for (int i = 0; i < queueLayout.size(); i++) {
+                Queue queue = queueLayout.get(i);
+                Statement statement = queue.getCongestion();
+
+                if (queueHooks[t] == RoutineType.CONGESTION_ACTION)
+                    statement = queue.getCongAction();
+                else if (queueHooks[t] == RoutineType.ADMISSION_PRIORITY)
+                    statement = queue.getAdmPrio();
+                else if (queueHooks[t] == RoutineType.PROCESSING_PRIORITY)
+                    statement = queue.getProcPrio();
+
+                max = Math.max(max, addParamSlots(statement, queue.getName() + "." + attrs[t],
+                        "OQ_PARAM_QUEUE", i, base));
+            }
 
-        // LHS
-        tokens = lhs.split(" ");
-        if (tokens.length != 2)
-            return null;
+            base += max;
+        }
 
-        if (!tokens[0].equals("Queue"))
-            return null;
+        if (base > TCQ_OQ_MAX_PARAM) {
+            showError("Too many routine arguments per queue (max " + TCQ_OQ_MAX_PARAM + ")", 0);
+            return false;
+        }
 
-        // Name
-        String name = tokens[1].trim();
-        if (name.isEmpty())
-            return null;
+        for (int i = 0; i < schedNodes.size(); i++) {
+            Port p = schedNodes.get(i);
 
-        // RHS
-        tokens = rhs.split("\\(");
-        if (tokens.length != 2)
-            return null;
+            if (addParamSlots(p.getSchedPrio(), p.getName() + ".schedPrio", "OQ_PARAM_NODE", i, 0) >
+                    TCQ_OQ_MAX_PARAM) {
+                showError("Too many routine arguments: " + p.getName() + ".schedPrio", 0);
+                return false;
+            }
+        }
 
-        if (!tokens[0].trim().equals("Queue"))
-            return null;
+        if (addParamSlots(port.getQueueSelect(), port.getName() + ".queueSelect", "OQ_PARAM_PORT", 0, 0) >
+                TCQ_OQ_MAX_PARAM) {
+            showError("Too many routine arguments: " + port.getName() + ".queueSelect", 0);
+            return false;
+        }
 
-        tokens = tokens[1].split("\\)");
-        if (tokens.length != 2)
-            return null;
+        return true;
+    }
 
-        int size;
-        try {
-            size = Integer.parseInt(tokens[0].trim());
-        } catch (NumberFormatException e) {
-            return null;
+    /**
+     * Put the arguments of a routine call into slots
+     *
+     * @param statement Statement
+     * @param name Name of the attribute (E.g. q1.congAction)
+     * @param scope Scope of the slots
+     * @param index Queue or node index
+     * @param base First slot
+     * @return Number of arguments
+     */
+    private int addParamSlots(Statement statement, String name, String scope, int index, int base) {
+        if (!(statement instanceof RoutineCallStatement))
+            return 0;
+
+        RoutineCallStatement call = (RoutineCallStatement) statement;
+        double[] params = call.getParams();
+        if (params == null)
+            return 0;
+
+        call.setParamBase(base);
+        for (int i = 0; i < params.length; i++) {
+            ParamSlot slot = new ParamSlot();
+            slot.name = name + "[" + i + "]";
+            slot.scope = scope;
+            slot.index = index;
+            slot.slot = base + i;
+            slot.value = params[i];
+            paramSlots.add(slot);
         }
 
-        Queue queue = new Queue(name);
-        queue.setSize(size);
+        return params.length;
+    }
 
-        return queue;
+    /**
+     * @return Root of the port hierarchy (once the policy is well-defined)
+     */
+    Port getRootPort() {
+        return port;
     }
 
     /**
-     * Validate a port declaration
-     * E.g. Port p1 = Port(q1, q2);
-     *
-     * @param line Declaration
-     * @return Valid Port instance if valid or null otherwise
+     * @return Scheduling nodes in BFS order (once the policy is well-defined)
      */
-    private Port validatePortDeclaration(String line) {
-        String[] tokens = line.split("=");
-        if (tokens.length != 2)
-            return null;
+    List<Port> getSchedNodes() {
+        return schedNodes;
+    }
 
-        String lhs = tokens[0].trim();
-        String rhs = tokens[1].trim();
+    /**
+     * @return Queues in the order of their leaf nodes (once the policy is well-defined)
+     */
+    List<Queue> getQueueLayout() {
+        return queueLayout;
+    }
 
-        // LHS
-        tokens = lhs.split(" ");
-        if (tokens.length != 2)
-            return null;
+    /**
+     * Flatten the port hierarchy into scheduling nodes (BFS order, so that the children of a
+     * node are contiguous) and lay out queues in the order of their leaf nodes.
+     *
+     * @return True if the hierarchy fits into the limits of the qdisc core or false otherwise
+     */
+    private boolean flattenPorts() {
+        List<Integer> depths = new ArrayList<>();
 
-        if (!tokens[0].equals("Port"))
-            return null;
+        schedNodes.clear();
+        queueLayout.clear();
 
-        // Name
-        String name = tokens[1].trim();
-        if (name.isEmpty())
-            return null;
+        schedNodes.add(port);
+        depths.add(1);
 
-        // RHS
-        tokens = rhs.split("\\(");
-        if (tokens.length != 2)
-            return null;
+        for (int i = 0; i < schedNodes.size(); i++) {
+            Port p = schedNodes.get(i);
 
-        if (!tokens[0].trim().equals("Port"))
-            return null;
+            if (depths.get(i) > TCQ_OQ_MAX_DEPTH) {
+                showError("Port hierarchy deeper than " + TCQ_OQ_MAX_DEPTH + " levels: " + p.getName(), 0);
+                return false;
+            }
 
-        tokens = tokens[1].split("\\)");
-        if (tokens.length != 2)
-            return null;
+            // EDF compares the head packets of queues
+            if (!p.isLeaf() && p.getSchedPrio() instanceof BuiltinStatement &&
+                    ((BuiltinStatement) p.getSchedPrio()).getName().equals(BuiltinStatement.EDF)) {
+                showError("edf schedules the queues of a port, not ports: " + p.getName(), 0);
+                return false;
+            }
 
-        Port port = new Port(name);
+            if (p.isLeaf()) {
+                for (String queueName : p.getQueues())
+                    queueLayout.add(queues.get(queueName));
+            } else {
+                for (String portName : p.getPorts()) {
+                    schedNodes.add(ports.get(portName));
+                    depths.add(depths.get(i) + 1);
+                }
+            }
+        }
+
+        if (schedNodes.size() > TCQ_OQ_MAX_NODE) {
+            showError("Too many ports (max " + TCQ_OQ_MAX_NODE + ")", 0);
+            return false;
+        }
 
-        // Queue names
-        String queueNames = tokens[0];
-        tokens = queueNames.split(",");
-        if (tokens.length == 0)
-            return null;
+        if (queueLayout.size() > TCQ_OQ_MAX_QUEUE) {
+            showError("Too many queues (max " + TCQ_OQ_MAX_QUEUE + ")", 0);
+            return false;
+        }
 
-        for (int i = 0; i < tokens.length; i++) {
-            String queueName = tokens[i].trim();
+        if (classifier != null) {
+            for (String queueName : classifier.getQueues()) {
+                if (queues.get(queueName) == null) {
+                    showError("Unknown queue in classify block: " + queueName, 0);
+                    return false;
+                }
+            }
+        }
 
-            if (queues.get(queueName) == null)
-                return null;
+        // Built-in flow hashing spreads flows over the first N queues
+        if (port.getQueueSelect() instanceof BuiltinStatement) {
+            BuiltinStatement select = (BuiltinStatement) port.getQueueSelect();
 
-            port.addQueue(queueName);
+            if (select.getName().equals(BuiltinStatement.FLOW_HASH) && select.getParams()[0] > queueLayout.size()) {
+                showError("flow_hash spans more queues than the port has: " + select.getParams()[0], 0);
+                return false;
+            }
         }
 
-        return port;
+        return true;
     }
 
     /**
-     * Process "import" statement
+     * Validate if a given funciton name is correct in terms of both name and type
      *
-     * @param fileName Name of the file
-     * @return true if parsed successfully or false otherwise
+     * @param entities Entities the function attached to (Queues/Port)
+     * @param value Inline expression or call
+     * @param functionType Type
+     * @return True if it is a correct assignment or false otherwise
      */
-    private boolean processImport(String fileName) {
-        String line;
-        int lineNumber = 0;
+    private boolean validateFunctionAssignment(List<? extends Entity> entities, PolicyParser.Value value,
+                                               RoutineType functionType) {
+        Statement routineCall;
 
-        String[] tokens = fileName.split("\\.");
-        if (tokens.length != 2)
-            return false;
+        if (value.inline != null) {
+            if (!InlineStatement.validate(value.inline, functionType))
+                return false;
 
-        if (!tokens[1].equals("h")) // Not a C header file
+            routineCall = new InlineStatement(value.inline, functionType);
+        } else if (value.name == null) {
             return false;
+        } else if (BuiltinStatement.isBuiltin(value.name)) {
+            routineCall = BuiltinStatement.validate(value.name, value.args, functionType);
+            if (routineCall == null)
+                return false;
+        } else {
+            // Resolve function name
+            Routine routine = routines.get(value.name);
+            if ((routine == null) || (routine.getType() != functionType))
+                return false;
 
-        try {
-            BufferedReader br = new BufferedReader(new FileReader(new File(fileName)));
-            RoutineType nextRoutineType = RoutineType.UNDEFINED;
-
-            while ((line = br.readLine()) != null) {
-                line = line.trim();
-                lineNumber++;
-
-                // Figure out next function type if this is an annotated line
-                if (line.startsWith("//"))
-                    nextRoutineType = getNextRoutineType(line);
-
-                // Ignore comments and empty lines
-                if (line.startsWith("//") || line.isEmpty())
-                    continue;
-
-                Routine routine = null;
-                if (nextRoutineType == RoutineType.QUEUE_SELECTOR) {
-                    routine = validateQueueSelectFunction(line);
-                } else if (nextRoutineType == RoutineType.CONGESTION_CONDITION) {
-                    routine = validateCongestionFunction(line);
-                } else if (nextRoutineType == RoutineType.CONGESTION_ACTION) {
-                    routine = validateCongestionActionFunction(line);
-                } else if (nextRoutineType == RoutineType.ADMISSION_PRIORITY) {
-                    routine = validateAdmissionFunction(line);
-                } else if (nextRoutineType == RoutineType.PROCESSING_PRIORITY) {
-                    routine = validateProcessingFunction(line);
-                } else if (nextRoutineType == RoutineType.SCHEDULING_PRIORITY) {
-                    routine = validateSchedulingFunction(line);
-                }
+            routineCall = new RoutineCallStatement(value.name, functionType);
+
+            // Set parameters (if any)
+            if (value.args != null && !value.args.isEmpty()) {
+                double[] paramVals = new double[value.args.size()];
 
-                // Validate and store routine
-                if (nextRoutineType != RoutineType.UNDEFINED) {
-                    if (routine == null) {
-                        showError("Invalid function: " + line, lineNumber);
+                for (int i = 0; i < paramVals.length; i++) {
+                    try {
+                        paramVals[i] = Double.parseDouble(value.args.get(i));
+                    } catch (NumberFormatException e) {
                         return false;
                     }
 
-                    if (routines.get(routine.getName()) != null) {
-                        showError("Function with the same name already exists: " + line, lineNumber);
+                    if (!RoutineCallStatement.isParamInRange(paramVals[i])) {
+                        showError("Routine argument out of range: " + value.args.get(i), 0);
                         return false;
                     }
-
-                    routines.put(routine.getName(), routine);
-                    nextRoutineType = RoutineType.UNDEFINED;
                 }
+
+                ((RoutineCallStatement)routineCall).setParams(paramVals);
             }
+        }
 
-            return true;
-        } catch (FileNotFoundException e) {
-            showError("File not found: " + fileName, lineNumber);
-        } catch (IOException e) {
-            showError("Error while reading policy file: " + e.getMessage(), lineNumber);
+        // Statements are immutable, so entities of an array share one
+        for (Entity entity : entities) {
+            if (functionType == RoutineType.CONGESTION_CONDITION)
+                ((Queue) entity).setCongestion(routineCall);
+            else if (functionType == RoutineType.CONGESTION_ACTION)
+                ((Queue) entity).setCongAction(routineCall);
+            else if (functionType == RoutineType.ADMISSION_PRIORITY)
+                ((Queue) entity).setAdmPrio(routineCall);
+            else if (functionType == RoutineType.PROCESSING_PRIORITY)
+                ((Queue) entity).setProcPrio(routineCall);
+            else if (functionType == RoutineType.QUEUE_SELECTOR)
+                ((Port) entity).setQueueSelect(routineCall);
+            else if (functionType == RoutineType.SCHEDULING_PRIORITY)
+                ((Port) entity).setSchedPrio(routineCall);
         }
 
-        return false;
+        return true;
     }
 
     /**
-     * Check if a Queue Select function has the correct signature
-     * E.g. int select_admission_queue(struct Qdisc* sch, struct sk_buff* skb, int argc, ...);
+     * Validate a queue declaration and add the queue(s). An array declares identical queues
+     * named <name>0 .. <name>N-1, which can be referred to together by <name>.
+     * E.g. Queue q1 = Queue(128);
+     *      Queue fq[8] = Queue(128);
      *
-     * @param line Line of code
-     * @return Valid Routine instance if its correct or null otherwise
+     * @param name Queue (array) name
+     * @param count Number of queues of an array or 0 for a single queue
+     * @param size Queue size
+     * @return True if valid or false otherwise
      */
-    private Routine validateQueueSelectFunction(String line) {
-        String[] tokens = line.split("\\(");
-        if (tokens.length != 2)
-            return null;
-
-        String typeName = tokens[0].trim();
-        String[] typeNameTokens = typeName.split(" ");
-        if ((typeNameTokens.length != 2) || (!typeNameTokens[0].trim().equals("int")))
-            return null;
-
-        String funcName = typeNameTokens[1];
-
-        tokens = tokens[1].split("\\)");
-        if (tokens.length != 2)
-            return null;
-
-        String params = tokens[0];
-        String[] paramTokens = params.split(",");
-        if (paramTokens.length != 4)
-            return null;
-
-        // Qdisc*
-        String[] param1Tokens = paramTokens[0].trim().split(" ");
-        if ((param1Tokens.length != 3) || !param1Tokens[0].trim().equals("struct") ||
-                !param1Tokens[1].trim().equals("Qdisc*"))
-            return null;
-
-        // sk_buff*
-        String[] param2Tokens = paramTokens[1].trim().split(" ");
-        if ((param2Tokens.length != 3) || !param2Tokens[0].trim().equals("struct") ||
-                !param2Tokens[1].trim().equals("sk_buff*"))
-            return null;
-
-        // Argc
-        String[] param3Tokens = paramTokens[2].trim().split(" ");
-        if ((param3Tokens.length != 2) || !param3Tokens[0].trim().equals("int"))
-            return null;
-
-        // ...
-        if (!paramTokens[3].trim().equals("..."))
-            return null;
-
-        return new Routine(RoutineType.QUEUE_SELECTOR, funcName);
-    }
+    boolean declareQueue(String name, int count, int size) {
+        if (name.contains("[") || isDeclared(name))
+            return false;
 
-    /**
-     * Check if a Congestion function has the correct signature
-     * E.g. bool my_congestion_condition(struct oq_queue* queue, int argc, ...);
-     *
-     * @param line Line of code
-     * @return Valid Routine instance if its correct or null otherwise
-     */
-    private Routine validateCongestionFunction(String line) {
-        String[] tokens = line.split("\\(");
-        if (tokens.length != 2)
-            return null;
-
-        String typeName = tokens[0].trim();
-        String[] typeNameTokens = typeName.split(" ");
-        if ((typeNameTokens.length != 2) || (!typeNameTokens[0].trim().equals("bool")))
-            return null;
-
-        String funcName = typeNameTokens[1];
-
-        tokens = tokens[1].split("\\)");
-        if (tokens.length != 2)
-            return null;
-
-        String params = tokens[0];
-        String[] paramTokens = params.split(",");
-        if (paramTokens.length != 3)
-            return null;
-
-        // oq_queue*
-        String[] param1Tokens = paramTokens[0].trim().split(" ");
-        if ((param1Tokens.length != 3) || !param1Tokens[0].trim().equals("struct") ||
-                !param1Tokens[1].trim().equals("oq_queue*"))
-            return null;
-
-        // Argc
-        String[] param2Tokens = paramTokens[1].trim().split(" ");
-        if ((param2Tokens.length != 2) || !param2Tokens[0].trim().equals("int"))
-            return null;
-
-        // ...
-        if (!paramTokens[2].trim().equals("..."))
-            return null;
-
-        return new Routine(RoutineType.CONGESTION_CONDITION, funcName);
-    }
+        if (count == 0) {
+            Queue queue = new Queue(name);
+            queue.setSize(size);
+            queues.put(name, queue);
 
-    /**
-     * Check if a Congestion Action function has the correct signature
-     * E.g. int drop_tail(struct oq_queue* queue, struct sk_buff* skb, int argc, ...);
-     *
-     * @param line Line of code
-     * @return Valid Routine instance if its correct or null otherwise
-     */
-    private Routine validateCongestionActionFunction(String line) {
-        String[] tokens = line.split("\\(");
-        if (tokens.length != 2)
-            return null;
-
-        String typeName = tokens[0].trim();
-        String[] typeNameTokens = typeName.split(" ");
-        if ((typeNameTokens.length != 2) || (!typeNameTokens[0].trim().equals("int")))
-            return null;
-
-        String funcName = typeNameTokens[1];
-
-        tokens = tokens[1].split("\\)");
-        if (tokens.length != 2)
-            return null;
-
-        String params = tokens[0];
-        String[] paramTokens = params.split(",");
-        if (paramTokens.length != 4)
-            return null;
-
-        // oq_queue*
-        String[] param1Tokens = paramTokens[0].trim().split(" ");
-        if ((param1Tokens.length != 3) || !param1Tokens[0].trim().equals("struct") ||
-                !param1Tokens[1].trim().equals("oq_queue*"))
-            return null;
-
-        // sk_buff*
-        String[] param2Tokens = paramTokens[1].trim().split(" ");
-        if ((param2Tokens.length != 3) || !param2Tokens[0].trim().equals("struct") ||
-                !param2Tokens[1].trim().equals("sk_buff*"))
-            return null;
-
-        // Argc
-        String[] param3Tokens = paramTokens[2].trim().split(" ");
-        if ((param3Tokens.length != 2) || !param3Tokens[0].trim().equals("int"))
-            return null;
-
-        // ...
-        if (!paramTokens[3].trim().equals("..."))
-            return null;
-
-        return new Routine(RoutineType.CONGESTION_ACTION, funcName);
-    }
+            return true;
+        }
 
-    /**
-     * Check if a Admission function has the correct signature
-     * E.g. unsigned long my_adm_prio(struct sk_buff* skb, int argc, ...);
-     *
-     * @param line Line of code
-     * @return Valid Routine instance if its correct or null otherwise
-     */
-    private Routine validateAdmissionFunction(String line) {
-        String[] tokens = line.split("\\(");
-        if (tokens.length != 2)
-            return null;
-
-        String typeName = tokens[0].trim();
-        String[] typeNameTokens = typeName.split(" ");
-        if ((typeNameTokens.length != 3) || !typeNameTokens[0].trim().equals("unsigned") ||
-                !typeNameTokens[1].trim().equals("long"))
-            return null;
-
-        String funcName = typeNameTokens[2];
-
-        tokens = tokens[1].split("\\)");
-        if (tokens.length != 2)
-            return null;
-
-        String params = tokens[0];
-        String[] paramTokens = params.split(",");
-        if (paramTokens.length != 3)
-            return null;
-
-        // sk_buff*
-        String[] param1Tokens = paramTokens[0].trim().split(" ");
-        if ((param1Tokens.length != 3) || !param1Tokens[0].trim().equals("struct") ||
-                !param1Tokens[1].trim().equals("sk_buff*"))
-            return null;
-
-        // Argc
-        String[] param2Tokens = paramTokens[1].trim().split(" ");
-        if ((param2Tokens.length != 2) || !param2Tokens[0].trim().equals("int"))
-            return null;
-
-        // ...
-        if (!paramTokens[2].trim().equals("..."))
-            return null;
-
-        return new Routine(RoutineType.ADMISSION_PRIORITY, funcName);
+        if (count < 1 || count > TCQ_OQ_MAX_QUEUE)
+            return false;
+
+        List<Queue> group = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Queue queue = new Queue(name + i);
+            if (isDeclared(queue.getName()))
+                return false;
+
+            queue.setSize(size);
+            queues.put(queue.getName(), queue);
+            group.add(queue);
+        }
+        queueGroups.put(name, group);
+
+        return true;
     }
 
     /**
-     * Check if a Processing function has the correct signature
-     * E.g. unsigned long my_pro_prio(struct sk_buff *skb, int argc, ...);
+     * Check if a queue, queue array or port with the given name exists
      *
-     * @param line Line of code
-     * @return Valid Routine instance if its correct or null otherwise
+     * @param name Name
+     * @return True if the name is taken or false otherwise
      */
-    private Routine validateProcessingFunction(String line) {
-        String[] tokens = line.split("\\(");
-        if (tokens.length != 2)
-            return null;
-
-        String typeName = tokens[0].trim();
-        String[] typeNameTokens = typeName.split(" ");
-        if ((typeNameTokens.length != 3) || !typeNameTokens[0].trim().equals("unsigned") ||
-                !typeNameTokens[1].trim().equals("long"))
-            return null;
-
-        String funcName = typeNameTokens[2];
-
-        tokens = tokens[1].split("\\)");
-        if (tokens.length != 2)
-            return null;
-
-        String params = tokens[0];
-        String[] paramTokens = params.split(",");
-        if (paramTokens.length != 3)
-            return null;
-
-        // sk_buff*
-        String[] param1Tokens = paramTokens[0].trim().split(" ");
-        if ((param1Tokens.length != 3) || !param1Tokens[0].trim().equals("struct") ||
-                !param1Tokens[1].trim().equals("sk_buff*"))
-            return null;
-
-        // Argc
-        String[] param2Tokens = paramTokens[1].trim().split(" ");
-        if ((param2Tokens.length != 2) || !param2Tokens[0].trim().equals("int"))
-            return null;
-
-        // ...
-        if (!paramTokens[2].trim().equals("..."))
-            return null;
-
-        return new Routine(RoutineType.PROCESSING_PRIORITY, funcName);
+    private boolean isDeclared(String name) {
+        return queues.containsKey(name) || queueGroups.containsKey(name) || ports.containsKey(name);
     }
 
     /**
-     * Check if a Scheduling function has the correct signature
-     * E.g. int my_schd_prio(struct Qdisc *sch, int argc, ...);
+     * Validate a port declaration and add the port. A port holds either queues or previously
+     * declared sub-ports.
+     * E.g. Port p1 = Port(q1, q2);
+     *      Port p2 = Port(p1, p3);
      *
-     * @param line Line of code
-     * @return Valid Routine instance if its correct or null otherwise
+     * @param name Port name
+     * @param children Names of queues, queue arrays or sub-ports
+     * @return True if valid or false otherwise
      */
-    private Routine validateSchedulingFunction(String line) {
-        String[] tokens = line.split("\\(");
-        if (tokens.length != 2)
-            return null;
-
-        String typeName = tokens[0].trim();
-        String[] typeNameTokens = typeName.split(" ");
-        if ((typeNameTokens.length != 2) || (!typeNameTokens[0].trim().equals("int")))
-            return null;
-
-        String funcName = typeNameTokens[1];
-
-        tokens = tokens[1].split("\\)");
-        if (tokens.length != 2)
-            return null;
-
-        String params = tokens[0];
-        String[] paramTokens = params.split(",");
-        if (paramTokens.length != 3)
-            return null;
-
-        // Qdisc*
-        String[] param1Tokens = paramTokens[0].trim().split(" ");
-        if ((param1Tokens.length != 3) || !param1Tokens[0].trim().equals("struct") ||
-                !param1Tokens[1].trim().equals("Qdisc*"))
-            return null;
-
-        // Argc
-        String[] param2Tokens = paramTokens[1].trim().split(" ");
-        if ((param2Tokens.length != 2) || !param2Tokens[0].trim().equals("int"))
-            return null;
-
-        // ...
-        if (!paramTokens[2].trim().equals("..."))
-            return null;
-
-        return new Routine(RoutineType.SCHEDULING_PRIORITY, funcName);
+    boolean declarePort(String name, List<String> children) {
+        if (isDeclared(name))
+            return false;
+
+        Port port = new Port(name);
+
+        for (String childName : children) {
+            if (attached.contains(childName) || childName.equals(name))
+                return false;
+
+            if (queues.get(childName) != null) {
+                port.addQueue(childName);
+            } else if (queueGroups.get(childName) != null) {
+                for (Queue queue : queueGroups.get(childName)) {
+                    String queueName = queue.getName();
+                    if (attached.contains(queueName))
+                        return false;
+
+                    port.addQueue(queueName);
+                    attached.add(queueName);
+                }
+            } else if (ports.get(childName) != null)
+                port.addPort(childName);
+            else
+                return false;
+
+            // Attached right away, so a child listed twice (Port(q1, q1)) is rejected as well
+            attached.add(childName);
+        }
+
+        // Queues and sub-ports cannot be mixed
+        if (port.isLeaf() && !port.getPorts().isEmpty())
+            return false;
+
+        ports.put(name, port);
+
+        return true;
     }
 
     /**
-     * Get annotation type
+     * Process "import" statement
      *
-     * @param annotationLine Line that defines the annotation
-     * @return Annotation type
+     * @param fileName Name of the file
+     * @return true if parsed successfully or false otherwise
      */
-    private RoutineType getNextRoutineType(String annotationLine) {
-        if (annotationLine.contains(OQ_QSEL_FUNC))
-            return RoutineType.QUEUE_SELECTOR;
-        if (annotationLine.contains(OQ_CONG_FUNC))
-            return RoutineType.CONGESTION_CONDITION;
-        if (annotationLine.contains(OQ_CONG_ACT_FUNC))
-            return RoutineType.CONGESTION_ACTION;
-        if (annotationLine.contains(OQ_ADMN_FUNC))
-            return RoutineType.ADMISSION_PRIORITY;
-        if (annotationLine.contains(OQ_PROC_FUNC))
-            return RoutineType.PROCESSING_PRIORITY;
-        if (annotationLine.contains(OQ_SCHD_FUNC))
-            return RoutineType.SCHEDULING_PRIORITY;
-
-        return RoutineType.UNDEFINED;
+    boolean processImport(String fileName) {
+        if (!fileName.endsWith(".h")) // Not a C header file
+            return false;
+
+        try {
+            String src = readAll(new BufferedReader(new FileReader(new File(fileName))));
+
+            return new HeaderParser(src, fileName).parse(routines);
+        } catch (FileNotFoundException e) {
+            showError("File not found: " + fileName, 0);
+        } catch (IOException e) {
+            showError("Error while reading header file: " + e.getMessage(), 0);
+        }
+
+        return false;
     }
 
     /**
-     * Generate policy module code
+     * Generate policy module code or bytecode
+     *
+     * @param target TARGET_MODULE, TARGET_BYTECODE or TARGET_XDP
      */
-    private boolean generateCode() {
+    private boolean generateCode(String target) {
         String modName = getModuleName(port.getName());
+
+        ir = new PolicyIR(queueLayout, schedNodes);
+        ir.optimize();
+
+        if (target.equals(TARGET_BYTECODE))
+            return generateBytecode(modName);
+
         showInfo("Generating policy module " + modName + " (" + port.getName() + ") ...");
 
         // Init module
@@ -795,6 +839,80 @@ public class OQGen {
             return false;
         }
 
+        // The forwarder links the same policy source against the userspace qdisc core
+        if (target.equals(TARGET_XDP))
+            return generateXdp(modName);
+
+        return true;
+    }
+
+    /**
+     * Generate the Makefile of the AF_XDP forwarder of a policy module (userspace/oq_xdp)
+     *
+     * @param modName Module name
+     * @return True if the Makefile is generated successfully or false otherwise
+     */
+    private boolean generateXdp(String modName) {
+        String xdpDir = "xdp/" + modName;
+        File dir = new File(xdpDir);
+        if (!dir.exists() && !dir.mkdirs()) {
+            showError("Error while creating forwarder directory: " + xdpDir, 0);
+            return false;
+        }
+
+        showInfo("Generating AF_XDP forwarder " + xdpDir + " (" + port.getName() + ") ...");
+
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(new File(xdpDir + "/Makefile")))) {
+            String args = "POLICY=" + modName + " PORT=" + port.getName() +
+                    " POLICY_DIR=$(abspath ../../policy/" + modName + ")";
+
+            bw.write("# make IN=<device> OUT=<device> [XDP_OPTS=\"-z -B\"] run\n" +
+                    "USERSPACE ?= ../../userspace\n" +
+                    "\n" +
+                    "all:\n" +
+                    "\t$(MAKE) -C $(USERSPACE) " + args + " build/" + modName + "/oq_xdp\n" +
+                    "\n" +
+                    "run: all\n" +
+                    "\t$(MAKE) -C $(USERSPACE) " + args + " IN=$(IN) OUT=$(OUT) XDP_OPTS=\"$(XDP_OPTS)\" xdp\n" +
+                    "\n" +
+                    ".PHONY: all run\n");
+        } catch (IOException e) {
+            showError("Error while generating Makefile: " + e.getMessage(), 0);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Generate policy bytecode, which the qdisc core loads without a policy module
+     *
+     * @param modName Module name (name of the bytecode file)
+     * @return True if the bytecode is generated successfully or false otherwise
+     */
+    private boolean generateBytecode(String modName) {
+        String fileName = "bytecode/" + modName + ".oqb";
+        showInfo("Generating policy bytecode " + fileName + " (" + port.getName() + ") ...");
+
+        byte[] blob = new OQBytecode(ir, port).compile();
+        if (blob == null)
+            return false;
+
+        File dir = new File("bytecode");
+        if (!dir.exists() && !dir.mkdirs()) {
+            showError("Error while creating bytecode directory: bytecode", 0);
+            return false;
+        }
+
+        try (FileOutputStream out = new FileOutputStream(new File(fileName))) {
+            out.write(blob);
+        } catch (IOException e) {
+            showError("Error while generating bytecode: " + e.getMessage(), 0);
+            return false;
+        }
+
+        showInfo("Policy bytecode is " + blob.length + " bytes");
+
         return true;
     }
 
@@ -923,9 +1041,11 @@ public class OQGen {
                 "#include <linux/module.h>\n" +
                 "#include <linux/kernel.h>\n" +
                 "#include <linux/init.h>\n" +
+                "#include <linux/ip.h>\n" +
                 "#include <net/pkt_sched.h>\n" +
                 "\n" +
                 "#include \"../../include/qdisc/sch_openqueue.h\"\n" +
+                "#include \"../../include/qdisc/oq_packet.h\"\n" +
                 "#include \"../../include/routine/routines.h\"\n" +
                 "\n" +
                 "#define TCQ_OQ_NO_QUEUES\t" + queues.size() + "\n" +
@@ -940,26 +1060,10 @@ public class OQGen {
      * @param modName Module name
      * @return Generated code
      */
-     private String generateCongFn(String modName) {
-         String code = "";
-
-         code += "/* Congestion condition*/\n" +
-                 "bool " + modName + "_cong_func(struct oq_queue *queue)\n" +
-                 "{\n" +
-                 "    bool cond = false;\n" +
-                 "\n";
-
-         for (Queue queue : queues.values()) {
-             code += "    if (strncmp(queue->name, \"" + queue.getName() +"\", TCQ_OQ_NAME_LEN) == 0)\n" +
-                     "        cond = " + queue.getCongestion().getStatement() + ";\n";
-         }
-
-         code += "\n" +
-                 "    return cond;\n" +
-                 "}\n\n";
-
-         return code;
-     }
+    private String generateCongFn(String modName) {
+        return generateQueueHookFn(ir.getHook(RoutineType.CONGESTION_CONDITION), "/* Congestion condition*/\n" +
+                "bool " + modName + "_cong_func", "false");
+    }
 
     /**
      * Generate congestion action
@@ -968,24 +1072,8 @@ public class OQGen {
      * @return Generated code
      */
     private String generateCongActFn(String modName) {
-        String code = "";
-
-        code += "/* Congestion action */\n" +
-                "int " + modName + "_cong_act_func(struct oq_queue *queue, struct sk_buff *skb)\n" +
-                "{\n" +
-                "    int status = 0;\n" +
-                "\n";
-
-        for (Queue queue : queues.values()) {
-            code += "    if (strncmp(queue->name, \"" + queue.getName() + "\", TCQ_OQ_NAME_LEN) == 0)\n" +
-                    "        status = " + queue.getCongAction().getStatement() + ";\n";
-        }
-
-        code += "\n" +
-                "    return status;\n" +
-                "}\n\n";
-
-        return code;
+        return generateQueueHookFn(ir.getHook(RoutineType.CONGESTION_ACTION), "/* Congestion action */\n" +
+                "int " + modName + "_cong_act_func", "0");
     }
 
     /**
@@ -995,24 +1083,8 @@ public class OQGen {
      * @return Generated code
      */
     private String generateAdmnFn(String modName) {
-        String code = "";
-
-        code += "/* Admission priority */\n" +
-                "unsigned long " + modName + "_admn_func(struct oq_queue *queue, struct sk_buff *skb)\n" +
-                "{\n" +
-                "    unsigned long key = 0;\n" +
-                "\n";
-
-        for (Queue queue : queues.values()) {
-            code += "    if (strncmp(queue->name, \"" + queue.getName() +"\", TCQ_OQ_NAME_LEN) == 0)\n" +
-                    "        key = " + queue.getAdmPrio().getStatement() + ";\n";
-        }
-
-        code += "\n" +
-                "    return key;\n" +
-                "}\n\n";
-
-        return code;
+        return generateQueueHookFn(ir.getHook(RoutineType.ADMISSION_PRIORITY), "/* Admission priority */\n" +
+                "unsigned long " + modName + "_admn_func", "0");
     }
 
     /**
@@ -1022,21 +1094,46 @@ public class OQGen {
      * @return Generated code
      */
     private String generateProcFn(String modName) {
+        return generateQueueHookFn(ir.getHook(RoutineType.PROCESSING_PRIORITY), "/* Processing priority */\n" +
+                "unsigned long " + modName + "_proc_func", "0");
+    }
+
+    /**
+     * Generate a per-queue hook. An unconditional hook returns its expression straight away,
+     * otherwise it switches on the index of the queue, so names never reach the datapath.
+     *
+     * @param hook Hook
+     * @param head Comment and return type/name of the function
+     * @param init Result when no case applies
+     * @return Generated code (empty if the hook is dead)
+     */
+    private String generateQueueHookFn(PolicyIR.Hook hook, String head, String init) {
+        if (hook.isDead())
+            return "";
+
         String code = "";
 
-        code += "/* Processing priority */\n" +
-                "unsigned long " + modName + "_proc_func(struct oq_queue *queue, struct sk_buff *skb)\n" +
-                "{\n" +
-                "    unsigned long key = 0;\n" +
-                "\n";
+        code += head + "(struct oq_queue *queue, struct sk_buff *skb)\n" +
+                "{\n";
 
-        for (Queue queue : queues.values()) {
-            code += "    if (strncmp(queue->name, \"" + queue.getName() + "\", TCQ_OQ_NAME_LEN) == 0)\n" +
-                    "        key = " + queue.getProcPrio().getStatement() + ";\n";
+        if (hook.getCases().get(0).isUnconditional()) {
+            code += "    return " + hook.getCases().get(0).getExpr().toC() + ";\n" +
+                    "}\n\n";
+
+            return code;
         }
 
-        code += "\n" +
-                "    return key;\n" +
+        code += "    switch (queue->id) {\n";
+
+        for (PolicyIR.Case c : hook.getCases()) {
+            for (int target : c.getTargets())
+                code += "    case " + target + ": /* " + queueLayout.get(target).getName() + " */\n";
+            code += "        return " + c.getExpr().toC() + ";\n";
+        }
+
+        code += "    }\n" +
+                "\n" +
+                "    return " + init + ";\n" +
                 "}\n\n";
 
         return code;
@@ -1049,12 +1146,24 @@ public class OQGen {
      * @return Generated code
      */
     private String generateQselcFn(String modName) {
+        PolicyIR.Hook hook = ir.getHook(RoutineType.QUEUE_SELECTOR);
         String code = "";
 
+        if (hook.isDead())
+            return code;
+
+        if (port.getQueueSelect() instanceof ClassifyStatement) {
+            Map<String, Integer> queueIndex = new HashMap<>();
+            for (int i = 0; i < queueLayout.size(); i++)
+                queueIndex.put(queueLayout.get(i).getName(), i);
+
+            code += ((ClassifyStatement) port.getQueueSelect()).generate(queueIndex);
+        }
+
         code += "/* Queue selection priority */\n" +
                 "int " + modName +"_qselc_func(struct Qdisc *sch, struct sk_buff *skb)\n" +
                 "{\n" +
-                "    return " + port.getQueueSelect().getStatement() + ";\n" +
+                "    return " + hook.getCases().get(0).getExpr().toC() + ";\n" +
                 "}\n\n";
 
         return code;
@@ -1067,13 +1176,33 @@ public class OQGen {
      * @return Generated code
      */
     private String generateSchdFn(String modName) {
+        PolicyIR.Hook hook = ir.getHook(RoutineType.SCHEDULING_PRIORITY);
         String code = "";
 
+        if (hook.isDead())
+            return code;
+
         code += "/* Scheduling priority */\n" +
-                "int " + modName + "_schd_func(struct Qdisc *sch)\n" +
-                "{\n" +
-                "    return " + port.getSchedPrio().getStatement() + ";\n" +
-                "}\n\n";
+                "int " + modName + "_schd_func(struct Qdisc *sch, int node)\n" +
+                "{\n";
+
+        if (hook.getCases().get(0).isUnconditional()) {
+            code += "    return " + hook.getCases().get(0).getExpr().toC() + ";\n";
+        } else {
+            code += "    switch (node) {\n";
+
+            for (PolicyIR.Case c : hook.getCases()) {
+                for (int target : c.getTargets())
+                    code += "    case " + target + ": /* " + schedNodes.get(target).getName() + " */\n";
+                code += "        return " + c.getExpr().toC() + ";\n";
+            }
+
+            code += "    }\n" +
+                    "\n" +
+                    "    return 0;\n";
+        }
+
+        code += "}\n\n";
 
         return code;
     }
@@ -1088,7 +1217,7 @@ public class OQGen {
         String code = "";
 
         code += "/* Initialize queue */\n" +
-                "int init_queue(struct oq_queue *queue, const char* name, int max_len)\n" +
+                "int init_queue(struct oq_queue *queue, const char* name, int max_len, u64 rate, u32 burst)\n" +
                 "{\n" +
                 "    if ((btree_init(&queue->admn_q) != 0) || (btree_init(&queue->proc_q) != 0))\n" +
                 "        return -1;\n" +
@@ -1098,6 +1227,8 @@ public class OQGen {
                 "    queue->dropped = 0;\n" +
                 "    queue->total = 0;\n" +
                 "    strncpy(queue->name, name, TCQ_OQ_NAME_LEN);\n" +
+                "    queue->rate = rate;\n" +
+                "    queue->burst = burst;\n" +
                 "\n" +
                 "    return 0;\n" +
                 "}\n\n";
@@ -1114,28 +1245,117 @@ public class OQGen {
     private String generateInitPortFn(String modName) {
         String code = "";
 
+        // Scheduling nodes
+        code += "/* Port hierarchy */\n" +
+                "static const struct oq_sched_node " + modName + "_nodes[] = {\n";
+
+        int next = 1, offset = 0;
+        for (Port p : schedNodes) {
+            int first, num;
+
+            if (p.isLeaf()) {
+                first = offset;
+                num = p.getQueues().size();
+                offset += num;
+            } else {
+                first = next;
+                num = p.getPorts().size();
+                next += num;
+            }
+
+            code += "    { .first = " + first + ", .num = " + num + ", .leaf = " + p.isLeaf() + " }, /* "
+                    + p.getName() + " */\n";
+        }
+
+        code += "};\n\n";
+
+        // Routine argument slots
+        if (!paramSlots.isEmpty()) {
+            code += "/* Routine arguments tc can change */\n" +
+                    "static const struct oq_param_desc " + modName + "_params[] = {\n";
+            for (ParamSlot slot : paramSlots)
+                code += "    { \"" + slot.name + "\", " + slot.scope + ", " + slot.index + ", " + slot.slot + " },\n";
+            code += "};\n\n";
+        }
+
         code += "/* Initialize policy */\n" +
                 "int " + modName + "_init_port(struct oq_priv *priv)\n" +
-                "{\n";
+                "{\n" +
+                "    /* Set first, so oq_destroy() frees the queues of a failed init */\n" +
+                "    priv->num_q = TCQ_OQ_NO_QUEUES;\n" +
+                "\n";
 
         int i = 0;
-        for (Queue queue : queues.values()) {
+        for (Queue queue : queueLayout) {
             code += "    if (init_queue(&priv->queues[" + i +"], \"" + queue.getName() + "\", "
-                    + queue.getSize() +") != 0)\n" +
+                    + queue.getSize() + ", " + queue.getRate() + "ULL, " + queue.getBurst() + ") != 0)\n" +
                     "        return -ENOMEM;\n";
+
+            // Flow table of sfq_vtime and timing wheel of deadline processing keys
+            if (queue.getProcPrio() instanceof BuiltinStatement) {
+                BuiltinStatement proc = (BuiltinStatement) queue.getProcPrio();
+
+                if (proc.getName().equals(BuiltinStatement.SFQ_VTIME))
+                    code += "    if (oq_sfq_init(&priv->queues[" + i + "], " + proc.getFlows() + ") != 0)\n" +
+                            "        return -ENOMEM;\n";
+                else if (proc.getName().equals(BuiltinStatement.DEADLINE))
+                    code += "    if (oq_wheel_init(&priv->queues[" + i + "], " + proc.getBudget() + ") != 0)\n" +
+                            "        return -ENOMEM;\n";
+            }
             i++;
         }
 
         code += "\n" +
-                "    priv->num_q = TCQ_OQ_NO_QUEUES;\n" +
+                "    memcpy(priv->nodes, " + modName + "_nodes, sizeof(" + modName + "_nodes));\n" +
+                "    priv->num_nodes = ARRAY_SIZE(" + modName + "_nodes);\n" +
                 "    strncpy(priv->port_name, \"" + port.getName() + "\", TCQ_OQ_NAME_LEN);\n" +
-                "\n" +
-                "    priv->cong_fn = " + modName + "_cong_func;\n" +
-                "    priv->cong_act_fn = " + modName + "_cong_act_func;\n" +
-                "    priv->admn_fn = " + modName + "_admn_func;\n" +
-                "    priv->proc_fn = " + modName + "_proc_func;\n" +
-                "    priv->q_select = " + modName + "_qselc_func;\n" +
-                "    priv->sched_fn = " + modName + "_schd_func;\n" +
+                "\n";
+
+        // Shared buffer with dynamic thresholds (alpha also applies to a buffer tc sets later)
+        if (port.getBuffer() != 0 || port.getAlphaShift() != 0)
+            code += "    priv->buffer = " + port.getBuffer() + ";\n" +
+                    "    priv->buffer_alpha = " + port.getAlphaShift() + ";\n" +
+                    "\n";
+
+        // Queues whose congestion action always pushes out, which a full shared buffer does too
+        String pushout = "";
+        for (PolicyIR.Case c : ir.getHook(RoutineType.CONGESTION_ACTION).getCases()) {
+            if (PolicyIR.isPushout(c)) {
+                for (int target : c.getTargets())
+                    pushout += "    priv->queues[" + target + "].pushout = true;\n";
+            }
+        }
+        if (!pushout.isEmpty())
+            code += pushout + "\n";
+
+        // Per-flow pacing at sk_pacing_rate
+        if (port.isPacing())
+            code += "    if (oq_pacing_init(priv) != 0)\n" +
+                    "        return -ENOMEM;\n" +
+                    "\n";
+
+        // Initial values of the slots (fixed point)
+        if (!paramSlots.isEmpty()) {
+            for (ParamSlot slot : paramSlots) {
+                String target = slot.scope.equals("OQ_PARAM_QUEUE") ? "priv->queues[" + slot.index + "]." :
+                        slot.scope.equals("OQ_PARAM_NODE") ? "priv->nodes[" + slot.index + "]." : "priv->";
+
+                code += "    " + target + "params[" + slot.slot + "] = " +
+                        String.format("0x%016xULL", RoutineCallStatement.toFixed(slot.value)) + "; /* " +
+                        slot.value + " */\n";
+            }
+
+            code += "    priv->param_descs = " + modName + "_params;\n" +
+                    "    priv->num_params = ARRAY_SIZE(" + modName + "_params);\n" +
+                    "\n";
+        }
+
+        code += "    priv->cong_fn = " + getHookFn(modName, RoutineType.CONGESTION_CONDITION, "cong") + ";\n" +
+                "    priv->cong_act_fn = " + getHookFn(modName, RoutineType.CONGESTION_ACTION, "cong_act") + ";\n" +
+                "    priv->admn_fn = " + getHookFn(modName, RoutineType.ADMISSION_PRIORITY, "admn") + ";\n" +
+                "    priv->proc_fn = " + getHookFn(modName, RoutineType.PROCESSING_PRIORITY, "proc") + ";\n" +
+                "    priv->q_select = " + getHookFn(modName, RoutineType.QUEUE_SELECTOR, "qselc") + ";\n" +
+                "    priv->sched_fn = " + getHookFn(modName, RoutineType.SCHEDULING_PRIORITY, "schd") + ";\n" +
                 "\n" +
                 "    return 0;\n" +
                 "}\n\n";
@@ -1143,6 +1363,18 @@ public class OQGen {
         return code;
     }
 
+    /**
+     * Get the function of a hook
+     *
+     * @param modName Module name
+     * @param type Hook
+     * @param name Short name of the function (E.g. cong for <module>_cong_func)
+     * @return Function name or NULL if the hook is dead
+     */
+    private String getHookFn(String modName, RoutineType type, String name) {
+        return ir.getHook(type).isDead() ? "NULL" : modName + "_" + name + "_func";
+    }
+
     /**
      * Generate footer code
      *
@@ -1188,7 +1420,7 @@ public class OQGen {
      * @param msg Message to be shown
      * @param lineNumber Line number at which the error occurred
      */
-    private static void showError(String msg, int lineNumber) {
+    static void showError(String msg, int lineNumber) {
         System.out.println("ERROR| " + msg + (lineNumber != 0 ? " (Line: " + lineNumber + ")" : ""));
     }
 }
@@ -0,0 +1,561 @@
+/*
+ * OQTrace      Streaming analyzer of the OpenQueue tracepoints (qdisc/oq_trace.h). Reads the
+ *              output of trace_pipe or perf script line by line in constant memory and reports,
+ *              per queue, packet counts, sojourn time percentiles, drop causes, congestion
+ *              actions and the most frequent admission/processing keys.
+ *
+ *              E.g. echo 1 > /sys/kernel/debug/tracing/events/openqueue/enable
+ *                   cat /sys/kernel/debug/tracing/trace_pipe | java OQTrace -every 1000000
+ *                   perf record -e 'openqueue:*' -a -- sleep 10 && perf script | java OQTrace
+ *
+ *              Percentiles come from a log-linear histogram (within 1/16 of the value) and
+ *              keys from a Space-Saving summary (counts are upper bounds, off by at most the
+ *              error shown). Sojourn times are carried by the dequeue events, so packets queued
+ *              before the events were enabled have none and are not counted in the percentiles.
+ *
+ *              This program is free software; you can redistribute it and/or
+ *              modify it under the terms of the GNU General Public License
+ *              as published by the Free Software Foundation; either version
+ *              2 of the License, or (at your option) any later version.
+ *
+ * Authors:     Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class OQTrace {
+    private static final String EVENT_PREFIX = "oq_";
+    private static final String[] EVENTS = {"oq_enqueue", "oq_dequeue", "oq_congested", "oq_drop"};
+    private static final int ENQUEUE = 0;
+    private static final int DEQUEUE = 1;
+    private static final int CONGESTED = 2;
+    private static final int DROP = 3;
+
+    // Congestion actions (OQ_CON_ACT_* in sch_openqueue.h) and drop reasons (OQ_DROP_* in oq_trace.h)
+    private static final String[] ACTIONS = {"none", "drop_head", "drop_tail", "drop_pkt", "pushout"};
+    private static final String[] REASONS = {"tail", "pkt", "expired", "buffer", "pushout", "pacing"};
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // Log-linear histogram of non-negative values; 16 buckets per power of two
+    private static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+
+        private long[] buckets = new long[(64 - SUB_BITS + 1) * SUB];
+        private long count;
+        private long max;
+
+        void add(long value) {
+            buckets[index(value)]++;
+            count++;
+            if (value > max)
+                max = value;
+        }
+
+        private static int index(long value) {
+            if (value < SUB)
+                return (int) value;
+
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            return (exp - SUB_BITS + 1) * SUB + (int) ((value >>> (exp - SUB_BITS)) & (SUB - 1));
+        }
+
+        // Midpoint of the values falling into a bucket
+        private static long value(int index) {
+            if (index < SUB)
+                return index;
+
+            int shift = index / SUB - 1;
+            long low = (long) (SUB + index % SUB) << shift;
+            return low + ((1L << shift) >>> 1);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        long percentile(double p) {
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+
+            if (count == 0)
+                return 0;
+
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank)
+                    return Math.min(value(i), max);
+            }
+
+            return max;
+        }
+    }
+
+    // Space-Saving summary of the k most frequent keys
+    private static class TopKeys {
+        private long[] keys;
+        private long[] counts;
+        private long[] errors;
+        private int size;
+        private long total;
+
+        TopKeys(int k) {
+            keys = new long[k];
+            counts = new long[k];
+            errors = new long[k];
+        }
+
+        void add(long key) {
+            int min = 0;
+
+            total++;
+            for (int i = 0; i < size; i++) {
+                if (keys[i] == key) {
+                    counts[i]++;
+                    return;
+                }
+                if (counts[i] < counts[min])
+                    min = i;
+            }
+
+            if (size < keys.length) {
+                keys[size] = key;
+                counts[size++] = 1;
+                return;
+            }
+
+            // Evict the least frequent key; the newcomer inherits its count as error
+            keys[min] = key;
+            errors[min] = counts[min];
+            counts[min]++;
+        }
+
+        long getTotal() {
+            return total;
+        }
+
+        // Slots ordered by count (descending)
+        List<Integer> ranked() {
+            List<Integer> order = new ArrayList<>();
+
+            for (int i = 0; i < size; i++)
+                order.add(i);
+            order.sort((a, b) -> Long.compare(counts[b], counts[a]));
+
+            return order;
+        }
+    }
+
+    // State of a queue of a qdisc
+    private static class QueueStats {
+        long handle;
+        int queue;
+        long enqueued;
+        long dequeued;
+        long bytesEnqueued;
+        long bytesDequeued;
+        long maxLen;
+        long[] drops = new long[REASONS.length];
+        long[] actions = new long[ACTIONS.length + 1]; // Last one counts unknown actions
+        Histogram sojourn = new Histogram();
+        TopKeys admnKeys;
+        TopKeys procKeys;
+
+        QueueStats(long handle, int queue, int topK) {
+            this.handle = handle;
+            this.queue = queue;
+            admnKeys = new TopKeys(topK);
+            procKeys = new TopKeys(topK);
+        }
+
+        String getLabel() {
+            return Long.toHexString(handle >>> 16) + ": q" + queue;
+        }
+    }
+
+    private Map<Long, QueueStats> queues = new HashMap<>();
+    private int topK = 16;
+    private long every; // Report every so many events (0 for at the end only)
+    private long events;
+    private long lost;
+    private long malformed;
+
+    // Fields of the event being parsed
+    private long handle;
+    private long queue;
+    private long admnKey;
+    private long procKey;
+    private long len;
+    private long qlen;
+    private long sojourn;
+    private long action;
+    private long reason;
+
+    /**
+     * Main method
+     *
+     * @param args Commandline arguments to the program
+     */
+    public static void main(String[] args) {
+        String fileName = null;
+        OQTrace oqTrace = new OQTrace();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if (!arg.startsWith("-") || arg.equals("-")) {
+                fileName = arg;
+                continue;
+            }
+
+            if (i + 1 == args.length) {
+                showUsage();
+                return;
+            }
+
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "-top":
+                        oqTrace.topK = Integer.parseInt(value);
+                        break;
+                    case "-every":
+                        oqTrace.every = Long.parseLong(value);
+                        break;
+                    default:
+                        showUsage();
+                        return;
+                }
+            } catch (NumberFormatException e) {
+                showUsage();
+                return;
+            }
+        }
+
+        if (oqTrace.topK <= 0 || oqTrace.every < 0) {
+            showUsage();
+            return;
+        }
+
+        try {
+            Reader reader = (fileName == null || fileName.equals("-")) ? new InputStreamReader(System.in) :
+                    new FileReader(new File(fileName));
+            BufferedReader br = new BufferedReader(reader, 1 << 16);
+
+            oqTrace.analyze(br);
+            br.close();
+        } catch (IOException e) {
+            showError("Error while reading trace: " + e.getMessage(), 0);
+            return;
+        }
+
+        oqTrace.report();
+    }
+
+    private static void showUsage() {
+        System.out.println("Usage: OQTrace [<trace_pipe or perf script output> | -] [-top <k>] [-every <events>]");
+    }
+
+    /**
+     * Consume a trace, reporting periodically if asked to
+     *
+     * @param br Reader of the trace
+     */
+    private void analyze(BufferedReader br) throws IOException {
+        String line;
+
+        while ((line = br.readLine()) != null) {
+            if (!parseLine(line))
+                continue;
+
+            if (every != 0 && ++events % every == 0)
+                report();
+        }
+    }
+
+    /**
+     * Account the event on a line
+     *
+     * @param line Line of trace_pipe or perf script output
+     * @return True if the line had an OpenQueue event or false otherwise
+     */
+    private boolean parseLine(String line) {
+        int event = -1;
+        int start = 0;
+        int pos;
+
+        // trace_pipe: "<task>-<pid> [cpu] <flags> <time>: oq_enqueue: handle=..."
+        // perf script: "<task> <pid> [cpu] <time>: openqueue:oq_enqueue: handle=..."
+        while ((pos = line.indexOf(EVENT_PREFIX, start)) >= 0) {
+            start = pos + EVENT_PREFIX.length();
+            if (pos > 0 && line.charAt(pos - 1) != ' ' && line.charAt(pos - 1) != ':')
+                continue;
+
+            for (int i = 0; i < EVENTS.length; i++) {
+                int end = pos + EVENTS[i].length();
+                if (line.startsWith(EVENTS[i], pos) && end < line.length() && line.charAt(end) == ':') {
+                    event = i;
+                    start = end + 1;
+                    break;
+                }
+            }
+
+            if (event >= 0)
+                break;
+        }
+
+        if (event < 0) {
+            if (line.contains("[LOST"))
+                lost += parseLost(line);
+            return false;
+        }
+
+        handle = queue = len = -1;
+        admnKey = procKey = qlen = sojourn = action = reason = 0;
+        if (!parseFields(line, start)) {
+            malformed++;
+            return false;
+        }
+
+        QueueStats stats = getQueue(handle, (int) queue);
+        switch (event) {
+            case ENQUEUE:
+                stats.enqueued++;
+                stats.bytesEnqueued += len;
+                stats.maxLen = Math.max(stats.maxLen, qlen);
+                stats.admnKeys.add(admnKey);
+                stats.procKeys.add(procKey);
+                break;
+            case DEQUEUE:
+                stats.dequeued++;
+                stats.bytesDequeued += len;
+                if (sojourn != 0) // Queued before the events were enabled
+                    stats.sojourn.add(sojourn);
+                break;
+            case CONGESTED:
+                stats.actions[action >= 0 && action < ACTIONS.length ? (int) action : ACTIONS.length]++;
+                break;
+            case DROP:
+                stats.drops[(int) reason]++;
+                break;
+        }
+
+        return true;
+    }
+
+    /**
+     * Parse the key=value fields of an event
+     *
+     * @param line Line of the event
+     * @param start Offset of the first field
+     * @return True if the fields are valid or false otherwise
+     */
+    private boolean parseFields(String line, int start) {
+        int n = line.length();
+        int i = start;
+
+        while (i < n) {
+            while (i < n && line.charAt(i) == ' ')
+                i++;
+
+            int eq = line.indexOf('=', i);
+            if (eq < 0)
+                break;
+
+            int end = line.indexOf(' ', eq);
+            if (end < 0)
+                end = n;
+
+            int keyLen = eq - i;
+            long value;
+
+            if (keyMatches(line, i, keyLen, "reason")) {
+                value = -1;
+                for (int r = 0; r < REASONS.length; r++) {
+                    if (end - eq - 1 == REASONS[r].length() && line.startsWith(REASONS[r], eq + 1))
+                        value = r;
+                }
+            } else {
+                value = parseNumber(line, eq + 1, end, keyMatches(line, i, keyLen, "handle") ? 16 : 10);
+            }
+
+            if (value == Long.MIN_VALUE)
+                return false;
+
+            if (keyMatches(line, i, keyLen, "handle"))
+                handle = value;
+            else if (keyMatches(line, i, keyLen, "queue"))
+                queue = value;
+            else if (keyMatches(line, i, keyLen, "admn_key"))
+                admnKey = value;
+            else if (keyMatches(line, i, keyLen, "proc_key"))
+                procKey = value;
+            else if (keyMatches(line, i, keyLen, "len"))
+                len = value;
+            else if (keyMatches(line, i, keyLen, "qlen"))
+                qlen = value;
+            else if (keyMatches(line, i, keyLen, "sojourn"))
+                sojourn = value;
+            else if (keyMatches(line, i, keyLen, "action"))
+                action = value;
+            else if (keyMatches(line, i, keyLen, "reason"))
+                reason = value;
+
+            i = end;
+        }
+
+        return handle >= 0 && queue >= 0 && reason >= 0;
+    }
+
+    private static boolean keyMatches(String line, int start, int len, String key) {
+        return len == key.length() && line.startsWith(key, start);
+    }
+
+    /**
+     * Parse an unsigned number (keys above Long.MAX_VALUE wrap, which keeps them distinct)
+     *
+     * @return The number or Long.MIN_VALUE if it is not one
+     */
+    private static long parseNumber(String line, int start, int end, int radix) {
+        long value = 0;
+
+        if (start == end)
+            return Long.MIN_VALUE;
+
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(line.charAt(i), radix);
+            if (digit < 0)
+                return Long.MIN_VALUE;
+            value = value * radix + digit;
+        }
+
+        return value;
+    }
+
+    // Events lost by the ring buffer ("CPU:3 [LOST 42 EVENTS]")
+    private static long parseLost(String line) {
+        int start = line.indexOf("[LOST") + "[LOST".length();
+        int end;
+
+        while (start < line.length() && line.charAt(start) == ' ')
+            start++;
+        for (end = start; end < line.length() && Character.isDigit(line.charAt(end)); end++)
+            ;
+
+        long value = parseNumber(line, start, end, 10);
+        return value == Long.MIN_VALUE ? 0 : value;
+    }
+
+    private QueueStats getQueue(long handle, int queue) {
+        Long id = (handle << 32) | (queue & 0xffffffffL);
+        QueueStats stats = queues.get(id);
+
+        if (stats == null) {
+            stats = new QueueStats(handle, queue, topK);
+            queues.put(id, stats);
+        }
+
+        return stats;
+    }
+
+    /**
+     * Print the statistics of all queues seen so far
+     */
+    private void report() {
+        List<QueueStats> sorted = new ArrayList<>(queues.values());
+        sorted.sort((a, b) -> a.handle != b.handle ? Long.compare(a.handle, b.handle) :
+                Integer.compare(a.queue, b.queue));
+
+        if (sorted.isEmpty()) {
+            showInfo("No OpenQueue events (are events/openqueue enabled?)");
+            return;
+        }
+
+        if (lost != 0)
+            showInfo(lost + " events lost by the ring buffer; counts are partial");
+        if (malformed != 0)
+            showInfo(malformed + " malformed events skipped");
+
+        System.out.println(String.format("%-10s %10s %10s %8s %10s %9s %9s %9s %9s %9s",
+                "queue", "enqueued", "dequeued", "max len", "drops", "p50 us", "p90 us", "p99 us", "p99.9 us",
+                "max us"));
+        for (QueueStats stats : sorted) {
+            long drops = 0;
+            for (long d : stats.drops)
+                drops += d;
+
+            String row = String.format("%-10s %10d %10d %8d %10d", stats.getLabel(), stats.enqueued,
+                    stats.dequeued, stats.maxLen, drops);
+            for (double p : PERCENTILES)
+                row += String.format(" %9.1f", stats.sojourn.percentile(p) / 1e3);
+            row += String.format(" %9.1f", stats.sojourn.getMax() / 1e3);
+
+            System.out.println(row);
+        }
+
+        for (QueueStats stats : sorted) {
+            System.out.println();
+            System.out.println(stats.getLabel() + String.format(": %d bytes enqueued, %d dequeued, %d sojourn samples",
+                    stats.bytesEnqueued, stats.bytesDequeued, stats.sojourn.getCount()));
+
+            String line = "  drops:";
+            for (int r = 0; r < REASONS.length; r++)
+                line += " " + REASONS[r] + "=" + stats.drops[r];
+            System.out.println(line);
+
+            line = "  congestion actions:";
+            for (int a = 0; a < ACTIONS.length; a++)
+                line += " " + ACTIONS[a] + "=" + stats.actions[a];
+            if (stats.actions[ACTIONS.length] != 0)
+                line += " other=" + stats.actions[ACTIONS.length];
+            System.out.println(line);
+
+            reportKeys("admission keys", stats.admnKeys);
+            reportKeys("processing keys", stats.procKeys);
+        }
+
+        System.out.println();
+    }
+
+    private static void reportKeys(String title, TopKeys keys) {
+        if (keys.getTotal() == 0)
+            return;
+
+        String line = "  " + title + ":";
+        for (int slot : keys.ranked()) {
+            line += String.format(" %s=%.1f%%", Long.toUnsignedString(keys.keys[slot]),
+                    100.0 * keys.counts[slot] / keys.getTotal());
+            if (keys.errors[slot] != 0)
+                line += String.format("(+-%.1f)", 100.0 * keys.errors[slot] / keys.getTotal());
+        }
+        System.out.println(line);
+    }
+
+    /**
+     * Show info message
+     *
+     * @param msg Message
+     */
+    private static void showInfo(String msg) {
+        System.out.println("INFO| " + msg);
+    }
+
+    /**
+     * Show error message
+     *
+     * @param msg Message
+     * @param lineNumber Line number
+     */
+    private static void showError(String msg, int lineNumber) {
+        System.out.println("ERROR| " + msg + (lineNumber != 0 ? " (Line: " + lineNumber + ")" : ""));
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * OQTune       Policy autotuner. Sweeps the parameter ranges of a policy in parallel,
+ *              simulates every candidate on a traffic mix, reports the Pareto frontier of
+ *              throughput, p99 sojourn time and drop rate, and writes the policy with the
+ *              winning values.
+ *
+ *              Any number in a policy may be given as range(<first>, <last>, <step>)
+ *              E.g. Queue q1 = Queue(range(64, 1024, 64));
+ *                   q1.congAction = cong_act(range(0.5, 0.95, 0.05));
+ *
+ *              This program is free software; you can redistribute it and/or
+ *              modify it under the terms of the GNU General Public License
+ *              as published by the Free Software Foundation; either version
+ *              2 of the License, or (at your option) any later version.
+ *
+ * Authors:     Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class OQTune {
+    public static final String RANGE = "range";
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile(RANGE + "\\(([^()]*)\\)");
+    private static final int MAX_CANDIDATES = 100000;
+    private static final int SWEEP_THRESHOLD = 4; // Candidates simulated by a leaf task
+    private static final long SEED = 0x12345678L;
+
+    // Parameter range in the policy text
+    private static class Parameter {
+        String label;
+        int start; // Offset of range(...) in the policy text
+        int end;
+        List<String> values = new ArrayList<>();
+    }
+
+    // Instantiated policy and its simulation result
+    private static class Candidate {
+        int[] choice; // Index into the values of every parameter
+        PolicyModel.Result result;
+    }
+
+    private String policy;
+    private List<Parameter> params = new ArrayList<>();
+    private TrafficProfile profile = TrafficProfile.IMIX;
+    private long packets = 20000;
+    private long linkRate = 1250000000L; // 10gbit in bytes per second
+    private double load = 0.95;
+
+    /**
+     * Main method
+     *
+     * @param args Commandline arguments to the program
+     */
+    public static void main(String[] args) {
+        String fileName = null, outFileName = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        OQTune oqTune = new OQTune();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if (!arg.startsWith("-")) {
+                fileName = arg;
+                continue;
+            }
+
+            if (i + 1 == args.length) {
+                showUsage();
+                return;
+            }
+
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "-traffic":
+                        oqTune.profile = TrafficProfile.fromName(value);
+                        break;
+                    case "-packets":
+                        oqTune.packets = Long.parseLong(value);
+                        break;
+                    case "-rate":
+                        oqTune.linkRate = TcUnits.parseRate(value);
+                        break;
+                    case "-load":
+                        oqTune.load = Double.parseDouble(value);
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "-o":
+                        outFileName = value;
+                        break;
+                    default:
+                        showUsage();
+                        return;
+                }
+            } catch (NumberFormatException e) {
+                showUsage();
+                return;
+            }
+        }
+
+        if (fileName == null || oqTune.profile == null || oqTune.packets <= 0 || oqTune.linkRate <= 0 ||
+                oqTune.load <= 0 || threads <= 0) {
+            showUsage();
+            return;
+        }
+
+        if (outFileName == null)
+            outFileName = fileName.replaceAll("\\.oqp$", "") + ".tuned.oqp";
+
+        if (!oqTune.readPolicy(fileName))
+            return;
+
+        oqTune.tune(threads, outFileName);
+    }
+
+    private static void showUsage() {
+        System.out.println("Usage: OQTune <OpenQueue Policy File> [-traffic <mix>] [-packets <n>] [-rate <rate>]" +
+                " [-load <load>] [-threads <n>] [-o <file>]");
+        System.out.print("Traffic mixes:");
+        for (TrafficProfile profile : TrafficProfile.values())
+            System.out.print(" " + profile.getName());
+        System.out.println();
+    }
+
+    /**
+     * Read a policy and its parameter ranges
+     *
+     * @param fileName Policy filename
+     * @return True if the policy has valid ranges or false otherwise
+     */
+    private boolean readPolicy(String fileName) {
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(new File(fileName)));
+            StringBuilder sb = new StringBuilder();
+            String line;
+
+            while ((line = br.readLine()) != null)
+                sb.append(line).append('\n');
+            br.close();
+
+            policy = sb.toString();
+        } catch (IOException e) {
+            showError("Error while reading policy file: " + e.getMessage(), 0);
+            return false;
+        }
+
+        Matcher matcher = RANGE_PATTERN.matcher(policy);
+        while (matcher.find()) {
+            int lineStart = policy.lastIndexOf('\n', matcher.start()) + 1;
+            String line = policy.substring(lineStart, policy.indexOf('\n', matcher.start())).trim();
+            int lineNumber = policy.substring(0, matcher.start()).split("\n", -1).length;
+
+            if (line.startsWith("//"))
+                continue;
+
+            Parameter param = new Parameter();
+            param.label = line.contains("=") ? line.substring(0, line.indexOf('=')).trim() : line;
+            param.start = matcher.start();
+            param.end = matcher.end();
+
+            if (!expandRange(matcher.group(1), param.values)) {
+                showError("Invalid range: " + matcher.group(), lineNumber);
+                return false;
+            }
+
+            params.add(param);
+        }
+
+        if (params.isEmpty()) {
+            showError("No parameter ranges in " + fileName, 0);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Expand range(<first>, <last>, <step>). Decimal arithmetic keeps values such as 0.85 exact.
+     *
+     * @param args Arguments of range()
+     * @param values Expanded values
+     * @return True if valid or false otherwise
+     */
+    private static boolean expandRange(String args, List<String> values) {
+        String[] tokens = args.split(",");
+        if (tokens.length != 3)
+            return false;
+
+        BigDecimal first, last, step;
+        try {
+            first = new BigDecimal(tokens[0].trim());
+            last = new BigDecimal(tokens[1].trim());
+            step = new BigDecimal(tokens[2].trim());
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        if (step.signum() <= 0 || first.compareTo(last) > 0)
+            return false;
+
+        for (BigDecimal v = first; v.compareTo(last) <= 0; v = v.add(step)) {
+            values.add(v.toPlainString());
+            if (values.size() > MAX_CANDIDATES)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Policy text with every range replaced by the chosen value
+     *
+     * @param choice Index into the values of every parameter
+     * @return Policy text
+     */
+    private String instantiate(int[] choice) {
+        StringBuilder sb = new StringBuilder(policy);
+
+        for (int i = params.size() - 1; i >= 0; i--)
+            sb.replace(params.get(i).start, params.get(i).end, params.get(i).values.get(choice[i]));
+
+        return sb.toString();
+    }
+
+    /**
+     * Decode a candidate number into a choice of values (mixed radix)
+     */
+    private int[] decode(long n) {
+        int[] choice = new int[params.size()];
+
+        for (int i = params.size() - 1; i >= 0; i--) {
+            choice[i] = (int) (n % params.get(i).values.size());
+            n /= params.get(i).values.size();
+        }
+
+        return choice;
+    }
+
+    /**
+     * Parse, check and simulate a candidate
+     *
+     * @param choice Index into the values of every parameter
+     * @return Candidate or null if the instantiated policy is not valid
+     */
+    private Candidate evaluate(int[] choice) {
+        OQGen oqGen = new OQGen();
+
+        if (!oqGen.parsePolicy(new BufferedReader(new StringReader(instantiate(choice)))) || !oqGen.isWellDefined())
+            return null;
+
+        Candidate candidate = new Candidate();
+        candidate.choice = choice;
+        candidate.result = new PolicyModel(oqGen).simulate(profile, packets, linkRate, load, SEED);
+
+        return candidate;
+    }
+
+    // Simulates candidates [from, to) by splitting the range until it is small
+    private class SweepTask extends RecursiveTask<List<Candidate>> {
+        private static final long serialVersionUID = 1L;
+
+        private long from;
+        private long to;
+
+        SweepTask(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Candidate> compute() {
+            List<Candidate> candidates = new ArrayList<>();
+
+            if (to - from <= SWEEP_THRESHOLD) {
+                for (long n = from; n < to; n++) {
+                    Candidate candidate = evaluate(decode(n));
+                    if (candidate != null)
+                        candidates.add(candidate);
+                }
+
+                return candidates;
+            }
+
+            long mid = (from + to) >>> 1;
+            SweepTask left = new SweepTask(from, mid);
+            left.fork();
+            candidates.addAll(new SweepTask(mid, to).compute());
+            candidates.addAll(left.join());
+
+            return candidates;
+        }
+    }
+
+    /**
+     * Sweep all candidates, report the Pareto frontier and write the winner
+     *
+     * @param threads Worker threads
+     * @param outFileName Tuned policy filename
+     */
+    private void tune(int threads, String outFileName) {
+        long total = 1;
+        for (Parameter param : params) {
+            total *= param.values.size();
+            if (total > MAX_CANDIDATES) {
+                showError("Too many candidates (max " + MAX_CANDIDATES + ")", 0);
+                return;
+            }
+        }
+
+        // Fail early when the policy uses something the model cannot simulate
+        try {
+            evaluate(decode(0));
+        } catch (IllegalArgumentException e) {
+            showError(e.getMessage(), 0);
+            return;
+        }
+
+        showInfo("Simulating " + total + " candidates (" + profile.getName() + ", " + packets + " packets, load " +
+                load + " of " + linkRate * 8 + " bit/s) on " + threads + " threads ...");
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Candidate> candidates = pool.invoke(new SweepTask(0, total));
+        pool.shutdown();
+
+        if (candidates.isEmpty()) {
+            showError("No valid candidates", 0);
+            return;
+        }
+
+        List<Candidate> frontier = paretoFrontier(candidates);
+        frontier.sort((a, b) -> Double.compare(a.result.getDropRate(), b.result.getDropRate()));
+        Candidate winner = pickWinner(frontier);
+
+        showInfo(candidates.size() + " valid candidates, " + frontier.size() + " on the Pareto frontier:");
+
+        String header = "";
+        for (Parameter param : params)
+            header += String.format("%-20s ", param.label);
+        System.out.println("  " + header + String.format("%14s %12s %10s", "Mbit/s", "p99 us", "drops %"));
+
+        for (Candidate c : frontier) {
+            String row = "";
+            for (int i = 0; i < params.size(); i++)
+                row += String.format("%-20s ", params.get(i).values.get(c.choice[i]));
+            System.out.println((c == winner ? "* " : "  ") + row + String.format("%14.1f %12.1f %10.3f",
+                    c.result.getThroughput() / 1e6, c.result.getSojourn(0.99) / 1e3, c.result.getDropRate() * 100));
+        }
+
+        if (writePolicy(winner, outFileName))
+            showInfo("Wrote tuned policy \"" + outFileName + "\"");
+    }
+
+    /**
+     * Candidates not dominated by any other (higher throughput, lower p99 sojourn, lower drop rate)
+     */
+    private static List<Candidate> paretoFrontier(List<Candidate> candidates) {
+        List<Candidate> frontier = new ArrayList<>();
+
+        for (Candidate c : candidates) {
+            boolean dominated = false;
+
+            for (Candidate o : candidates) {
+                if (o != c && dominates(o.result, c.result)) {
+                    dominated = true;
+                    break;
+                }
+            }
+
+            if (!dominated)
+                frontier.add(c);
+        }
+
+        return frontier;
+    }
+
+    private static boolean dominates(PolicyModel.Result a, PolicyModel.Result b) {
+        boolean noWorse = a.getThroughput() >= b.getThroughput() && a.getSojourn(0.99) <= b.getSojourn(0.99) &&
+                a.getDropRate() <= b.getDropRate();
+        boolean better = a.getThroughput() > b.getThroughput() || a.getSojourn(0.99) < b.getSojourn(0.99) ||
+                a.getDropRate() < b.getDropRate();
+
+        return noWorse && better;
+    }
+
+    /**
+     * The winner is the frontier candidate closest to the ideal point once every metric is
+     * normalized to the spread of the frontier.
+     */
+    private static Candidate pickWinner(List<Candidate> frontier) {
+        double[][] metrics = new double[frontier.size()][];
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+        for (int i = 0; i < frontier.size(); i++) {
+            PolicyModel.Result r = frontier.get(i).result;
+
+            metrics[i] = new double[]{-r.getThroughput(), r.getSojourn(0.99), r.getDropRate()}; // Lower is better
+            for (int m = 0; m < 3; m++) {
+                min[m] = Math.min(min[m], metrics[i][m]);
+                max[m] = Math.max(max[m], metrics[i][m]);
+            }
+        }
+
+        Candidate winner = null;
+        double best = Double.MAX_VALUE;
+
+        for (int i = 0; i < frontier.size(); i++) {
+            double dist = 0;
+
+            for (int m = 0; m < 3; m++) {
+                double norm = max[m] > min[m] ? (metrics[i][m] - min[m]) / (max[m] - min[m]) : 0;
+                dist += norm * norm;
+            }
+
+            if (dist < best) {
+                best = dist;
+                winner = frontier.get(i);
+            }
+        }
+
+        return winner;
+    }
+
+    /**
+     * Write the policy with the values of a candidate
+     *
+     * @param winner Candidate
+     * @param fileName Filename
+     * @return True if successful or false otherwise
+     */
+    private boolean writePolicy(Candidate winner, String fileName) {
+        try {
+            BufferedWriter bw = new BufferedWriter(new FileWriter(new File(fileName)));
+            PolicyModel.Result r = winner.result;
+
+            bw.write(String.format("// Tuned by OQTune for %s at load %s of %d bit/s: " +
+                            "%.1f Mbit/s, p99 sojourn %.1f us, %.3f%% drops\n",
+                    profile.getName(), load, linkRate * 8, r.getThroughput() / 1e6, r.getSojourn(0.99) / 1e3,
+                    r.getDropRate() * 100));
+            bw.write(instantiate(winner.choice));
+
+            bw.flush();
+            bw.close();
+
+            return true;
+        } catch (IOException e) {
+            showError("Error while writing tuned policy: " + e.getMessage(), 0);
+        }
+
+        return false;
+    }
+
+    /**
+     * Show info message
+     *
+     * @param msg Message to be shown
+     */
+    private static void showInfo(String msg) {
+        System.out.println("INFO| " + msg);
+    }
+
+    /**
+     * Show error message
+     *
+     * @param msg Message to be shown
+     * @param lineNumber Line number at which the error occurred
+     */
+    private static void showError(String msg, int lineNumber) {
+        System.out.println("ERROR| " + msg + (lineNumber != 0 ? " (Line: " + lineNumber + ")" : ""));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * PacketField      Packet fields available to OpenQueue policies.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+// The order of the fields is that of OQ_BC_FIELD_* (oq_bytecode.h)
+public enum PacketField {
+    // IPv4 header
+    TOS("tos", 8, "oq_pkt_tos(skb)"),
+    TOT_LEN("tot_len", 16, "oq_pkt_tot_len(skb)"),
+    ID("id", 16, "oq_pkt_id(skb)"),
+    TTL("ttl", 8, "oq_pkt_ttl(skb)"),
+    PROTOCOL("protocol", 8, "oq_pkt_protocol(skb)"),
+    SADDR("saddr", 32, "oq_pkt_saddr(skb)"),
+    DADDR("daddr", 32, "oq_pkt_daddr(skb)"),
+    // IPv6 header
+    IP6_FLOWLABEL("ip6.flowlabel", 20, "oq_pkt_ip6_flowlabel(skb)"),
+    IP6_TCLASS("ip6.tclass", 8, "oq_pkt_ip6_tclass(skb)"),
+    // Transport header (IPv4/IPv6)
+    SPORT("sport", 16, "oq_pkt_sport(skb)"),
+    DPORT("dport", 16, "oq_pkt_dport(skb)"),
+    // skb metadata
+    MARK("mark", 32, "oq_pkt_mark(skb)"),
+    PRIORITY("priority", 32, "oq_pkt_priority(skb)"),
+    HASH("hash", 32, "oq_pkt_hash(skb)");
+
+    private String name;
+    private int width;
+    private String load;
+
+    PacketField(String name, int width, String load) {
+        this.name = name;
+        this.width = width;
+        this.load = load;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Name usable as a C identifier
+     */
+    public String getIdentifier() {
+        return name.replace('.', '_');
+    }
+
+    /**
+     * @return Width of the field in bits
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return C expression loading the field of skb in host byte order (oq_packet.h)
+     */
+    public String getLoad() {
+        return load;
+    }
+
+    /**
+     * @return True if the field holds an IPv4 address
+     */
+    public boolean isAddress() {
+        return this == SADDR || this == DADDR;
+    }
+
+    /**
+     * Resolve a field from its policy name
+     *  E.g. Packet.tos, Packet.ip6.flowlabel
+     *
+     * @param name Name with or without the "Packet." prefix
+     * @return Field or null if there is no such field
+     */
+    public static PacketField fromName(String name) {
+        if (name.startsWith("Packet."))
+            name = name.substring("Packet.".length());
+
+        for (PacketField field : values()) {
+            if (field.name.equals(name))
+                return field;
+        }
+
+        return null;
+    }
+}
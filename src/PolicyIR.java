@@ -0,0 +1,220 @@
+/*
+ * PolicyIR     Intermediate representation of a policy between parsing and code generation.
+ *              Every hook of the qdisc core is a list of cases, each an expression and the
+ *              queues (or scheduling nodes) it applies to. Backends emit code from the IR
+ *              once the optimization passes have run.
+ *
+ *              This program is free software; you can redistribute it and/or
+ *              modify it under the terms of the GNU General Public License
+ *              as published by the Free Software Foundation; either version
+ *              2 of the License, or (at your option) any later version.
+ *
+ * Authors:     Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class PolicyIR {
+    // Expression that applies to a set of queues/nodes (all of them when unconditional)
+    public static class Case {
+        private List<Integer> targets = new ArrayList<>(); // Queue or scheduling node indexes
+        private IRExpr expr;
+        private boolean unconditional = false;
+
+        public List<Integer> getTargets() {
+            return targets;
+        }
+
+        public IRExpr getExpr() {
+            return expr;
+        }
+
+        public boolean isUnconditional() {
+            return unconditional;
+        }
+    }
+
+    // Hook of the qdisc core (function pointer in struct oq_priv)
+    public static class Hook {
+        private RoutineType type;
+        private List<Case> cases = new ArrayList<>(); // Result is 0 (false) when no case applies
+
+        Hook(RoutineType type) {
+            this.type = type;
+        }
+
+        public RoutineType getType() {
+            return type;
+        }
+
+        public List<Case> getCases() {
+            return cases;
+        }
+
+        /**
+         * @return True if the hook need not be called (the core then assumes 0)
+         */
+        public boolean isDead() {
+            return cases.isEmpty();
+        }
+    }
+
+    private List<Queue> queues;
+    private List<Port> nodes;
+    private Map<RoutineType, Hook> hooks = new LinkedHashMap<>();
+
+    /**
+     * Lower a well-defined policy: one case per queue for queue hooks and one case per
+     * scheduling node for the scheduling hook.
+     *
+     * @param queues Queues in the order of their leaf nodes
+     * @param nodes Scheduling nodes in BFS order
+     */
+    public PolicyIR(List<Queue> queues, List<Port> nodes) {
+        this.queues = queues;
+        this.nodes = nodes;
+
+        RoutineType[] queueHooks = {RoutineType.CONGESTION_CONDITION, RoutineType.CONGESTION_ACTION,
+                RoutineType.ADMISSION_PRIORITY, RoutineType.PROCESSING_PRIORITY};
+
+        for (RoutineType type : queueHooks) {
+            Hook hook = new Hook(type);
+
+            for (int i = 0; i < queues.size(); i++)
+                hook.cases.add(newCase(i, getStatement(queues.get(i), type).getIR()));
+            hooks.put(type, hook);
+        }
+
+        Hook qselc = new Hook(RoutineType.QUEUE_SELECTOR);
+        qselc.cases.add(newCase(0, nodes.get(0).getQueueSelect().getIR()));
+        qselc.cases.get(0).unconditional = true;
+        hooks.put(RoutineType.QUEUE_SELECTOR, qselc);
+
+        Hook schd = new Hook(RoutineType.SCHEDULING_PRIORITY);
+        for (int i = 0; i < nodes.size(); i++)
+            schd.cases.add(newCase(i, nodes.get(i).getSchedPrio().getIR()));
+        hooks.put(RoutineType.SCHEDULING_PRIORITY, schd);
+    }
+
+    private static Case newCase(int target, IRExpr expr) {
+        Case c = new Case();
+        c.targets.add(target);
+        c.expr = expr;
+        return c;
+    }
+
+    private static Statement getStatement(Queue queue, RoutineType type) {
+        switch (type) {
+            case CONGESTION_CONDITION:
+                return queue.getCongestion();
+            case CONGESTION_ACTION:
+                return queue.getCongAction();
+            case ADMISSION_PRIORITY:
+                return queue.getAdmPrio();
+        }
+
+        return queue.getProcPrio();
+    }
+
+    public Hook getHook(RoutineType type) {
+        return hooks.get(type);
+    }
+
+    public List<Queue> getQueues() {
+        return queues;
+    }
+
+    public List<Port> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Run the optimization passes
+     */
+    public void optimize() {
+        for (Hook hook : hooks.values())
+            foldConstants(hook);
+
+        for (Hook hook : hooks.values())
+            hoistCommon(hook);
+
+        eliminateDeadHooks();
+    }
+
+    /**
+     * Common subexpression hoisting. Cases with the same expression merge into one, and a
+     * hook with a single expression for all queues/nodes becomes unconditional.
+     *
+     * @param hook Hook
+     */
+    private void hoistCommon(Hook hook) {
+        List<Case> merged = new ArrayList<>();
+
+        for (Case c : hook.cases) {
+            Case same = null;
+            for (Case m : merged) {
+                if (m.expr.equals(c.expr)) {
+                    same = m;
+                    break;
+                }
+            }
+
+            if (same == null)
+                merged.add(c);
+            else
+                same.targets.addAll(c.targets);
+        }
+
+        int total = hook.type == RoutineType.SCHEDULING_PRIORITY ? nodes.size() : queues.size();
+        if (merged.size() == 1 && merged.get(0).targets.size() == total)
+            merged.get(0).unconditional = true;
+
+        hook.cases = merged;
+    }
+
+    /**
+     * Constant folding. Queue attributes are not substituted, even Queue.max_len, since the
+     * limit of a queue can be changed at runtime (tc qdisc change ... set q1.limit 2048).
+     *
+     * @param hook Hook
+     */
+    private void foldConstants(Hook hook) {
+        for (Case c : hook.cases)
+            c.expr = c.expr.fold();
+    }
+
+    /**
+     * Dead-hook elimination. Cases that evaluate to the default (0) are dropped, and so
+     * are constant admission/processing keys, since a constant key orders nothing. A hook
+     * without cases is not called at all. Congestion actions of queues that are never
+     * congested are dropped too, except a constant push-out, which a full shared buffer uses.
+     */
+    private void eliminateDeadHooks() {
+        for (Hook hook : hooks.values()) {
+            boolean anyConstant = hook.type == RoutineType.ADMISSION_PRIORITY ||
+                    hook.type == RoutineType.PROCESSING_PRIORITY;
+
+            hook.cases.removeIf(c -> c.expr.isConstant() && (anyConstant || c.expr.getValue() == 0));
+        }
+
+        Set<Integer> congestible = new HashSet<>();
+        for (Case c : hooks.get(RoutineType.CONGESTION_CONDITION).cases)
+            congestible.addAll(c.targets);
+
+        hooks.get(RoutineType.CONGESTION_ACTION).cases.removeIf(
+                c -> c.targets.stream().noneMatch(congestible::contains) && !isPushout(c));
+    }
+
+    /**
+     * @param c Case of the congestion action
+     * @return True if the case always pushes out (oq_queue.pushout)
+     */
+    public static boolean isPushout(Case c) {
+        return c.expr.isConstant() && c.expr.getValue() == RoutineModel.OQ_CON_ACT_PUSHOUT;
+    }
+}
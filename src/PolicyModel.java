@@ -0,0 +1,673 @@
+/*
+ * PolicyModel      Java model of a policy running on the OpenQueue qdisc core, used by OQTune
+ *                  to evaluate candidate parameters. It follows mod_sch_openqueue.c: admission
+ *                  and processing orders per queue, drop tail on the largest admission key of
+ *                  the queue, push out on that of the port, token bucket shaping, expiry of
+ *                  deadline packets, the dynamic thresholds of a shared buffer and the walk
+ *                  down the port hierarchy.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class PolicyModel {
+    private static final long NSEC_PER_SEC = 1000000000L;
+    private static final long NEVER = Long.MAX_VALUE;
+    private static final int TCQ_OQ_MAX_DEPTH = 8;
+
+    /**
+     * Packet with the fields policies can read
+     */
+    public static class Packet {
+        int len;
+        int tos;
+        long saddr;
+        long daddr;
+        int sport;
+        int dport;
+        int protocol;
+        long arrival;
+
+        public long get(PacketField field) {
+            switch (field) {
+                case TOS:
+                    return tos;
+                case TOT_LEN:
+                    return len;
+                case TTL:
+                    return 64;
+                case PROTOCOL:
+                    return protocol;
+                case SADDR:
+                    return saddr;
+                case DADDR:
+                    return daddr;
+                case SPORT:
+                    return sport;
+                case DPORT:
+                    return dport;
+                case HASH:
+                    return hash();
+                default: // IPv6 fields, id and skb metadata are not generated
+                    return 0;
+            }
+        }
+
+        long hash() {
+            long h = saddr * 0x9e3779b1L ^ daddr * 0x85ebca6bL ^ ((long) sport << 16 | dport) * 0xc2b2ae35L ^ protocol;
+
+            h ^= h >>> 29;
+            h *= 0xbf58476d1ce4e5b9L;
+            h ^= h >>> 32;
+
+            return h & 0xffffffffL;
+        }
+    }
+
+    /**
+     * Run-time state of a queue (struct oq_queue)
+     */
+    public static class QueueState {
+        final Queue queue;
+        int maxLen;
+        int len;
+        int dropped;
+        int total;
+        // Keyed lists of packets, FIFO within a key
+        final TreeMap<Long, ArrayDeque<Packet>> admnQ = new TreeMap<>();
+        final TreeMap<Long, ArrayDeque<Packet>> procQ = new TreeMap<>();
+        final Map<Packet, long[]> keys = new HashMap<>(); // {admission, processing}
+        // Token bucket (ns)
+        long buffer;
+        long tokens;
+        long tc;
+        // Flow table of sfq_vtime (struct oq_sfq)
+        long[] finish;
+        long vtime;
+        // Budget of deadline (ns, 0 unless the queue uses it)
+        long budget;
+
+        QueueState(Queue queue) {
+            this.queue = queue;
+            this.maxLen = queue.getSize();
+
+            if (isSfq(queue.getProcPrio())) {
+                int flows = (int) ((BuiltinStatement) queue.getProcPrio()).getFlows();
+                finish = new long[Integer.highestOneBit(flows * 2 - 1)]; // Rounded up to a power of two
+            }
+
+            if (isBuiltin(queue.getProcPrio(), BuiltinStatement.DEADLINE))
+                budget = ((BuiltinStatement) queue.getProcPrio()).getBudget() * 1000;
+        }
+    }
+
+    /**
+     * Outcome of a simulation
+     */
+    public static class Result {
+        long offered;
+        long dequeued;
+        long dropped;
+        long stranded; // Left queued by a scheduler that is not work-conserving
+        long bytes;
+        long durationNs;
+        long[] sojourn; // Sorted
+
+        public double getThroughput() {
+            return durationNs == 0 ? 0 : bytes * 8.0 * NSEC_PER_SEC / durationNs;
+        }
+
+        public double getDropRate() {
+            return offered == 0 ? 0 : (double) dropped / offered;
+        }
+
+        public long getSojourn(double p) {
+            if (dequeued == 0)
+                return 0;
+
+            return sojourn[(int) Math.round(p * (dequeued - 1))];
+        }
+    }
+
+    private Port root;
+    private List<Port> nodes;
+    private List<Queue> layout;
+    private Map<String, Integer> queueIndex = new HashMap<>();
+    private int[] nodeFirst;
+    private boolean[] nodeLeaf;
+    private int[] nodeNum;
+
+    private QueueState[] queues;
+    private int bufferUsed; // Packets queued (sch->q.qlen)
+    private Random random;
+    private long now; // Time of the dequeue at hand
+
+    /**
+     * Build a model of a well-defined policy
+     *
+     * @param oqGen Generator holding the parsed policy
+     * @throws IllegalArgumentException if the policy uses something that has no model
+     */
+    public PolicyModel(OQGen oqGen) {
+        root = oqGen.getRootPort();
+        nodes = oqGen.getSchedNodes();
+        layout = oqGen.getQueueLayout();
+
+        for (int i = 0; i < layout.size(); i++)
+            queueIndex.put(layout.get(i).getName(), i);
+
+        // Same layout as the generated node table
+        nodeFirst = new int[nodes.size()];
+        nodeNum = new int[nodes.size()];
+        nodeLeaf = new boolean[nodes.size()];
+
+        int next = 1, offset = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            Port p = nodes.get(i);
+
+            nodeLeaf[i] = p.isLeaf();
+            if (p.isLeaf()) {
+                nodeFirst[i] = offset;
+                nodeNum[i] = p.getQueues().size();
+                offset += nodeNum[i];
+            } else {
+                nodeFirst[i] = next;
+                nodeNum[i] = p.getPorts().size();
+                next += nodeNum[i];
+            }
+
+            checkModeled(p.getSchedPrio());
+        }
+
+        checkModeled(root.getQueueSelect());
+        for (Queue queue : layout) {
+            checkModeled(queue.getCongestion());
+            checkModeled(queue.getCongAction());
+            checkModeled(queue.getAdmPrio());
+            checkModeled(queue.getProcPrio());
+        }
+    }
+
+    private static void checkModeled(Statement statement) {
+        if (statement instanceof RoutineCallStatement) {
+            String name = ((RoutineCallStatement) statement).getName();
+            if (!RoutineModel.isModeled(name))
+                throw new IllegalArgumentException("No model for routine: " + name);
+        } else if (statement instanceof BuiltinStatement) {
+            String name = ((BuiltinStatement) statement).getName();
+            if (!BuiltinStatement.isBuiltin(name))
+                throw new IllegalArgumentException("No model for built-in: " + name);
+        } else if (!(statement instanceof ClassifyStatement) && !(statement instanceof InlineStatement)) {
+            throw new IllegalArgumentException("No model for statement: " + statement.getStatement());
+        }
+    }
+
+    /**
+     * Simulate a traffic mix. Packets arrive at load times the link rate and the link drains
+     * the qdisc at line rate, as in the userspace benchmark.
+     *
+     * @param profile Traffic mix
+     * @param packets Number of packets offered
+     * @param linkRate Link rate in bytes per second
+     * @param load Offered load relative to the link rate
+     * @param seed Seed of the traffic and of random congestion actions
+     * @return Result
+     */
+    public Result simulate(TrafficProfile profile, long packets, long linkRate, double load, long seed) {
+        Result res = new Result();
+        Random traffic = new Random(seed);
+        long offeredRate = (long) (linkRate * load);
+        long now = NSEC_PER_SEC, start = now;
+        long nextArr = now, linkFree = now, ready = now;
+        long[] sojourn = new long[(int) packets];
+
+        random = new Random(seed + 1);
+        bufferUsed = 0;
+        queues = new QueueState[layout.size()];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new QueueState(layout.get(i));
+
+            if (layout.get(i).getRate() != 0) {
+                queues[i].buffer = l2t(layout.get(i), layout.get(i).getBurst());
+                queues[i].tokens = queues[i].buffer;
+                queues[i].tc = now;
+            }
+        }
+
+        for (;;) {
+            // Arrival
+            if (res.offered < packets && nextArr <= ready) {
+                now = nextArr;
+
+                Packet pkt = profile.next(traffic, res.offered);
+                pkt.arrival = now;
+                enqueue(pkt);
+                res.offered++;
+
+                // Bursts are paced as a whole
+                if (!profile.isBursty())
+                    nextArr += txTime(offeredRate, pkt.len);
+                else if (res.offered % TrafficProfile.INCAST_FANIN == 0)
+                    nextArr += txTime(offeredRate, (long) pkt.len * TrafficProfile.INCAST_FANIN);
+
+                if (ready == NEVER)
+                    ready = Math.max(linkFree, now);
+                continue;
+            }
+
+            if (ready == NEVER)
+                break;
+
+            // Link is idle
+            now = ready;
+
+            long[] wakeup = {0};
+            Packet pkt = dequeue(now, wakeup);
+            if (pkt != null) {
+                sojourn[(int) res.dequeued++] = now - pkt.arrival;
+                res.bytes += pkt.len;
+                linkFree = now + txTime(linkRate, pkt.len);
+                ready = linkFree;
+            } else if (wakeup[0] > now) {
+                ready = wakeup[0]; // Throttled
+            } else {
+                ready = NEVER; // Empty or stalled until the next arrival
+            }
+        }
+
+        for (QueueState q : queues) {
+            res.dropped += q.dropped;
+            res.stranded += q.len;
+        }
+
+        res.durationNs = Math.max(linkFree, now) - start;
+        res.sojourn = Arrays.copyOf(sojourn, (int) res.dequeued);
+        Arrays.sort(res.sojourn);
+
+        return res;
+    }
+
+    private static long txTime(long rate, long len) {
+        return len * NSEC_PER_SEC / rate;
+    }
+
+    private static long l2t(Queue queue, long len) {
+        return len * NSEC_PER_SEC / queue.getRate();
+    }
+
+    /* Enqueue (oq_enqueue) */
+    private void enqueue(Packet pkt) {
+        int qId = selectQueue(pkt);
+        QueueState q = queues[qId >= 0 && qId < queues.length ? qId : 0];
+
+        // A queue that always pushes out treats a full buffer as congestion
+        if (root.getBuffer() != 0 && !bufferAdmit(q)) {
+            if (q.queue.isPushout())
+                pushout(q, pkt);
+            else
+                q.dropped++;
+            return;
+        }
+
+        if (!congested(q, pkt)) {
+            doEnqueue(q, pkt);
+            return;
+        }
+
+        switch (congAction(q, pkt)) {
+            case RoutineModel.OQ_CON_ACT_DROP_TAIL:
+                doDropTail(q);
+                doEnqueue(q, pkt);
+                break;
+            case RoutineModel.OQ_CON_ACT_PUSHOUT:
+                pushout(q, pkt);
+                break;
+            default: // The core drops the packet for other actions
+                q.dropped++;
+        }
+    }
+
+    /* Dynamic threshold of the shared buffer (oq_buffer_admit) */
+    private boolean bufferAdmit(QueueState q) {
+        int free = root.getBuffer() - bufferUsed;
+        int shift = root.getAlphaShift();
+
+        if (free <= 0)
+            return false;
+
+        return q.len < (shift >= 0 ? free << shift : free >> -shift);
+    }
+
+    /* Drop the worse of the new packet and the packet with the largest admission key of the port (oq_pushout) */
+    private void pushout(QueueState q, Packet pkt) {
+        long admnKey = priority(q.queue.getAdmPrio(), q, pkt);
+        QueueState victim = null;
+
+        for (QueueState other : queues) {
+            if (!other.admnQ.isEmpty() && (victim == null || other.admnQ.lastKey() > victim.admnQ.lastKey()))
+                victim = other;
+        }
+
+        if (victim == null || victim.admnQ.lastKey() <= admnKey) {
+            q.dropped++;
+            return;
+        }
+
+        doDropTail(victim);
+        doEnqueue(q, pkt, admnKey);
+    }
+
+    private void doEnqueue(QueueState q, Packet pkt) {
+        doEnqueue(q, pkt, priority(q.queue.getAdmPrio(), q, pkt));
+    }
+
+    private void doEnqueue(QueueState q, Packet pkt, long admnKey) {
+        long procKey = priority(q.queue.getProcPrio(), q, pkt);
+
+        q.admnQ.computeIfAbsent(admnKey, k -> new ArrayDeque<>()).addLast(pkt);
+        q.procQ.computeIfAbsent(procKey, k -> new ArrayDeque<>()).addLast(pkt);
+        q.keys.put(pkt, new long[]{admnKey, procKey});
+
+        q.len++;
+        q.total++;
+        bufferUsed++;
+    }
+
+    private void doDropTail(QueueState q) {
+        Map.Entry<Long, ArrayDeque<Packet>> last = q.admnQ.lastEntry();
+        if (last == null)
+            return;
+
+        Packet pkt = last.getValue().pollFirst(); // Oldest of the largest key
+        if (last.getValue().isEmpty())
+            q.admnQ.remove(last.getKey());
+
+        remove(q.procQ, q.keys.remove(pkt)[1], pkt);
+
+        q.len--;
+        q.dropped++;
+        bufferUsed--;
+    }
+
+    private Packet doDequeue(QueueState q) {
+        expire(q);
+
+        Map.Entry<Long, ArrayDeque<Packet>> last = q.procQ.lastEntry();
+        if (last == null)
+            return null;
+
+        Packet pkt = last.getValue().pollFirst();
+        if (last.getValue().isEmpty())
+            q.procQ.remove(last.getKey());
+
+        remove(q.admnQ, q.keys.remove(pkt)[0], pkt);
+
+        if (q.finish != null) // Virtual clock of sfq_vtime
+            q.vtime = Math.max(q.vtime, ~last.getKey());
+
+        q.len--;
+        bufferUsed--;
+
+        return pkt;
+    }
+
+    private Packet doPeek(QueueState q) {
+        expire(q);
+
+        Map.Entry<Long, ArrayDeque<Packet>> last = q.procQ.lastEntry();
+
+        return last == null ? null : last.getValue().peekFirst();
+    }
+
+    /* Drop packets past their deadline (oq_wheel_expire); keys are negated deadlines */
+    private void expire(QueueState q) {
+        if (q.budget == 0)
+            return;
+
+        Map.Entry<Long, ArrayDeque<Packet>> last;
+        while ((last = q.procQ.lastEntry()) != null && -last.getKey() < now) {
+            Packet pkt = last.getValue().pollFirst();
+            if (last.getValue().isEmpty())
+                q.procQ.remove(last.getKey());
+
+            remove(q.admnQ, q.keys.remove(pkt)[0], pkt);
+
+            q.len--;
+            q.dropped++;
+            bufferUsed--;
+        }
+    }
+
+    /* Earliest deadline queued, after expiry (oq_next_deadline, 0 if there is none) */
+    private long nextDeadline() {
+        long next = 0;
+
+        for (QueueState q : queues) {
+            if (q.budget == 0)
+                continue;
+
+            expire(q);
+            if (!q.procQ.isEmpty() && (next == 0 || -q.procQ.lastKey() < next))
+                next = -q.procQ.lastKey();
+        }
+
+        return next;
+    }
+
+    private static void remove(TreeMap<Long, ArrayDeque<Packet>> tree, long key, Packet pkt) {
+        ArrayDeque<Packet> list = tree.get(key);
+
+        list.removeFirstOccurrence(pkt);
+        if (list.isEmpty())
+            tree.remove(key);
+    }
+
+    /* Dequeue (oq_dequeue); wakeup[0] is set to the watchdog time when throttled */
+    private Packet dequeue(long now, long[] wakeup) {
+        this.now = now;
+
+        int qId = schedule();
+        QueueState q = queues[qId];
+
+        if (q.queue.getRate() == 0) {
+            Packet pkt = doDequeue(q);
+
+            long deadline = pkt == null ? nextDeadline() : 0;
+            if (deadline != 0)
+                wakeup[0] = deadline + 1;
+
+            return pkt;
+        }
+
+        long wait = 0;
+        for (int i = 0; i < queues.length; i++) {
+            q = queues[(qId + i) % queues.length];
+
+            Packet pkt = doPeek(q);
+            if (pkt == null)
+                continue;
+
+            if (q.queue.getRate() == 0)
+                return doDequeue(q);
+
+            long toks = Math.min(now - q.tc, q.buffer) + q.tokens;
+            if (toks > q.buffer)
+                toks = q.buffer;
+            toks -= l2t(q.queue, pkt.len);
+
+            if (toks >= 0) {
+                q.tc = now;
+                q.tokens = toks;
+
+                return doDequeue(q);
+            }
+
+            if (wait == 0 || -toks < wait)
+                wait = -toks;
+        }
+
+        long deadline = nextDeadline();
+        if (deadline != 0 && (wait == 0 || deadline + 1 < now + wait))
+            wait = deadline + 1 - now;
+
+        if (wait != 0)
+            wakeup[0] = now + wait;
+
+        return null;
+    }
+
+    /* Walk the port hierarchy (oq_schedule) */
+    private int schedule() {
+        int n = 0;
+
+        for (int depth = 0; depth < TCQ_OQ_MAX_DEPTH; depth++) {
+            Statement sched = nodes.get(n).getSchedPrio();
+            int child = isBuiltin(sched, BuiltinStatement.EDF) ? edf(n) : (int) evaluate(sched, null, null);
+            if (child < 0 || child >= nodeNum[n])
+                child = 0;
+
+            if (nodeLeaf[n])
+                return nodeFirst[n] + child;
+
+            n = nodeFirst[n] + child;
+        }
+
+        return 0;
+    }
+
+    /* Queue of a leaf port whose head packet is due first (oq_edf) */
+    private int edf(int n) {
+        int best = -1, other = -1;
+        long bestDeadline = 0;
+
+        for (int i = 0; i < nodeNum[n]; i++) {
+            QueueState q = queues[nodeFirst[n] + i];
+
+            if (q.budget == 0) {
+                if (q.len != 0 && other < 0)
+                    other = i;
+                continue;
+            }
+
+            expire(q);
+            if (!q.procQ.isEmpty() && (best < 0 || -q.procQ.lastKey() < bestDeadline)) {
+                best = i;
+                bestDeadline = -q.procQ.lastKey();
+            }
+        }
+
+        return best >= 0 ? best : Math.max(other, 0);
+    }
+
+    private int selectQueue(Packet pkt) {
+        Statement select = root.getQueueSelect();
+
+        if (select instanceof ClassifyStatement) {
+            String name = ((ClassifyStatement) select).getQueue(pkt::get);
+            return name == null ? 0 : queueIndex.get(name);
+        }
+
+        if (select instanceof BuiltinStatement) { // flow_hash(N)
+            long n = ((BuiltinStatement) select).getParams()[0];
+            return (int) ((pkt.hash() * n) >>> 32);
+        }
+
+        return (int) evaluate(select, null, pkt);
+    }
+
+    private boolean congested(QueueState q, Packet pkt) {
+        return evaluate(q.queue.getCongestion(), q, pkt) != 0;
+    }
+
+    private int congAction(QueueState q, Packet pkt) {
+        return (int) evaluate(q.queue.getCongAction(), q, pkt);
+    }
+
+    private long priority(Statement statement, QueueState q, Packet pkt) {
+        if (isSfq(statement)) { // oq_sfq_vtime
+            long weight = ((BuiltinStatement) statement).getParams()[0];
+            int flow = (int) (pkt.hash() & (q.finish.length - 1));
+
+            q.finish[flow] = Math.max(q.finish[flow], q.vtime) + ((long) pkt.len << 8) / weight;
+            return ~q.finish[flow];
+        }
+
+        if (isBuiltin(statement, BuiltinStatement.DEADLINE)) // oq_deadline; the earliest is the largest key
+            return -(pkt.arrival + q.budget);
+
+        return evaluate(statement, q, pkt);
+    }
+
+    private static boolean isSfq(Statement statement) {
+        return isBuiltin(statement, BuiltinStatement.SFQ_VTIME);
+    }
+
+    private static boolean isBuiltin(Statement statement, String name) {
+        return statement instanceof BuiltinStatement && ((BuiltinStatement) statement).getName().equals(name);
+    }
+
+    /**
+     * Evaluate a statement the way its generated code would
+     *
+     * @param statement Statement
+     * @param q Queue at hand (null for port statements)
+     * @param pkt Packet at hand (null for scheduling)
+     * @return Value (booleans are 0/1)
+     */
+    private long evaluate(Statement statement, QueueState q, Packet pkt) {
+        if (statement instanceof InlineStatement)
+            return evaluateInline(statement.getIR(), q, pkt);
+
+        RoutineCallStatement call = (RoutineCallStatement) statement;
+        double[] params = call.getParams();
+
+        switch (statement.type) {
+            case CONGESTION_CONDITION:
+                return RoutineModel.congestion(call.getName(), q, params) ? 1 : 0;
+            case CONGESTION_ACTION:
+                return RoutineModel.congAction(call.getName(), q, pkt, params, random);
+            case ADMISSION_PRIORITY:
+            case PROCESSING_PRIORITY:
+                return RoutineModel.priority(call.getName(), pkt, params);
+            case QUEUE_SELECTOR:
+                return RoutineModel.queueSelect(call.getName(), pkt, params);
+            case SCHEDULING_PRIORITY:
+                return RoutineModel.schedule(call.getName(), params);
+        }
+
+        return 0;
+    }
+
+    /* Inline statements (IRExpr) */
+    private static long evaluateInline(IRExpr expr, QueueState q, Packet pkt) {
+        return expr.evaluate(attr -> queueAttr(attr, q), field -> pkt == null ? 0 : pkt.get(field));
+    }
+
+    private static long queueAttr(String attr, QueueState q) {
+        if (q == null)
+            return 0;
+
+        switch (attr) {
+            case "max_len":
+                return q.maxLen;
+            case "len":
+                return q.len;
+            case "dropped":
+                return q.dropped;
+        }
+
+        return q.total;
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * PolicyParser Recursive-descent parser for OpenQueue policies. Statements may span lines and
+ *              spacing does not matter. Syntax errors are reported with their position and
+ *              parsing resumes at the next statement, so one run reports several errors.
+ *              Declarations and assignments are handed to OQGen as they are parsed.
+ *
+ *              policy      := { statement }
+ *              statement   := "import" STRING [";"]
+ *                           | "Queue" IDENT ["[" NUMBER "]"] "=" "Queue" "(" NUMBER ")" ";"
+ *                           | "Port" IDENT "=" "Port" "(" IDENT { "," IDENT } ")" ";"
+ *                           | "classify" "{" { rule } "}" [";"]
+ *                           | IDENT "." IDENT "=" value ";"
+ *              rule        := field ( "==" NUMBER | "in" NUMBER "/" NUMBER ) "->" IDENT ";"
+ *                           | "default" "->" IDENT ";"
+ *              value       := "inline" "{" operand [ cmp operand ] "}"
+ *                           | "tuple" "(" element { "," element } ")"
+ *                           | IDENT [ "(" [ arg { "," arg } ] ")" ]
+ *                           | NUMBER
+ *              operand     := "Queue" "." IDENT | field | arg
+ *              element     := ["~"] ( field | "seq" ) ":" NUMBER
+ *              field       := "Packet" "." IDENT { "." IDENT }
+ *              arg         := ["-"] NUMBER
+ *              cmp         := "==" | "!=" | "<" | "<=" | ">" | ">="
+ *
+ *              This program is free software; you can redistribute it and/or
+ *              modify it under the terms of the GNU General Public License
+ *              as published by the Free Software Foundation; either version
+ *              2 of the License, or (at your option) any later version.
+ *
+ * Authors:     Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PolicyParser {
+    private static final int MAX_ERRORS = 20;
+
+    // Right-hand side of an attribute assignment
+    public static class Value {
+        IRExpr inline; // inline{...}
+        String name; // Routine or built-in name
+        List<String> args; // Call arguments (null without parentheses)
+        String number; // Number with an optional unit (E.g. 200mbit)
+    }
+
+    // Thrown on a syntax error once it is reported
+    private static class SyntaxError extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private Lexer lexer;
+    private OQGen oqGen;
+    private Token token;
+    private int errors = 0;
+
+    /**
+     * @param src Policy text
+     * @param oqGen Generator the statements are handed to
+     */
+    public PolicyParser(String src, OQGen oqGen) {
+        this.lexer = new Lexer(src, false);
+        this.oqGen = oqGen;
+    }
+
+    /**
+     * Parse the whole policy
+     *
+     * @return True if the policy is free of errors or false otherwise
+     */
+    public boolean parse() {
+        token = lexer.next();
+
+        while (token.getKind() != Token.Kind.EOF) {
+            if (errors >= MAX_ERRORS) {
+                OQGen.showError("Too many errors", 0);
+                break;
+            }
+
+            try {
+                parseStatement();
+            } catch (SyntaxError e) {
+                recover();
+            }
+        }
+
+        return errors == 0;
+    }
+
+    private void parseStatement() throws SyntaxError {
+        Token start = token;
+
+        if (token.is("import")) {
+            advance();
+            Token file = expect(Token.Kind.STRING, "header filename");
+            if (token.is(";"))
+                advance();
+
+            if (!oqGen.processImport(file.getText()))
+                showError("Error while processing import: " + file.getText(), start);
+        } else if (token.is("Queue")) {
+            parseQueueDeclaration();
+        } else if (token.is("Port")) {
+            parsePortDeclaration();
+        } else if (token.is("classify")) {
+            parseClassify();
+        } else if (token.getKind() == Token.Kind.IDENT) {
+            parseAssignment();
+        } else {
+            syntaxError("Unexpected " + token.describe());
+        }
+    }
+
+    /* "Queue" IDENT ["[" NUMBER "]"] "=" "Queue" "(" NUMBER ")" ";" */
+    private void parseQueueDeclaration() throws SyntaxError {
+        Token start = token;
+        int count = 0;
+
+        advance();
+        String name = expect(Token.Kind.IDENT, "queue name").getText();
+        if (token.is("[")) {
+            advance();
+            count = parseInt();
+            expect("]");
+        }
+
+        expect("=");
+        expect("Queue");
+        expect("(");
+        int size = parseInt();
+        expect(")");
+        expect(";");
+
+        if (!oqGen.declareQueue(name, count, size))
+            showError("Invalid Queue declaration: " + name, start);
+    }
+
+    /*
+     * "Port" IDENT "=" "Port" "(" IDENT { "," IDENT } [ ";" option { "," option } ] ")" ";"
+     * option: IDENT "=" value (E.g. Port(q1, q2; buffer = 8192), same as p.buffer = 8192;)
+     */
+    private void parsePortDeclaration() throws SyntaxError {
+        Token start = token;
+        List<String> children = new ArrayList<>();
+        List<Token> optionStarts = new ArrayList<>();
+        List<String> options = new ArrayList<>();
+        List<Value> values = new ArrayList<>();
+
+        advance();
+        String name = expect(Token.Kind.IDENT, "port name").getText();
+        expect("=");
+        expect("Port");
+        expect("(");
+        children.add(expect(Token.Kind.IDENT, "queue or port name").getText());
+        while (token.is(",")) {
+            advance();
+            children.add(expect(Token.Kind.IDENT, "queue or port name").getText());
+        }
+        if (token.is(";")) {
+            do {
+                advance();
+                optionStarts.add(token);
+                options.add(expect(Token.Kind.IDENT, "port attribute").getText());
+                expect("=");
+                values.add(parseValue());
+            } while (token.is(","));
+        }
+        expect(")");
+        expect(";");
+
+        if (!oqGen.declarePort(name, children)) {
+            showError("Invalid Port declaration: " + name, start);
+            return;
+        }
+
+        for (int i = 0; i < options.size(); i++) {
+            if (!oqGen.assign(name, options.get(i), values.get(i), optionStarts.get(i).getLine()))
+                errors++;
+        }
+    }
+
+    /* "classify" "{" { rule } "}" [";"] */
+    private void parseClassify() throws SyntaxError {
+        Token start = token;
+        ClassifyStatement classifier = new ClassifyStatement();
+        boolean valid = true;
+
+        advance();
+        expect("{");
+
+        while (!token.is("}")) {
+            if (token.getKind() == Token.Kind.EOF)
+                syntaxError("'}' expected but found " + token.describe());
+
+            try {
+                valid &= parseRule(classifier);
+            } catch (SyntaxError e) { // Resume at the next rule
+                valid = false;
+                while (token.getKind() != Token.Kind.EOF && !token.is(";") && !token.is("}"))
+                    advance();
+                if (token.is(";"))
+                    advance();
+            }
+        }
+
+        advance();
+        if (token.is(";"))
+            advance();
+
+        if (valid && !oqGen.setClassifier(classifier))
+            showError("Only one classify block is allowed", start);
+    }
+
+    /* field ( "==" NUMBER | "in" NUMBER "/" NUMBER ) "->" IDENT ";" | "default" "->" IDENT ";" */
+    private boolean parseRule(ClassifyStatement classifier) throws SyntaxError {
+        Token start = token;
+        String field = null, op = null, value = null;
+
+        if (token.is("default")) {
+            advance();
+        } else {
+            field = parseFieldName();
+
+            if (token.is("==")) {
+                op = token.getText();
+                advance();
+                value = expect(Token.Kind.NUMBER, "value").getText();
+            } else if (token.is("in")) {
+                op = token.getText();
+                advance();
+                value = expect(Token.Kind.NUMBER, "address").getText();
+                expect("/");
+                value += "/" + expect(Token.Kind.NUMBER, "prefix length").getText();
+            } else {
+                syntaxError("'==' or 'in' expected but found " + token.describe());
+            }
+        }
+
+        expect("->");
+        String queue = expect(Token.Kind.IDENT, "queue name").getText();
+        if (!token.is("}"))
+            expect(";");
+
+        if (!(field == null ? classifier.setDefaultQueue(queue) : classifier.addRule(field, op, value, queue))) {
+            showError("Invalid classify rule", start);
+            return false;
+        }
+
+        return true;
+    }
+
+    /* IDENT "." IDENT "=" value ";" */
+    private void parseAssignment() throws SyntaxError {
+        Token start = token;
+
+        String objName = token.getText();
+        advance();
+        expect(".");
+        String attr = expect(Token.Kind.IDENT, "attribute").getText();
+        expect("=");
+        Value value = parseValue();
+        expect(";");
+
+        if (!oqGen.assign(objName, attr, value, start.getLine()))
+            errors++;
+    }
+
+    private Value parseValue() throws SyntaxError {
+        Value value = new Value();
+
+        if (token.getKind() == Token.Kind.NUMBER) {
+            value.number = token.getText();
+            advance();
+        } else if (token.is("inline")) {
+            advance();
+            expect("{");
+            value.inline = parseOperand();
+            if (isComparison(token)) {
+                String op = token.getText();
+                advance();
+                value.inline = IRExpr.compare(op, value.inline, parseOperand());
+            }
+            expect("}");
+        } else if (token.is("tuple")) {
+            value.inline = parseTuple();
+        } else {
+            checkRange();
+            value.name = expect(Token.Kind.IDENT, "value").getText();
+
+            if (token.is("(")) {
+                value.args = new ArrayList<>();
+                advance();
+
+                if (!token.is(")")) {
+                    value.args.add(parseArg());
+                    while (token.is(",")) {
+                        advance();
+                        value.args.add(parseArg());
+                    }
+                }
+                expect(")");
+            }
+        }
+
+        return value;
+    }
+
+    /*
+     * "tuple" "(" element { "," element } ")"
+     * E.g. tuple(Packet.tos:3, Packet.tot_len:16, seq:32) orders by IP precedence, then by
+     * length and then by arrival. seq is the arrival count of the queue, earlier arrivals
+     * ranking higher; "~" makes smaller values of a field rank higher.
+     */
+    private IRExpr parseTuple() throws SyntaxError {
+        Token start = token;
+        List<IRExpr> parts = new ArrayList<>();
+        List<Integer> widths = new ArrayList<>();
+        List<Boolean> inverted = new ArrayList<>();
+
+        advance();
+        expect("(");
+        do {
+            if (!parts.isEmpty())
+                advance();
+
+            boolean invert = token.is("~");
+            if (invert)
+                advance();
+
+            Token at = token;
+            IRExpr part;
+            if (token.is("seq")) {
+                advance();
+                part = IRExpr.queueAttr("total");
+                invert = !invert; // Earlier arrivals first
+            } else {
+                PacketField field = PacketField.fromName(parseFieldName());
+                if (field == null)
+                    syntaxError("Unknown packet field", at);
+                part = IRExpr.packetField(field);
+            }
+
+            expect(":");
+            Token widthToken = token;
+            int width = parseInt();
+            if (width < 1 || width > part.getWidth())
+                syntaxError("Width of a " + part.getWidth() + "-bit field must be 1 to " + part.getWidth(),
+                        widthToken);
+
+            parts.add(part);
+            widths.add(width);
+            inverted.add(invert);
+        } while (token.is(","));
+        expect(")");
+
+        int[] w = new int[widths.size()];
+        boolean[] inv = new boolean[inverted.size()];
+        for (int i = 0; i < w.length; i++) {
+            w[i] = widths.get(i);
+            inv[i] = inverted.get(i);
+        }
+
+        IRExpr key = IRExpr.pack(parts, w, inv);
+        if (key == null)
+            syntaxError("Tuple is wider than " + IRExpr.KEY_WIDTH + " bits", start);
+
+        return key;
+    }
+
+    /* "Queue" "." IDENT | field | arg */
+    private IRExpr parseOperand() throws SyntaxError {
+        if (token.is("Queue")) {
+            advance();
+            expect(".");
+            return IRExpr.queueAttr(expect(Token.Kind.IDENT, "queue attribute").getText());
+        }
+
+        if (token.is("Packet")) {
+            Token start = token;
+            PacketField field = PacketField.fromName(parseFieldName());
+            if (field == null)
+                syntaxError("Unknown packet field", start);
+
+            return IRExpr.packetField(field);
+        }
+
+        Token start = token;
+        String arg = parseArg();
+        try {
+            return IRExpr.constant((int) Double.parseDouble(arg), IRExpr.Type.INT);
+        } catch (NumberFormatException e) {
+            syntaxError("Invalid number " + start.describe(), start);
+        }
+
+        return null;
+    }
+
+    /* "Packet" "." IDENT { "." IDENT } */
+    private String parseFieldName() throws SyntaxError {
+        String name = expect("Packet").getText();
+
+        do {
+            expect(".");
+            name += "." + expect(Token.Kind.IDENT, "packet field").getText();
+        } while (token.is("."));
+
+        return name;
+    }
+
+    /* ["-"] NUMBER */
+    private String parseArg() throws SyntaxError {
+        String sign = "";
+
+        checkRange();
+        if (token.is("-")) {
+            sign = "-";
+            advance();
+        }
+
+        return sign + expect(Token.Kind.NUMBER, "number").getText();
+    }
+
+    private int parseInt() throws SyntaxError {
+        Token start = token;
+        String number = parseArg();
+
+        try {
+            return Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            syntaxError("Integer expected but found " + start.describe(), start);
+        }
+
+        return 0;
+    }
+
+    /* Parameter ranges are expanded by OQTune */
+    private void checkRange() throws SyntaxError {
+        if (token.is(OQTune.RANGE))
+            syntaxError("Parameter ranges are only supported by OQTune");
+    }
+
+    private static boolean isComparison(Token t) {
+        return t.is("==") || t.is("!=") || t.is("<") || t.is("<=") || t.is(">") || t.is(">=");
+    }
+
+    private void advance() {
+        token = lexer.next();
+    }
+
+    private Token expect(String text) throws SyntaxError {
+        if (!token.is(text))
+            syntaxError("'" + text + "' expected but found " + token.describe());
+
+        Token t = token;
+        advance();
+        return t;
+    }
+
+    private Token expect(Token.Kind kind, String what) throws SyntaxError {
+        if (token.getKind() != kind)
+            syntaxError(what.substring(0, 1).toUpperCase() + what.substring(1) + " expected but found " +
+                    token.describe());
+
+        Token t = token;
+        advance();
+        return t;
+    }
+
+    /**
+     * Error recovery: skip to the end of the statement the error is in
+     */
+    private void recover() {
+        while (token.getKind() != Token.Kind.EOF && !token.is(";"))
+            advance();
+
+        if (token.getKind() != Token.Kind.EOF)
+            advance();
+    }
+
+    private void syntaxError(String msg) throws SyntaxError {
+        syntaxError(msg, token);
+    }
+
+    private void syntaxError(String msg, Token at) throws SyntaxError {
+        showError(msg, at);
+        throw new SyntaxError();
+    }
+
+    private void showError(String msg, Token at) {
+        errors++;
+        System.out.println("ERROR| " + msg + " (Line: " + at.getLine() + ", Column: " + at.getColumn() + ")");
+    }
+}
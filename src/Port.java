@@ -10,12 +10,17 @@
  */
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class Port extends Entity {
     private String name = "";
     private Statement queueSelect = null;
     private Statement schedPrio = null;
-    private ArrayList<String> queues = new ArrayList();
+    private ArrayList<String> queues = new ArrayList<>();
+    private ArrayList<String> ports = new ArrayList<>();
+    private int buffer = 0; // Shared buffer in packets (0 when there is none)
+    private int alphaShift = 0; // log2 of the dynamic threshold factor
+    private boolean pacing = false; // Flows are paced at the rate of their sockets
 
     public Port(String name) {
         this.name = name;
@@ -41,11 +46,65 @@ public class Port extends Entity {
         this.schedPrio = schedPrio;
     }
 
+    public int getBuffer() {
+        return buffer;
+    }
+
+    public void setBuffer(int buffer) {
+        this.buffer = buffer;
+    }
+
+    public int getAlphaShift() {
+        return alphaShift;
+    }
+
+    public void setAlphaShift(int alphaShift) {
+        this.alphaShift = alphaShift;
+    }
+
+    public boolean isPacing() {
+        return pacing;
+    }
+
+    public void setPacing(boolean pacing) {
+        this.pacing = pacing;
+    }
+
     public void addQueue(String queue) {
         queues.add(queue);
     }
 
-    public boolean isWellDefined() {
-        return queueSelect != null && schedPrio != null && !queues.isEmpty();
+    public List<String> getQueues() {
+        return queues;
+    }
+
+    public void addPort(String port) {
+        ports.add(port);
+    }
+
+    public List<String> getPorts() {
+        return ports;
+    }
+
+    /**
+     * A leaf port schedules queues while an inner port schedules sub-ports
+     *
+     * @return True if this port holds queues or false otherwise
+     */
+    public boolean isLeaf() {
+        return !queues.isEmpty();
+    }
+
+    /**
+     * Check if the port is well-defined. Only the root port selects queues.
+     *
+     * @param isRoot Whether this is the root of the port hierarchy
+     * @return True if well-defined or false otherwise
+     */
+    public boolean isWellDefined(boolean isRoot) {
+        if (isRoot != (queueSelect != null))
+            return false;
+
+        return schedPrio != null && (queues.isEmpty() != ports.isEmpty());
     }
 }
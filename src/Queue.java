@@ -16,6 +16,8 @@ public class Queue extends Entity {
     private Statement congestion = null;
     private Statement congAction = null;
     private Statement procPrio = null;
+    private long rate = 0;
+    private long burst = 0;
 
     public Queue(String name) {
         this.name = name;
@@ -65,7 +67,36 @@ public class Queue extends Entity {
         this.procPrio = procPrio;
     }
 
+    public long getRate() {
+        return rate;
+    }
+
+    public void setRate(long rate) {
+        this.rate = rate;
+    }
+
+    public long getBurst() {
+        return burst;
+    }
+
+    public void setBurst(long burst) {
+        this.burst = burst;
+    }
+
+    /**
+     * @return True if the congestion action is push-out whatever the state (oq_queue.pushout)
+     */
+    public boolean isPushout() {
+        IRExpr action = congAction != null ? congAction.getIR().fold() : null;
+
+        return action != null && action.isConstant() && action.getValue() == RoutineModel.OQ_CON_ACT_PUSHOUT;
+    }
+
     public boolean isWellDefined() {
+        // A shaped queue needs a bucket to hold at least one packet
+        if (rate != 0 && burst < TcUnits.ETH_MTU)
+            return false;
+
         return admPrio != null && congestion != null && congAction != null && procPrio != null;
     }
 }
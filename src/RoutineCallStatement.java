@@ -10,8 +10,12 @@
  */
 
 public class RoutineCallStatement extends Statement {
+    // Routine arguments are fixed-point numbers with this many fraction bits (TCQ_OQ_PARAM_SHIFT)
+    public static final int PARAM_SHIFT = 32;
+
     private String name;
     private double[] params;
+    private int paramBase = -1; // First argument slot (arguments are literals when -1)
 
     public RoutineCallStatement(String name, RoutineType type) {
         super(type);
@@ -31,6 +35,51 @@ public class RoutineCallStatement extends Statement {
         this.params = params;
     }
 
+    /**
+     * @param value Routine argument
+     * @return True if the argument fits the fixed point of the qdisc core
+     */
+    public static boolean isParamInRange(double value) {
+        double limit = (double) (1L << (63 - PARAM_SHIFT));
+
+        return value < limit && value > -limit;
+    }
+
+    /**
+     * @param value Routine argument (in range)
+     * @return Argument in the fixed point of the qdisc core
+     */
+    public static long toFixed(double value) {
+        return Math.round(value * (1L << PARAM_SHIFT));
+    }
+
+    /**
+     * Read the arguments from slots that tc can change at runtime
+     *
+     * @param paramBase First slot (of the queue, scheduling node or port by routine type)
+     */
+    public void setParamBase(int paramBase) {
+        this.paramBase = paramBase;
+    }
+
+    /**
+     * @param i Argument index
+     * @return C expression of the argument
+     */
+    private String getArg(int i) {
+        if (paramBase < 0)
+            return toFixed(params[i]) + "LL";
+
+        switch (type) {
+            case QUEUE_SELECTOR:
+                return "OQ_PORT_ARG(sch, " + (paramBase + i) + ")";
+            case SCHEDULING_PRIORITY:
+                return "OQ_NODE_ARG(sch, node, " + (paramBase + i) + ")";
+        }
+
+        return "OQ_QUEUE_ARG(queue, " + (paramBase + i) + ")";
+    }
+
     @Override
     public String getStatement() {
         String statement = "";
@@ -60,7 +109,7 @@ public class RoutineCallStatement extends Statement {
             if (params != null && params.length != 0) {
                 statement += ", " + params.length;
                 for (int i = 0; i < params.length; i++)
-                    statement += ", " + params[i];
+                    statement += ", " + getArg(i);
                 statement += ")";
             } else {
                 statement += ", 0)";
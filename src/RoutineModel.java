@@ -0,0 +1,91 @@
+/*
+ * RoutineModel     Java models of the routines in routine/routines.c, used by OQTune to
+ *                  simulate policies. A routine without a model cannot be simulated.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+import java.util.Random;
+
+public class RoutineModel {
+    // Congestion actions (sch_openqueue.h)
+    public static final int OQ_CON_ACT_DROP_HEAD = 1;
+    public static final int OQ_CON_ACT_DROP_TAIL = 2;
+    public static final int OQ_CON_ACT_DROP_PKT = 3;
+    public static final int OQ_CON_ACT_PUSHOUT = 4;
+
+    /**
+     * Check if a routine has a model
+     *
+     * @param name Routine name
+     * @return True if the routine can be simulated
+     */
+    public static boolean isModeled(String name) {
+        switch (name) {
+            case "my_congestion_condition":
+            case "cong_act":
+            case "my_adm_prio":
+            case "my_pro_prio":
+            case "select_admission_queue":
+            case "my_schd_prio":
+                return true;
+        }
+
+        return false;
+    }
+
+    public static boolean congestion(String name, PolicyModel.QueueState queue, double[] params) {
+        switch (name) {
+            case "my_congestion_condition":
+                return queue.len == 256;
+        }
+
+        throw new IllegalArgumentException(name);
+    }
+
+    public static int congAction(String name, PolicyModel.QueueState queue, PolicyModel.Packet pkt,
+                                 double[] params, Random random) {
+        switch (name) {
+            case "cong_act": // Drop the arriving packet with probability params[0], drop tail otherwise
+                if (params == null || params.length < 1)
+                    return OQ_CON_ACT_DROP_TAIL;
+                return random.nextDouble() < params[0] ? OQ_CON_ACT_DROP_PKT : OQ_CON_ACT_DROP_TAIL;
+        }
+
+        throw new IllegalArgumentException(name);
+    }
+
+    public static long priority(String name, PolicyModel.Packet pkt, double[] params) {
+        switch (name) {
+            case "my_adm_prio":
+                return pkt.get(PacketField.TOS);
+            case "my_pro_prio":
+                return pkt.len;
+        }
+
+        throw new IllegalArgumentException(name);
+    }
+
+    public static int queueSelect(String name, PolicyModel.Packet pkt, double[] params) {
+        switch (name) {
+            case "select_admission_queue":
+                return 0;
+        }
+
+        throw new IllegalArgumentException(name);
+    }
+
+    public static int schedule(String name, double[] params) {
+        switch (name) {
+            case "my_schd_prio":
+                return 0;
+        }
+
+        throw new IllegalArgumentException(name);
+    }
+}
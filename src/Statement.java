@@ -17,4 +17,11 @@ public abstract class Statement {
     }
 
     abstract String getStatement();
+
+    /**
+     * @return Statement in the intermediate representation (an opaque call unless overridden)
+     */
+    public IRExpr getIR() {
+        return IRExpr.call(getStatement(), type);
+    }
 }
@@ -0,0 +1,125 @@
+/*
+ * TcUnits      Rate and size parsing compatible with tc (iproute2 tc_util.c).
+ *
+ *              This program is free software; you can redistribute it and/or
+ *              modify it under the terms of the GNU General Public License
+ *              as published by the Free Software Foundation; either version
+ *              2 of the License, or (at your option) any later version.
+ *
+ * Authors:     Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+public class TcUnits {
+    private static final String[] RATE_SUFFIXES = {
+            "bit", "Kibit", "kbit", "mibit", "mbit", "gibit", "gbit", "tibit", "tbit",
+            "Bps", "KiBps", "KBps", "MiBps", "MBps", "GiBps", "GBps", "TiBps", "TBps"
+    };
+
+    private static final double[] RATE_SCALES = {
+            1., 1024., 1000., 1024. * 1024., 1000000., 1024. * 1024. * 1024., 1000000000.,
+            1024. * 1024. * 1024. * 1024., 1000000000000.,
+            8., 8. * 1024., 8000., 8. * 1024 * 1024, 8000000., 8. * 1024. * 1024. * 1024., 8000000000.,
+            8. * 1024. * 1024. * 1024. * 1024., 8000000000000.
+    };
+
+    // Largest packet on an Ethernet device with a 1500 byte MTU (psched_mtu)
+    public static final long ETH_MTU = 1514;
+
+    /**
+     * Parse a rate the same way tc does (get_rate64)
+     *  E.g. 200mbit, 10MBps, 1gbit
+     *
+     * @param str Rate string
+     * @return Rate in bytes per second or -1 if invalid
+     */
+    public static long parseRate(String str) {
+        int end = numberEnd(str);
+        if (end == 0)
+            return -1;
+
+        double bps;
+        try {
+            bps = Double.parseDouble(str.substring(0, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        String suffix = str.substring(end);
+        if (!suffix.isEmpty()) {
+            int i;
+            for (i = 0; i < RATE_SUFFIXES.length; i++) {
+                if (RATE_SUFFIXES[i].equalsIgnoreCase(suffix)) {
+                    bps *= RATE_SCALES[i];
+                    break;
+                }
+            }
+
+            if (i == RATE_SUFFIXES.length) // Unknown suffix
+                return -1;
+        }
+
+        bps /= 8; // -> bytes per second
+        if (bps <= 0 || bps != Math.floor(bps) || bps > Long.MAX_VALUE)
+            return -1;
+
+        return (long) bps;
+    }
+
+    /**
+     * Parse a size the same way tc does (get_size)
+     *  E.g. 64KB, 1mb, 1500
+     *
+     * @param str Size string
+     * @return Size in bytes or -1 if invalid
+     */
+    public static long parseSize(String str) {
+        int end = numberEnd(str);
+        if (end == 0)
+            return -1;
+
+        double sz;
+        try {
+            sz = Double.parseDouble(str.substring(0, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        String suffix = str.substring(end);
+        if (!suffix.isEmpty()) {
+            if (suffix.equalsIgnoreCase("kb") || suffix.equalsIgnoreCase("k"))
+                sz *= 1024;
+            else if (suffix.equalsIgnoreCase("gb") || suffix.equalsIgnoreCase("g"))
+                sz *= 1024 * 1024 * 1024;
+            else if (suffix.equalsIgnoreCase("gbit"))
+                sz *= 1024 * 1024 * 1024 / 8;
+            else if (suffix.equalsIgnoreCase("mb") || suffix.equalsIgnoreCase("m"))
+                sz *= 1024 * 1024;
+            else if (suffix.equalsIgnoreCase("mbit"))
+                sz *= 1024 * 1024 / 8;
+            else if (suffix.equalsIgnoreCase("kbit"))
+                sz *= 1024 / 8;
+            else if (!suffix.equalsIgnoreCase("b"))
+                return -1;
+        }
+
+        if (sz <= 0 || sz > 0xffffffffL)
+            return -1;
+
+        return (long) sz;
+    }
+
+    /**
+     * Find the end of the leading numeric part of a string
+     *
+     * @param str String
+     * @return Index of the first character after the number
+     */
+    private static int numberEnd(String str) {
+        int i = 0;
+
+        while (i < str.length() && (Character.isDigit(str.charAt(i)) || str.charAt(i) == '.'))
+            i++;
+
+        return i;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Token        Lexical token of a policy or an annotated C header, with its source position.
+ *
+ *              This program is free software; you can redistribute it and/or
+ *              modify it under the terms of the GNU General Public License
+ *              as published by the Free Software Foundation; either version
+ *              2 of the License, or (at your option) any later version.
+ *
+ * Authors:     Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+public class Token {
+    public enum Kind {
+        IDENT,
+        NUMBER, // Numbers, including units and dotted quads (E.g. 128, 0.85, 0x10, 200mbit, 10.0.0.0)
+        STRING,
+        PUNCT,
+        COMMENT, // Only returned for C headers
+        ERROR,
+        EOF
+    }
+
+    private Kind kind;
+    private String text;
+    private int line;
+    private int column;
+
+    public Token(Kind kind, String text, int line, int column) {
+        this.kind = kind;
+        this.text = text;
+        this.line = line;
+        this.column = column;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * Check if this is the given punctuator or identifier (keyword)
+     *
+     * @param text Text of the token
+     * @return True if it matches
+     */
+    public boolean is(String text) {
+        return (kind == Kind.PUNCT || kind == Kind.IDENT) && this.text.equals(text);
+    }
+
+    /**
+     * @return Token as shown in error messages
+     */
+    public String describe() {
+        switch (kind) {
+            case EOF:
+                return "end of file";
+            case STRING:
+                return "\"" + text + "\"";
+            case ERROR:
+                return text;
+        }
+
+        return "'" + text + "'";
+    }
+}
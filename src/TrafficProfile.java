@@ -0,0 +1,107 @@
+/*
+ * TrafficProfile   Traffic mixes used to simulate policies. They match the mixes of the
+ *                  userspace benchmark (userspace/oq_bench.c).
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+import java.util.Random;
+
+public enum TrafficProfile {
+    IMIX("imix"),
+    B64("64b"),
+    ELEPHANT_MICE("elephant_mice"),
+    INCAST("incast"),
+    TOS("tos");
+
+    public static final int INCAST_FANIN = 32;
+
+    private static final int[] TOS_VALUES = {0x00, 0x10, 0x28, 0xb8};
+
+    private String name;
+
+    TrafficProfile(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return True if packets arrive in bursts paced as a whole
+     */
+    public boolean isBursty() {
+        return this == INCAST;
+    }
+
+    /**
+     * Generate the next packet of the mix
+     *
+     * @param random Random source
+     * @param index Index of the packet in the run
+     * @return Packet without an arrival time
+     */
+    public PolicyModel.Packet next(Random random, long index) {
+        PolicyModel.Packet pkt = new PolicyModel.Packet();
+        int r = random.nextInt() >>> 1;
+
+        pkt.saddr = 0x0a000001L;
+        pkt.daddr = 0x0a010001L;
+        pkt.dport = 5001;
+        pkt.protocol = 17; // UDP
+
+        switch (this) {
+            case IMIX: // 64/576/1500 bytes at 7:4:1
+                pkt.sport = 1024 + (r & 0xff);
+                pkt.len = (r % 12) < 7 ? 64 : (r % 12) < 11 ? 576 : 1500;
+                break;
+            case B64:
+                pkt.sport = 1024 + (r & 0xff);
+                pkt.len = 64;
+                break;
+            case ELEPHANT_MICE: // 4 elephants carry 80% of the packets, the rest come from 4096 mice
+                if (r % 10 < 8) {
+                    pkt.sport = 80 + (r >>> 8) % 4;
+                    pkt.len = 1500;
+                } else {
+                    pkt.sport = 1024 + (r >>> 8) % 4096;
+                    pkt.len = 64 + (r >>> 4) % 512;
+                }
+                break;
+            case INCAST: // One sender per packet of a burst
+                pkt.saddr += INCAST_FANIN - index % INCAST_FANIN;
+                pkt.dport = 5201;
+                pkt.protocol = 6; // TCP
+                pkt.len = 1500;
+                break;
+            case TOS:
+                pkt.sport = 1024 + (r & 0xff);
+                pkt.tos = TOS_VALUES[(r >>> 12) & 3];
+                pkt.len = 64 + r % (1500 - 64 + 1);
+                break;
+        }
+
+        return pkt;
+    }
+
+    /**
+     * Resolve a profile from its name
+     *
+     * @param name Name (E.g. imix)
+     * @return Profile or null if there is no such profile
+     */
+    public static TrafficProfile fromName(String name) {
+        for (TrafficProfile profile : values()) {
+            if (profile.name.equals(name))
+                return profile;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * oq_capture.c     Records the arrivals of an openqueue qdisc into a trace file.
+ *
+ *                  Reads the per-CPU relay files the core writes when capture is on
+ *                  (tc qdisc change dev eth0 root openqueue set capture 1) until it is
+ *                  interrupted or has PACKETS records, and writes them in time order to
+ *                  FILE (oq_capture.h), ready for oq_replay. Records of different CPUs
+ *                  interleave in the channels, so the file is sorted once capture ends.
+ *                  Sub-buffers that filled up before they were read are lost in the kernel
+ *                  rather than slowing the qdisc down; use -n or a short capture on busy ports.
+ *
+ *                  Usage: oq_capture [-n PACKETS] DIR FILE
+ *                         DIR is <debugfs>/openqueue/<dev>-<major> (E.g. eth0-1)
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#include <errno.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <signal.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/mman.h>
+
+#include "../include/qdisc/oq_capture.h"
+#include "../include/qdisc/oq_telemetry.h"
+
+#define OQ_CAPTURE_MAX_CPU	1024
+
+/* Per-CPU relay file with a partially read record */
+struct oq_reader {
+	int fd;
+	size_t have;
+	char buf[sizeof(struct oq_capture_rec)];
+};
+
+static volatile sig_atomic_t oq_stop;
+
+static void oq_on_signal(int sig)
+{
+	oq_stop = 1;
+}
+
+static void usage(const char *prog)
+{
+	fprintf(stderr, "Usage: %s [-n PACKETS] DIR FILE\n", prog);
+	fprintf(stderr, "       DIR is <debugfs>/%s/<dev>-<major>\n", OQ_TELEMETRY_DIR);
+}
+
+/* Open the relay files of all CPUs */
+static int oq_open_readers(const char *dir, struct oq_reader *readers)
+{
+	char path[4096];
+	int cpu, n;
+
+	n = 0;
+	for (cpu = 0; cpu < OQ_CAPTURE_MAX_CPU; cpu++) {
+		int fd;
+
+		snprintf(path, sizeof(path), "%s/%s%d", dir, OQ_CAPTURE_FILE, cpu);
+		fd = open(path, O_RDONLY | O_NONBLOCK);
+		if (fd < 0) {
+			if (errno == ENOENT)
+				continue;
+			perror(path);
+			return -1;
+		}
+
+		readers[n].fd = fd;
+		readers[n].have = 0;
+		n++;
+	}
+
+	return n;
+}
+
+/* Copy complete records of a relay file to the trace; returns records written or -1 */
+static long oq_drain(struct oq_reader *r, FILE *out, long limit)
+{
+	long written = 0;
+	ssize_t len;
+
+	while (limit < 0 || written < limit) {
+		len = read(r->fd, r->buf + r->have, sizeof(r->buf) - r->have);
+		if (len < 0)
+			return errno == EAGAIN ? written : -1;
+		if (len == 0)
+			break;
+
+		r->have += len;
+		if (r->have < sizeof(r->buf))
+			continue;
+
+		r->have = 0;
+		if (fwrite(r->buf, sizeof(r->buf), 1, out) != 1)
+			return -1;
+		written++;
+	}
+
+	return written;
+}
+
+static int oq_cmp_rec(const void *a, const void *b)
+{
+	const struct oq_capture_rec *x = a, *y = b;
+
+	return x->time < y->time ? -1 : x->time > y->time;
+}
+
+/* Write the header and put the records in time order */
+static int oq_finish(const char *file, FILE *out, long total)
+{
+	struct oq_capture_hdr hdr = {
+		.magic = OQ_CAPTURE_MAGIC,
+		.version = OQ_CAPTURE_VERSION,
+		.rec_size = sizeof(struct oq_capture_rec),
+		.num_recs = total,
+	};
+	size_t size = sizeof(hdr) + total * sizeof(struct oq_capture_rec);
+	void *map;
+
+	if (fseek(out, 0, SEEK_SET) != 0 || fwrite(&hdr, sizeof(hdr), 1, out) != 1 || fflush(out) != 0) {
+		perror(file);
+		return -1;
+	}
+
+	if (total == 0)
+		return 0;
+
+	map = mmap(NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fileno(out), 0);
+	if (map == MAP_FAILED) {
+		perror(file);
+		return -1;
+	}
+
+	qsort((char *)map + sizeof(hdr), total, sizeof(struct oq_capture_rec), oq_cmp_rec);
+	munmap(map, size);
+
+	return 0;
+}
+
+int main(int argc, char **argv)
+{
+	static struct oq_reader readers[OQ_CAPTURE_MAX_CPU];
+	struct pollfd fds[OQ_CAPTURE_MAX_CPU];
+	struct oq_capture_hdr hdr = { 0 };
+	long limit = -1, total = 0;
+	const char *file;
+	FILE *out;
+	int opt, n, i;
+
+	while ((opt = getopt(argc, argv, "n:h")) != -1) {
+		switch (opt) {
+			case 'n':
+				limit = atol(optarg);
+				break;
+			default:
+				usage(argv[0]);
+				return 2;
+		}
+	}
+
+	if (optind != argc - 2) {
+		usage(argv[0]);
+		return 2;
+	}
+	file = argv[optind + 1];
+
+	n = oq_open_readers(argv[optind], readers);
+	if (n < 0)
+		return 1;
+	if (n == 0) {
+		fprintf(stderr, "oq_capture: no %s files in %s (is capture on?)\n", OQ_CAPTURE_FILE, argv[optind]);
+		return 1;
+	}
+
+	out = fopen(file, "w+b");
+	if (NULL == out || fwrite(&hdr, sizeof(hdr), 1, out) != 1) { /* Written again at the end */
+		perror(file);
+		return 1;
+	}
+
+	signal(SIGINT, oq_on_signal);
+	signal(SIGTERM, oq_on_signal);
+
+	for (i = 0; i < n; i++) {
+		fds[i].fd = readers[i].fd;
+		fds[i].events = POLLIN;
+	}
+
+	while (!oq_stop && (limit < 0 || total < limit)) {
+		if (poll(fds, n, 100) < 0) {
+			if (errno == EINTR)
+				continue;
+			perror("poll");
+			return 1;
+		}
+
+		/* Relay files also become readable on a timeout, so every file is drained */
+		for (i = 0; i < n && (limit < 0 || total < limit); i++) {
+			long written = oq_drain(&readers[i], out, limit < 0 ? -1 : limit - total);
+
+			if (written < 0) {
+				perror("read");
+				return 1;
+			}
+			total += written;
+		}
+	}
+
+	for (i = 0; i < n; i++)
+		close(readers[i].fd);
+
+	if (oq_finish(file, out, total) != 0)
+		return 1;
+	fclose(out);
+
+	fprintf(stderr, "oq_capture: %ld packets in %s\n", total, file);
+
+	return 0;
+}
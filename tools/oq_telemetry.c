@@ -0,0 +1,190 @@
+/*
+ * oq_telemetry.c   Streams the queue samples of an openqueue qdisc as CSV.
+ *
+ *                  Reads the per-CPU relay files the core writes when telemetry is on
+ *                  (tc qdisc change dev eth0 root openqueue set telemetry 100000) and
+ *                  prints one line per sample:
+ *
+ *                      time_ns,cpu,queue,len,bytes,dropped,sojourn_ns
+ *
+ *                  Lines of different CPUs interleave, so times are ordered per CPU only.
+ *                  Sub-buffers that filled up before they were read are lost in the kernel
+ *                  rather than slowing the qdisc down.
+ *
+ *                  Usage: oq_telemetry [-n SAMPLES] [-q QUEUE] DIR
+ *                         DIR is <debugfs>/openqueue/<dev>-<major> (E.g. eth0-1)
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#include <errno.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <signal.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#include "../include/qdisc/oq_telemetry.h"
+
+#define OQ_TELEMETRY_MAX_CPU	1024
+
+/* Per-CPU relay file with a partially read sample */
+struct oq_reader {
+	int fd;
+	int cpu;
+	size_t have;
+	char buf[sizeof(struct oq_telemetry_sample)];
+};
+
+static volatile sig_atomic_t oq_stop;
+
+static void oq_on_signal(int sig)
+{
+	oq_stop = 1;
+}
+
+static void usage(const char *prog)
+{
+	fprintf(stderr, "Usage: %s [-n SAMPLES] [-q QUEUE] DIR\n", prog);
+	fprintf(stderr, "       DIR is <debugfs>/%s/<dev>-<major>\n", OQ_TELEMETRY_DIR);
+}
+
+/* Open the relay files of all CPUs */
+static int oq_open_readers(const char *dir, struct oq_reader *readers)
+{
+	char path[4096];
+	int cpu, n;
+
+	n = 0;
+	for (cpu = 0; cpu < OQ_TELEMETRY_MAX_CPU; cpu++) {
+		int fd;
+
+		snprintf(path, sizeof(path), "%s/%s%d", dir, OQ_TELEMETRY_FILE, cpu);
+		fd = open(path, O_RDONLY | O_NONBLOCK);
+		if (fd < 0) {
+			if (errno == ENOENT)
+				continue;
+			perror(path);
+			return -1;
+		}
+
+		readers[n].fd = fd;
+		readers[n].cpu = cpu;
+		readers[n].have = 0;
+		n++;
+	}
+
+	return n;
+}
+
+/* Read what a relay file has, printing complete samples; returns samples printed or -1 */
+static long oq_drain(struct oq_reader *r, int queue, long limit)
+{
+	struct oq_telemetry_sample sample;
+	long printed = 0;
+	ssize_t len;
+
+	while (limit < 0 || printed < limit) {
+		len = read(r->fd, r->buf + r->have, sizeof(r->buf) - r->have);
+		if (len < 0)
+			return errno == EAGAIN ? printed : -1;
+		if (len == 0)
+			break;
+
+		r->have += len;
+		if (r->have < sizeof(r->buf))
+			continue;
+
+		memcpy(&sample, r->buf, sizeof(sample));
+		r->have = 0;
+
+		if (queue >= 0 && sample.queue != (unsigned int)queue)
+			continue;
+
+		printf("%llu,%d,%u,%u,%u,%u,%llu\n", (unsigned long long)sample.time, r->cpu, sample.queue,
+			sample.len, sample.bytes, sample.dropped, (unsigned long long)sample.sojourn);
+		printed++;
+	}
+
+	return printed;
+}
+
+int main(int argc, char **argv)
+{
+	static struct oq_reader readers[OQ_TELEMETRY_MAX_CPU];
+	struct pollfd fds[OQ_TELEMETRY_MAX_CPU];
+	long limit = -1, total = 0;
+	int queue = -1;
+	int opt, n, i;
+
+	while ((opt = getopt(argc, argv, "n:q:h")) != -1) {
+		switch (opt) {
+			case 'n':
+				limit = atol(optarg);
+				break;
+			case 'q':
+				queue = atoi(optarg);
+				break;
+			default:
+				usage(argv[0]);
+				return 2;
+		}
+	}
+
+	if (optind != argc - 1) {
+		usage(argv[0]);
+		return 2;
+	}
+
+	n = oq_open_readers(argv[optind], readers);
+	if (n < 0)
+		return 1;
+	if (n == 0) {
+		fprintf(stderr, "oq_telemetry: no %s files in %s (is telemetry on?)\n", OQ_TELEMETRY_FILE,
+			argv[optind]);
+		return 1;
+	}
+
+	signal(SIGINT, oq_on_signal);
+	signal(SIGTERM, oq_on_signal);
+	setvbuf(stdout, NULL, _IOLBF, 0);
+
+	printf("time_ns,cpu,queue,len,bytes,dropped,sojourn_ns\n");
+
+	for (i = 0; i < n; i++) {
+		fds[i].fd = readers[i].fd;
+		fds[i].events = POLLIN;
+	}
+
+	while (!oq_stop && (limit < 0 || total < limit)) {
+		if (poll(fds, n, 100) < 0) {
+			if (errno == EINTR)
+				continue;
+			perror("poll");
+			return 1;
+		}
+
+		/* Relay files also become readable on a timeout, so every file is drained */
+		for (i = 0; i < n && (limit < 0 || total < limit); i++) {
+			long printed = oq_drain(&readers[i], queue, limit < 0 ? -1 : limit - total);
+
+			if (printed < 0) {
+				perror("read");
+				return 1;
+			}
+			total += printed;
+		}
+	}
+
+	for (i = 0; i < n; i++)
+		close(readers[i].fd);
+
+	return 0;
+}
@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/bitmap.h> */
+#include "../oq_kernel.h"
@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/bitops.h> */
+#include "../oq_kernel.h"
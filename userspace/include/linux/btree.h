@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/btree.h> */
+#include "../oq_kernel.h"
@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/cache.h> */
+#include "../oq_kernel.h"
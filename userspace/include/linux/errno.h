@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/errno.h>; libc's <errno.h> also reaches this header */
+#include_next <linux/errno.h>
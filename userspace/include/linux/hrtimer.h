@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/hrtimer.h> */
+#include "../oq_kernel.h"
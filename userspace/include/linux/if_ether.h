@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/if_ether.h> */
+#include "../oq_kernel.h"
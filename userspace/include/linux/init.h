@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/init.h> */
+#include "../oq_kernel.h"
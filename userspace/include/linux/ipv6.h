@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/ipv6.h> */
+#include "../oq_kernel.h"
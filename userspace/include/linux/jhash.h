@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/jhash.h> */
+#include "../oq_kernel.h"
@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/kernel.h> */
+#include "../oq_kernel.h"
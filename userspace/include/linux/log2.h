@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/log2.h> */
+#include "../oq_kernel.h"
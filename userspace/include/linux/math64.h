@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/math64.h> */
+#include "../oq_kernel.h"
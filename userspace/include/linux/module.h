@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/module.h> */
+#include "../oq_kernel.h"
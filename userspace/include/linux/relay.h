@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/relay.h> */
+#include "../oq_kernel.h"
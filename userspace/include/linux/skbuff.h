@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/skbuff.h> */
+#include "../oq_kernel.h"
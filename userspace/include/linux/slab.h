@@ -0,0 +1,2 @@
+/* Userspace stand-in for <linux/slab.h> */
+#include "../oq_kernel.h"
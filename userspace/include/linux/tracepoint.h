@@ -0,0 +1,9 @@
+/* Userspace stand-in for <linux/tracepoint.h>; events compile to nothing and are never enabled */
+#include "../oq_kernel.h"
+
+#define TP_PROTO(args...)	args
+#define TP_ARGS(args...)	args
+
+#define TRACE_EVENT(name, proto, args, tstruct, assign, print)	\
+	static inline void trace_##name(proto) {}		\
+	static inline bool trace_##name##_enabled(void) { return false; }
@@ -0,0 +1,2 @@
+/* Userspace stand-in for <net/dsfield.h> */
+#include "../oq_kernel.h"
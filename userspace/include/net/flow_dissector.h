@@ -0,0 +1,2 @@
+/* Userspace stand-in for <net/flow_dissector.h> */
+#include "../oq_kernel.h"
@@ -0,0 +1,2 @@
+/* Userspace stand-in for <net/ipv6.h> */
+#include "../oq_kernel.h"
@@ -0,0 +1,2 @@
+/* Userspace stand-in for <net/pkt_sched.h> */
+#include "../oq_kernel.h"
@@ -0,0 +1,2 @@
+/* Userspace stand-in for <net/sch_generic.h> */
+#include "../oq_kernel.h"
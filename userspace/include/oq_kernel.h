@@ -0,0 +1,679 @@
+/*
+ * oq_kernel.h      Userspace stand-ins for the kernel APIs used by the OpenQueue core,
+ *                  generated policies and routines. Only what OpenQueue uses is provided,
+ *                  with the same names and semantics, so those sources compile unmodified.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#pragma once
+
+#include <stdarg.h>
+#include <stdint.h>
+#include <stdbool.h>
+#include <stddef.h>
+#include <stdlib.h>
+#include <stdio.h>
+#include <string.h>
+#include <errno.h>
+#include <limits.h>
+#include <arpa/inet.h>
+
+/* Types */
+typedef uint8_t u8;
+typedef uint16_t u16;
+typedef uint32_t u32;
+typedef uint64_t u64;
+typedef int8_t s8;
+typedef int16_t s16;
+typedef int32_t s32;
+typedef int64_t s64;
+typedef uint16_t __be16;
+typedef uint32_t __be32;
+typedef uint64_t __be64;
+typedef uint16_t __le16;
+typedef uint32_t __le32;
+typedef uint64_t __le64;
+typedef uint8_t __u8;
+typedef uint16_t __u16;
+typedef uint32_t __u32;
+typedef uint64_t __u64;
+typedef int32_t __s32;
+typedef int64_t __s64;
+typedef unsigned int gfp_t;
+typedef s64 ktime_t;
+
+/* Compiler and module glue */
+#define likely(x)		__builtin_expect(!!(x), 1)
+#define unlikely(x)		__builtin_expect(!!(x), 0)
+#define __init
+#define __exit
+#define __read_mostly
+#define SMP_CACHE_BYTES		64
+#define ____cacheline_aligned	__attribute__((aligned(SMP_CACHE_BYTES)))
+#define THIS_MODULE		NULL
+#define EXPORT_SYMBOL(sym)	extern __typeof__(sym) sym
+#define MODULE_LICENSE(x)	extern int oq_shim_module_license
+#define module_init(fn)							\
+	static void __attribute__((constructor)) oq_shim_init_##fn(void)	\
+	{ oq_shim_module_init(fn, #fn); }
+#define module_exit(fn)							\
+	static void __attribute__((constructor)) oq_shim_exit_##fn(void)	\
+	{ atexit(fn); }
+
+struct module;
+void oq_shim_module_init(int (*fn)(void), const char *name);
+
+#define ARRAY_SIZE(a)		(sizeof(a) / sizeof((a)[0]))
+#define U32_MAX			((u32)~0U)
+#define U64_MAX			((u64)~0ULL)
+#define IFNAMSIZ		16
+#define READ_ONCE(x)		(*(volatile typeof(x) *)&(x))
+#define WRITE_ONCE(x, val)	(*(volatile typeof(x) *)&(x) = (val))
+#define offsetofend(type, member)	(offsetof(type, member) + sizeof(((type *)0)->member))
+#define DIV_ROUND_UP(n, d)	(((n) + (d) - 1) / (d))
+#define container_of(ptr, type, member)	((type *)((char *)(ptr) - offsetof(type, member)))
+#define IS_ERR_OR_NULL(ptr)	(!(ptr) || (unsigned long)(ptr) >= (unsigned long)-4095)
+#define min_t(type, x, y)	((type)(x) < (type)(y) ? (type)(x) : (type)(y))
+#define max_t(type, x, y)	((type)(x) > (type)(y) ? (type)(x) : (type)(y))
+#define max(x, y)		((x) > (y) ? (x) : (y))
+#define swap(a, b)		do { typeof(a) __tmp = (a); (a) = (b); (b) = __tmp; } while (0)
+#define clamp_t(type, v, lo, hi)	min_t(type, max_t(type, v, lo), hi)
+#define div_u64(n, d)		((u64)(n) / (u32)(d))
+#define roundup_pow_of_two(n)	((n) <= 1 ? 1UL : 1UL << (64 - __builtin_clzl((unsigned long)(n) - 1)))
+#define NSEC_PER_SEC		1000000000ULL
+#define NSEC_PER_USEC		1000ULL
+#define order_base_2(n)		((n) <= 1 ? 0 : 64 - __builtin_clzll((u64)(n) - 1))
+
+/* Byte order (the harness runs on little-endian hosts) */
+#define le16_to_cpu(x)		((u16)(x))
+#define le32_to_cpu(x)		((u32)(x))
+#define le64_to_cpu(x)		((u64)(x))
+
+/* Bit operations */
+#define BITS_PER_LONG		(8 * sizeof(long))
+#define BITS_TO_LONGS(n)	(((n) + BITS_PER_LONG - 1) / BITS_PER_LONG)
+
+static inline void __set_bit(unsigned long nr, unsigned long *addr)
+{
+	addr[nr / BITS_PER_LONG] |= 1UL << (nr % BITS_PER_LONG);
+}
+
+static inline void __clear_bit(unsigned long nr, unsigned long *addr)
+{
+	addr[nr / BITS_PER_LONG] &= ~(1UL << (nr % BITS_PER_LONG));
+}
+
+static inline int test_bit(unsigned long nr, const unsigned long *addr)
+{
+	return (addr[nr / BITS_PER_LONG] >> (nr % BITS_PER_LONG)) & 1;
+}
+
+/* First set bit at or after offset, size if there is none */
+static inline unsigned long find_next_bit(const unsigned long *addr, unsigned long size, unsigned long offset)
+{
+	unsigned long word;
+
+	if (offset >= size)
+		return size;
+
+	word = addr[offset / BITS_PER_LONG] & (~0UL << (offset % BITS_PER_LONG));
+	offset -= offset % BITS_PER_LONG;
+
+	for (;;) {
+		if (word != 0) {
+			offset += __builtin_ctzl(word);
+			return offset < size ? offset : size;
+		}
+
+		offset += BITS_PER_LONG;
+		if (offset >= size)
+			return size;
+		word = addr[offset / BITS_PER_LONG];
+	}
+}
+
+#define find_first_bit(addr, size)	find_next_bit(addr, size, 0)
+#define for_each_set_bit(bit, addr, size)	\
+	for ((bit) = find_first_bit(addr, size); (bit) < (size); (bit) = find_next_bit(addr, size, (bit) + 1))
+#define bitmap_zero(dst, nbits)	memset(dst, 0, BITS_TO_LONGS(nbits) * sizeof(long))
+
+#define KERN_INFO		""
+#define KERN_WARNING		""
+#define KERN_ERR		""
+int oq_shim_printk(const char *fmt, ...) __attribute__((format(printf, 1, 2)));
+#define printk			oq_shim_printk
+
+/* Locks (the harness is single threaded) */
+typedef int rwlock_t;
+typedef int spinlock_t;
+#define DEFINE_RWLOCK(x)	rwlock_t x = 0
+#define read_lock(l)		((void)(l))
+#define read_unlock(l)		((void)(l))
+#define write_lock(l)		((void)(l))
+#define write_unlock(l)		((void)(l))
+#define sch_tree_lock(q)	((void)(q))
+#define sch_tree_unlock(q)	((void)(q))
+
+/* Memory */
+#define GFP_KERNEL		0u
+#define GFP_ATOMIC		1u
+#define SLAB_HWCACHE_ALIGN	0x2000u
+
+static inline void *kmalloc(size_t size, gfp_t flags)
+{
+	return malloc(size);
+}
+
+static inline void *kzalloc(size_t size, gfp_t flags)
+{
+	return calloc(1, size);
+}
+
+static inline void *kcalloc(size_t n, size_t size, gfp_t flags)
+{
+	return calloc(n, size);
+}
+
+static inline void kfree(const void *p)
+{
+	free((void *)p);
+}
+
+struct kmem_cache;
+struct kmem_cache *kmem_cache_create(const char *name, size_t size, size_t align, unsigned long flags,
+	void (*ctor)(void *));
+void kmem_cache_destroy(struct kmem_cache *cache);
+void *kmem_cache_alloc(struct kmem_cache *cache, gfp_t flags);
+void kmem_cache_free(struct kmem_cache *cache, void *obj);
+void kmem_cache_free_bulk(struct kmem_cache *cache, size_t size, void **p);
+
+typedef void *(mempool_alloc_t)(gfp_t gfp_mask, void *pool_data);
+typedef void (mempool_free_t)(void *element, void *pool_data);
+typedef struct mempool_s {
+	mempool_alloc_t *alloc;
+	mempool_free_t *free;
+	void *pool_data;
+} mempool_t;
+
+mempool_t *mempool_create(int min_nr, mempool_alloc_t *alloc_fn, mempool_free_t *free_fn, void *pool_data);
+void mempool_destroy(mempool_t *pool);
+void *mempool_alloc(mempool_t *pool, gfp_t gfp_mask);
+void mempool_free(void *element, mempool_t *pool);
+
+/* Random and hashing */
+u32 prandom_u32(void);
+
+static inline u32 reciprocal_scale(u32 val, u32 ep_ro)
+{
+	return (u32)(((u64)val * ep_ro) >> 32);
+}
+
+static inline u32 rol32(u32 word, unsigned int shift)
+{
+	return (word << shift) | (word >> ((-shift) & 31));
+}
+
+#define JHASH_INITVAL		0xdeadbeef
+#define __jhash_final(a, b, c)			\
+{						\
+	c ^= b; c -= rol32(b, 14);		\
+	a ^= c; a -= rol32(c, 11);		\
+	b ^= a; b -= rol32(a, 25);		\
+	c ^= b; c -= rol32(b, 16);		\
+	a ^= c; a -= rol32(c, 4);		\
+	b ^= a; b -= rol32(a, 14);		\
+	c ^= b; c -= rol32(b, 24);		\
+}
+
+static inline u32 jhash_3words(u32 a, u32 b, u32 c, u32 initval)
+{
+	a += JHASH_INITVAL;
+	b += JHASH_INITVAL;
+	c += initval;
+
+	__jhash_final(a, b, c);
+
+	return c;
+}
+
+static inline u32 jhash_1word(u32 a, u32 initval)
+{
+	return jhash_3words(a, 0, 0, initval);
+}
+
+/* Time (virtual when the harness drives the clock) */
+u64 ktime_get_ns(void);
+
+/* High-resolution timers (fired by the harness rather than by a clock) */
+#ifndef CLOCK_MONOTONIC
+#define CLOCK_MONOTONIC		1
+#endif
+
+enum hrtimer_restart {
+	HRTIMER_NORESTART,
+	HRTIMER_RESTART,
+};
+
+enum hrtimer_mode {
+	HRTIMER_MODE_REL,
+};
+
+struct hrtimer {
+	enum hrtimer_restart (*function)(struct hrtimer *timer);
+	ktime_t expires;
+	bool active;
+};
+
+static inline ktime_t ns_to_ktime(u64 ns)
+{
+	return (ktime_t)ns;
+}
+
+void hrtimer_init(struct hrtimer *timer, int clock_id, enum hrtimer_mode mode);
+void hrtimer_start(struct hrtimer *timer, ktime_t tim, enum hrtimer_mode mode);
+int hrtimer_cancel(struct hrtimer *timer);
+u64 hrtimer_forward_now(struct hrtimer *timer, ktime_t interval);
+
+/* debugfs and relay channels (writes are counted, not stored) */
+typedef unsigned short umode_t;
+
+struct dentry {
+	char name[64];
+};
+
+struct file_operations {
+	int unused;
+};
+
+struct rchan {
+	size_t bytes; /* Bytes written */
+};
+
+struct rchan_buf;
+
+struct rchan_callbacks {
+	struct dentry *(*create_buf_file)(const char *filename, struct dentry *parent, umode_t mode,
+		struct rchan_buf *buf, int *is_global);
+	int (*remove_buf_file)(struct dentry *dentry);
+};
+
+extern const struct file_operations relay_file_operations;
+
+struct dentry *debugfs_create_dir(const char *name, struct dentry *parent);
+struct dentry *debugfs_create_file(const char *name, umode_t mode, struct dentry *parent, void *data,
+	const struct file_operations *fops);
+void debugfs_remove(struct dentry *dentry);
+void debugfs_remove_recursive(struct dentry *dentry);
+
+struct rchan *relay_open(const char *base_filename, struct dentry *parent, size_t subbuf_size, size_t n_subbufs,
+	struct rchan_callbacks *cb, void *private_data);
+void relay_close(struct rchan *chan);
+void relay_write(struct rchan *chan, const void *data, size_t length);
+
+/* B-tree (lib/btree.c) */
+struct oq_shim_btree_node;
+
+struct btree_head {
+	struct oq_shim_btree_node *root;
+	size_t count;
+};
+
+struct btree_geo {
+	int keylen;
+	int no_pairs;
+	int no_longs;
+};
+
+extern struct btree_geo btree_geo64;
+
+typedef void (*visitor64_t)(void *elem, unsigned long opaque, unsigned long *key, size_t index, void *func2);
+
+int btree_init(struct btree_head *head);
+void btree_destroy(struct btree_head *head);
+void *btree_lookup(struct btree_head *head, struct btree_geo *geo, unsigned long *key);
+int btree_insert(struct btree_head *head, struct btree_geo *geo, unsigned long *key, void *val, gfp_t gfp);
+void *btree_remove(struct btree_head *head, struct btree_geo *geo, unsigned long *key);
+void *btree_last(struct btree_head *head, struct btree_geo *geo, unsigned long *key);
+void *btree_get_prev(struct btree_head *head, struct btree_geo *geo, unsigned long *key);
+size_t btree_visitor(struct btree_head *head, struct btree_geo *geo, unsigned long opaque,
+	void (*func)(void *elem, unsigned long opaque, unsigned long *key, size_t index, void *func2),
+	void *func2);
+size_t btree_grim_visitor(struct btree_head *head, struct btree_geo *geo, unsigned long opaque,
+	void (*func)(void *elem, unsigned long opaque, unsigned long *key, size_t index, void *func2),
+	void *func2);
+
+/* Protocol headers */
+#define ETH_P_IP		0x0800
+#define ETH_P_IPV6		0x86DD
+#define ETH_HLEN		14
+
+struct ethhdr {
+	unsigned char h_dest[6];
+	unsigned char h_source[6];
+	__be16 h_proto;
+} __attribute__((packed));
+
+struct iphdr {
+	u8 ihl:4,
+	   version:4;
+	u8 tos;
+	__be16 tot_len;
+	__be16 id;
+	__be16 frag_off;
+	u8 ttl;
+	u8 protocol;
+	u16 check;
+	__be32 saddr;
+	__be32 daddr;
+};
+
+struct ipv6hdr {
+	u8 priority:4,
+	   version:4;
+	u8 flow_lbl[3];
+	__be16 payload_len;
+	u8 nexthdr;
+	u8 hop_limit;
+	struct in6_addr saddr;
+	struct in6_addr daddr;
+};
+
+#define IPV6_FLOWLABEL_MASK	htonl(0x000FFFFF)
+
+static inline __be32 ip6_flowlabel(const struct ipv6hdr *hdr)
+{
+	return *(const __be32 *)hdr & IPV6_FLOWLABEL_MASK;
+}
+
+static inline u8 ipv6_get_dsfield(const struct ipv6hdr *ipv6h)
+{
+	return ntohs(*(const __be16 *)ipv6h) >> 4;
+}
+
+/* Socket buffers */
+struct sock {
+	u32 sk_pacing_rate;
+};
+
+static inline bool sk_fullsock(const struct sock *sk)
+{
+	return true;
+}
+
+struct sk_buff {
+	struct sk_buff *next;
+	struct sk_buff *prev;
+	struct sock *sk;
+	ktime_t tstamp;
+	char cb[48];
+	unsigned int len;
+	int network_header; /* Offset from data */
+	__be16 protocol;
+	u32 priority;
+	u32 mark;
+	u32 hash;
+	unsigned char *data;
+	void (*destructor)(struct sk_buff *skb); /* Returns data not allocated with the skb (oq_shim_wrap_skb) */
+};
+
+struct sk_buff_head {
+	struct sk_buff *next;
+	struct sk_buff *prev;
+	u32 qlen;
+};
+
+struct sk_buff *oq_shim_alloc_skb(unsigned int len);
+void oq_shim_wrap_skb(struct sk_buff *skb, unsigned char *data, unsigned int len,
+	void (*destructor)(struct sk_buff *skb)); /* Caller owns skb and data (E.g. a UMEM frame) */
+void oq_shim_release_skb(struct sk_buff *skb); /* Caller takes a wrapped skb back without the destructor */
+void kfree_skb(struct sk_buff *skb);
+void kfree_skb_list(struct sk_buff *segs);
+
+static inline int skb_network_offset(const struct sk_buff *skb)
+{
+	return skb->network_header;
+}
+
+static inline void *skb_header_pointer(const struct sk_buff *skb, int offset, int len, void *buffer)
+{
+	if (offset < 0 || (unsigned int)(offset + len) > skb->len)
+		return NULL;
+
+	return skb->data + offset;
+}
+
+/* Flow dissector */
+struct flow_keys {
+	struct {
+		u16 thoff;
+	} control;
+	struct {
+		__be16 n_proto;
+		u8 ip_proto;
+	} basic;
+	struct {
+		__be32 src;
+		__be32 dst;
+	} addrs;
+	struct {
+		__be16 src;
+		__be16 dst;
+	} ports;
+};
+
+bool skb_flow_dissect_flow_keys(const struct sk_buff *skb, struct flow_keys *flow, unsigned int flags);
+u32 skb_get_hash(struct sk_buff *skb);
+
+/* Netlink */
+struct nlattr {
+	u16 nla_len;
+	u16 nla_type;
+};
+
+#define NLA_HDRLEN		4
+#define TCA_OPTIONS		2
+
+static inline void *nla_data(const struct nlattr *nla)
+{
+	return (char *)nla + NLA_HDRLEN;
+}
+
+static inline int nla_len(const struct nlattr *nla)
+{
+	return nla->nla_len - NLA_HDRLEN;
+}
+
+int nla_put(struct sk_buff *skb, int attrtype, int attrlen, const void *data);
+
+/* Rate tables */
+#define TC_LINKLAYER_UNAWARE	0
+#define TC_LINKLAYER_ETHERNET	1
+#define TC_LINKLAYER_ATM	2
+#define TC_LINKLAYER_MASK	0x0F
+
+struct tc_ratespec {
+	unsigned char cell_log;
+	u8 linklayer;
+	unsigned short overhead;
+	short cell_align;
+	unsigned short mpu;
+	u32 rate;
+};
+
+struct psched_ratecfg {
+	u64 rate_bytes_ps;
+	u32 mult;
+	u16 overhead;
+	u8 linklayer;
+	u8 shift;
+};
+
+void psched_ratecfg_precompute(struct psched_ratecfg *r, const struct tc_ratespec *conf, u64 rate64);
+
+static inline u64 psched_l2t_ns(const struct psched_ratecfg *r, unsigned int len)
+{
+	len += r->overhead;
+
+	if (unlikely(r->linklayer == TC_LINKLAYER_ATM))
+		return ((u64)(((len + 47) / 48) * 53) * r->mult) >> r->shift;
+
+	return ((u64)len * r->mult) >> r->shift;
+}
+
+/* Qdisc */
+#define NET_XMIT_SUCCESS	0x00
+#define NET_XMIT_DROP		0x01
+#define NET_XMIT_CN		0x02
+
+struct gnet_stats_queue {
+	u32 qlen;
+	u32 backlog;
+	u32 drops;
+	u32 requeues;
+	u32 overlimits;
+};
+
+struct gnet_stats_basic_packed {
+	u64 bytes;
+	u32 packets;
+};
+
+struct Qdisc;
+
+struct Qdisc_ops {
+	char id[16];
+	int priv_size;
+	int (*enqueue)(struct sk_buff *skb, struct Qdisc *sch, struct sk_buff **to_free);
+	struct sk_buff *(*dequeue)(struct Qdisc *sch);
+	struct sk_buff *(*peek)(struct Qdisc *sch);
+	int (*init)(struct Qdisc *sch, struct nlattr *arg);
+	void (*reset)(struct Qdisc *sch);
+	void (*destroy)(struct Qdisc *sch);
+	int (*change)(struct Qdisc *sch, struct nlattr *arg);
+	int (*dump)(struct Qdisc *sch, struct sk_buff *skb);
+	struct module *owner;
+};
+
+struct net_device {
+	char name[IFNAMSIZ];
+	unsigned int mtu;
+	unsigned short hard_header_len;
+};
+
+static inline unsigned int psched_mtu(const struct net_device *dev)
+{
+	return dev->mtu + dev->hard_header_len;
+}
+
+#define TC_H_MAJ(h)		((h) & 0xFFFF0000U)
+
+struct Qdisc {
+	const struct Qdisc_ops *ops;
+	u32 handle;
+	struct sk_buff_head q;
+	struct sk_buff *gso_skb;
+	struct gnet_stats_basic_packed bstats;
+	struct gnet_stats_queue qstats;
+	long privdata[] ____cacheline_aligned;
+};
+
+struct qdisc_watchdog {
+	struct Qdisc *qdisc;
+	u64 expires; /* 0 when not armed */
+};
+
+int register_qdisc(struct Qdisc_ops *ops);
+int unregister_qdisc(struct Qdisc_ops *ops);
+
+static inline void *qdisc_priv(struct Qdisc *q)
+{
+	return q->privdata;
+}
+
+static inline unsigned int qdisc_pkt_len(const struct sk_buff *skb)
+{
+	return skb->len;
+}
+
+/* Control block of an skb while it is in a qdisc */
+#define QDISC_CB_PRIV_LEN	20
+
+struct qdisc_skb_cb {
+	unsigned int pkt_len;
+	u16 slave_dev_queue_mapping;
+	u16 tc_classid;
+	unsigned char data[QDISC_CB_PRIV_LEN];
+};
+
+static inline struct qdisc_skb_cb *qdisc_skb_cb(const struct sk_buff *skb)
+{
+	return (struct qdisc_skb_cb *)skb->cb;
+}
+
+/* The kernel checks the size at build time */
+static inline void qdisc_cb_private_validate(const struct sk_buff *skb, int sz)
+{
+	(void)skb;
+	(void)sz;
+}
+
+static inline __be16 tc_skb_protocol(const struct sk_buff *skb)
+{
+	return skb->protocol;
+}
+
+struct net_device *qdisc_dev(const struct Qdisc *qdisc);
+
+void qdisc_watchdog_init(struct qdisc_watchdog *wd, struct Qdisc *qdisc);
+void qdisc_watchdog_schedule_ns(struct qdisc_watchdog *wd, u64 expires, bool throttle);
+void qdisc_watchdog_cancel(struct qdisc_watchdog *wd);
+
+static inline void qdisc_qstats_backlog_inc(struct Qdisc *sch, const struct sk_buff *skb)
+{
+	sch->qstats.backlog += qdisc_pkt_len(skb);
+}
+
+static inline void qdisc_qstats_backlog_dec(struct Qdisc *sch, const struct sk_buff *skb)
+{
+	sch->qstats.backlog -= qdisc_pkt_len(skb);
+}
+
+static inline void qdisc_qstats_drop(struct Qdisc *sch)
+{
+	sch->qstats.drops++;
+}
+
+static inline void qdisc_bstats_update(struct Qdisc *sch, const struct sk_buff *skb)
+{
+	sch->bstats.bytes += qdisc_pkt_len(skb);
+	sch->bstats.packets++;
+}
+
+/* Freed by the caller of enqueue once the qdisc lock is released */
+static inline int qdisc_drop(struct sk_buff *skb, struct Qdisc *sch, struct sk_buff **to_free)
+{
+	skb->next = *to_free;
+	*to_free = skb;
+	qdisc_qstats_drop(sch);
+
+	return NET_XMIT_DROP;
+}
+
+void qdisc_tree_reduce_backlog(struct Qdisc *sch, int n, int len);
+struct sk_buff *qdisc_peek_dequeued(struct Qdisc *sch);
+void qdisc_reset_queue(struct Qdisc *sch);
+
+/* Harness helpers */
+int oq_shim_enqueue(struct Qdisc *sch, struct sk_buff *skb); /* As the stack does (__dev_xmit_skb) */
+struct Qdisc *oq_shim_qdisc_create(const struct Qdisc_ops *ops);
+void oq_shim_qdisc_destroy(struct Qdisc *sch);
+void oq_shim_set_clock(u64 now_ns); /* Switch to a virtual clock */
+long oq_shim_skb_live(void); /* Socket buffers allocated but not freed */
+long oq_shim_kmem_live(void); /* Slab objects allocated but not freed */
+void oq_shim_hrtimer_fire(struct hrtimer *timer); /* Run the callback of an armed timer */
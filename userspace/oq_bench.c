@@ -0,0 +1,555 @@
+/*
+ * oq_bench.c       Traffic-mix benchmark for the OpenQueue core and a generated policy.
+ *
+ *                  Feeds standard mixes through a fresh qdisc per mix. Packets arrive in
+ *                  virtual time at a fraction of the link rate and the link drains the qdisc
+ *                  at line rate, so sojourn times and drops reflect the policy, while
+ *                  enqueue/dequeue costs are measured on the wall clock. With -p, hardware
+ *                  counters also give the cache misses of the qdisc per packet (user space
+ *                  only; reported as n/a where the CPU or perf_event_paranoid does not allow
+ *                  them), next to the cache lines a queue takes (struct oq_queue layout).
+ *                  With -w, the arrivals of a mix are also written as a trace for oq_replay.
+ *
+ *                  Usage: oq_bench [-n PACKETS] [-r RATE] [-l LOAD] [-m MIX[,MIX...]]
+ *                                  [-o FILE] [-c COMMIT] [-p] [-w TRACE] PORT
+ *                         PORT is a port of the policy built in or a policy bytecode file (.oqb)
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#include <getopt.h>
+#include <sys/syscall.h>
+#include <unistd.h>
+#include <linux/perf_event.h>
+
+#include "oq_traffic.h"
+
+#define OQ_BENCH_NEVER		((u64)-1)
+#define OQ_BENCH_INCAST_FANIN	32
+#define OQ_BENCH_NUM_COUNTERS	2
+
+struct oq_bench;
+
+/* Traffic mix; next() fills in the flow and length of the next packet */
+struct oq_mix {
+	const char *name;
+	const char *desc;
+	void (*next)(struct oq_bench *b, struct oq_flow *flow, unsigned int *len);
+	bool bursty; /* Packets of a burst arrive together */
+};
+
+struct oq_bench {
+	u64 link_bps;
+	double load;
+	long packets;
+	u32 seed;
+	int burst_left; /* Incast */
+	bool count_misses; /* -p */
+	int counter_fd[OQ_BENCH_NUM_COUNTERS]; /* -1 when not counted */
+	FILE *trace; /* -w */
+};
+
+/* Cache miss counters (-p) */
+static const struct {
+	const char *name;
+	const char *column;
+	u32 type;
+	u64 config;
+} oq_bench_counters[OQ_BENCH_NUM_COUNTERS] = {
+	{ "l1d_misses", "L1D/pkt", PERF_TYPE_HW_CACHE, PERF_COUNT_HW_CACHE_L1D | PERF_COUNT_HW_CACHE_OP_READ << 8 |
+		PERF_COUNT_HW_CACHE_RESULT_MISS << 16 },
+	{ "llc_misses", "LLC/pkt", PERF_TYPE_HARDWARE, PERF_COUNT_HW_CACHE_MISSES },
+};
+
+struct oq_result {
+	const struct oq_mix *mix;
+	long offered;
+	long dequeued;
+	long dropped;
+	long stranded; /* Left queued by a scheduler that is not work-conserving */
+	long leaked;
+	u64 bytes;
+	u64 duration_ns; /* Virtual */
+	u64 enq_ns; /* Wall clock */
+	u64 deq_ns;
+	u64 misses[OQ_BENCH_NUM_COUNTERS]; /* Of enqueue and dequeue */
+	u64 *sojourn;
+};
+
+static void oq_mix_imix(struct oq_bench *b, struct oq_flow *flow, unsigned int *len)
+{
+	u32 r = oq_traffic_rand(&b->seed);
+
+	flow->sport = 1024 + (r >> 24);
+	*len = (r % 12) < 7 ? 64 : (r % 12) < 11 ? 576 : 1500; /* 7:4:1 */
+}
+
+static void oq_mix_64b(struct oq_bench *b, struct oq_flow *flow, unsigned int *len)
+{
+	u32 r = oq_traffic_rand(&b->seed);
+
+	flow->sport = 1024 + (r >> 24);
+	*len = 64;
+}
+
+static void oq_mix_elephant_mice(struct oq_bench *b, struct oq_flow *flow, unsigned int *len)
+{
+	u32 r = oq_traffic_rand(&b->seed);
+
+	if (r % 10 < 8) { /* 4 elephants carry 80% of the packets */
+		flow->sport = 80 + (r >> 30);
+		*len = 1500;
+	} else { /* 4096 mice */
+		flow->sport = 1024 + (r >> 20);
+		*len = 64 + (r >> 8) % 512;
+	}
+}
+
+static void oq_mix_incast(struct oq_bench *b, struct oq_flow *flow, unsigned int *len)
+{
+	if (b->burst_left == 0)
+		b->burst_left = OQ_BENCH_INCAST_FANIN;
+
+	flow->saddr += b->burst_left--; /* One sender per packet of a burst */
+	flow->dport = 5201;
+	flow->protocol = IPPROTO_TCP;
+	*len = 1500;
+}
+
+/* TOS values read by my_adm_prio */
+static void oq_mix_tos(struct oq_bench *b, struct oq_flow *flow, unsigned int *len)
+{
+	static const u8 tos[] = { 0x00, 0x10, 0x28, 0xb8 };
+	u32 r = oq_traffic_rand(&b->seed);
+
+	flow->sport = 1024 + (r >> 24);
+	flow->tos = tos[(r >> 12) & 3];
+	*len = 64 + r % (1500 - 64 + 1);
+}
+
+static const struct oq_mix oq_mixes[] = {
+	{ "imix", "64/576/1500 bytes at 7:4:1", oq_mix_imix, false },
+	{ "64b", "64 byte packets", oq_mix_64b, false },
+	{ "elephant_mice", "4 elephant flows and 4096 mice", oq_mix_elephant_mice, false },
+	{ "incast", "synchronized bursts from 32 senders", oq_mix_incast, true },
+	{ "tos", "uniform lengths over 4 TOS classes", oq_mix_tos, false },
+};
+
+/* Open the cache miss counters of this thread; a counter the system does not offer stays off */
+static void oq_bench_counters_open(struct oq_bench *b)
+{
+	struct perf_event_attr attr;
+	int i;
+
+	for (i = 0; i < OQ_BENCH_NUM_COUNTERS; i++) {
+		memset(&attr, 0, sizeof(attr));
+		attr.size = sizeof(attr);
+		attr.type = oq_bench_counters[i].type;
+		attr.config = oq_bench_counters[i].config;
+		attr.exclude_kernel = 1;
+		attr.exclude_hv = 1;
+
+		b->counter_fd[i] = syscall(__NR_perf_event_open, &attr, 0, -1, -1, 0);
+		if (b->counter_fd[i] < 0)
+			fprintf(stderr, "%s: not available (%s)\n", oq_bench_counters[i].name, strerror(errno));
+	}
+}
+
+static void oq_bench_counters_read(const struct oq_bench *b, u64 *val)
+{
+	int i;
+
+	for (i = 0; i < OQ_BENCH_NUM_COUNTERS; i++) {
+		if (b->counter_fd[i] < 0 || read(b->counter_fd[i], &val[i], sizeof(u64)) != sizeof(u64))
+			val[i] = 0;
+	}
+}
+
+/* Counters between two reads, added to the misses of a run */
+static void oq_bench_counters_add(const struct oq_bench *b, const u64 *start, struct oq_result *res)
+{
+	u64 end[OQ_BENCH_NUM_COUNTERS];
+	int i;
+
+	oq_bench_counters_read(b, end);
+	for (i = 0; i < OQ_BENCH_NUM_COUNTERS; i++)
+		res->misses[i] += end[i] - start[i];
+}
+
+static bool oq_bench_counted(const struct oq_bench *b, int i)
+{
+	return b->counter_fd[i] >= 0;
+}
+
+/* Time to send len bytes at rate bps */
+static u64 oq_bench_tx_ns(u64 rate_bps, unsigned int len)
+{
+	return (u64)len * 8 * NSEC_PER_SEC / rate_bps;
+}
+
+static int oq_bench_cmp_u64(const void *a, const void *b)
+{
+	u64 x = *(const u64 *)a, y = *(const u64 *)b;
+
+	return x < y ? -1 : x > y;
+}
+
+static u64 oq_bench_percentile(const struct oq_result *res, double p)
+{
+	long i;
+
+	if (res->dequeued == 0)
+		return 0;
+
+	i = (long)(p * (res->dequeued - 1) + 0.5);
+
+	return res->sojourn[i];
+}
+
+/*
+ * Run one mix. The link dequeues whenever it is idle, waits for the watchdog when a shaped
+ * qdisc is throttled and otherwise for the next arrival.
+ */
+static int oq_bench_run(struct oq_bench *b, const char *port, const struct oq_mix *mix, struct oq_result *res)
+{
+	struct oq_priv *priv;
+	struct Qdisc *sch;
+	struct sk_buff *skb;
+	struct oq_flow flow;
+	unsigned int len;
+	u64 now, start, next_arr, link_free, ready, offered_bps, t;
+	u64 counters[OQ_BENCH_NUM_COUNTERS];
+	long live;
+
+	memset(res, 0, sizeof(*res));
+	res->mix = mix;
+	res->sojourn = malloc(b->packets * sizeof(u64));
+	if (NULL == res->sojourn)
+		return -ENOMEM;
+
+	b->seed = 0x12345678;
+	b->burst_left = 0;
+	live = oq_shim_skb_live();
+	offered_bps = (u64)(b->link_bps * b->load);
+
+	start = now = NSEC_PER_SEC;
+	oq_shim_set_clock(now);
+
+	sch = oq_traffic_open(port);
+	if (NULL == sch)
+		return -EINVAL;
+	priv = qdisc_priv(sch);
+
+	next_arr = link_free = ready = now;
+
+	for (;;) {
+		/* Arrival */
+		if (res->offered < b->packets && next_arr <= ready) {
+			now = next_arr;
+			oq_shim_set_clock(now);
+
+			memset(&flow, 0, sizeof(flow));
+			flow.saddr = 0x0a000001;
+			flow.daddr = 0x0a010001;
+			flow.dport = 5001;
+			flow.protocol = IPPROTO_UDP;
+			mix->next(b, &flow, &len);
+
+			skb = oq_traffic_packet(&flow, len);
+			if (NULL == skb)
+				return -ENOMEM;
+			skb->tstamp = now;
+
+			if (b->trace && oq_traffic_trace_add(b->trace, now, &flow, len) != 0)
+				return -EIO;
+
+			oq_bench_counters_read(b, counters);
+			t = oq_traffic_wall_ns();
+			oq_shim_enqueue(sch, skb);
+			res->enq_ns += oq_traffic_wall_ns() - t;
+			oq_bench_counters_add(b, counters, res);
+			res->offered++;
+
+			/* Bursts are paced as a whole */
+			if (!mix->bursty)
+				next_arr += oq_bench_tx_ns(offered_bps, len);
+			else if (b->burst_left == 0)
+				next_arr += oq_bench_tx_ns(offered_bps, len * OQ_BENCH_INCAST_FANIN);
+
+			if (ready == OQ_BENCH_NEVER)
+				ready = max_t(u64, link_free, now);
+			continue;
+		}
+
+		if (ready == OQ_BENCH_NEVER)
+			break;
+
+		/* Link is idle */
+		now = ready;
+		oq_shim_set_clock(now);
+		priv->watchdog.expires = 0;
+
+		oq_bench_counters_read(b, counters);
+		t = oq_traffic_wall_ns();
+		skb = oq_qdisc_ops.dequeue(sch);
+		res->deq_ns += oq_traffic_wall_ns() - t;
+		oq_bench_counters_add(b, counters, res);
+
+		if (skb != NULL) {
+			res->sojourn[res->dequeued++] = now - skb->tstamp;
+			res->bytes += skb->len;
+			link_free = now + oq_bench_tx_ns(b->link_bps, skb->len);
+			ready = link_free;
+			kfree_skb(skb);
+		} else if (priv->watchdog.expires > now) {
+			ready = priv->watchdog.expires; /* Throttled */
+		} else {
+			ready = OQ_BENCH_NEVER; /* Empty or stalled until the next arrival */
+		}
+	}
+
+	res->duration_ns = max_t(u64, link_free, now) - start;
+	res->dropped = oq_traffic_dropped(sch);
+	res->stranded = oq_traffic_backlog(sch);
+	res->leaked = oq_shim_skb_live() - live - res->stranded;
+
+	qsort(res->sojourn, res->dequeued, sizeof(u64), oq_bench_cmp_u64);
+
+	oq_shim_qdisc_destroy(sch);
+
+	return 0;
+}
+
+/* Cache lines a queue takes, up to the end of a field */
+#define OQ_BENCH_QUEUE_LINES(end)	DIV_ROUND_UP(end, SMP_CACHE_BYTES)
+#define OQ_BENCH_DATAPATH_LINES		OQ_BENCH_QUEUE_LINES(offsetofend(struct oq_queue, rate))
+#define OQ_BENCH_HOT_LINES		OQ_BENCH_QUEUE_LINES(offsetof(struct oq_queue, name))
+
+static double oq_bench_per_pkt(u64 ns, long packets)
+{
+	return packets ? (double)ns / packets : 0;
+}
+
+static void oq_bench_print(const struct oq_bench *b, const struct oq_result *res)
+{
+	double ns = oq_bench_per_pkt(res->enq_ns, res->offered) + oq_bench_per_pkt(res->deq_ns, res->dequeued);
+	int i;
+
+	printf("%-14s %9.0f %7.1f %7.1f %7.2f%% %9.1f %9.1f %9.1f %9.1f", res->mix->name,
+		ns > 0 ? NSEC_PER_SEC / ns : 0, oq_bench_per_pkt(res->enq_ns, res->offered),
+		oq_bench_per_pkt(res->deq_ns, res->dequeued), 100.0 * res->dropped / res->offered,
+		oq_bench_percentile(res, 0.50) / 1000.0, oq_bench_percentile(res, 0.90) / 1000.0,
+		oq_bench_percentile(res, 0.99) / 1000.0, oq_bench_percentile(res, 0.999) / 1000.0);
+
+	/* Misses per packet offered */
+	for (i = 0; b->count_misses && i < OQ_BENCH_NUM_COUNTERS; i++) {
+		if (oq_bench_counted(b, i))
+			printf(" %8.2f", (double)res->misses[i] / res->offered);
+		else
+			printf(" %8s", "n/a");
+	}
+
+	printf("%s\n", res->stranded ? " (stranded)" : "");
+}
+
+static void oq_bench_json(FILE *f, const struct oq_bench *b, const char *port, const char *commit,
+	const struct oq_result *results, int num)
+{
+	const struct oq_result *res;
+	double ns;
+	int i, j;
+
+	fprintf(f, "{\n");
+	fprintf(f, "  \"port\": \"%s\",\n", port);
+	fprintf(f, "  \"commit\": \"%s\",\n", commit ? commit : "");
+	fprintf(f, "  \"packets\": %ld,\n", b->packets);
+	fprintf(f, "  \"link_bps\": %llu,\n", (unsigned long long)b->link_bps);
+	fprintf(f, "  \"load\": %.3f,\n", b->load);
+	fprintf(f, "  \"queue_bytes\": %zu,\n", sizeof(struct oq_queue));
+	fprintf(f, "  \"queue_datapath_lines\": %zu,\n", OQ_BENCH_DATAPATH_LINES);
+	fprintf(f, "  \"queue_hot_lines\": %zu,\n", OQ_BENCH_HOT_LINES);
+	fprintf(f, "  \"results\": [\n");
+
+	for (i = 0; i < num; i++) {
+		res = &results[i];
+		ns = oq_bench_per_pkt(res->enq_ns, res->offered) + oq_bench_per_pkt(res->deq_ns, res->dequeued);
+
+		fprintf(f, "    {\n");
+		fprintf(f, "      \"mix\": \"%s\",\n", res->mix->name);
+		fprintf(f, "      \"offered\": %ld,\n", res->offered);
+		fprintf(f, "      \"dequeued\": %ld,\n", res->dequeued);
+		fprintf(f, "      \"dropped\": %ld,\n", res->dropped);
+		fprintf(f, "      \"stranded\": %ld,\n", res->stranded);
+		fprintf(f, "      \"leaked\": %ld,\n", res->leaked);
+		fprintf(f, "      \"drop_rate\": %.6f,\n", (double)res->dropped / res->offered);
+		fprintf(f, "      \"goodput_bps\": %.0f,\n",
+			res->duration_ns ? res->bytes * 8.0 * NSEC_PER_SEC / res->duration_ns : 0);
+		fprintf(f, "      \"pps\": %.0f,\n", ns > 0 ? NSEC_PER_SEC / ns : 0);
+		fprintf(f, "      \"enqueue_ns\": %.1f,\n", oq_bench_per_pkt(res->enq_ns, res->offered));
+		fprintf(f, "      \"dequeue_ns\": %.1f,\n", oq_bench_per_pkt(res->deq_ns, res->dequeued));
+		for (j = 0; j < OQ_BENCH_NUM_COUNTERS; j++) {
+			if (oq_bench_counted(b, j))
+				fprintf(f, "      \"%s_per_pkt\": %.3f,\n", oq_bench_counters[j].name,
+					(double)res->misses[j] / res->offered);
+			else
+				fprintf(f, "      \"%s_per_pkt\": null,\n", oq_bench_counters[j].name);
+		}
+		fprintf(f, "      \"sojourn_ns\": { \"p50\": %llu, \"p90\": %llu, \"p99\": %llu, \"p999\": %llu, "
+			"\"max\": %llu }\n",
+			(unsigned long long)oq_bench_percentile(res, 0.50),
+			(unsigned long long)oq_bench_percentile(res, 0.90),
+			(unsigned long long)oq_bench_percentile(res, 0.99),
+			(unsigned long long)oq_bench_percentile(res, 0.999),
+			(unsigned long long)oq_bench_percentile(res, 1.0));
+		fprintf(f, "    }%s\n", i < num - 1 ? "," : "");
+	}
+
+	fprintf(f, "  ]\n");
+	fprintf(f, "}\n");
+}
+
+/* Rate in bits per second with an optional k/m/g suffix */
+static u64 oq_bench_parse_rate(const char *str)
+{
+	char *end;
+	double rate;
+
+	rate = strtod(str, &end);
+	switch (*end) {
+		case 'k': case 'K': rate *= 1e3; end++; break;
+		case 'm': case 'M': rate *= 1e6; end++; break;
+		case 'g': case 'G': rate *= 1e9; end++; break;
+	}
+
+	return (*end == '\0' && rate >= 1) ? (u64)rate : 0;
+}
+
+static void oq_bench_usage(const char *prog)
+{
+	size_t i;
+
+	fprintf(stderr, "Usage: %s [-n PACKETS] [-r RATE] [-l LOAD] [-m MIX[,MIX...]] [-o FILE] [-c COMMIT] [-p] [-w TRACE] PORT\n",
+		prog);
+	fprintf(stderr, "  -p  Count cache misses per packet (hardware counters)\n");
+	fprintf(stderr, "  -w  Write the arrivals of a single mix as a trace for oq_replay\n");
+	fprintf(stderr, "Mixes:\n");
+	for (i = 0; i < ARRAY_SIZE(oq_mixes); i++)
+		fprintf(stderr, "  %-14s %s\n", oq_mixes[i].name, oq_mixes[i].desc);
+}
+
+int main(int argc, char **argv)
+{
+	struct oq_bench b = { .link_bps = 10000000000ULL, .load = 0.95, .packets = 200000,
+		.counter_fd = { [0 ... OQ_BENCH_NUM_COUNTERS - 1] = -1 } };
+	struct oq_result results[ARRAY_SIZE(oq_mixes)];
+	const char *mixes = NULL, *out = NULL, *commit = NULL, *trace = NULL, *port;
+	bool ok = true;
+	size_t i;
+	int num = 0, opt;
+	FILE *f;
+
+	while ((opt = getopt(argc, argv, "n:r:l:m:o:c:pw:")) != -1) {
+		switch (opt) {
+			case 'n': b.packets = atol(optarg); break;
+			case 'r': b.link_bps = oq_bench_parse_rate(optarg); break;
+			case 'l': b.load = atof(optarg); break;
+			case 'm': mixes = optarg; break;
+			case 'o': out = optarg; break;
+			case 'c': commit = optarg; break;
+			case 'p': b.count_misses = true; break;
+			case 'w': trace = optarg; break;
+			default:
+				oq_bench_usage(argv[0]);
+				return 2;
+		}
+	}
+
+	if (optind != argc - 1 || b.packets <= 0 || b.link_bps == 0 || b.load <= 0) {
+		oq_bench_usage(argv[0]);
+		return 2;
+	}
+	port = argv[optind];
+
+	/* A trace holds the arrivals of one mix */
+	if (trace && (NULL == mixes || strchr(mixes, ',') != NULL)) {
+		oq_bench_usage(argv[0]);
+		return 2;
+	}
+
+	printf("port %s, %ld packets per mix, link %.2f Gbit/s, load %.2f\n", port, b.packets,
+		b.link_bps / 1e9, b.load);
+	printf("struct oq_queue %zu bytes, datapath %zu cache lines (%zu with shaping and arguments)\n",
+		sizeof(struct oq_queue), OQ_BENCH_DATAPATH_LINES, OQ_BENCH_HOT_LINES);
+
+	if (b.count_misses)
+		oq_bench_counters_open(&b);
+
+	printf("%-14s %9s %7s %7s %8s %9s %9s %9s %9s", "mix", "pps", "enq ns", "deq ns", "drops",
+		"p50 us", "p90 us", "p99 us", "p99.9 us");
+	for (i = 0; b.count_misses && i < OQ_BENCH_NUM_COUNTERS; i++)
+		printf(" %8s", oq_bench_counters[i].column);
+	printf("\n");
+
+	for (i = 0; i < ARRAY_SIZE(oq_mixes); i++) {
+		const char *name = oq_mixes[i].name;
+		const char *at = mixes ? strstr(mixes, name) : NULL;
+
+		/* Mix selected as a whole item of the list */
+		if (mixes && !(at && (at == mixes || at[-1] == ',') &&
+				(at[strlen(name)] == '\0' || at[strlen(name)] == ',')))
+			continue;
+
+		if (trace) {
+			b.trace = oq_traffic_trace_create(trace);
+			if (NULL == b.trace) {
+				perror(trace);
+				return 1;
+			}
+		}
+
+		if (oq_bench_run(&b, port, &oq_mixes[i], &results[num]) != 0)
+			return 1;
+
+		if (trace && oq_traffic_trace_close(b.trace, results[num].offered) != 0) {
+			perror(trace);
+			return 1;
+		}
+
+		oq_bench_print(&b, &results[num]);
+		if (results[num].leaked != 0 ||
+				results[num].dequeued + results[num].dropped + results[num].stranded != results[num].offered) {
+			fprintf(stderr, "%s: packets unaccounted for\n", name);
+			ok = false;
+		}
+		num++;
+	}
+
+	if (num == 0) {
+		oq_bench_usage(argv[0]);
+		return 2;
+	}
+
+	if (out) {
+		f = fopen(out, "w");
+		if (NULL == f) {
+			perror(out);
+			return 1;
+		}
+		oq_bench_json(f, &b, port, commit, results, num);
+		fclose(f);
+	}
+
+	for (i = 0; i < (size_t)num; i++)
+		free(results[i].sojourn);
+	for (i = 0; i < OQ_BENCH_NUM_COUNTERS; i++) {
+		if (oq_bench_counted(&b, i))
+			close(b.counter_fd[i]);
+	}
+
+	return ok ? 0 : 1;
+}
@@ -0,0 +1,669 @@
+/*
+ * oq_harness.c     Userspace harness for the OpenQueue core and a generated policy.
+ *
+ *                  Creates an openqueue qdisc for a port, checks that every packet it accepts
+ *                  is dequeued, dropped or still queued and that none leak, then measures
+ *                  enqueue and dequeue cost per packet. The qdisc runs on a virtual clock that jumps to the
+ *                  watchdog deadline whenever shaping throttles it. Parameters are changed once
+ *                  while packets are queued, through the path tc qdisc change takes. Queues
+ *                  with sfq_vtime processing keys must serve a late light flow ahead of the
+ *                  backlog of a heavy one. Queues with deadline processing keys must drop
+ *                  the packets whose deadline passed and nothing else. Reset and destroy
+ *                  must free every packet and container, and resetting a large backlog is timed.
+ *                  The qdisc length, backlog and drop counters the stack sees must match the queues.
+ *                  With pacing on, packets of a socket with a pacing rate must leave at that rate
+ *                  and must not hold back the packets of other flows.
+ *                  Under push out, packets with a smaller admission key must displace the worst
+ *                  queued packets of the port and those with a larger one must be dropped.
+ *
+ *                  Usage: oq_harness PORT [PACKETS]
+ *                         PORT is a port of the policy built in or a policy bytecode file (.oqb)
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#include "oq_traffic.h"
+
+#define OQ_HARNESS_BATCH	256
+#define OQ_HARNESS_ROUNDS	5
+#define OQ_HARNESS_HEAVY	64	/* Packets of the heavy flow of the fairness check */
+#define OQ_HARNESS_LIGHT	8	/* Packets of the light flow */
+#define OQ_HARNESS_PURGE	262144	/* Backlog of the reset check */
+#define OQ_HARNESS_PACING_RATE	1000000	/* Bytes per second of the paced socket */
+
+/* Core paths the fairness check drives a queue through, bypassing queue selection */
+int do_enqueue(struct Qdisc *sch, struct oq_queue *queue, struct sk_buff *skb);
+struct sk_buff *do_dequeue(struct Qdisc *sch, struct oq_queue *queue);
+
+struct oq_harness {
+	struct Qdisc *sch;
+	u64 now; /* Virtual clock */
+	u32 seed; /* Packet generator state */
+	long enqueued;
+	long dequeued;
+	long throttled;
+};
+
+/* IPv4/UDP packet with a random length, TOS and flow */
+static struct sk_buff *oq_harness_packet(struct oq_harness *h)
+{
+	static const u8 tos[] = { 0x00, 0x10, 0x28, 0xb8 };
+	struct oq_flow flow;
+	u32 r;
+
+	r = oq_traffic_rand(&h->seed);
+
+	flow.saddr = 0x0a000000 | ((r >> 16) & 0xff);
+	flow.daddr = 0x0a010001;
+	flow.sport = 1024 + ((r >> 20) & 0x3ff);
+	flow.dport = 5001;
+	flow.protocol = IPPROTO_UDP;
+	flow.tos = tos[(r >> 12) & 3];
+
+	return oq_traffic_packet(&flow, 64 + r % (1500 - 64 + 1));
+}
+
+/* Dequeue a packet, moving the virtual clock to the watchdog deadline when throttled */
+static struct sk_buff *oq_harness_dequeue(struct oq_harness *h)
+{
+	struct oq_priv *priv = qdisc_priv(h->sch);
+	struct sk_buff *skb;
+
+	for (;;) {
+		priv->watchdog.expires = 0;
+
+		skb = oq_qdisc_ops.dequeue(h->sch);
+		if (skb != NULL || priv->watchdog.expires <= h->now)
+			return skb;
+
+		h->now = priv->watchdog.expires;
+		oq_shim_set_clock(h->now);
+		h->throttled++;
+	}
+}
+
+/*
+ * Change parameters of the live qdisc: a valid limit applies, a command with an unknown
+ * parameter or a token bucket smaller than a packet changes nothing, and routine arguments
+ * resolve by name. The limit is restored afterwards so that the run measures the policy as
+ * generated.
+ */
+static bool oq_harness_change(struct oq_harness *h)
+{
+	struct oq_priv *priv = qdisc_priv(h->sch);
+	struct oq_queue *queue = &priv->queues[0];
+	char limit[TCQ_OQ_PARAM_NAME_LEN + 1], rate[TCQ_OQ_PARAM_NAME_LEN + 1], burst[TCQ_OQ_PARAM_NAME_LEN + 1];
+	const char *names[2];
+	double values[2];
+	int max_len;
+
+	max_len = queue->max_len;
+	snprintf(limit, sizeof(limit), "%s.limit", queue->name);
+
+	names[0] = limit;
+	values[0] = max_len / 2 + 1;
+	if (oq_traffic_change(h->sch, names, values, 1) != 0 || queue->max_len != max_len / 2 + 1)
+		return false;
+
+	names[1] = "no_such_queue.limit";
+	values[0] = values[1] = max_len;
+	if (oq_traffic_change(h->sch, names, values, 2) != -EINVAL || queue->max_len != max_len / 2 + 1)
+		return false;
+
+	if (oq_traffic_change(h->sch, names, values, 1) != 0 || queue->max_len != max_len)
+		return false;
+
+	snprintf(rate, sizeof(rate), "%s.rate", queue->name);
+	snprintf(burst, sizeof(burst), "%s.burst", queue->name);
+	names[0] = rate;
+	names[1] = burst;
+	values[0] = 1000000;
+	values[1] = ETH_HLEN + 100;
+	if (oq_traffic_change(h->sch, names, values, 2) != -EINVAL || queue->burst == ETH_HLEN + 100)
+		return false;
+
+	/* The first routine argument, set to the value it has */
+	if (priv->num_params > 0) {
+		const struct oq_param_desc *desc = &priv->param_descs[0];
+		u64 *slot, fixed;
+
+		if (desc->scope == OQ_PARAM_QUEUE)
+			slot = &priv->queues[desc->index].params[desc->slot];
+		else if (desc->scope == OQ_PARAM_NODE)
+			slot = &priv->nodes[desc->index].params[desc->slot];
+		else
+			slot = &priv->params[desc->slot];
+
+		/* tc gives it in fixed point again */
+		fixed = *slot;
+		names[0] = desc->name;
+		values[0] = (double)(s64)fixed / (1LL << TCQ_OQ_PARAM_SHIFT);
+		if (oq_traffic_change(h->sch, names, values, 1) != 0 || *slot != fixed)
+			return false;
+	}
+
+	/* Telemetry: a too short period is rejected, one period samples every queue */
+	names[0] = "telemetry";
+	values[0] = OQ_TELEMETRY_MIN_PERIOD - 1;
+	if (oq_traffic_change(h->sch, names, values, 1) != -EINVAL || priv->telemetry_chan != NULL)
+		return false;
+
+	values[0] = 100000;
+	if (oq_traffic_change(h->sch, names, values, 1) != 0 || !priv->telemetry_timer.active)
+		return false;
+
+	oq_shim_hrtimer_fire(&priv->telemetry_timer);
+	if (priv->telemetry_chan->bytes != priv->num_q * sizeof(struct oq_telemetry_sample))
+		return false;
+
+	values[0] = 0;
+	if (oq_traffic_change(h->sch, names, values, 1) != 0 || priv->telemetry_timer.active)
+		return false;
+
+	return true;
+}
+
+/*
+ * Per-flow fairness of sfq_vtime: a heavy flow queues its backlog first, then a light flow
+ * arrives. Each light packet must leave right after the heavy packet with the same finish
+ * time, rather than behind the whole backlog as in FIFO order.
+ */
+static bool oq_harness_fairness(const char *port)
+{
+	struct Qdisc *sch;
+	struct oq_priv *priv;
+	struct oq_flow heavy = { 0x0a000001, 0x0a010001, 1024, 5001, IPPROTO_UDP, 0 };
+	struct oq_flow light = heavy;
+	struct sk_buff *skb;
+	bool fair = true;
+	int i, q, n, last;
+
+	sch = oq_traffic_open(port);
+	if (NULL == sch)
+		return false;
+	priv = qdisc_priv(sch);
+
+	for (q = 0; q < priv->num_q; q++) {
+		struct oq_queue *queue = &priv->queues[q];
+
+		if (NULL == queue->sfq)
+			continue;
+
+		/* Flows in different buckets of the flow table */
+		skb = oq_traffic_packet(&heavy, 1500);
+		do {
+			struct sk_buff *other;
+
+			light.sport++;
+			other = oq_traffic_packet(&light, 1500);
+			n = (skb_get_hash(other) ^ skb_get_hash(skb)) & queue->sfq->mask;
+			kfree_skb(other);
+		} while (n == 0);
+		kfree_skb(skb);
+
+		for (i = 0; i < OQ_HARNESS_HEAVY; i++)
+			do_enqueue(sch, queue, oq_traffic_packet(&heavy, 1500));
+		for (i = 0; i < OQ_HARNESS_LIGHT; i++)
+			do_enqueue(sch, queue, oq_traffic_packet(&light, 1500));
+
+		/* Position of the last light packet */
+		last = -1;
+		for (n = 0; (skb = do_dequeue(sch, queue)) != NULL; n++) {
+			if (ntohs(*(__be16 *)(skb->data + sizeof(struct iphdr))) == light.sport) /* Source port */
+				last = n;
+			kfree_skb(skb);
+		}
+
+		printf("  sfq_vtime %s: last of %d light packets left %d of %d\n", queue->name, OQ_HARNESS_LIGHT,
+			last + 1, n);
+		if (last < 0 || last >= 2 * OQ_HARNESS_LIGHT)
+			fair = false;
+	}
+
+	oq_shim_qdisc_destroy(sch);
+
+	return fair;
+}
+
+/*
+ * Expiry of deadline: of two batches queued half a budget apart, only the second is left
+ * once the clock passes the deadlines of the first, and it leaves in arrival order.
+ */
+static bool oq_harness_deadline(const char *port, u64 now)
+{
+	struct Qdisc *sch;
+	struct oq_priv *priv;
+	struct oq_flow flow = { 0x0a000001, 0x0a010001, 1024, 5001, IPPROTO_UDP, 0 };
+	struct sk_buff *skb;
+	bool expired = true;
+	int i, q, n, dropped;
+
+	oq_shim_set_clock(now);
+
+	sch = oq_traffic_open(port);
+	if (NULL == sch)
+		return false;
+	priv = qdisc_priv(sch);
+
+	for (q = 0; q < priv->num_q; q++) {
+		struct oq_queue *queue = &priv->queues[q];
+
+		if (NULL == queue->wheel)
+			continue;
+
+		dropped = queue->dropped;
+
+		/* Packet lengths number the packets */
+		for (i = 0; i < 2 * OQ_HARNESS_LIGHT; i++) {
+			if (i == OQ_HARNESS_LIGHT) {
+				now += queue->wheel->budget / 2;
+				oq_shim_set_clock(now);
+			}
+			do_enqueue(sch, queue, oq_traffic_packet(&flow, 64 + i));
+		}
+
+		now += queue->wheel->budget / 2 + 1;
+		oq_shim_set_clock(now);
+
+		for (n = 0; (skb = do_dequeue(sch, queue)) != NULL; n++) {
+			if (qdisc_pkt_len(skb) != 64 + OQ_HARNESS_LIGHT + n)
+				expired = false;
+			kfree_skb(skb);
+		}
+
+		printf("  deadline %s: %d of %d packets expired, %d left\n", queue->name, queue->dropped - dropped,
+			2 * OQ_HARNESS_LIGHT, n);
+		if (n != OQ_HARNESS_LIGHT || queue->dropped - dropped != OQ_HARNESS_LIGHT)
+			expired = false;
+	}
+
+	oq_shim_qdisc_destroy(sch);
+
+	return expired;
+}
+
+/* Congestion condition of the pacing check once the burst is held */
+static bool oq_harness_pacing_cong(struct oq_queue *queue, struct sk_buff *skb)
+{
+	return queue->len >= OQ_HARNESS_LIGHT;
+}
+
+/*
+ * Pacing: the packets of a socket paced at OQ_HARNESS_PACING_RATE leave a packet time apart
+ * on the virtual clock, while those of a flow without a pacing rate leave right away. A burst
+ * is held up to the flow limit, and the congestion condition applies when it is released.
+ */
+
+static bool oq_harness_pacing(const char *port, u64 now)
+{
+	const char *names[] = { "pacing" };
+	const double values[] = { 1 };
+	struct oq_flow paced = { 0x0a000001, 0x0a010001, 1024, 5001, IPPROTO_UDP, 0 };
+	struct oq_flow plain = paced, burst = paced;
+	struct sock sk = { .sk_pacing_rate = OQ_HARNESS_PACING_RATE };
+	struct sock burst_sk = sk;
+	struct oq_harness h;
+	struct oq_priv *priv;
+	struct sk_buff *skb;
+	u64 gap, last;
+	bool paced_ok = true, plain_ok = true, limited;
+	int lens[TCQ_OQ_MAX_QUEUE];
+	long dropped;
+	u32 held;
+	int i, n, m;
+
+	memset(&h, 0, sizeof(h));
+	h.now = now;
+	oq_shim_set_clock(now);
+
+	h.sch = oq_traffic_open(port);
+	if (NULL == h.sch)
+		return false;
+	priv = qdisc_priv(h.sch);
+
+	if (oq_traffic_change(h.sch, names, values, 1) != 0) {
+		oq_shim_qdisc_destroy(h.sch);
+		return false;
+	}
+
+	plain.sport++;
+	for (i = 0; i < OQ_HARNESS_LIGHT; i++) {
+		skb = oq_traffic_packet(&paced, 1000);
+		skb->sk = &sk;
+		oq_shim_enqueue(h.sch, skb);
+		oq_shim_enqueue(h.sch, oq_traffic_packet(&plain, 1000));
+	}
+
+	/* All but the first packet of the paced flow wait, whatever the scheduler does later */
+	held = priv->pacing->held;
+	if (held != OQ_HARNESS_LIGHT - 1)
+		paced_ok = false;
+
+	gap = 1000 * NSEC_PER_SEC / OQ_HARNESS_PACING_RATE;
+	last = 0;
+	for (n = m = 0; (skb = oq_harness_dequeue(&h)) != NULL; kfree_skb(skb)) {
+		if (skb->sk == &sk) {
+			if (n++ > 0 && h.now - last < gap)
+				paced_ok = false;
+			last = h.now;
+		} else {
+			if (h.now != now)
+				plain_ok = false;
+			m++;
+		}
+	}
+
+	/* A scheduler that sends anything sends the paced flow too */
+	if (n + m > 0 && n != OQ_HARNESS_LIGHT)
+		paced_ok = false;
+
+	printf("  pacing: %d of %d paced packets left %llu us apart, %d unpaced packets %s\n", n, OQ_HARNESS_LIGHT,
+		(unsigned long long)(gap / NSEC_PER_USEC), m, plain_ok ? "at once" : "held back");
+	if (h.sch->q.qlen != oq_traffic_backlog(h.sch))
+		paced_ok = false;
+
+	/* A burst past the flow limit: the first packet goes, the limit waits and the rest is dropped */
+	burst.sport += 2;
+	held = priv->pacing->held;
+	dropped = oq_traffic_dropped(h.sch);
+	for (i = 0; i < TCQ_OQ_PACING_FLOW_PLIMIT + 2; i++) {
+		skb = oq_traffic_packet(&burst, 1000);
+		skb->sk = &burst_sk;
+		oq_shim_enqueue(h.sch, skb);
+	}
+
+	limited = priv->pacing->held - held == TCQ_OQ_PACING_FLOW_PLIMIT && oq_traffic_dropped(h.sch) - dropped == 1;
+	printf("  pacing limit: %u of %d burst packets held, %ld dropped\n", priv->pacing->held - held,
+		TCQ_OQ_PACING_FLOW_PLIMIT + 2, oq_traffic_dropped(h.sch) - dropped);
+
+	/* Released packets are admitted as arrivals are, so a congested queue does not take them */
+	for (i = 0; i < priv->num_q; i++)
+		lens[i] = max(priv->queues[i].len, OQ_HARNESS_LIGHT);
+	priv->cong_fn = oq_harness_pacing_cong;
+	priv->cong_act_fn = NULL;
+
+	h.now += NSEC_PER_SEC;
+	oq_shim_set_clock(h.now);
+	skb = oq_qdisc_ops.dequeue(h.sch);
+	if (skb != NULL)
+		kfree_skb(skb);
+
+	if (priv->pacing->held != 0)
+		limited = false;
+	for (i = 0; i < priv->num_q; i++) {
+		if (priv->queues[i].len > lens[i])
+			limited = false;
+	}
+
+	oq_shim_qdisc_destroy(h.sch);
+
+	return paced_ok && plain_ok && limited;
+}
+
+/* Hooks of the push out check: the port holds OQ_HARNESS_LIGHT packets, keyed by TOS */
+static struct Qdisc *oq_harness_pushout_sch;
+
+static bool oq_harness_pushout_cong(struct oq_queue *queue, struct sk_buff *skb)
+{
+	return oq_harness_pushout_sch->q.qlen >= OQ_HARNESS_LIGHT;
+}
+
+static int oq_harness_pushout_act(struct oq_queue *queue, struct sk_buff *skb)
+{
+	return OQ_CON_ACT_PUSHOUT;
+}
+
+static unsigned long oq_harness_pushout_admn(struct oq_queue *queue, struct sk_buff *skb)
+{
+	return ((struct iphdr *)skb->data)->tos + 1; /* Key 0 is reserved in the btree */
+}
+
+/*
+ * Push out: a full port of bulk packets is taken over by as many urgent ones, after which
+ * further bulk packets, and urgent ones that only tie with the queued packets, are dropped.
+ * Queue selection is the policy's, so the victims come from any queue of the port. The port
+ * is full by the congestion condition, or by a shared buffer of OQ_HARNESS_LIGHT packets.
+ */
+static bool oq_harness_pushout(const char *port, bool buffer)
+{
+	struct oq_flow bulk = { 0x0a000001, 0x0a010001, 1024, 5001, IPPROTO_UDP, 1 };
+	struct oq_flow urgent = { 0x0a000002, 0x0a010001, 1024, 5001, IPPROTO_UDP, 0 };
+	struct Qdisc *sch;
+	struct oq_priv *priv;
+	unsigned long key;
+	bool pushed = true;
+	int i;
+
+	sch = oq_traffic_open(port);
+	if (NULL == sch)
+		return false;
+	priv = qdisc_priv(sch);
+
+	oq_harness_pushout_sch = sch;
+	priv->cong_fn = buffer ? NULL : oq_harness_pushout_cong;
+	priv->cong_act_fn = oq_harness_pushout_act;
+	priv->admn_fn = oq_harness_pushout_admn;
+	priv->buffer = buffer ? OQ_HARNESS_LIGHT : 0;
+	priv->buffer_alpha = TCQ_OQ_MAX_ALPHA; /* Only a full buffer refuses */
+	for (i = 0; i < priv->num_q; i++)
+		priv->queues[i].pushout = true;
+
+	for (i = 0; i < OQ_HARNESS_LIGHT; i++)
+		oq_shim_enqueue(sch, oq_traffic_packet(&bulk, 1000));
+	for (i = 0; i < OQ_HARNESS_LIGHT; i++)
+		oq_shim_enqueue(sch, oq_traffic_packet(&urgent, 1000));
+	for (i = 0; i < OQ_HARNESS_LIGHT; i++)
+		oq_shim_enqueue(sch, oq_traffic_packet(&bulk, 1000));
+	oq_shim_enqueue(sch, oq_traffic_packet(&urgent, 1000));
+
+	/* Only urgent packets (key 1) are left */
+	for (i = 0; i < priv->num_q; i++) {
+		if (btree_last(&priv->queues[i].admn_q, &btree_geo64, &key) != NULL && key != 1)
+			pushed = false;
+	}
+
+	printf("  pushout%s: %u of %d urgent packets queued, %ld dropped\n", buffer ? " (buffer)" : "", sch->q.qlen,
+		OQ_HARNESS_LIGHT, oq_traffic_dropped(sch));
+	if (sch->q.qlen != OQ_HARNESS_LIGHT || oq_traffic_backlog(sch) != OQ_HARNESS_LIGHT ||
+		oq_traffic_dropped(sch) != 2 * OQ_HARNESS_LIGHT + 1 || sch->qstats.drops != 2 * OQ_HARNESS_LIGHT + 1)
+		pushed = false;
+
+	oq_shim_qdisc_destroy(sch);
+
+	return pushed;
+}
+
+/* Reset a qdisc holding a large backlog; everything must be freed in time linear in it */
+static bool oq_harness_purge(const char *port)
+{
+	struct oq_harness h;
+	struct oq_priv *priv;
+	long skbs, objs, i;
+	u64 start, elapsed;
+	bool purged;
+
+	memset(&h, 0, sizeof(h));
+	h.seed = 0x87654321;
+
+	h.sch = oq_traffic_open(port);
+	if (NULL == h.sch)
+		return false;
+	priv = qdisc_priv(h.sch);
+
+	skbs = oq_shim_skb_live();
+	objs = oq_shim_kmem_live();
+
+	/* Past the queue limits, which only the congestion condition enforces */
+	for (i = 0; i < OQ_HARNESS_PURGE; i++)
+		do_enqueue(h.sch, &priv->queues[i % priv->num_q], oq_harness_packet(&h));
+
+	start = oq_traffic_wall_ns();
+	oq_qdisc_ops.reset(h.sch);
+	elapsed = oq_traffic_wall_ns() - start;
+
+	purged = oq_shim_skb_live() == skbs && oq_shim_kmem_live() == objs && oq_traffic_backlog(h.sch) == 0 &&
+		h.sch->q.qlen == 0 && h.sch->qstats.backlog == 0;
+	printf("  reset of %d packets took %.1f ms (%.1f ns/pkt)\n", OQ_HARNESS_PURGE, elapsed / 1e6,
+		(double)elapsed / OQ_HARNESS_PURGE);
+
+	oq_shim_qdisc_destroy(h.sch);
+
+	return purged;
+}
+
+/*
+ * Enqueue batches of packets and drain the qdisc after each, timing both sides.
+ * Returns 1 when the policy is not work-conserving, which stops the run since the
+ * backlog would otherwise grow without bound.
+ */
+static int oq_harness_round(struct oq_harness *h, long packets, u64 *enq_ns, u64 *deq_ns)
+{
+	struct sk_buff *batch[OQ_HARNESS_BATCH];
+	struct sk_buff *skb;
+	long done;
+	int i, n;
+	u64 t;
+
+	for (done = 0; done < packets; done += n) {
+		n = min_t(long, OQ_HARNESS_BATCH, packets - done);
+
+		for (i = 0; i < n; i++) {
+			batch[i] = oq_harness_packet(h);
+			if (NULL == batch[i])
+				return -ENOMEM;
+		}
+
+		t = oq_traffic_wall_ns();
+		for (i = 0; i < n; i++)
+			oq_shim_enqueue(h->sch, batch[i]);
+		*enq_ns += oq_traffic_wall_ns() - t;
+		h->enqueued += n;
+
+		t = oq_traffic_wall_ns();
+		while ((skb = oq_harness_dequeue(h)) != NULL) {
+			kfree_skb(skb);
+			h->dequeued++;
+		}
+		*deq_ns += oq_traffic_wall_ns() - t;
+
+		/* The scheduler picked an empty queue with no watchdog armed */
+		if (oq_traffic_backlog(h->sch) != 0)
+			return 1;
+	}
+
+	return 0;
+}
+
+int main(int argc, char **argv)
+{
+	struct oq_harness h;
+	const char *port;
+	long packets, dropped, backlog, enq_base, deq_base;
+	u64 enq_ns, deq_ns;
+	bool pass, changed, fair, expired, paced, pushed, purged, released, accounted;
+	int round, ret, i;
+	u64 bytes;
+
+	if (argc < 2) {
+		fprintf(stderr, "Usage: %s PORT [PACKETS]\n", argv[0]);
+		return 2;
+	}
+
+	port = argv[1];
+	packets = argc > 2 ? atol(argv[2]) : 100000;
+	if (packets <= 0) {
+		fprintf(stderr, "oq_harness: invalid packet count %s\n", argv[2]);
+		return 2;
+	}
+
+	memset(&h, 0, sizeof(h));
+	h.seed = 0x12345678;
+	h.now = NSEC_PER_SEC;
+	oq_shim_set_clock(h.now);
+
+	h.sch = oq_traffic_open(port);
+	if (NULL == h.sch)
+		return 1;
+
+	/* Warm up caches and the slab free lists */
+	enq_ns = deq_ns = 0;
+	ret = oq_harness_round(&h, min_t(long, packets, 10 * OQ_HARNESS_BATCH), &enq_ns, &deq_ns);
+
+	/* Change parameters with packets queued */
+	for (round = 0; round < OQ_HARNESS_BATCH; round++)
+		oq_shim_enqueue(h.sch, oq_harness_packet(&h));
+	h.enqueued += OQ_HARNESS_BATCH;
+	changed = oq_harness_change(&h);
+
+	enq_ns = deq_ns = 0;
+	enq_base = h.enqueued;
+	deq_base = h.dequeued;
+	for (round = 0; round < OQ_HARNESS_ROUNDS && ret == 0; round++)
+		ret = oq_harness_round(&h, packets, &enq_ns, &deq_ns);
+
+	if (ret < 0)
+		return 1;
+
+	printf("port %s: %d queues, %d nodes\n", port, ((struct oq_priv *)qdisc_priv(h.sch))->num_q,
+		((struct oq_priv *)qdisc_priv(h.sch))->num_nodes);
+
+	fair = oq_harness_fairness(port);
+	expired = oq_harness_deadline(port, h.now);
+	paced = oq_harness_pacing(port, h.now);
+	pushed = oq_harness_pushout(port, false) && oq_harness_pushout(port, true);
+	purged = oq_harness_purge(port);
+
+	/* Every accepted packet is dequeued, dropped or still queued, and nothing else is allocated */
+	dropped = oq_traffic_dropped(h.sch);
+	backlog = oq_traffic_backlog(h.sch);
+	pass = (h.dequeued + dropped + backlog == h.enqueued) && (oq_shim_skb_live() == backlog) && changed && fair &&
+		expired && paced && pushed;
+
+	/* What the stack sees of the qdisc (sch->q.qlen, qstats) */
+	bytes = 0;
+	for (i = 0; i < ((struct oq_priv *)qdisc_priv(h.sch))->num_q; i++)
+		bytes += ((struct oq_priv *)qdisc_priv(h.sch))->queues[i].bytes;
+	accounted = h.sch->q.qlen == backlog && h.sch->qstats.backlog == bytes && h.sch->qstats.drops == dropped &&
+		h.sch->bstats.packets == h.dequeued;
+
+	printf("  enqueued %ld, dequeued %ld, dropped %ld, queued %ld, leaked %ld, throttled %ld\n",
+		h.enqueued, h.dequeued, dropped, backlog, oq_shim_skb_live() - backlog, h.throttled);
+	if (!changed)
+		printf("  tc change of live parameters failed\n");
+	if (!fair)
+		printf("  sfq_vtime did not interleave flows\n");
+	if (!expired)
+		printf("  deadline did not drop exactly the expired packets\n");
+	if (!paced)
+		printf("  pacing let packets leave early, held back unpaced flows or held too many\n");
+	if (!pushed)
+		printf("  pushout kept worse packets than it dropped\n");
+	if (!purged)
+		printf("  reset left packets or containers allocated\n");
+	if (!accounted)
+		printf("  qdisc counters (qlen %u, backlog %u, drops %u, packets %u) do not match the queues\n",
+			h.sch->q.qlen, h.sch->qstats.backlog, h.sch->qstats.drops, h.sch->bstats.packets);
+	if (ret > 0)
+		printf("  scheduler left packets queued with no watchdog armed (not work-conserving)\n");
+	if (h.enqueued > enq_base)
+		printf("  enqueue %8.1f ns/pkt\n", (double)enq_ns / (h.enqueued - enq_base));
+	if (h.dequeued > deq_base)
+		printf("  dequeue %8.1f ns/pkt\n", (double)deq_ns / (h.dequeued - deq_base));
+
+	/* Destroying the qdisc with packets queued frees everything */
+	oq_shim_qdisc_destroy(h.sch);
+	released = oq_shim_skb_live() == 0 && oq_shim_kmem_live() == 0;
+	if (!released)
+		printf("  destroy left %ld packets and %ld containers allocated\n", oq_shim_skb_live(),
+			oq_shim_kmem_live());
+
+	pass = pass && purged && released && accounted;
+	printf("%s\n", pass ? "PASS" : "FAIL");
+
+	return pass ? 0 : 1;
+}
@@ -0,0 +1,420 @@
+/*
+ * oq_replay.c      What-if replay of a recorded arrival trace through candidate policies.
+ *
+ *                  Feeds the arrivals of a trace (oq_capture, or oq_bench -w) through a fresh
+ *                  qdisc per policy, at their recorded times, while the link drains the qdisc
+ *                  at line rate. Policies are replayed in parallel, one process per policy and
+ *                  up to JOBS at a time, all reading the same read-only mapping of the trace.
+ *                  The report shows, per policy, the sojourn time percentiles, drops and the
+ *                  throughput of each queue, with the changes against the first policy.
+ *
+ *                  Usage: oq_replay [-r RATE] [-j JOBS] [-o FILE] TRACE PORT [PORT...]
+ *                         PORT is a port of the policy built in or a policy bytecode file (.oqb),
+ *                         so candidates that compile to bytecode need no rebuild
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#include <getopt.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/wait.h>
+
+#include "oq_traffic.h"
+
+#define OQ_REPLAY_NEVER		((u64)-1)
+#define OQ_REPLAY_MAX_PORTS	64
+#define OQ_REPLAY_NUM_PCT	5
+
+static const double oq_replay_pct[OQ_REPLAY_NUM_PCT] = { 0.50, 0.90, 0.99, 0.999, 1.0 };
+static const char *oq_replay_pct_names[OQ_REPLAY_NUM_PCT] = { "p50", "p90", "p99", "p999", "max" };
+
+struct oq_replay_queue {
+	char name[TCQ_OQ_NAME_LEN + 1];
+	long dequeued;
+	long dropped;
+	u64 bytes;
+};
+
+/* Outcome of a policy, written by its worker into memory shared with the parent */
+struct oq_replay_result {
+	int status; /* 0 once the worker is done */
+	long offered;
+	long dequeued;
+	long dropped;
+	long stranded; /* Left queued by a scheduler that is not work-conserving */
+	long leaked;
+	u64 bytes;
+	u64 duration_ns;
+	u64 sojourn[OQ_REPLAY_NUM_PCT];
+	int num_q;
+	struct oq_replay_queue queues[TCQ_OQ_MAX_QUEUE];
+};
+
+static int oq_replay_cmp_u64(const void *a, const void *b)
+{
+	u64 x = *(const u64 *)a, y = *(const u64 *)b;
+
+	return x < y ? -1 : x > y;
+}
+
+/* Time to send len bytes at rate bps */
+static u64 oq_replay_tx_ns(u64 rate_bps, unsigned int len)
+{
+	return (u64)len * 8 * NSEC_PER_SEC / rate_bps;
+}
+
+/*
+ * Queue a dequeued packet came from: its length went down by one more than its drops went up
+ * (deadline queues drop expired packets in the same call)
+ */
+static int oq_replay_source(const struct oq_priv *priv, const int *len, const int *dropped)
+{
+	int i;
+
+	for (i = 0; i < priv->num_q; i++) {
+		if ((len[i] - priv->queues[i].len) - (priv->queues[i].dropped - dropped[i]) == 1)
+			return i;
+	}
+
+	return -1;
+}
+
+/* Replay the trace through a port, as oq_bench does for a traffic mix */
+static int oq_replay_run(const struct oq_capture_rec *recs, long num_recs, u64 link_bps, const char *port,
+	struct oq_replay_result *res)
+{
+	struct oq_priv *priv;
+	struct Qdisc *sch;
+	struct sk_buff *skb;
+	int len[TCQ_OQ_MAX_QUEUE], dropped[TCQ_OQ_MAX_QUEUE];
+	u64 now, start, next_arr, link_free, ready;
+	u64 *sojourn;
+	long live;
+	int i, q;
+
+	sojourn = malloc((num_recs ? num_recs : 1) * sizeof(u64));
+	if (NULL == sojourn)
+		return -ENOMEM;
+
+	live = oq_shim_skb_live();
+
+	/* Virtual time starts at the first arrival */
+	start = now = NSEC_PER_SEC;
+	oq_shim_set_clock(now);
+
+	sch = oq_traffic_open(port);
+	if (NULL == sch) {
+		free(sojourn);
+		return -EINVAL;
+	}
+	priv = qdisc_priv(sch);
+
+	next_arr = num_recs ? start : OQ_REPLAY_NEVER;
+	link_free = ready = now;
+
+	for (;;) {
+		/* Arrival */
+		if (res->offered < num_recs && next_arr <= ready) {
+			now = next_arr;
+			oq_shim_set_clock(now);
+
+			skb = oq_traffic_trace_packet(&recs[res->offered]);
+			if (NULL == skb) {
+				free(sojourn);
+				return -ENOMEM;
+			}
+			skb->tstamp = now;
+
+			oq_shim_enqueue(sch, skb);
+			res->offered++;
+
+			if (res->offered < num_recs)
+				next_arr = start + (recs[res->offered].time - recs[0].time);
+
+			if (ready == OQ_REPLAY_NEVER)
+				ready = max_t(u64, link_free, now);
+			continue;
+		}
+
+		if (ready == OQ_REPLAY_NEVER)
+			break;
+
+		/* Link is idle */
+		now = ready;
+		oq_shim_set_clock(now);
+		priv->watchdog.expires = 0;
+
+		for (i = 0; i < priv->num_q; i++) {
+			len[i] = priv->queues[i].len;
+			dropped[i] = priv->queues[i].dropped;
+		}
+
+		skb = oq_qdisc_ops.dequeue(sch);
+
+		if (skb != NULL) {
+			q = oq_replay_source(priv, len, dropped);
+			if (q >= 0) {
+				res->queues[q].dequeued++;
+				res->queues[q].bytes += skb->len;
+			}
+
+			sojourn[res->dequeued++] = now - skb->tstamp;
+			res->bytes += skb->len;
+			link_free = now + oq_replay_tx_ns(link_bps, skb->len);
+			ready = link_free;
+			kfree_skb(skb);
+		} else if (priv->watchdog.expires > now) {
+			ready = priv->watchdog.expires; /* Throttled */
+		} else {
+			ready = OQ_REPLAY_NEVER; /* Empty or stalled until the next arrival */
+		}
+	}
+
+	res->duration_ns = max_t(u64, link_free, now) - start;
+	res->dropped = oq_traffic_dropped(sch);
+	res->stranded = oq_traffic_backlog(sch);
+	res->leaked = oq_shim_skb_live() - live - res->stranded;
+
+	res->num_q = priv->num_q;
+	for (i = 0; i < priv->num_q; i++) {
+		strncpy(res->queues[i].name, priv->queues[i].name, TCQ_OQ_NAME_LEN);
+		res->queues[i].dropped = priv->queues[i].dropped;
+	}
+
+	qsort(sojourn, res->dequeued, sizeof(u64), oq_replay_cmp_u64);
+	for (i = 0; i < OQ_REPLAY_NUM_PCT && res->dequeued; i++)
+		res->sojourn[i] = sojourn[(long)(oq_replay_pct[i] * (res->dequeued - 1) + 0.5)];
+
+	free(sojourn);
+	oq_shim_qdisc_destroy(sch);
+
+	return 0;
+}
+
+static double oq_replay_mbps(const struct oq_replay_result *res, u64 bytes)
+{
+	return res->duration_ns ? bytes * 8.0 * 1000 / res->duration_ns : 0;
+}
+
+static double oq_replay_drop_rate(const struct oq_replay_result *res)
+{
+	return res->offered ? (double)res->dropped / res->offered : 0;
+}
+
+/* Relative change of a value against the first policy */
+static void oq_replay_print_change(double val, double base)
+{
+	if (base == 0)
+		printf(" %8s", val == 0 ? "=" : "new");
+	else
+		printf(" %+7.1f%%", 100.0 * (val - base) / base);
+}
+
+static void oq_replay_print(char **ports, const struct oq_replay_result *results, int num)
+{
+	const struct oq_replay_result *res, *base = &results[0];
+	int i, j;
+
+	printf("%-24s %8s %9s %9s %9s %9s %10s %9s %9s\n", "policy", "drops", "p50 us", "p90 us", "p99 us",
+		"p99.9 us", "Mbit/s", "drops", "p99");
+
+	for (i = 0; i < num; i++) {
+		res = &results[i];
+
+		printf("%-24s %7.2f%% %9.1f %9.1f %9.1f %9.1f %10.1f", ports[i], 100.0 * oq_replay_drop_rate(res),
+			res->sojourn[0] / 1000.0, res->sojourn[1] / 1000.0, res->sojourn[2] / 1000.0,
+			res->sojourn[3] / 1000.0, oq_replay_mbps(res, res->bytes));
+
+		if (i == 0) {
+			printf(" %9s %9s", "(base)", "(base)");
+		} else {
+			oq_replay_print_change(oq_replay_drop_rate(res), oq_replay_drop_rate(base));
+			oq_replay_print_change(res->sojourn[2], base->sojourn[2]);
+		}
+
+		printf("%s\n", res->stranded ? " (stranded)" : "");
+	}
+
+	printf("\nper queue: Mbit/s, dequeued, dropped\n");
+	for (i = 0; i < num; i++) {
+		res = &results[i];
+
+		printf("%s\n", ports[i]);
+		for (j = 0; j < res->num_q; j++)
+			printf("  %-22s %10.1f %10ld %10ld\n", res->queues[j].name,
+				oq_replay_mbps(res, res->queues[j].bytes), res->queues[j].dequeued,
+				res->queues[j].dropped);
+	}
+}
+
+static void oq_replay_json(FILE *f, const char *trace, long num_recs, u64 link_bps, char **ports,
+	const struct oq_replay_result *results, int num)
+{
+	const struct oq_replay_result *res;
+	int i, j;
+
+	fprintf(f, "{\n");
+	fprintf(f, "  \"trace\": \"%s\",\n", trace);
+	fprintf(f, "  \"packets\": %ld,\n", num_recs);
+	fprintf(f, "  \"link_bps\": %llu,\n", (unsigned long long)link_bps);
+	fprintf(f, "  \"results\": [\n");
+
+	for (i = 0; i < num; i++) {
+		res = &results[i];
+
+		fprintf(f, "    {\n");
+		fprintf(f, "      \"port\": \"%s\",\n", ports[i]);
+		fprintf(f, "      \"offered\": %ld,\n", res->offered);
+		fprintf(f, "      \"dequeued\": %ld,\n", res->dequeued);
+		fprintf(f, "      \"dropped\": %ld,\n", res->dropped);
+		fprintf(f, "      \"stranded\": %ld,\n", res->stranded);
+		fprintf(f, "      \"drop_rate\": %.6f,\n", oq_replay_drop_rate(res));
+		fprintf(f, "      \"goodput_bps\": %.0f,\n", oq_replay_mbps(res, res->bytes) * 1e6);
+		fprintf(f, "      \"sojourn_ns\": {");
+		for (j = 0; j < OQ_REPLAY_NUM_PCT; j++)
+			fprintf(f, " \"%s\": %llu%s", oq_replay_pct_names[j], (unsigned long long)res->sojourn[j],
+				j < OQ_REPLAY_NUM_PCT - 1 ? "," : " },\n");
+		fprintf(f, "      \"queues\": [\n");
+		for (j = 0; j < res->num_q; j++)
+			fprintf(f, "        { \"name\": \"%s\", \"dequeued\": %ld, \"dropped\": %ld, "
+				"\"goodput_bps\": %.0f }%s\n", res->queues[j].name, res->queues[j].dequeued,
+				res->queues[j].dropped, oq_replay_mbps(res, res->queues[j].bytes) * 1e6,
+				j < res->num_q - 1 ? "," : "");
+		fprintf(f, "      ]\n");
+		fprintf(f, "    }%s\n", i < num - 1 ? "," : "");
+	}
+
+	fprintf(f, "  ]\n");
+	fprintf(f, "}\n");
+}
+
+/* Rate in bits per second with an optional k/m/g suffix */
+static u64 oq_replay_parse_rate(const char *str)
+{
+	char *end;
+	double rate;
+
+	rate = strtod(str, &end);
+	switch (*end) {
+		case 'k': case 'K': rate *= 1e3; end++; break;
+		case 'm': case 'M': rate *= 1e6; end++; break;
+		case 'g': case 'G': rate *= 1e9; end++; break;
+	}
+
+	return (*end == '\0' && rate >= 1) ? (u64)rate : 0;
+}
+
+static void oq_replay_usage(const char *prog)
+{
+	fprintf(stderr, "Usage: %s [-r RATE] [-j JOBS] [-o FILE] TRACE PORT [PORT...]\n", prog);
+	fprintf(stderr, "       PORT is a port of the policy built in or a policy bytecode file (.oqb)\n");
+}
+
+int main(int argc, char **argv)
+{
+	const struct oq_capture_rec *recs;
+	struct oq_replay_result *results;
+	const char *out = NULL, *trace;
+	u64 link_bps = 10000000000ULL;
+	long num_recs, jobs;
+	int num, running, status, opt, i;
+	bool ok = true;
+	pid_t pid;
+	FILE *f;
+
+	jobs = sysconf(_SC_NPROCESSORS_ONLN);
+
+	while ((opt = getopt(argc, argv, "r:j:o:")) != -1) {
+		switch (opt) {
+			case 'r': link_bps = oq_replay_parse_rate(optarg); break;
+			case 'j': jobs = atol(optarg); break;
+			case 'o': out = optarg; break;
+			default:
+				oq_replay_usage(argv[0]);
+				return 2;
+		}
+	}
+
+	num = argc - optind - 1;
+	if (num < 1 || num > OQ_REPLAY_MAX_PORTS || link_bps == 0 || jobs < 1) {
+		oq_replay_usage(argv[0]);
+		return 2;
+	}
+	trace = argv[optind];
+
+	recs = oq_traffic_trace_map(trace, &num_recs);
+	if (NULL == recs) {
+		fprintf(stderr, "%s: not a trace file (oq_capture.h)\n", trace);
+		return 1;
+	}
+
+	results = mmap(NULL, num * sizeof(*results), PROT_READ | PROT_WRITE, MAP_SHARED | MAP_ANONYMOUS, -1, 0);
+	if (results == MAP_FAILED) {
+		perror("mmap");
+		return 1;
+	}
+
+	printf("trace %s, %ld packets over %.3f s, link %.2f Gbit/s, %d policies, %ld jobs\n", trace, num_recs,
+		num_recs ? (recs[num_recs - 1].time - recs[0].time) / 1e9 : 0.0, link_bps / 1e9, num, jobs);
+	fflush(stdout);
+
+	/* One worker per policy; the shim keeps a global clock, so they are processes */
+	running = 0;
+	for (i = 0; i < num; i++) {
+		results[i].status = -1;
+
+		if (running == jobs) {
+			wait(NULL);
+			running--;
+		}
+
+		pid = fork();
+		if (pid < 0) {
+			perror("fork");
+			return 1;
+		}
+
+		if (pid == 0) {
+			results[i].status = oq_replay_run(recs, num_recs, link_bps, argv[optind + 1 + i], &results[i]);
+			_exit(0);
+		}
+		running++;
+	}
+
+	while (running > 0 && wait(&status) > 0)
+		running--;
+
+	for (i = 0; i < num; i++) {
+		const struct oq_replay_result *res = &results[i];
+
+		if (res->status != 0) {
+			fprintf(stderr, "%s: replay failed (%d)\n", argv[optind + 1 + i], res->status);
+			return 1;
+		}
+
+		if (res->leaked != 0 || res->dequeued + res->dropped + res->stranded != res->offered) {
+			fprintf(stderr, "%s: packets unaccounted for\n", argv[optind + 1 + i]);
+			ok = false;
+		}
+	}
+
+	oq_replay_print(&argv[optind + 1], results, num);
+
+	if (out) {
+		f = fopen(out, "w");
+		if (NULL == f) {
+			perror(out);
+			return 1;
+		}
+		oq_replay_json(f, trace, num_recs, link_bps, &argv[optind + 1], results, num);
+		fclose(f);
+	}
+
+	return ok ? 0 : 1;
+}
@@ -0,0 +1,724 @@
+/*
+ * oq_shim.c        Userspace implementation of the kernel APIs declared in oq_kernel.h.
+ *
+ *                  The B-tree is a treap with the lib/btree.c interface, so tree costs
+ *                  measured here are indicative rather than identical to the kernel's.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#include <stdarg.h>
+#include <time.h>
+
+#include "include/oq_kernel.h"
+
+/* Modules */
+void oq_shim_module_init(int (*fn)(void), const char *name)
+{
+	if (fn() != 0) {
+		fprintf(stderr, "oq_shim: module init %s failed\n", name);
+		exit(1);
+	}
+}
+
+int oq_shim_printk(const char *fmt, ...)
+{
+	va_list ap;
+	int ret = 0;
+
+	if (getenv("OQ_SHIM_VERBOSE")) {
+		va_start(ap, fmt);
+		ret = vfprintf(stderr, fmt, ap);
+		va_end(ap);
+	}
+
+	return ret;
+}
+
+/* Slab caches keep freed objects on a LIFO list, like a per-CPU slab freelist */
+struct kmem_cache {
+	size_t size;
+	void *free_list;
+};
+
+static long oq_shim_kmem_objs;
+
+struct kmem_cache *kmem_cache_create(const char *name, size_t size, size_t align, unsigned long flags,
+	void (*ctor)(void *))
+{
+	struct kmem_cache *cache;
+
+	cache = calloc(1, sizeof(*cache));
+	if (cache)
+		cache->size = size < sizeof(void *) ? sizeof(void *) : size;
+
+	return cache;
+}
+
+void kmem_cache_destroy(struct kmem_cache *cache)
+{
+	void *obj;
+
+	if (!cache)
+		return;
+
+	while ((obj = cache->free_list) != NULL) {
+		cache->free_list = *(void **)obj;
+		free(obj);
+	}
+
+	free(cache);
+}
+
+void *kmem_cache_alloc(struct kmem_cache *cache, gfp_t flags)
+{
+	void *obj = cache->free_list;
+
+	oq_shim_kmem_objs++;
+	if (obj) {
+		cache->free_list = *(void **)obj;
+		return obj;
+	}
+
+	return malloc(cache->size);
+}
+
+void kmem_cache_free(struct kmem_cache *cache, void *obj)
+{
+	*(void **)obj = cache->free_list;
+	cache->free_list = obj;
+	oq_shim_kmem_objs--;
+}
+
+void kmem_cache_free_bulk(struct kmem_cache *cache, size_t size, void **p)
+{
+	size_t i;
+
+	for (i = 0; i < size; i++)
+		kmem_cache_free(cache, p[i]);
+}
+
+long oq_shim_kmem_live(void)
+{
+	return oq_shim_kmem_objs;
+}
+
+mempool_t *mempool_create(int min_nr, mempool_alloc_t *alloc_fn, mempool_free_t *free_fn, void *pool_data)
+{
+	mempool_t *pool;
+
+	pool = calloc(1, sizeof(*pool));
+	if (pool) {
+		pool->alloc = alloc_fn;
+		pool->free = free_fn;
+		pool->pool_data = pool_data;
+	}
+
+	return pool;
+}
+
+void mempool_destroy(mempool_t *pool)
+{
+	free(pool);
+}
+
+void *mempool_alloc(mempool_t *pool, gfp_t gfp_mask)
+{
+	return pool->alloc(gfp_mask, pool->pool_data);
+}
+
+void mempool_free(void *element, mempool_t *pool)
+{
+	if (element)
+		pool->free(element, pool->pool_data);
+}
+
+/* Random */
+static u32 oq_shim_rand_state = 0x9e3779b9;
+
+u32 prandom_u32(void)
+{
+	u32 x = oq_shim_rand_state;
+
+	x ^= x << 13;
+	x ^= x >> 17;
+	x ^= x << 5;
+
+	return oq_shim_rand_state = x;
+}
+
+/* Time */
+static bool oq_shim_virtual_clock;
+static u64 oq_shim_now;
+
+void oq_shim_set_clock(u64 now_ns)
+{
+	oq_shim_virtual_clock = true;
+	oq_shim_now = now_ns;
+}
+
+u64 ktime_get_ns(void)
+{
+	struct timespec ts;
+
+	if (oq_shim_virtual_clock)
+		return oq_shim_now;
+
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+
+	return (u64)ts.tv_sec * NSEC_PER_SEC + ts.tv_nsec;
+}
+
+/* High-resolution timers only record when they would expire; the harness fires them */
+void hrtimer_init(struct hrtimer *timer, int clock_id, enum hrtimer_mode mode)
+{
+	memset(timer, 0, sizeof(*timer));
+}
+
+void hrtimer_start(struct hrtimer *timer, ktime_t tim, enum hrtimer_mode mode)
+{
+	timer->expires = ktime_get_ns() + tim;
+	timer->active = true;
+}
+
+int hrtimer_cancel(struct hrtimer *timer)
+{
+	int active = timer->active;
+
+	timer->active = false;
+
+	return active;
+}
+
+u64 hrtimer_forward_now(struct hrtimer *timer, ktime_t interval)
+{
+	timer->expires = ktime_get_ns() + interval;
+
+	return 1;
+}
+
+void oq_shim_hrtimer_fire(struct hrtimer *timer)
+{
+	if (timer->active && timer->function(timer) == HRTIMER_NORESTART)
+		timer->active = false;
+}
+
+/* debugfs entries are plain allocations */
+const struct file_operations relay_file_operations;
+
+struct dentry *debugfs_create_dir(const char *name, struct dentry *parent)
+{
+	struct dentry *dentry;
+
+	dentry = calloc(1, sizeof(*dentry));
+	if (dentry)
+		strncpy(dentry->name, name, sizeof(dentry->name) - 1);
+
+	return dentry;
+}
+
+struct dentry *debugfs_create_file(const char *name, umode_t mode, struct dentry *parent, void *data,
+	const struct file_operations *fops)
+{
+	return debugfs_create_dir(name, parent);
+}
+
+void debugfs_remove(struct dentry *dentry)
+{
+	free(dentry);
+}
+
+void debugfs_remove_recursive(struct dentry *dentry)
+{
+	free(dentry);
+}
+
+/* Relay channels count the bytes written */
+struct rchan *relay_open(const char *base_filename, struct dentry *parent, size_t subbuf_size, size_t n_subbufs,
+	struct rchan_callbacks *cb, void *private_data)
+{
+	return calloc(1, sizeof(struct rchan));
+}
+
+void relay_close(struct rchan *chan)
+{
+	free(chan);
+}
+
+void relay_write(struct rchan *chan, const void *data, size_t length)
+{
+	chan->bytes += length;
+}
+
+/* B-tree */
+struct oq_shim_btree_node {
+	unsigned long key;
+	void *val;
+	u32 prio;
+	struct oq_shim_btree_node *left;
+	struct oq_shim_btree_node *right;
+};
+
+struct btree_geo btree_geo64 = { .keylen = 1, .no_pairs = 0, .no_longs = 0 };
+
+int btree_init(struct btree_head *head)
+{
+	head->root = NULL;
+	head->count = 0;
+
+	return 0;
+}
+
+static void oq_shim_btree_free(struct oq_shim_btree_node *node)
+{
+	if (!node)
+		return;
+
+	oq_shim_btree_free(node->left);
+	oq_shim_btree_free(node->right);
+	free(node);
+}
+
+void btree_destroy(struct btree_head *head)
+{
+	oq_shim_btree_free(head->root);
+	head->root = NULL;
+	head->count = 0;
+}
+
+void *btree_lookup(struct btree_head *head, struct btree_geo *geo, unsigned long *key)
+{
+	struct oq_shim_btree_node *node = head->root;
+
+	while (node) {
+		if (*key == node->key)
+			return node->val;
+		node = *key < node->key ? node->left : node->right;
+	}
+
+	return NULL;
+}
+
+static struct oq_shim_btree_node *oq_shim_btree_insert(struct oq_shim_btree_node *node,
+	struct oq_shim_btree_node *new)
+{
+	struct oq_shim_btree_node *child;
+
+	if (!node)
+		return new;
+
+	if (new->key < node->key) {
+		node->left = oq_shim_btree_insert(node->left, new);
+		if (node->left->prio > node->prio) { /* Rotate right */
+			child = node->left;
+			node->left = child->right;
+			child->right = node;
+			return child;
+		}
+	} else {
+		node->right = oq_shim_btree_insert(node->right, new);
+		if (node->right->prio > node->prio) { /* Rotate left */
+			child = node->right;
+			node->right = child->left;
+			child->left = node;
+			return child;
+		}
+	}
+
+	return node;
+}
+
+int btree_insert(struct btree_head *head, struct btree_geo *geo, unsigned long *key, void *val, gfp_t gfp)
+{
+	struct oq_shim_btree_node *node;
+
+	if (btree_lookup(head, geo, key))
+		return -EEXIST;
+
+	node = malloc(sizeof(*node));
+	if (!node)
+		return -ENOMEM;
+
+	node->key = *key;
+	node->val = val;
+	node->prio = prandom_u32();
+	node->left = node->right = NULL;
+
+	head->root = oq_shim_btree_insert(head->root, node);
+	head->count++;
+
+	return 0;
+}
+
+static struct oq_shim_btree_node *oq_shim_btree_merge(struct oq_shim_btree_node *l, struct oq_shim_btree_node *r)
+{
+	if (!l)
+		return r;
+	if (!r)
+		return l;
+
+	if (l->prio > r->prio) {
+		l->right = oq_shim_btree_merge(l->right, r);
+		return l;
+	}
+
+	r->left = oq_shim_btree_merge(l, r->left);
+	return r;
+}
+
+void *btree_remove(struct btree_head *head, struct btree_geo *geo, unsigned long *key)
+{
+	struct oq_shim_btree_node **link = &head->root, *node;
+	void *val;
+
+	while ((node = *link) != NULL && node->key != *key)
+		link = *key < node->key ? &node->left : &node->right;
+
+	if (!node)
+		return NULL;
+
+	*link = oq_shim_btree_merge(node->left, node->right);
+	val = node->val;
+	free(node);
+	head->count--;
+
+	return val;
+}
+
+void *btree_last(struct btree_head *head, struct btree_geo *geo, unsigned long *key)
+{
+	struct oq_shim_btree_node *node = head->root;
+
+	if (!node)
+		return NULL;
+
+	while (node->right)
+		node = node->right;
+
+	*key = node->key;
+
+	return node->val;
+}
+
+void *btree_get_prev(struct btree_head *head, struct btree_geo *geo, unsigned long *key)
+{
+	struct oq_shim_btree_node *node = head->root, *prev = NULL;
+
+	while (node) {
+		if (node->key < *key) {
+			prev = node;
+			node = node->right;
+		} else {
+			node = node->left;
+		}
+	}
+
+	if (!prev)
+		return NULL;
+
+	*key = prev->key;
+
+	return prev->val;
+}
+
+static void oq_shim_btree_empty(void *elem, unsigned long opaque, unsigned long *key, size_t index, void *func2)
+{
+}
+
+static size_t oq_shim_btree_visit(struct oq_shim_btree_node *node, unsigned long opaque,
+	void (*func)(void *elem, unsigned long opaque, unsigned long *key, size_t index, void *func2),
+	void *func2, size_t count, bool grim)
+{
+	struct oq_shim_btree_node *right;
+
+	if (!node)
+		return count;
+
+	count = oq_shim_btree_visit(node->left, opaque, func, func2, count, grim);
+	func(node->val, opaque, &node->key, count, func2);
+	right = node->right;
+	if (grim)
+		free(node);
+
+	return oq_shim_btree_visit(right, opaque, func, func2, count + 1, grim);
+}
+
+size_t btree_visitor(struct btree_head *head, struct btree_geo *geo, unsigned long opaque,
+	void (*func)(void *elem, unsigned long opaque, unsigned long *key, size_t index, void *func2),
+	void *func2)
+{
+	return oq_shim_btree_visit(head->root, opaque, func2 ? func : oq_shim_btree_empty, func2, 0, false);
+}
+
+size_t btree_grim_visitor(struct btree_head *head, struct btree_geo *geo, unsigned long opaque,
+	void (*func)(void *elem, unsigned long opaque, unsigned long *key, size_t index, void *func2),
+	void *func2)
+{
+	size_t count;
+
+	/* As lib/btree.c, elements are not visited without func2 (nodes are still freed) */
+	count = oq_shim_btree_visit(head->root, opaque, func2 ? func : oq_shim_btree_empty, func2, 0, true);
+	head->root = NULL;
+	head->count = 0;
+
+	return count;
+}
+
+/* Socket buffers */
+static long oq_shim_skbs;
+
+struct sk_buff *oq_shim_alloc_skb(unsigned int len)
+{
+	struct sk_buff *skb;
+
+	skb = calloc(1, sizeof(*skb) + len);
+	if (!skb)
+		return NULL;
+
+	skb->data = (unsigned char *)(skb + 1);
+	skb->len = len;
+	oq_shim_skbs++;
+
+	return skb;
+}
+
+void oq_shim_wrap_skb(struct sk_buff *skb, unsigned char *data, unsigned int len,
+	void (*destructor)(struct sk_buff *skb))
+{
+	memset(skb, 0, sizeof(*skb));
+	skb->data = data;
+	skb->len = len;
+	skb->destructor = destructor;
+	oq_shim_skbs++;
+}
+
+void oq_shim_release_skb(struct sk_buff *skb)
+{
+	oq_shim_skbs--;
+}
+
+void kfree_skb(struct sk_buff *skb)
+{
+	if (!skb)
+		return;
+
+	oq_shim_skbs--;
+	if (skb->destructor)
+		skb->destructor(skb);
+	else
+		free(skb);
+}
+
+void kfree_skb_list(struct sk_buff *segs)
+{
+	struct sk_buff *next;
+
+	while (segs) {
+		next = segs->next;
+		kfree_skb(segs);
+		segs = next;
+	}
+}
+
+long oq_shim_skb_live(void)
+{
+	return oq_shim_skbs;
+}
+
+/* Flow dissector (IPv4/IPv6 without extension headers) */
+bool skb_flow_dissect_flow_keys(const struct sk_buff *skb, struct flow_keys *flow, unsigned int flags)
+{
+	const struct iphdr *iph;
+	const struct ipv6hdr *ip6h;
+	const __be16 *ports;
+	int thoff;
+
+	memset(flow, 0, sizeof(*flow));
+	flow->basic.n_proto = skb->protocol;
+
+	if (skb->protocol == htons(ETH_P_IP)) {
+		iph = skb_header_pointer(skb, skb_network_offset(skb), sizeof(*iph), NULL);
+		if (!iph || iph->ihl < 5)
+			return false;
+
+		flow->basic.ip_proto = iph->protocol;
+		flow->addrs.src = iph->saddr;
+		flow->addrs.dst = iph->daddr;
+		thoff = skb_network_offset(skb) + iph->ihl * 4;
+	} else if (skb->protocol == htons(ETH_P_IPV6)) {
+		ip6h = skb_header_pointer(skb, skb_network_offset(skb), sizeof(*ip6h), NULL);
+		if (!ip6h)
+			return false;
+
+		flow->basic.ip_proto = ip6h->nexthdr;
+		memcpy(&flow->addrs.src, &ip6h->saddr.s6_addr[12], 4);
+		memcpy(&flow->addrs.dst, &ip6h->daddr.s6_addr[12], 4);
+		thoff = skb_network_offset(skb) + sizeof(*ip6h);
+	} else {
+		return false;
+	}
+
+	flow->control.thoff = thoff;
+
+	if (flow->basic.ip_proto == IPPROTO_TCP || flow->basic.ip_proto == IPPROTO_UDP) {
+		ports = skb_header_pointer(skb, thoff, 4, NULL);
+		if (ports) {
+			flow->ports.src = ports[0];
+			flow->ports.dst = ports[1];
+		}
+	}
+
+	return true;
+}
+
+u32 skb_get_hash(struct sk_buff *skb)
+{
+	struct flow_keys keys;
+	u32 hash;
+
+	if (skb->hash)
+		return skb->hash;
+
+	skb_flow_dissect_flow_keys(skb, &keys, 0);
+	hash = jhash_3words(keys.addrs.src, keys.addrs.dst,
+		((u32)keys.ports.src << 16 | keys.ports.dst) ^ keys.basic.ip_proto, 0);
+
+	return skb->hash = hash ? hash : 1;
+}
+
+/* Netlink: attributes are appended to the data of the skb passed in */
+int nla_put(struct sk_buff *skb, int attrtype, int attrlen, const void *data)
+{
+	struct nlattr *nla;
+
+	if (skb->network_header + NLA_HDRLEN + attrlen > (int)skb->len)
+		return -EMSGSIZE;
+
+	nla = (struct nlattr *)(skb->data + skb->network_header);
+	nla->nla_len = NLA_HDRLEN + attrlen;
+	nla->nla_type = attrtype;
+	memcpy(nla_data(nla), data, attrlen);
+	skb->network_header += (NLA_HDRLEN + attrlen + 3) & ~3;
+
+	return 0;
+}
+
+/* Rate tables (net/sched/sch_generic.c) */
+void psched_ratecfg_precompute(struct psched_ratecfg *r, const struct tc_ratespec *conf, u64 rate64)
+{
+	memset(r, 0, sizeof(*r));
+	r->overhead = conf->overhead;
+	r->rate_bytes_ps = max_t(u64, conf->rate, rate64);
+	r->linklayer = (conf->linklayer & TC_LINKLAYER_MASK);
+	r->mult = 1;
+
+	if (r->rate_bytes_ps > 0) {
+		u64 factor = NSEC_PER_SEC;
+
+		for (;;) {
+			r->mult = factor / r->rate_bytes_ps;
+			if (r->mult & (1U << 31) || factor & (1ULL << 63))
+				break;
+			factor <<= 1;
+			r->shift++;
+		}
+	}
+}
+
+/* Qdisc */
+int register_qdisc(struct Qdisc_ops *ops)
+{
+	return 0;
+}
+
+int unregister_qdisc(struct Qdisc_ops *ops)
+{
+	return 0;
+}
+
+void qdisc_watchdog_init(struct qdisc_watchdog *wd, struct Qdisc *qdisc)
+{
+	wd->qdisc = qdisc;
+	wd->expires = 0;
+}
+
+void qdisc_watchdog_schedule_ns(struct qdisc_watchdog *wd, u64 expires, bool throttle)
+{
+	wd->expires = expires;
+}
+
+void qdisc_watchdog_cancel(struct qdisc_watchdog *wd)
+{
+	wd->expires = 0;
+}
+
+/* A harness qdisc is the root, so there are no parents to update */
+void qdisc_tree_reduce_backlog(struct Qdisc *sch, int n, int len)
+{
+}
+
+struct sk_buff *qdisc_peek_dequeued(struct Qdisc *sch)
+{
+	if (NULL == sch->gso_skb) {
+		sch->gso_skb = sch->ops->dequeue(sch);
+		if (sch->gso_skb) {
+			qdisc_qstats_backlog_inc(sch, sch->gso_skb);
+			sch->q.qlen++;
+		}
+	}
+
+	return sch->gso_skb;
+}
+
+void qdisc_reset_queue(struct Qdisc *sch)
+{
+	sch->q.qlen = 0;
+}
+
+/* Every qdisc is attached to the same device */
+struct net_device *qdisc_dev(const struct Qdisc *qdisc)
+{
+	static struct net_device dev = { .name = "oq0", .mtu = 1500, .hard_header_len = ETH_HLEN };
+
+	return &dev;
+}
+
+int oq_shim_enqueue(struct Qdisc *sch, struct sk_buff *skb)
+{
+	struct sk_buff *to_free = NULL;
+	int ret;
+
+	ret = sch->ops->enqueue(skb, sch, &to_free);
+	kfree_skb_list(to_free);
+
+	return ret;
+}
+
+struct Qdisc *oq_shim_qdisc_create(const struct Qdisc_ops *ops)
+{
+	struct Qdisc *sch;
+
+	if (posix_memalign((void **)&sch, 64, sizeof(*sch) + ops->priv_size) != 0)
+		return NULL;
+
+	memset(sch, 0, sizeof(*sch) + ops->priv_size);
+	sch->ops = ops;
+	sch->handle = 0x10000; /* 1: */
+
+	return sch;
+}
+
+void oq_shim_qdisc_destroy(struct Qdisc *sch)
+{
+	if (sch->ops->reset)
+		sch->ops->reset(sch);
+	if (sch->ops->destroy)
+		sch->ops->destroy(sch);
+
+	free(sch);
+}
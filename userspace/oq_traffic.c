@@ -0,0 +1,313 @@
+/*
+ * oq_traffic.c     Packet and qdisc helpers shared by the userspace harness and benchmarks.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#include <fcntl.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+
+#include "oq_traffic.h"
+
+struct sk_buff *oq_traffic_packet(const struct oq_flow *flow, unsigned int len)
+{
+	struct sk_buff *skb;
+	struct iphdr *iph;
+	__be16 *ports;
+
+	if (len < sizeof(*iph) + 4)
+		len = sizeof(*iph) + 4;
+
+	skb = oq_shim_alloc_skb(len);
+	if (NULL == skb)
+		return NULL;
+
+	skb->protocol = htons(ETH_P_IP);
+	skb->network_header = 0;
+
+	iph = (struct iphdr *)skb->data;
+	iph->version = 4;
+	iph->ihl = 5;
+	iph->tos = flow->tos;
+	iph->tot_len = htons(len);
+	iph->ttl = 64;
+	iph->protocol = flow->protocol;
+	iph->saddr = htonl(flow->saddr);
+	iph->daddr = htonl(flow->daddr);
+
+	ports = (__be16 *)(skb->data + sizeof(*iph));
+	ports[0] = htons(flow->sport);
+	ports[1] = htons(flow->dport);
+
+	return skb;
+}
+
+/* Read a policy bytecode file (OQGen -target bytecode) */
+static void *oq_traffic_read_prog(const char *file, size_t *len)
+{
+	FILE *f;
+	void *prog;
+
+	f = fopen(file, "rb");
+	if (NULL == f) {
+		perror(file);
+		return NULL;
+	}
+
+	prog = malloc(TCQ_OQ_PROG_MAX_LEN);
+	*len = prog != NULL ? fread(prog, 1, TCQ_OQ_PROG_MAX_LEN, f) : 0;
+	if (prog != NULL && (ferror(f) || !feof(f) || *len == 0)) {
+		fprintf(stderr, "%s: not a policy bytecode file of at most %d bytes\n", file, TCQ_OQ_PROG_MAX_LEN);
+		free(prog);
+		prog = NULL;
+	}
+
+	fclose(f);
+
+	return prog;
+}
+
+/* Options carried by TCA_OPTIONS, as tc sends them; a port ending in .oqb is a bytecode file */
+struct Qdisc *oq_traffic_open(const char *port)
+{
+	struct Qdisc *sch;
+	struct nlattr *opt;
+	struct tc_oq_qopt *qopt;
+	void *prog = NULL;
+	size_t prog_len = 0, n;
+	int err;
+
+	n = strlen(port);
+	if (n > 4 && strcmp(port + n - 4, ".oqb") == 0) {
+		prog = oq_traffic_read_prog(port, &prog_len);
+		if (NULL == prog)
+			return NULL;
+	}
+
+	opt = calloc(1, NLA_HDRLEN + sizeof(*qopt) + prog_len);
+	if (NULL == opt) {
+		free(prog);
+		return NULL;
+	}
+
+	opt->nla_len = NLA_HDRLEN + sizeof(*qopt) + prog_len;
+	opt->nla_type = TCA_OPTIONS;
+	qopt = nla_data(opt);
+	if (prog != NULL) {
+		qopt->prog_len = prog_len;
+		memcpy(qopt + 1, prog, prog_len);
+	} else {
+		strncpy(qopt->port_name, port, TCQ_OQ_NAME_LEN);
+	}
+
+	sch = oq_shim_qdisc_create(&oq_qdisc_ops);
+	if (sch != NULL) {
+		err = oq_qdisc_ops.init(sch, opt);
+		if (err != 0) {
+			fprintf(stderr, "cannot initialize port %s (%d)\n", port, err);
+			/* As in the stack, destroy() cleans up after a failed init */
+			oq_qdisc_ops.destroy(sch);
+			free(sch);
+			sch = NULL;
+		}
+	}
+
+	free(opt);
+	free(prog);
+
+	return sch;
+}
+
+int oq_traffic_change(struct Qdisc *sch, const char **names, const double *values, int n)
+{
+	const double limit = 1LL << (63 - TCQ_OQ_PARAM_SHIFT);
+	struct nlattr *opt;
+	struct tc_oq_qopt *qopt;
+	int i, err;
+
+	if (n > TCQ_OQ_MAX_SET)
+		return -EINVAL;
+
+	opt = calloc(1, NLA_HDRLEN + sizeof(*qopt));
+	if (NULL == opt)
+		return -ENOMEM;
+
+	opt->nla_len = NLA_HDRLEN + sizeof(*qopt);
+	opt->nla_type = TCA_OPTIONS;
+	qopt = nla_data(opt);
+
+	for (i = 0; i < n; i++) {
+		struct tc_oq_param *param = &qopt->params[i];
+
+		strncpy(param->name, names[i], TCQ_OQ_PARAM_NAME_LEN);
+		param->value = (s64)values[i];
+		param->integral = (double)param->value == values[i];
+		if (values[i] < limit && values[i] > -limit)
+			param->fixed = (s64)(values[i] * (1LL << TCQ_OQ_PARAM_SHIFT) + (values[i] < 0 ? -0.5 : 0.5));
+	}
+	qopt->num_params = n;
+
+	err = oq_qdisc_ops.change(sch, opt);
+	free(opt);
+
+	return err;
+}
+
+/* Trace file with a header that is written again with the record count when it is closed */
+FILE *oq_traffic_trace_create(const char *file)
+{
+	struct oq_capture_hdr hdr = { 0 };
+	FILE *f;
+
+	f = fopen(file, "wb");
+	if (NULL == f)
+		return NULL;
+
+	if (fwrite(&hdr, sizeof(hdr), 1, f) != 1) {
+		fclose(f);
+		return NULL;
+	}
+
+	return f;
+}
+
+int oq_traffic_trace_add(FILE *f, u64 time, const struct oq_flow *flow, unsigned int len)
+{
+	struct oq_capture_rec rec;
+
+	memset(&rec, 0, sizeof(rec));
+	rec.time = time;
+	rec.saddr = flow->saddr;
+	rec.daddr = flow->daddr;
+	rec.len = len;
+	rec.sport = flow->sport;
+	rec.dport = flow->dport;
+	rec.protocol = flow->protocol;
+	rec.tos = flow->tos;
+
+	return fwrite(&rec, sizeof(rec), 1, f) == 1 ? 0 : -EIO;
+}
+
+int oq_traffic_trace_close(FILE *f, long num_recs)
+{
+	struct oq_capture_hdr hdr = {
+		.magic = OQ_CAPTURE_MAGIC,
+		.version = OQ_CAPTURE_VERSION,
+		.rec_size = sizeof(struct oq_capture_rec),
+		.num_recs = num_recs,
+	};
+	int err = 0;
+
+	if (fseek(f, 0, SEEK_SET) != 0 || fwrite(&hdr, sizeof(hdr), 1, f) != 1)
+		err = -EIO;
+
+	return fclose(f) == 0 ? err : -EIO;
+}
+
+/* Records of a trace file, mapped read-only and shared by the processes that replay it */
+const struct oq_capture_rec *oq_traffic_trace_map(const char *file, long *num_recs)
+{
+	const struct oq_capture_hdr *hdr;
+	struct stat st;
+	void *map;
+	int fd;
+
+	fd = open(file, O_RDONLY);
+	if (fd < 0)
+		return NULL;
+
+	if (fstat(fd, &st) != 0 || st.st_size < (off_t)sizeof(*hdr)) {
+		close(fd);
+		return NULL;
+	}
+
+	map = mmap(NULL, st.st_size, PROT_READ, MAP_SHARED, fd, 0);
+	close(fd);
+	if (map == MAP_FAILED)
+		return NULL;
+
+	hdr = map;
+	if (hdr->magic != OQ_CAPTURE_MAGIC || hdr->version != OQ_CAPTURE_VERSION ||
+		hdr->rec_size != sizeof(struct oq_capture_rec) ||
+		hdr->num_recs > (st.st_size - sizeof(*hdr)) / sizeof(struct oq_capture_rec)) {
+		munmap(map, st.st_size);
+		return NULL;
+	}
+
+	*num_recs = hdr->num_recs;
+
+	return (const struct oq_capture_rec *)(hdr + 1);
+}
+
+struct sk_buff *oq_traffic_trace_packet(const struct oq_capture_rec *rec)
+{
+	struct oq_flow flow = {
+		.saddr = rec->saddr,
+		.daddr = rec->daddr,
+		.sport = rec->sport,
+		.dport = rec->dport,
+		.protocol = rec->protocol,
+		.tos = rec->tos,
+	};
+	struct sk_buff *skb;
+
+	skb = oq_traffic_packet(&flow, rec->len);
+	if (skb != NULL)
+		skb->mark = rec->mark;
+
+	return skb;
+}
+
+long oq_traffic_backlog(struct Qdisc *sch)
+{
+	struct oq_priv *priv = qdisc_priv(sch);
+	long backlog = 0;
+	int i;
+
+	for (i = 0; i < priv->num_q; i++)
+		backlog += priv->queues[i].len;
+	if (priv->pacing)
+		backlog += priv->pacing->held;
+
+	return backlog;
+}
+
+long oq_traffic_dropped(struct Qdisc *sch)
+{
+	struct oq_priv *priv = qdisc_priv(sch);
+	long dropped = 0;
+	int i;
+
+	for (i = 0; i < priv->num_q; i++)
+		dropped += priv->queues[i].dropped;
+
+	return dropped;
+}
+
+u32 oq_traffic_rand(u32 *state)
+{
+	u32 x = *state;
+
+	x ^= x << 13;
+	x ^= x >> 17;
+	x ^= x << 5;
+
+	return *state = x;
+}
+
+u64 oq_traffic_wall_ns(void)
+{
+	struct timespec ts;
+
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+
+	return (u64)ts.tv_sec * NSEC_PER_SEC + ts.tv_nsec;
+}
@@ -0,0 +1,60 @@
+/*
+ * oq_traffic.h     Packet and qdisc helpers shared by the userspace harness and benchmarks.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#pragma once
+
+#include "include/oq_kernel.h"
+#include "../include/qdisc/sch_openqueue.h"
+
+extern struct Qdisc_ops oq_qdisc_ops;
+
+#define TCQ_OQ_PROG_MAX_LEN	49152	/* As tc (q_openqueue.h) */
+
+/* IPv4 flow; addresses and ports in host byte order */
+struct oq_flow {
+	u32 saddr;
+	u32 daddr;
+	u16 sport;
+	u16 dport;
+	u8 protocol;
+	u8 tos;
+};
+
+/* Build an IPv4 packet of len bytes (network header at offset 0) for a flow */
+struct sk_buff *oq_traffic_packet(const struct oq_flow *flow, unsigned int len);
+
+/*
+ * Create an openqueue qdisc for a port through the regular init path, or for the policy
+ * bytecode of a .oqb file as tc qdisc add ... openqueue prog <file> does
+ */
+struct Qdisc *oq_traffic_open(const char *port);
+
+/* Set parameters of a live qdisc through the change path, as tc qdisc change ... set does */
+int oq_traffic_change(struct Qdisc *sch, const char **names, const double *values, int n);
+
+/* Packets queued/dropped over all queues of a qdisc */
+long oq_traffic_backlog(struct Qdisc *sch);
+long oq_traffic_dropped(struct Qdisc *sch);
+
+/*
+ * Arrival traces (oq_capture.h): written by oq_capture from a live qdisc or by oq_bench -w
+ * from a traffic mix, and mapped read-only by oq_replay
+ */
+FILE *oq_traffic_trace_create(const char *file);
+int oq_traffic_trace_add(FILE *f, u64 time, const struct oq_flow *flow, unsigned int len);
+int oq_traffic_trace_close(FILE *f, long num_recs);
+const struct oq_capture_rec *oq_traffic_trace_map(const char *file, long *num_recs);
+
+/* Build the packet of a trace record */
+struct sk_buff *oq_traffic_trace_packet(const struct oq_capture_rec *rec);
+
+u32 oq_traffic_rand(u32 *state);
+u64 oq_traffic_wall_ns(void);
@@ -0,0 +1,390 @@
+/*
+ * oq_xdp.c         AF_XDP forwarder running an OpenQueue policy in user space.
+ *
+ *                  Packets received on a queue of IN go through an openqueue qdisc built from
+ *                  the same core and generated policy as the kernel module (or from a policy
+ *                  bytecode file), and what it dequeues is sent on OUT. Frames stay in one UMEM
+ *                  shared by both sockets: the sk_buff the policy sees points into the frame,
+ *                  a drop gives the frame back to the free frames and transmission hands it to
+ *                  OUT as it is. Reception and transmission go in batches. The forwarder sleeps
+ *                  until a packet arrives or the watchdog of a shaped queue is due, or busy
+ *                  polls with -B. With -d, the Ethernet addresses are rewritten for the next
+ *                  hop on OUT, as a router would.
+ *
+ *                  Usage: oq_xdp [-q QUEUE] [-b BATCH] [-f FRAMES] [-d MAC] [-t SECONDS]
+ *                                [-o FILE] [-z|-c] [-S] [-B] IN OUT PORT
+ *                         PORT is a port of the policy built in or a policy bytecode file (.oqb)
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#define _GNU_SOURCE /* ppoll */
+
+#include <getopt.h>
+#include <poll.h>
+#include <signal.h>
+#include <time.h>
+
+#include "oq_traffic.h"
+#include "oq_xsk.h"
+
+#define OQ_XDP_MAX_BATCH	256
+#define OQ_XDP_BATCH		64
+#define OQ_XDP_BUSY_POLL_US	20
+#define ETH_ALEN		6
+
+struct oq_xdp {
+	struct Qdisc *sch;
+	struct oq_xsk_umem umem;
+	struct oq_xsk in;
+	struct oq_xsk out_xsk;
+	struct oq_xsk *out; /* &in when IN and OUT are the same queue */
+	struct sk_buff *skbs; /* sk_buff of each frame */
+	unsigned int batch;
+	bool rewrite;
+	unsigned char dst[ETH_ALEN];
+	unsigned char src[ETH_ALEN];
+	u64 rx_packets;
+	u64 rx_bytes;
+	u64 tx_packets;
+	u64 tx_bytes;
+};
+
+/* Forwarder the frames of dropped packets go back to */
+static struct oq_xdp *oq_xdp_owner;
+
+static volatile sig_atomic_t oq_stop;
+
+static void oq_on_signal(int sig)
+{
+	oq_stop = 1;
+}
+
+static void oq_xdp_usage(const char *prog)
+{
+	fprintf(stderr, "Usage: %s [-q QUEUE] [-b BATCH] [-f FRAMES] [-d MAC] [-t SECONDS]\n", prog);
+	fprintf(stderr, "       %*s [-o FILE] [-z|-c] [-S] [-B] IN OUT PORT\n", (int)strlen(prog), "");
+	fprintf(stderr, "  -q  queue of IN and OUT (default 0)\n");
+	fprintf(stderr, "  -b  packets per receive and transmit batch (1-%d, default %d)\n", OQ_XDP_MAX_BATCH,
+		OQ_XDP_BATCH);
+	fprintf(stderr, "  -f  frames of the UMEM, which bound the packets in flight (default %d)\n", OQ_XSK_FRAMES);
+	fprintf(stderr, "  -d  destination MAC of forwarded frames (source MAC becomes that of OUT)\n");
+	fprintf(stderr, "  -t  stop after SECONDS (default: on SIGINT)\n");
+	fprintf(stderr, "  -o  write the results as JSON to FILE\n");
+	fprintf(stderr, "  -z  zero-copy mode, -c copy mode (default: the driver's best)\n");
+	fprintf(stderr, "  -S  generic XDP (drivers without native XDP)\n");
+	fprintf(stderr, "  -B  busy poll instead of waiting for interrupts\n");
+}
+
+/* Dropped, reset or purged packets give their frames back */
+static void oq_xdp_free_skb(struct sk_buff *skb)
+{
+	struct oq_xdp *x = oq_xdp_owner;
+
+	oq_xsk_frame_free(&x->umem, (u64)(skb - x->skbs) * x->umem.frame_size);
+}
+
+/* Enqueue a batch of received frames; returns packets received */
+static unsigned int oq_xdp_rx(struct oq_xdp *x)
+{
+	u64 addrs[OQ_XDP_MAX_BATCH];
+	u32 lens[OQ_XDP_MAX_BATCH];
+	unsigned int n, i;
+
+	oq_xsk_fill(&x->in, &x->umem);
+	oq_xsk_kick_rx(&x->in);
+
+	n = oq_xsk_rx(&x->in, addrs, lens, x->batch);
+	for (i = 0; i < n; i++) {
+		struct sk_buff *skb = &x->skbs[oq_xsk_frame_index(&x->umem, addrs[i])];
+		unsigned char *data = x->umem.area + addrs[i];
+
+		oq_shim_wrap_skb(skb, data, lens[i], oq_xdp_free_skb);
+		if (lens[i] >= ETH_HLEN) {
+			skb->protocol = ((struct ethhdr *)data)->h_proto;
+			skb->network_header = ETH_HLEN;
+		}
+
+		x->rx_bytes += lens[i];
+		oq_shim_enqueue(x->sch, skb);
+	}
+	x->rx_packets += n;
+
+	return n;
+}
+
+/* Send a batch of dequeued packets, as far as the TX ring has room; returns packets sent */
+static unsigned int oq_xdp_tx(struct oq_xdp *x)
+{
+	struct oq_priv *priv = qdisc_priv(x->sch);
+	u64 addrs[OQ_XDP_MAX_BATCH];
+	u32 lens[OQ_XDP_MAX_BATCH];
+	struct sk_buff *skb;
+	unsigned int n, room;
+
+	oq_xsk_complete(x->out, &x->umem);
+
+	room = min_t(unsigned int, oq_xsk_tx_room(x->out), x->batch);
+	priv->watchdog.expires = 0;
+	for (n = 0; n < room && (skb = x->sch->ops->dequeue(x->sch)) != NULL; n++) {
+		if (x->rewrite && skb->len >= ETH_HLEN) {
+			memcpy(skb->data, x->dst, ETH_ALEN);
+			memcpy(skb->data + ETH_ALEN, x->src, ETH_ALEN);
+		}
+
+		addrs[n] = skb->data - x->umem.area;
+		lens[n] = skb->len;
+		x->tx_bytes += skb->len;
+		oq_shim_release_skb(skb); /* The frame now belongs to OUT */
+	}
+
+	if (n > 0)
+		oq_xsk_tx(x->out, addrs, lens, n);
+	oq_xsk_kick_tx(x->out);
+	x->tx_packets += n;
+
+	return n;
+}
+
+/* Sleep until a packet arrives, the watchdog is due or until passes */
+static void oq_xdp_wait(struct oq_xdp *x, u64 until)
+{
+	struct oq_priv *priv = qdisc_priv(x->sch);
+	struct pollfd pfd = { .fd = x->in.fd, .events = POLLIN };
+	struct timespec ts;
+	u64 now;
+
+	if (priv->watchdog.expires != 0 && priv->watchdog.expires < until)
+		until = priv->watchdog.expires;
+
+	/* Frames the kernel has yet to send are kicked again right away */
+	now = ktime_get_ns();
+	if (until <= now || oq_xsk_tx_pending(x->out) != 0)
+		return;
+	ts.tv_sec = (until - now) / NSEC_PER_SEC;
+	ts.tv_nsec = (until - now) % NSEC_PER_SEC;
+
+	ppoll(&pfd, 1, &ts, NULL);
+}
+
+static int oq_xdp_parse_mac(const char *str, unsigned char *mac)
+{
+	unsigned int b[ETH_ALEN];
+	int i;
+
+	if (sscanf(str, "%x:%x:%x:%x:%x:%x", &b[0], &b[1], &b[2], &b[3], &b[4], &b[5]) != ETH_ALEN)
+		return -EINVAL;
+
+	for (i = 0; i < ETH_ALEN; i++) {
+		if (b[i] > 0xff)
+			return -EINVAL;
+		mac[i] = b[i];
+	}
+
+	return 0;
+}
+
+static void oq_xdp_json(FILE *f, const struct oq_xdp *x, const char *port, const char *in, const char *out,
+	const struct oq_xsk_opts *opts, bool zerocopy, u64 elapsed)
+{
+	double secs = (double)elapsed / NSEC_PER_SEC;
+
+	fprintf(f, "{\n");
+	fprintf(f, "  \"port\": \"%s\",\n", port);
+	fprintf(f, "  \"in\": \"%s\",\n", in);
+	fprintf(f, "  \"out\": \"%s\",\n", out);
+	fprintf(f, "  \"queue\": %u,\n", opts->queue);
+	fprintf(f, "  \"batch\": %u,\n", x->batch);
+	fprintf(f, "  \"frames\": %u,\n", x->umem.num_frames);
+	fprintf(f, "  \"zerocopy\": %s,\n", zerocopy ? "true" : "false");
+	fprintf(f, "  \"xdp_mode\": \"%s\",\n", opts->skb_mode ? "generic" : "native");
+	fprintf(f, "  \"busy_poll\": %s,\n", opts->busy_poll_us ? "true" : "false");
+	fprintf(f, "  \"seconds\": %.3f,\n", secs);
+	fprintf(f, "  \"rx_packets\": %llu,\n", (unsigned long long)x->rx_packets);
+	fprintf(f, "  \"tx_packets\": %llu,\n", (unsigned long long)x->tx_packets);
+	fprintf(f, "  \"dropped\": %ld,\n", oq_traffic_dropped(x->sch));
+	fprintf(f, "  \"queued\": %u,\n", x->sch->q.qlen);
+	fprintf(f, "  \"rx_pps\": %.0f,\n", secs > 0 ? x->rx_packets / secs : 0);
+	fprintf(f, "  \"tx_pps\": %.0f,\n", secs > 0 ? x->tx_packets / secs : 0);
+	fprintf(f, "  \"rx_bps\": %.0f,\n", secs > 0 ? x->rx_bytes * 8.0 / secs : 0);
+	fprintf(f, "  \"tx_bps\": %.0f\n", secs > 0 ? x->tx_bytes * 8.0 / secs : 0);
+	fprintf(f, "}\n");
+}
+
+int main(int argc, char **argv)
+{
+	struct oq_xsk_opts opts = { 0 };
+	struct oq_xdp x;
+	const char *port, *in, *out, *file = NULL;
+	u32 frames = OQ_XSK_FRAMES;
+	u64 start, now, report, end = 0;
+	u64 last_rx = 0, last_tx = 0;
+	long last_dropped = 0;
+	bool zerocopy;
+	int opt, ret;
+	FILE *f;
+
+	memset(&x, 0, sizeof(x));
+	x.batch = OQ_XDP_BATCH;
+
+	while ((opt = getopt(argc, argv, "q:b:f:d:t:o:zcSBh")) != -1) {
+		switch (opt) {
+			case 'q':
+				opts.queue = atoi(optarg);
+				break;
+			case 'b':
+				x.batch = atoi(optarg);
+				break;
+			case 'f':
+				frames = atoi(optarg);
+				break;
+			case 'd':
+				if (oq_xdp_parse_mac(optarg, x.dst) != 0) {
+					fprintf(stderr, "oq_xdp: invalid MAC address %s\n", optarg);
+					return 2;
+				}
+				x.rewrite = true;
+				break;
+			case 't':
+				end = (u64)(atof(optarg) * NSEC_PER_SEC);
+				break;
+			case 'o':
+				file = optarg;
+				break;
+			case 'z':
+				opts.zerocopy = true;
+				break;
+			case 'c':
+				opts.copy = true;
+				break;
+			case 'S':
+				opts.skb_mode = true;
+				break;
+			case 'B':
+				opts.busy_poll_us = OQ_XDP_BUSY_POLL_US;
+				break;
+			default:
+				oq_xdp_usage(argv[0]);
+				return 2;
+		}
+	}
+
+	if (optind != argc - 3 || x.batch < 1 || x.batch > OQ_XDP_MAX_BATCH || frames < 2 * OQ_XSK_RING_SIZE ||
+			(opts.zerocopy && opts.copy)) {
+		oq_xdp_usage(argv[0]);
+		return 2;
+	}
+	in = argv[optind];
+	out = argv[optind + 1];
+	port = argv[optind + 2];
+	opts.busy_poll_budget = x.batch;
+
+	x.sch = oq_traffic_open(port);
+	if (NULL == x.sch)
+		return 1;
+
+	ret = oq_xsk_umem_create(&x.umem, frames, OQ_XSK_FRAME_SIZE);
+	x.skbs = calloc(frames, sizeof(*x.skbs));
+	if (ret != 0 || NULL == x.skbs) {
+		fprintf(stderr, "oq_xdp: UMEM of %u frames: %s\n", frames, strerror(ret ? -ret : ENOMEM));
+		return 1;
+	}
+	oq_xdp_owner = &x;
+
+	/* IN receives, OUT transmits; one socket does both when they are the same */
+	x.out = &x.in;
+	ret = oq_xsk_open(&x.in, in, &x.umem, NULL, true, strcmp(in, out) == 0, &opts);
+	if (ret != 0) {
+		fprintf(stderr, "oq_xdp: AF_XDP socket on %s queue %u: %s\n", in, opts.queue, strerror(-ret));
+		return 1;
+	}
+
+	if (strcmp(in, out) != 0) {
+		x.out = &x.out_xsk;
+		ret = oq_xsk_open(x.out, out, &x.umem, &x.in, false, true, &opts);
+		if (ret != 0) {
+			fprintf(stderr, "oq_xdp: AF_XDP socket on %s queue %u: %s\n", out, opts.queue, strerror(-ret));
+			return 1;
+		}
+	}
+
+	ret = oq_xsk_redirect(&x.in, &opts);
+	if (ret != 0) {
+		fprintf(stderr, "oq_xdp: XDP program on %s: %s\n", in, strerror(-ret));
+		return 1;
+	}
+
+	if (x.rewrite && oq_xsk_hwaddr(out, x.src) != 0) {
+		fprintf(stderr, "oq_xdp: no hardware address for %s\n", out);
+		return 1;
+	}
+
+	signal(SIGINT, oq_on_signal);
+	signal(SIGTERM, oq_on_signal);
+
+	zerocopy = oq_xsk_zerocopy(&x.in);
+	printf("port %s: %s -> %s queue %u, %s, %s XDP, %s, batch %u, %u frames\n", port, in, out, opts.queue,
+		zerocopy ? "zero-copy" : "copy", opts.skb_mode ? "generic" : "native",
+		opts.busy_poll_us ? "busy polling" : "interrupts", x.batch, frames);
+	printf("%8s %10s %10s %10s %8s\n", "time s", "rx pps", "tx pps", "drops/s", "queued");
+
+	start = ktime_get_ns();
+	report = start + NSEC_PER_SEC;
+	if (end)
+		end += start;
+
+	while (!oq_stop) {
+		unsigned int rx = oq_xdp_rx(&x);
+		unsigned int tx = oq_xdp_tx(&x);
+
+		if (rx == 0 && tx == 0 && !x.in.busy_poll)
+			oq_xdp_wait(&x, end && end < report ? end : report);
+
+		now = ktime_get_ns();
+		if (end && now >= end)
+			break;
+		if (now >= report) {
+			long dropped = oq_traffic_dropped(x.sch);
+
+			printf("%8.1f %10llu %10llu %10ld %8u\n", (double)(now - start) / NSEC_PER_SEC,
+				(unsigned long long)(x.rx_packets - last_rx), (unsigned long long)(x.tx_packets - last_tx),
+				dropped - last_dropped, x.sch->q.qlen);
+			fflush(stdout);
+
+			last_rx = x.rx_packets;
+			last_tx = x.tx_packets;
+			last_dropped = dropped;
+			report += NSEC_PER_SEC;
+		}
+	}
+	now = ktime_get_ns();
+
+	printf("received %llu, sent %llu, dropped %ld, queued %u in %.1f s\n", (unsigned long long)x.rx_packets,
+		(unsigned long long)x.tx_packets, oq_traffic_dropped(x.sch), x.sch->q.qlen,
+		(double)(now - start) / NSEC_PER_SEC);
+
+	if (file) {
+		f = fopen(file, "w");
+		if (NULL == f) {
+			perror(file);
+			return 1;
+		}
+		oq_xdp_json(f, &x, port, in, out, &opts, zerocopy, now - start);
+		fclose(f);
+	}
+
+	/* The program goes with its link; queued packets give their frames back */
+	if (x.out != &x.in)
+		oq_xsk_close(x.out);
+	oq_xsk_close(&x.in);
+	oq_shim_qdisc_destroy(x.sch);
+	oq_xsk_umem_destroy(&x.umem);
+	free(x.skbs);
+
+	return 0;
+}
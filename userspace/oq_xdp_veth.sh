@@ -0,0 +1,154 @@
+#!/bin/bash
+#
+# oq_xdp_veth.sh    Local test bed of oq_xdp: three network namespaces joined by veth pairs,
+#                   a UDP source, the forwarder and a sink. The bench compares the forwarder
+#                   with the kernel path (IP forwarding through tc qdisc openqueue).
+#
+#                   oqsrc veth0p 10.1.0.1 <-> veth0 oqfwd veth1 <-> veth1p 10.2.0.1 oqdst
+#
+#   oq_xdp_veth.sh setup
+#   oq_xdp_veth.sh run [PORT]               Forwarder in the foreground (XDP_OPTS are passed on)
+#   oq_xdp_veth.sh bench [PORT] [POLICY]    Sink packets per second of both paths
+#   oq_xdp_veth.sh teardown
+#
+# Run as root from userspace/ after make POLICY=... build/POLICY/oq_xdp. The kernel path
+# needs the qdisc and policy modules loaded and tc from iproute2/; it is skipped otherwise.
+#
+#                   This program is free software; you can redistribute it and/or
+#                   modify it under the terms of the GNU General Public License
+#                   as published by the Free Software Foundation; either version
+#                   2 of the License, or (at your option) any later version.
+#
+# Authors:          Danushka Menikkumbura, <dmenikku@purdue.edu>
+
+set -e
+
+POLICY=${POLICY:-oqp_my_port}
+PORT=${PORT:-myPort}
+SECONDS_RUN=${SECONDS_RUN:-10}
+PKT_SIZE=${PKT_SIZE:-64}
+XDP_OPTS=${XDP_OPTS:--S}
+TC=${TC:-tc}
+OQ_XDP=build/$POLICY/oq_xdp
+
+# Namespaced shell
+src() { ip netns exec oqsrc "$@"; }
+fwd() { ip netns exec oqfwd "$@"; }
+dst() { ip netns exec oqdst "$@"; }
+
+hwaddr() {
+	ip netns exec "$1" cat /sys/class/net/"$2"/address
+}
+
+setup() {
+	teardown 2>/dev/null || true
+
+	for ns in oqsrc oqfwd oqdst; do
+		ip netns add $ns
+		ip netns exec $ns ip link set lo up
+	done
+
+	ip link add veth0 netns oqfwd type veth peer name veth0p netns oqsrc
+	ip link add veth1 netns oqfwd type veth peer name veth1p netns oqdst
+
+	src ip addr add 10.1.0.1/24 dev veth0p
+	fwd ip addr add 10.1.0.254/24 dev veth0
+	fwd ip addr add 10.2.0.254/24 dev veth1
+	dst ip addr add 10.2.0.1/24 dev veth1p
+
+	src ip link set veth0p up
+	fwd ip link set veth0 up
+	fwd ip link set veth1 up
+	dst ip link set veth1p up
+
+	# Static neighbours: the socket takes every packet of IN, ARP included
+	src ip route add 10.2.0.0/24 via 10.1.0.254
+	src ip neigh replace 10.1.0.254 lladdr "$(hwaddr oqfwd veth0)" dev veth0p nud permanent
+	fwd ip neigh replace 10.2.0.1 lladdr "$(hwaddr oqdst veth1p)" dev veth1 nud permanent
+	dst ip route add 10.1.0.0/24 via 10.2.0.254
+}
+
+teardown() {
+	for ns in oqsrc oqfwd oqdst; do
+		ip netns del $ns 2>/dev/null || true
+	done
+}
+
+# UDP source from oqsrc to the sink for SECONDS_RUN seconds
+source_udp() {
+	src python3 - "$SECONDS_RUN" "$PKT_SIZE" <<'EOF'
+import socket, sys, time
+end = time.time() + float(sys.argv[1])
+payload = bytes(max(int(sys.argv[2]) - 42, 1))
+s = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+while time.time() < end:
+    for tos in (0, 32, 64, 128):
+        s.setsockopt(socket.IPPROTO_IP, socket.IP_TOS, tos)
+        for _ in range(64):
+            try:
+                s.sendto(payload, ("10.2.0.1", 9))
+            except OSError:
+                pass
+EOF
+}
+
+sink_packets() {
+	dst cat /sys/class/net/veth1p/statistics/rx_packets
+}
+
+# Packets per second at the sink while the source runs
+measure() {
+	local before after
+
+	before=$(sink_packets)
+	source_udp
+	sleep 1
+	after=$(sink_packets)
+
+	echo $(( (after - before) / SECONDS_RUN ))
+}
+
+run() {
+	fwd "$OQ_XDP" $XDP_OPTS -d "$(hwaddr oqdst veth1p)" "$@" veth0 veth1 "$PORT"
+}
+
+bench() {
+	local xdp kernel pid
+
+	[ -x "$OQ_XDP" ] || { echo "$OQ_XDP not built (make POLICY=$POLICY build/$POLICY/oq_xdp)"; exit 1; }
+	setup
+
+	# Userspace: the forwarder takes veth0 and transmits on veth1
+	fwd "$OQ_XDP" $XDP_OPTS -d "$(hwaddr oqdst veth1p)" -t $((SECONDS_RUN + 3)) \
+		-o build/$POLICY/xdp_veth.json veth0 veth1 "$PORT" > /dev/null &
+	pid=$!
+	sleep 1
+	xdp=$(measure)
+	wait $pid || true
+	echo "oq_xdp ($PORT): $xdp pps"
+
+	# Kernel: IP forwarding with the policy as the root qdisc of veth1
+	if fwd "$TC" qdisc add dev veth1 root openqueue policy "$PORT" 2>/dev/null; then
+		fwd sysctl -qw net.ipv4.ip_forward=1
+		kernel=$(measure)
+		echo "kernel qdisc ($PORT): $kernel pps"
+		fwd "$TC" -s qdisc show dev veth1
+	else
+		echo "kernel qdisc ($PORT): skipped (sch_openqueue or $POLICY not loaded, or $TC without openqueue)"
+	fi
+
+	teardown
+}
+
+cmd=$1
+shift || true
+[ -n "$1" ] && PORT=$1 && shift
+[ -n "$1" ] && POLICY=$1 && OQ_XDP=build/$POLICY/oq_xdp && shift
+
+case "$cmd" in
+setup) setup ;;
+run) run "$@" ;;
+bench) bench ;;
+teardown) teardown ;;
+*) sed -n '9,12p' "$0"; exit 1 ;;
+esac
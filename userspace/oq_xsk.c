@@ -0,0 +1,442 @@
+/*
+ * oq_xsk.c         AF_XDP sockets for oq_xdp (oq_xsk.h). Uses the socket and bpf system calls
+ *                  directly: the XDP program is five instructions that redirect a packet to
+ *                  the socket of its receive queue through an XSKMAP, falling back to the
+ *                  stack when there is none, attached with a BPF link so it goes away with
+ *                  the forwarder. Sockets on different devices share one UMEM (Linux 5.10),
+ *                  so frames move from reception to transmission without a copy.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#include <errno.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <net/if.h>
+#include <sys/ioctl.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
+#include <sys/syscall.h>
+#include <linux/bpf.h>
+#include <linux/if_link.h>
+#include <linux/if_xdp.h>
+
+#include "oq_xsk.h"
+
+#ifndef SOL_XDP
+#define SOL_XDP			283
+#endif
+
+#ifndef AF_XDP
+#define AF_XDP			44
+#endif
+
+#define OQ_XSK_MAX_QUEUES	64	/* Entries of the XSKMAP */
+
+int oq_xsk_umem_create(struct oq_xsk_umem *umem, uint32_t num_frames, uint32_t frame_size)
+{
+	uint32_t i;
+
+	memset(umem, 0, sizeof(*umem));
+	umem->frame_size = frame_size;
+	umem->num_frames = num_frames;
+	umem->size = (size_t)num_frames * frame_size;
+
+	umem->area = mmap(NULL, umem->size, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS | MAP_POPULATE, -1, 0);
+	if (umem->area == MAP_FAILED) {
+		umem->area = NULL;
+		return -errno;
+	}
+
+	umem->free = malloc(num_frames * sizeof(*umem->free));
+	if (NULL == umem->free) {
+		munmap(umem->area, umem->size);
+		umem->area = NULL;
+		return -ENOMEM;
+	}
+
+	/* Lowest frames on top */
+	for (i = 0; i < num_frames; i++)
+		umem->free[i] = (uint64_t)(num_frames - 1 - i) * frame_size;
+	umem->num_free = num_frames;
+
+	return 0;
+}
+
+void oq_xsk_umem_destroy(struct oq_xsk_umem *umem)
+{
+	if (umem->area)
+		munmap(umem->area, umem->size);
+	free(umem->free);
+	memset(umem, 0, sizeof(*umem));
+}
+
+static int oq_xsk_map_ring(struct oq_xsk *xsk, struct oq_xsk_ring *ring, const struct xdp_ring_offset *off,
+	size_t desc_size, off_t pgoff)
+{
+	ring->map_len = off->desc + OQ_XSK_RING_SIZE * desc_size;
+	ring->map = mmap(NULL, ring->map_len, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE, xsk->fd, pgoff);
+	if (ring->map == MAP_FAILED) {
+		ring->map = NULL;
+		return -errno;
+	}
+
+	ring->producer = (uint32_t *)((char *)ring->map + off->producer);
+	ring->consumer = (uint32_t *)((char *)ring->map + off->consumer);
+	ring->flags = (uint32_t *)((char *)ring->map + off->flags);
+	ring->descs = (char *)ring->map + off->desc;
+	ring->mask = OQ_XSK_RING_SIZE - 1;
+
+	return 0;
+}
+
+static int oq_xsk_setsockopt(struct oq_xsk *xsk, int level, int name, int value)
+{
+	return setsockopt(xsk->fd, level, name, &value, sizeof(value)) != 0 ? -errno : 0;
+}
+
+int oq_xsk_open(struct oq_xsk *xsk, const char *ifname, struct oq_xsk_umem *umem, const struct oq_xsk *shared,
+	bool rx, bool tx, const struct oq_xsk_opts *opts)
+{
+	struct xdp_mmap_offsets off;
+	struct sockaddr_xdp sxdp;
+	socklen_t optlen;
+	int ret;
+
+	memset(xsk, 0, sizeof(*xsk));
+	xsk->fd = xsk->map_fd = xsk->prog_fd = xsk->link_fd = -1;
+
+	xsk->ifindex = if_nametoindex(ifname);
+	if (xsk->ifindex == 0)
+		return -errno;
+
+	xsk->fd = socket(AF_XDP, SOCK_RAW | SOCK_CLOEXEC, 0);
+	if (xsk->fd < 0)
+		return -errno;
+
+	if (NULL == shared) {
+		struct xdp_umem_reg reg = {
+			.addr = (uintptr_t)umem->area,
+			.len = umem->size,
+			.chunk_size = umem->frame_size,
+			.headroom = 0,
+		};
+
+		if (setsockopt(xsk->fd, SOL_XDP, XDP_UMEM_REG, &reg, sizeof(reg)) != 0)
+			goto err;
+	}
+
+	/* A socket sharing the UMEM on another device has its own fill and completion rings */
+	ret = oq_xsk_setsockopt(xsk, SOL_XDP, XDP_UMEM_FILL_RING, OQ_XSK_RING_SIZE);
+	if (ret == 0)
+		ret = oq_xsk_setsockopt(xsk, SOL_XDP, XDP_UMEM_COMPLETION_RING, OQ_XSK_RING_SIZE);
+	if (ret == 0 && rx)
+		ret = oq_xsk_setsockopt(xsk, SOL_XDP, XDP_RX_RING, OQ_XSK_RING_SIZE);
+	if (ret == 0 && tx)
+		ret = oq_xsk_setsockopt(xsk, SOL_XDP, XDP_TX_RING, OQ_XSK_RING_SIZE);
+	if (ret != 0) {
+		errno = -ret;
+		goto err;
+	}
+
+	optlen = sizeof(off);
+	if (getsockopt(xsk->fd, SOL_XDP, XDP_MMAP_OFFSETS, &off, &optlen) != 0)
+		goto err;
+
+	ret = oq_xsk_map_ring(xsk, &xsk->fill, &off.fr, sizeof(uint64_t), XDP_UMEM_PGOFF_FILL_RING);
+	if (ret == 0)
+		ret = oq_xsk_map_ring(xsk, &xsk->comp, &off.cr, sizeof(uint64_t), XDP_UMEM_PGOFF_COMPLETION_RING);
+	if (ret == 0 && rx)
+		ret = oq_xsk_map_ring(xsk, &xsk->rx, &off.rx, sizeof(struct xdp_desc), XDP_PGOFF_RX_RING);
+	if (ret == 0 && tx)
+		ret = oq_xsk_map_ring(xsk, &xsk->tx, &off.tx, sizeof(struct xdp_desc), XDP_PGOFF_TX_RING);
+	if (ret != 0) {
+		errno = -ret;
+		goto err;
+	}
+
+	if (opts->busy_poll_us > 0) {
+		ret = oq_xsk_setsockopt(xsk, SOL_SOCKET, SO_PREFER_BUSY_POLL, 1);
+		if (ret == 0)
+			ret = oq_xsk_setsockopt(xsk, SOL_SOCKET, SO_BUSY_POLL, opts->busy_poll_us);
+		if (ret == 0)
+			ret = oq_xsk_setsockopt(xsk, SOL_SOCKET, SO_BUSY_POLL_BUDGET, opts->busy_poll_budget);
+		if (ret != 0) {
+			errno = -ret;
+			goto err;
+		}
+		xsk->busy_poll = true;
+	}
+
+	memset(&sxdp, 0, sizeof(sxdp));
+	sxdp.sxdp_family = AF_XDP;
+	sxdp.sxdp_ifindex = xsk->ifindex;
+	sxdp.sxdp_queue_id = opts->queue;
+	if (shared) {
+		sxdp.sxdp_flags = XDP_SHARED_UMEM; /* Mode and wakeups follow the first socket */
+		sxdp.sxdp_shared_umem_fd = shared->fd;
+	} else {
+		sxdp.sxdp_flags = XDP_USE_NEED_WAKEUP;
+		if (opts->zerocopy)
+			sxdp.sxdp_flags |= XDP_ZEROCOPY;
+		else if (opts->copy)
+			sxdp.sxdp_flags |= XDP_COPY;
+	}
+
+	if (bind(xsk->fd, (struct sockaddr *)&sxdp, sizeof(sxdp)) != 0)
+		goto err;
+
+	return 0;
+
+err:
+	ret = -errno;
+	oq_xsk_close(xsk);
+	return ret;
+}
+
+bool oq_xsk_zerocopy(struct oq_xsk *xsk)
+{
+	struct xdp_options opts;
+	socklen_t optlen = sizeof(opts);
+
+	if (getsockopt(xsk->fd, SOL_XDP, XDP_OPTIONS, &opts, &optlen) != 0)
+		return false;
+
+	return opts.flags & XDP_OPTIONS_ZEROCOPY;
+}
+
+static void oq_xsk_unmap_ring(struct oq_xsk_ring *ring)
+{
+	if (ring->map)
+		munmap(ring->map, ring->map_len);
+	memset(ring, 0, sizeof(*ring));
+}
+
+void oq_xsk_close(struct oq_xsk *xsk)
+{
+	if (xsk->link_fd >= 0)
+		close(xsk->link_fd); /* Detaches the program */
+	if (xsk->prog_fd >= 0)
+		close(xsk->prog_fd);
+	if (xsk->map_fd >= 0)
+		close(xsk->map_fd);
+
+	oq_xsk_unmap_ring(&xsk->fill);
+	oq_xsk_unmap_ring(&xsk->comp);
+	oq_xsk_unmap_ring(&xsk->rx);
+	oq_xsk_unmap_ring(&xsk->tx);
+
+	if (xsk->fd >= 0)
+		close(xsk->fd);
+	xsk->fd = xsk->map_fd = xsk->prog_fd = xsk->link_fd = -1;
+}
+
+static int oq_xsk_bpf(int cmd, union bpf_attr *attr)
+{
+	int ret = syscall(__NR_bpf, cmd, attr, sizeof(*attr));
+
+	return ret < 0 ? -errno : ret;
+}
+
+int oq_xsk_redirect(struct oq_xsk *xsk, const struct oq_xsk_opts *opts)
+{
+	static char log[4096];
+	/* return bpf_redirect_map(&xskmap, ctx->rx_queue_index, XDP_PASS); */
+	struct bpf_insn insns[] = {
+		{ .code = BPF_LDX | BPF_MEM | BPF_W, .dst_reg = BPF_REG_2, .src_reg = BPF_REG_1,
+			.off = offsetof(struct xdp_md, rx_queue_index) },
+		{ .code = BPF_LD | BPF_DW | BPF_IMM, .dst_reg = BPF_REG_1, .src_reg = BPF_PSEUDO_MAP_FD }, /* XSKMAP */
+		{ 0 },
+		{ .code = BPF_ALU64 | BPF_MOV | BPF_K, .dst_reg = BPF_REG_3, .imm = XDP_PASS },
+		{ .code = BPF_JMP | BPF_CALL, .imm = BPF_FUNC_redirect_map },
+		{ .code = BPF_JMP | BPF_EXIT },
+	};
+	union bpf_attr attr;
+	uint32_t key = opts->queue, value = xsk->fd;
+	int ret;
+
+	if (opts->queue >= OQ_XSK_MAX_QUEUES)
+		return -EINVAL;
+
+	memset(&attr, 0, sizeof(attr));
+	attr.map_type = BPF_MAP_TYPE_XSKMAP;
+	attr.key_size = sizeof(key);
+	attr.value_size = sizeof(value);
+	attr.max_entries = OQ_XSK_MAX_QUEUES;
+	ret = oq_xsk_bpf(BPF_MAP_CREATE, &attr);
+	if (ret < 0)
+		return ret;
+	xsk->map_fd = ret;
+	insns[1].imm = xsk->map_fd;
+
+	memset(&attr, 0, sizeof(attr));
+	attr.prog_type = BPF_PROG_TYPE_XDP;
+	attr.insns = (uintptr_t)insns;
+	attr.insn_cnt = sizeof(insns) / sizeof(insns[0]);
+	attr.license = (uintptr_t)"GPL";
+	attr.log_buf = (uintptr_t)log;
+	attr.log_size = sizeof(log);
+	attr.log_level = 1;
+	ret = oq_xsk_bpf(BPF_PROG_LOAD, &attr);
+	if (ret < 0) {
+		fprintf(stderr, "oq_xsk: XDP program rejected: %s\n", log);
+		return ret;
+	}
+	xsk->prog_fd = ret;
+
+	memset(&attr, 0, sizeof(attr));
+	attr.map_fd = xsk->map_fd;
+	attr.key = (uintptr_t)&key;
+	attr.value = (uintptr_t)&value;
+	ret = oq_xsk_bpf(BPF_MAP_UPDATE_ELEM, &attr);
+	if (ret < 0)
+		return ret;
+
+	memset(&attr, 0, sizeof(attr));
+	attr.link_create.prog_fd = xsk->prog_fd;
+	attr.link_create.target_ifindex = xsk->ifindex;
+	attr.link_create.attach_type = BPF_XDP;
+	attr.link_create.flags = opts->skb_mode ? XDP_FLAGS_SKB_MODE : XDP_FLAGS_DRV_MODE;
+	ret = oq_xsk_bpf(BPF_LINK_CREATE, &attr);
+	if (ret < 0)
+		return ret;
+	xsk->link_fd = ret;
+
+	return 0;
+}
+
+int oq_xsk_hwaddr(const char *ifname, unsigned char *addr)
+{
+	struct ifreq ifr;
+	int fd, ret = 0;
+
+	fd = socket(AF_INET, SOCK_DGRAM | SOCK_CLOEXEC, 0);
+	if (fd < 0)
+		return -errno;
+
+	memset(&ifr, 0, sizeof(ifr));
+	snprintf(ifr.ifr_name, sizeof(ifr.ifr_name), "%s", ifname);
+	if (ioctl(fd, SIOCGIFHWADDR, &ifr) != 0)
+		ret = -errno;
+	else
+		memcpy(addr, ifr.ifr_hwaddr.sa_data, 6);
+
+	close(fd);
+
+	return ret;
+}
+
+unsigned int oq_xsk_fill(struct oq_xsk *xsk, struct oq_xsk_umem *umem)
+{
+	struct oq_xsk_ring *ring = &xsk->fill;
+	uint64_t *addrs = ring->descs;
+	uint32_t prod, cons, n, i;
+
+	prod = *ring->producer;
+	cons = __atomic_load_n(ring->consumer, __ATOMIC_ACQUIRE);
+	n = OQ_XSK_RING_SIZE - (prod - cons);
+	if (n > umem->num_free)
+		n = umem->num_free;
+
+	for (i = 0; i < n; i++)
+		addrs[(prod + i) & ring->mask] = umem->free[--umem->num_free];
+
+	__atomic_store_n(ring->producer, prod + n, __ATOMIC_RELEASE);
+
+	return n;
+}
+
+unsigned int oq_xsk_rx(struct oq_xsk *xsk, uint64_t *addrs, uint32_t *lens, unsigned int max)
+{
+	struct oq_xsk_ring *ring = &xsk->rx;
+	struct xdp_desc *descs = ring->descs;
+	uint32_t prod, cons, n, i;
+
+	cons = *ring->consumer;
+	prod = __atomic_load_n(ring->producer, __ATOMIC_ACQUIRE);
+	n = prod - cons;
+	if (n > max)
+		n = max;
+
+	for (i = 0; i < n; i++) {
+		const struct xdp_desc *desc = &descs[(cons + i) & ring->mask];
+
+		addrs[i] = desc->addr;
+		lens[i] = desc->len;
+	}
+
+	__atomic_store_n(ring->consumer, cons + n, __ATOMIC_RELEASE);
+
+	return n;
+}
+
+unsigned int oq_xsk_tx_room(struct oq_xsk *xsk)
+{
+	struct oq_xsk_ring *ring = &xsk->tx;
+
+	return OQ_XSK_RING_SIZE - (*ring->producer - __atomic_load_n(ring->consumer, __ATOMIC_ACQUIRE));
+}
+
+void oq_xsk_tx(struct oq_xsk *xsk, const uint64_t *addrs, const uint32_t *lens, unsigned int n)
+{
+	struct oq_xsk_ring *ring = &xsk->tx;
+	struct xdp_desc *descs = ring->descs;
+	uint32_t prod, i;
+
+	prod = *ring->producer;
+	for (i = 0; i < n; i++) {
+		struct xdp_desc *desc = &descs[(prod + i) & ring->mask];
+
+		desc->addr = addrs[i];
+		desc->len = lens[i];
+		desc->options = 0;
+	}
+
+	__atomic_store_n(ring->producer, prod + n, __ATOMIC_RELEASE);
+}
+
+unsigned int oq_xsk_tx_pending(struct oq_xsk *xsk)
+{
+	struct oq_xsk_ring *ring = &xsk->tx;
+
+	return *ring->producer - __atomic_load_n(ring->consumer, __ATOMIC_ACQUIRE);
+}
+
+void oq_xsk_kick_tx(struct oq_xsk *xsk)
+{
+	/* Copy mode sends a limited number of frames per call; errors mean the ring is picked up later */
+	if (oq_xsk_tx_pending(xsk) != 0 &&
+			(xsk->busy_poll || (__atomic_load_n(xsk->tx.flags, __ATOMIC_RELAXED) & XDP_RING_NEED_WAKEUP)))
+		sendto(xsk->fd, NULL, 0, MSG_DONTWAIT, NULL, 0);
+}
+
+unsigned int oq_xsk_complete(struct oq_xsk *xsk, struct oq_xsk_umem *umem)
+{
+	struct oq_xsk_ring *ring = &xsk->comp;
+	uint64_t *addrs = ring->descs;
+	uint32_t prod, cons, n, i;
+
+	cons = *ring->consumer;
+	prod = __atomic_load_n(ring->producer, __ATOMIC_ACQUIRE);
+	n = prod - cons;
+
+	for (i = 0; i < n; i++)
+		oq_xsk_frame_free(umem, addrs[(cons + i) & ring->mask]);
+
+	__atomic_store_n(ring->consumer, cons + n, __ATOMIC_RELEASE);
+
+	return n;
+}
+
+void oq_xsk_kick_rx(struct oq_xsk *xsk)
+{
+	if (xsk->busy_poll || (__atomic_load_n(xsk->fill.flags, __ATOMIC_RELAXED) & XDP_RING_NEED_WAKEUP))
+		recvfrom(xsk->fd, NULL, 0, MSG_DONTWAIT, NULL, NULL);
+}
@@ -0,0 +1,127 @@
+/*
+ * oq_xsk.h         AF_XDP sockets for oq_xdp: a UMEM of fixed-size frames shared by the
+ *                  sockets of the forwarder, their fill, completion, RX and TX rings, and the
+ *                  XDP program that redirects a device queue to a socket.
+ *
+ *                  Built without the kernel stand-ins of include/ (oq_kernel.h), so it only
+ *                  uses fixed-width types; ring operations work on batches of frame addresses.
+ *
+ *                  This program is free software; you can redistribute it and/or
+ *                  modify it under the terms of the GNU General Public License
+ *                  as published by the Free Software Foundation; either version
+ *                  2 of the License, or (at your option) any later version.
+ *
+ * Authors:         Danushka Menikkumbura, <dmenikku@purdue.edu>
+ */
+
+#pragma once
+
+#include <stdbool.h>
+#include <stddef.h>
+#include <stdint.h>
+
+#define OQ_XSK_FRAME_SIZE	2048	/* Power of two, so a frame is found from any address in it */
+#define OQ_XSK_RING_SIZE	2048
+#define OQ_XSK_FRAMES		16384
+
+/* Producer/consumer ring mapped from the socket */
+struct oq_xsk_ring {
+	uint32_t *producer;
+	uint32_t *consumer;
+	uint32_t *flags;
+	void *descs; /* Frame addresses (fill, completion) or struct xdp_desc (RX, TX) */
+	uint32_t mask;
+	void *map;
+	size_t map_len;
+};
+
+/* Packet buffer area registered with the first socket and shared by the others */
+struct oq_xsk_umem {
+	unsigned char *area;
+	size_t size;
+	uint32_t frame_size;
+	uint32_t num_frames;
+	uint64_t *free; /* Stack of the frames owned by neither the kernel nor the qdisc */
+	uint32_t num_free;
+};
+
+struct oq_xsk_opts {
+	uint32_t queue; /* Queue of the device */
+	bool zerocopy; /* Bind in zero-copy mode, failing where the driver does not support it */
+	bool copy; /* Bind in copy mode (neither: the kernel chooses) */
+	bool skb_mode; /* Generic XDP, for drivers without native XDP */
+	int busy_poll_us; /* SO_BUSY_POLL with SO_PREFER_BUSY_POLL (0: interrupts) */
+	int busy_poll_budget; /* Packets per busy poll */
+};
+
+struct oq_xsk {
+	int fd;
+	int ifindex;
+	bool busy_poll;
+	struct oq_xsk_ring fill;
+	struct oq_xsk_ring comp;
+	struct oq_xsk_ring rx;
+	struct oq_xsk_ring tx;
+	int map_fd; /* XSKMAP and XDP program of oq_xsk_redirect */
+	int prog_fd;
+	int link_fd;
+};
+
+static inline uint64_t oq_xsk_frame(const struct oq_xsk_umem *umem, uint64_t addr)
+{
+	return addr & ~(uint64_t)(umem->frame_size - 1);
+}
+
+static inline uint32_t oq_xsk_frame_index(const struct oq_xsk_umem *umem, uint64_t addr)
+{
+	return addr / umem->frame_size;
+}
+
+static inline void oq_xsk_frame_free(struct oq_xsk_umem *umem, uint64_t addr)
+{
+	umem->free[umem->num_free++] = oq_xsk_frame(umem, addr);
+}
+
+int oq_xsk_umem_create(struct oq_xsk_umem *umem, uint32_t num_frames, uint32_t frame_size);
+void oq_xsk_umem_destroy(struct oq_xsk_umem *umem);
+
+/*
+ * Open a socket on a queue of a device with the given rings. The first socket of a UMEM
+ * registers it (shared NULL); the others share the UMEM of that socket.
+ */
+int oq_xsk_open(struct oq_xsk *xsk, const char *ifname, struct oq_xsk_umem *umem, const struct oq_xsk *shared,
+	bool rx, bool tx, const struct oq_xsk_opts *opts);
+void oq_xsk_close(struct oq_xsk *xsk);
+
+/* Whether the socket was bound in zero-copy mode */
+bool oq_xsk_zerocopy(struct oq_xsk *xsk);
+
+/* Attach an XDP program to the device that redirects the packets of the socket's queue to it */
+int oq_xsk_redirect(struct oq_xsk *xsk, const struct oq_xsk_opts *opts);
+
+/* Hardware address of a device */
+int oq_xsk_hwaddr(const char *ifname, unsigned char *addr);
+
+/* Give free frames to the kernel for reception; returns frames given */
+unsigned int oq_xsk_fill(struct oq_xsk *xsk, struct oq_xsk_umem *umem);
+
+/* Take up to max received frames; returns frames taken */
+unsigned int oq_xsk_rx(struct oq_xsk *xsk, uint64_t *addrs, uint32_t *lens, unsigned int max);
+
+/* Free TX descriptors */
+unsigned int oq_xsk_tx_room(struct oq_xsk *xsk);
+
+/* Queue n frames (at most oq_xsk_tx_room) for transmission */
+void oq_xsk_tx(struct oq_xsk *xsk, const uint64_t *addrs, const uint32_t *lens, unsigned int n);
+
+/* TX descriptors the kernel has not taken yet */
+unsigned int oq_xsk_tx_pending(struct oq_xsk *xsk);
+
+/* Have the kernel send the pending TX descriptors */
+void oq_xsk_kick_tx(struct oq_xsk *xsk);
+
+/* Return transmitted frames to the free frames; returns frames returned */
+unsigned int oq_xsk_complete(struct oq_xsk *xsk, struct oq_xsk_umem *umem);
+
+/* Drive reception: busy poll, or wake the driver up when it waits for the fill ring */
+void oq_xsk_kick_rx(struct oq_xsk *xsk);